@@ -0,0 +1,104 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Compares encoding a line with {@link PlaintextEncoder}, against formatting it with
+ * {@link CarbonConnector#format(Object, Object, Number)}. Run with the {@code jmh} profile (see the
+ * README).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PlaintextEncoderBenchmark {
+
+    private static final String PREFIX = "cassandra.instance-a";
+    private static final String METRIC = ".org.apache.cassandra.metrics.Table.keyspace.table.ReadLatency.99percentile";
+
+    private final byte[] prefix = PREFIX.getBytes(Charsets.UTF_8);
+    private final byte[] metric = METRIC.getBytes(Charsets.UTF_8);
+    private final String name = PREFIX + METRIC;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(CarbonConnector.BUFFER_SIZE);
+
+    // Latency-like doubles, and counter-like longs
+    private final double[] doubles = new double[1024];
+    private final long[] longs = new long[1024];
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        for (int i = 0; i < this.doubles.length; i++) {
+            this.doubles[i] = random.nextDouble() * Math.pow(10, random.nextInt(7));
+            this.longs[i] = Math.abs(random.nextLong()) >>> random.nextInt(60);
+        }
+    }
+
+    @Benchmark
+    public byte[] formatDouble() {
+        return CarbonConnector.format(this.name, this.doubles[next()], 1500000000);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeDouble() {
+        ByteBuffer buffer = reserve();
+        PlaintextEncoder.encode(buffer, this.prefix, this.metric, this.doubles[next()], 1500000000);
+        return buffer;
+    }
+
+    @Benchmark
+    public byte[] formatLong() {
+        return CarbonConnector.format(this.name, this.longs[next()], 1500000000);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeLong() {
+        ByteBuffer buffer = reserve();
+        PlaintextEncoder.encode(buffer, this.prefix, this.metric, this.longs[next()], 1500000000);
+        return buffer;
+    }
+
+    private int next() {
+        return this.next = (this.next + 1) & (this.doubles.length - 1);
+    }
+
+    /** The buffer, started over when full (as if it had been flushed). */
+    private ByteBuffer reserve() {
+        if (this.buffer.remaining() < PlaintextEncoder.maxLength(this.prefix, this.metric))
+            this.buffer.clear();
+        return this.buffer;
+    }
+
+}
@@ -0,0 +1,35 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+/**
+ * A {@link SampleVisitor} that can also process a batch of samples at a time (the samples of one
+ * MBean, for example). Sources that collect in batches pass them to {@link #visit(SampleBatch)};
+ * Those that do not continue to pass samples one at a time.
+ *
+ * @author eevans
+ */
+public interface BatchVisitor extends SampleVisitor {
+
+    /**
+     * Visit a batch of samples. The batch is only valid for the duration of the call; It is reused
+     * for the batches that follow.
+     *
+     * @param batch
+     *            a batch of collected samples
+     */
+    public void visit(SampleBatch batch);
+
+}
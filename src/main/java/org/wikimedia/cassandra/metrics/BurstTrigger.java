@@ -0,0 +1,130 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Watches the samples of a collection for signs of trouble: a coordinator read or write latency
+ * 99th percentile ({@code ClientRequest} {@code Latency}) above a threshold, or more dropped
+ * messages ({@code DroppedMessage} {@code Dropped}, all verbs) since the previous collection than a
+ * threshold. A threshold of zero (or less) disables that check.
+ * <p>
+ * Samples are observed by way of {@link #watch(SampleVisitor)}, and the outcome retrieved with
+ * {@link #poll()} after the collection completes. Dropped message counts are retained between
+ * collections; The first collection only establishes a baseline.
+ * </p>
+ *
+ * @author eevans
+ */
+public class BurstTrigger {
+
+    private final double latencyThreshold;
+    private final long droppedThreshold;
+    private final Map<ObjectName, Long> dropped = Maps.newHashMap();
+
+    private long droppedSince = 0;
+    private String reason;
+
+    /**
+     * Create a trigger.
+     *
+     * @param latencyThreshold
+     *            coordinator read/write 99th percentile latency threshold, in microseconds
+     * @param droppedThreshold
+     *            dropped messages per collection threshold
+     */
+    public BurstTrigger(double latencyThreshold, long droppedThreshold) {
+        this.latencyThreshold = latencyThreshold;
+        this.droppedThreshold = droppedThreshold;
+    }
+
+    /**
+     * Returns a visitor that observes samples before passing them on to another.
+     *
+     * @param visitor
+     *            visitor to pass samples to
+     * @return a watching visitor
+     */
+    public BatchVisitor watch(SampleVisitor visitor) {
+        final BatchVisitor delegate = SampleBatchAdapter.of(checkNotNull(visitor, "visitor argument"));
+        return new BatchVisitor() {
+            private final JmxSample sample = new JmxSample();
+
+            @Override
+            public void visit(JmxSample sample) {
+                observe(sample);
+                delegate.visit(sample);
+            }
+
+            @Override
+            public void visit(SampleBatch batch) {
+                for (int i = 0; i < batch.size(); i++)
+                    observe(batch.get(i, this.sample));
+                delegate.visit(batch);
+            }
+        };
+    }
+
+    /**
+     * Returns a description of the threshold crossed since the last call, or null if none was.
+     *
+     * @return the reason to trigger, or null
+     */
+    public synchronized String poll() {
+        String result = this.reason;
+        if (result == null && this.droppedThreshold > 0 && this.droppedSince >= this.droppedThreshold)
+            result = String.format("%d dropped messages", this.droppedSince);
+        this.reason = null;
+        this.droppedSince = 0;
+        return result;
+    }
+
+    synchronized void observe(JmxSample sample) {
+        if (!sample.getType().equals(Type.CASSANDRA))
+            return;
+
+        ObjectName oName = sample.getObjectName();
+        String type = oName.getKeyProperty("type");
+        String name = oName.getKeyProperty("name");
+        double value = sample.getDoubleValue();
+
+        if (this.latencyThreshold > 0 && "ClientRequest".equals(type) && "Latency".equals(name) && sample.getMetricName().equals("99percentile")) {
+            String scope = oName.getKeyProperty("scope");
+            if (("Read".equals(scope) || "Write".equals(scope)) && value > this.latencyThreshold && this.reason == null)
+                this.reason = String.format("%s 99th percentile latency of %.0f us", scope, value);
+        }
+        else if (this.droppedThreshold > 0 && "DroppedMessage".equals(type) && "Dropped".equals(name) && sample.getMetricName().equals("count")) {
+            long count = sample.getLongValue();
+            Long previous = this.dropped.put(oName, count);
+            if (previous != null && count > previous)
+                this.droppedSince += count - previous;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BurstTrigger [latencyThreshold=" + latencyThreshold + ", droppedThreshold=" + droppedThreshold + "]";
+    }
+
+}
@@ -17,21 +17,53 @@ package org.wikimedia.cassandra.metrics;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
+import static org.wikimedia.cassandra.metrics.Constants.DEFAULT_CARBON_CONNECT_TIMEOUT;
+import static org.wikimedia.cassandra.metrics.Constants.DEFAULT_CARBON_WRITE_TIMEOUT;
 import static org.wikimedia.cassandra.metrics.Constants.DEFAULT_GRAPHITE_HOST;
 import static org.wikimedia.cassandra.metrics.Constants.DEFAULT_GRAPHITE_PORT;
 
 import java.io.IOException;
-import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 
 import com.google.common.base.Charsets;
 
+/**
+ * Writes metrics to Carbon (the plaintext protocol). Lines are encoded (see
+ * {@link PlaintextEncoder}) into a reusable (direct) buffer, and written to the socket channel when
+ * it fills, on {@link #flush()}, or on {@link #close()}, rather than one write per metric. Writes
+ * that make no progress for longer than the write timeout fail.
+ * <p>
+ * Timeouts default to those set with {@link #setDefaultTimeouts(int, int)}, (see
+ * {@link Constants#DEFAULT_CARBON_CONNECT_TIMEOUT} and {@link Constants#DEFAULT_CARBON_WRITE_TIMEOUT}).
+ * </p>
+ */
 public class CarbonConnector implements AutoCloseable {
+    private static final byte[] EMPTY = new byte[0];
+
+    /** Size of the write buffer; Lines are written in chunks of up to this size. */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static volatile int defaultConnectTimeout = DEFAULT_CARBON_CONNECT_TIMEOUT;
+    private static volatile int defaultWriteTimeout = DEFAULT_CARBON_WRITE_TIMEOUT;
+
     private final String hostname;
     private final int port;
+    private final int connectTimeout;
+    private final int writeTimeout;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
 
     private Socket socket;
-    private OutputStream outStream;
+    private WritableByteChannel channel;
+    private Selector selector;
+    private ByteBuffer oversized;
     private boolean isClosed = false;
 
     public CarbonConnector() throws CarbonException {
@@ -43,51 +75,224 @@ public class CarbonConnector implements AutoCloseable {
     }
 
     public CarbonConnector(String host, int port) throws CarbonException {
+        this(host, port, defaultConnectTimeout, defaultWriteTimeout);
+    }
+
+    /**
+     * Create a new {@link CarbonConnector}.
+     *
+     * @param host
+     *            Carbon hostname
+     * @param port
+     *            Carbon port number
+     * @param connectTimeout
+     *            connect timeout in milliseconds (0 to wait indefinitely)
+     * @param writeTimeout
+     *            write timeout in milliseconds (0 to wait indefinitely)
+     * @throws CarbonException
+     *             if unable to connect
+     */
+    public CarbonConnector(String host, int port, int connectTimeout, int writeTimeout) throws CarbonException {
         this.hostname = checkNotNull(host, "host argument");
-        checkArgument((port > 0 && port < Short.MAX_VALUE), "port argument");
+        checkArgument((port > 0 && port <= 65535), "port argument");
+        checkArgument(connectTimeout >= 0, "connectTimeout argument");
+        checkArgument(writeTimeout >= 0, "writeTimeout argument");
         this.port = port;
+        this.connectTimeout = connectTimeout;
+        this.writeTimeout = writeTimeout;
 
         try {
             this.socket = createSocket();
-            this.outStream = this.socket.getOutputStream();
+            SocketChannel channel = this.socket.getChannel();
+            if (channel != null) {
+                // Non-blocking, so that writes can time out
+                channel.configureBlocking(false);
+                this.selector = Selector.open();
+                channel.register(this.selector, SelectionKey.OP_WRITE);
+                this.channel = channel;
+            }
+            else {
+                this.channel = Channels.newChannel(this.socket.getOutputStream());
+            }
         } catch (IOException e) {
+            closeQuietly();
             throw new CarbonException(String.format("Connecting to %s:%s: %s", host, port, e.getMessage()), e);
         }
     }
 
+    /**
+     * Sets the timeouts of connectors subsequently created without explicit timeouts.
+     *
+     * @param connectTimeout
+     *            connect timeout in milliseconds (0 to wait indefinitely)
+     * @param writeTimeout
+     *            write timeout in milliseconds (0 to wait indefinitely)
+     */
+    public static void setDefaultTimeouts(int connectTimeout, int writeTimeout) {
+        checkArgument(connectTimeout >= 0, "connectTimeout argument");
+        checkArgument(writeTimeout >= 0, "writeTimeout argument");
+        defaultConnectTimeout = connectTimeout;
+        defaultWriteTimeout = writeTimeout;
+    }
+
     public void write(Object metric, Object value) throws CarbonException {
         write(metric, value, System.currentTimeMillis() / 1000);
     }
 
     public void write(Object metric, Object value, Number timestamp) throws CarbonException {
         checkState(!this.isClosed, "cannot write to closed object");
+        put(format(metric, value, timestamp));
+    }
+
+    public void write(String metric, long value, int timestamp) throws CarbonException {
+        write(EMPTY, metric.getBytes(Charsets.UTF_8), value, timestamp);
+    }
+
+    public void write(String metric, double value, int timestamp) throws CarbonException {
+        write(EMPTY, metric.getBytes(Charsets.UTF_8), value, timestamp);
+    }
+
+    public void write(byte[] metric, long value, int timestamp) throws CarbonException {
+        write(EMPTY, metric, value, timestamp);
+    }
+
+    public void write(byte[] metric, double value, int timestamp) throws CarbonException {
+        write(EMPTY, metric, value, timestamp);
+    }
+
+    /** Writes a metric whose pre-encoded name is in two parts (a prefix, and the remainder). */
+    public void write(byte[] prefix, byte[] metric, long value, int timestamp) throws CarbonException {
+        PlaintextEncoder.encode(reserve(prefix, metric), prefix, metric, value, timestamp);
+        drainOversized();
+    }
 
+    /** Writes a metric whose pre-encoded name is in two parts (a prefix, and the remainder). */
+    public void write(byte[] prefix, byte[] metric, double value, int timestamp) throws CarbonException {
+        PlaintextEncoder.encode(reserve(prefix, metric), prefix, metric, value, timestamp);
+        drainOversized();
+    }
+
+    /**
+     * Writes any buffered lines to the socket.
+     *
+     * @throws CarbonException
+     *             on error, or if the write times out
+     */
+    public void flush() throws CarbonException {
+        checkState(!this.isClosed, "cannot write to closed object");
+        this.buffer.flip();
         try {
-            this.outStream.write(format(metric, value, timestamp));
+            drain(this.buffer);
+        }
+        finally {
+            this.buffer.clear();
+        }
+    }
+
+    /**
+     * Returns a buffer with room for a line of the given name; The write buffer (flushed first if
+     * need be), or for lines longer than it (which is unlikely), an oversized buffer of their own.
+     */
+    private ByteBuffer reserve(byte[] prefix, byte[] metric) throws CarbonException {
+        checkState(!this.isClosed, "cannot write to closed object");
+
+        int length = PlaintextEncoder.maxLength(prefix, metric);
+        if (this.buffer.remaining() < length) {
+            flush();
+            if (this.buffer.remaining() < length) {
+                this.oversized = ByteBuffer.allocate(length);
+                return this.oversized;
+            }
+        }
+        return this.buffer;
+    }
+
+    private void drainOversized() throws CarbonException {
+        if (this.oversized == null)
+            return;
+        ByteBuffer source = this.oversized;
+        this.oversized = null;
+        source.flip();
+        drain(source);
+    }
+
+    private void put(byte[] bytes) throws CarbonException {
+        if (this.buffer.remaining() < bytes.length) {
+            flush();
+            if (this.buffer.remaining() < bytes.length) {
+                drain(ByteBuffer.wrap(bytes));
+                return;
+            }
+        }
+        this.buffer.put(bytes);
+    }
+
+    /** Writes the remainder of a buffer to the channel, waiting up to the write timeout for progress. */
+    private void drain(ByteBuffer source) throws CarbonException {
+        try {
+            while (source.hasRemaining()) {
+                if (this.channel.write(source) > 0)
+                    continue;
+                // The socket send buffer is full
+                if (this.selector.select(this.writeTimeout) == 0)
+                    throw new CarbonException(String.format("Writing to %s:%s: timed out after %d ms", this.hostname, this.port, this.writeTimeout));
+                this.selector.selectedKeys().clear();
+            }
         }
         catch (IOException e) {
             throw new CarbonException(String.format("Writing to %s:%s: %s", this.hostname, this.port, e.getLocalizedMessage()), e);
         }
     }
 
-    private byte[] format(Object metric, Object value, Number timestamp) {
+    /** Formats a line of arbitrary objects (the encoding of {@link #write(Object, Object, Number)}). */
+    static byte[] format(Object metric, Object value, Number timestamp) {
         return String.format("%s %s %d%n", metric, value, timestamp).getBytes(Charsets.UTF_8);
     }
 
+    /** Returns a connected socket; One with a {@link SocketChannel} is written to without blocking. */
     protected Socket createSocket() throws IOException {
-        return new Socket(this.hostname, this.port);
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(this.hostname, this.port), this.connectTimeout);
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel.socket();
     }
 
+    /** Writes any buffered lines, and closes the connection. */
     @Override
     public void close() throws IOException {
-        this.outStream.close();
-        this.socket.close();
-        this.isClosed = true;
+        if (this.isClosed)
+            return;
+        try {
+            flush();
+        }
+        finally {
+            closeQuietly();
+            this.isClosed = true;
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (this.selector != null)
+                this.selector.close();
+            if (this.channel != null)
+                this.channel.close();
+            if (this.socket != null)
+                this.socket.close();
+        }
+        catch (IOException e) {
+            // Nothing more to be done
+        }
     }
 
     @Override
     public String toString() {
-        return "Carbon [hostname=" + hostname + ", port=" + port + ", isClosed=" + isClosed + "]";
+        return "Carbon [hostname=" + hostname + ", port=" + port + ", writeTimeout=" + writeTimeout + ", isClosed=" + isClosed + "]";
     }
 
 }
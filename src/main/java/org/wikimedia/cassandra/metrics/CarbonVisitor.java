@@ -20,11 +20,13 @@ import static com.google.common.base.Preconditions.checkState;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 import javax.management.ObjectName;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Splitter;
+import com.google.common.collect.Maps;
 
 
 /**
@@ -33,9 +35,10 @@ import com.google.common.base.Splitter;
  * 
  * @author eevans
  */
-public class CarbonVisitor implements SampleVisitor, AutoCloseable {
+public class CarbonVisitor implements BatchVisitor, AutoCloseable {
     private final String prefix;
     private final Optional<Filter> filter;
+    private final MetricNameCache names;
 
     private CarbonConnector connector;
     private boolean isClosed = false;
@@ -86,21 +89,88 @@ public class CarbonVisitor implements SampleVisitor, AutoCloseable {
      *            metrics to accept/reject.
      */
     public CarbonVisitor(CarbonConnector carbon, String prefix, Optional<Filter> filter) {
+        this(carbon, filter, new MetricNameCache(prefix));
+    }
+
+    /**
+     * Create a new {@link CarbonVisitor} using the supplied host, port, and
+     * metric name cache (retained between collections).
+     *
+     * @param host
+     *            Graphite host to connect to
+     * @param port
+     *            the Graphite port number
+     * @param filter
+     *            an {@link Optional} filter object used to determine which
+     *            metrics to accept/reject.
+     * @param names
+     *            metric name cache (determines the prefix)
+     */
+    public CarbonVisitor(String host, int port, Optional<Filter> filter, MetricNameCache names) {
+        this(new CarbonConnector(host, port), filter, names);
+    }
+
+    /**
+     * Create a new {@link CarbonVisitor} using the supplied
+     * {@link CarbonConnector}, and metric name cache.
+     *
+     * @param carbon
+     *            Carbon connector instance
+     * @param filter
+     *            an {@link Optional} filter object used to determine which
+     *            metrics to accept/reject.
+     * @param names
+     *            metric name cache (determines the prefix)
+     */
+    public CarbonVisitor(CarbonConnector carbon, Optional<Filter> filter, MetricNameCache names) {
         this.connector = checkNotNull(carbon, "carbon argument");
-        this.prefix = checkNotNull(prefix, "prefix argument");
         this.filter = checkNotNull(filter, "filter argument");
+        this.names = checkNotNull(names, "names argument");
+        this.prefix = names.getPrefix();
     }
 
     /** {@inheritDoc} */
     @Override
     public void visit(JmxSample jmxSample) {
         checkState(!this.isClosed, "cannot write to closed object");
-        String name = metricName(jmxSample, this.prefix);
-        if (accept(name)) this.connector.write(name, jmxSample.getValue(), jmxSample.getTimestamp());
+        MetricNameCache.MetricName name = this.names.get(jmxSample.getType(), jmxSample.getObjectName(), jmxSample.getMetricName(), this.filter);
+        if (!accept(name))
+            return;
+        if (jmxSample.isIntegral())
+            this.connector.write(name.getPrefixBytes(), name.getSuffixBytes(), jmxSample.getLongValue(), jmxSample.getTimestamp());
+        else
+            this.connector.write(name.getPrefixBytes(), name.getSuffixBytes(), jmxSample.getDoubleValue(), jmxSample.getTimestamp());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void visit(SampleBatch batch) {
+        checkState(!this.isClosed, "cannot write to closed object");
+
+        for (int i = 0; i < batch.size(); i++) {
+            MetricNameCache.MetricName name = this.names.get(batch.getType(), batch.getObjectName(), batch.getMetricName(i), this.filter);
+            if (!accept(name))
+                continue;
+            if (batch.isIntegral(i))
+                this.connector.write(name.getPrefixBytes(), name.getSuffixBytes(), batch.getLongValue(i), batch.getTimestamp());
+            else
+                this.connector.write(name.getPrefixBytes(), name.getSuffixBytes(), batch.getDoubleValue(i), batch.getTimestamp());
+        }
+    }
+
+    /**
+     * Writes any buffered samples to Graphite.
+     *
+     * @throws CarbonException
+     *             on error, or if the write times out
+     */
+    public void flush() throws CarbonException {
+        checkState(!this.isClosed, "cannot write to closed object");
+        this.connector.flush();
     }
 
     /**
-     * Terminates the connection to Graphite. Once closed, this object is no longer valid; A new
+     * Terminates the connection to Graphite (writing any buffered samples first). Once closed, this object is no longer valid; A new
      * instance will need to be created to send additional samples.
      */
     @Override
@@ -115,10 +185,14 @@ public class CarbonVisitor implements SampleVisitor, AutoCloseable {
     }
 
     // Convenience method; Wraps filter to provide Optional handling
-    private boolean accept(String name) {
+    private boolean accept(MetricNameCache.MetricName name) {
+        // Names dropped by relabel rules are never written.
+        if (name.isDropped()) {
+            return false;
+        }
         // When no filter is supplied, then default to accepting everything.
         if (this.filter.isPresent()) {
-            return this.filter.get().accept(name);
+            return name.accept(this.filter.get());
         }
         return true;
     }
@@ -127,47 +201,106 @@ public class CarbonVisitor implements SampleVisitor, AutoCloseable {
     // names in an abstract way, thus all of the special-case handling that follows. :(
 
     static String metricName(JmxSample jmxSample, String prefix) {
-        switch (jmxSample.getType()) {
+        return metricName(baseName(jmxSample.getType(), jmxSample.getObjectName(), prefix), jmxSample.getMetricName());
+    }
+
+    /** Returns the name of a metric, given the base name of its object name. */
+    static String metricName(String baseName, String metricName) {
+        return new StringBuilder(baseName.length() + metricName.length() + 1).append(baseName).append('.').append(scrub(metricName)).toString();
+    }
+
+    /** Returns the name common to all metrics of an object name (everything but the trailing metric name). */
+    static String baseName(JmxSample.Type type, ObjectName oName, String prefix) {
+        return baseName(type, oName, prefix, null);
+    }
+
+    /**
+     * Returns the name common to all metrics of an object name, with relabel rules applied to those of
+     * Cassandra metrics, or null if the rules drop them.
+     */
+    static String baseName(JmxSample.Type type, ObjectName oName, String prefix, Relabeler relabeler) {
+        switch (type) {
             case JVM:
-                return metricNameJvm(jmxSample, prefix);
+                return baseNameJvm(oName, prefix);
             case CASSANDRA:
-                return metricNameCassandra(jmxSample, prefix);
+                return baseNameCassandra(oName, prefix, relabeler);
             default:
                 throw new IllegalArgumentException("unknown sample type; report this as a bug!");
         }
     }
 
-    static String metricNameJvm(JmxSample jmxSample, String prefix) {
-        ObjectName oName = jmxSample.getObjectName();
+    static String baseNameJvm(ObjectName oName, String prefix) {
         validateObjectName(oName, "java.lang", true);
 
         String type = oName.getKeyProperty("type");
 
         // Create graphite metric name
         String baseName = String.format("%s.jvm", prefix);
-        String metricName = scrub(jmxSample.getMetricName());
 
         switch (type) {
             case "Runtime":
-                return String.format("%s.%s", baseName, metricName);
+                return baseName;
             case "Memory":
-                return String.format("%s.memory.%s", baseName, metricName);
+                return String.format("%s.memory", baseName);
             case "GarbageCollector":
-                String gcName = jmxSample.getObjectName().getKeyProperty("name");
-                return String.format("%s.gc.%s.%s", baseName, scrub(gcName), metricName);
+                return String.format("%s.gc.%s", baseName, scrub(oName.getKeyProperty("name")));
             case "MemoryPool":
-                return String.format("%s.memory.memory_pool_usages.%s", baseName, metricName);
+                return String.format("%s.memory.memory_pool_usages", baseName);
+            case "NativeMemory":
+                return String.format("%s.native_memory.%s", baseName, scrub(oName.getKeyProperty("name")));
+            case "HeapInfo":
+                return String.format("%s.heap_info.%s", baseName, scrub(oName.getKeyProperty("name")));
+            case "Process":
+                return String.format("%s.process", baseName);
+            case "GcLog":
+                return String.format("%s.gc_log.%s", baseName, scrub(oName.getKeyProperty("name")));
             default:
                 throw new IllegalArgumentException("unknown bean type; report this as a bug!");
         }
 
     }
 
-    static String metricNameCassandra(JmxSample jmxSample, String prefix) {
-        ObjectName oName = jmxSample.getObjectName();
-        validateObjectName(oName, "org.apache.cassandra.metrics", true);
+    static String baseNameCassandra(ObjectName oName, String prefix) {
+        return baseNameCassandra(oName, prefix, null);
+    }
+
+    static String baseNameCassandra(ObjectName oName, String prefix, Relabeler relabeler) {
+        Map<String, String> properties = propertiesCassandra(oName, relabeler);
+        if (properties == null)
+            return null;
 
         StringBuilder builder = new StringBuilder(prefix).append('.').append(oName.getDomain());
+        for (String value : properties.values())
+            builder.append('.').append(scrub(value));
+
+        return builder.toString();
+    }
+
+    /**
+     * Returns the base name and Graphite tags of a Cassandra object name, or null if relabel rules
+     * drop it. Only the type and name properties make up the base name; The remainder become tags (as
+     * {@code ;key=value}, in the order they were defined), and follow the metric name.
+     */
+    static String[] taggedBaseNameCassandra(ObjectName oName, String prefix, Relabeler relabeler) {
+        Map<String, String> properties = propertiesCassandra(oName, relabeler);
+        if (properties == null)
+            return null;
+
+        StringBuilder base = new StringBuilder(prefix).append('.').append(oName.getDomain());
+        StringBuilder tags = new StringBuilder();
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            if (property.getKey().equals("type") || property.getKey().equals("name"))
+                base.append('.').append(scrub(property.getValue()));
+            else if (!property.getValue().isEmpty())
+                tags.append(';').append(scrubTag(property.getKey())).append('=').append(scrubTag(property.getValue()));
+        }
+
+        return new String[] { base.toString(), tags.toString() };
+    }
+
+    /** Returns the key properties of a Cassandra object name in order, with relabel rules applied. */
+    private static Map<String, String> propertiesCassandra(ObjectName oName, Relabeler relabeler) {
+        validateObjectName(oName, "org.apache.cassandra.metrics", true);
 
         // Ideally we'd be able to build a deterministic metric name by iterating
         // over the already parsed property list, but as it's a hash map, the
@@ -184,15 +317,14 @@ public class CarbonVisitor implements SampleVisitor, AutoCloseable {
             }
         }
 
-        // Add the remaining properties in the order they were defined.
+        // The properties in the order they were defined.
+        Map<String, String> properties = Maps.newLinkedHashMap();
         for (String property : Splitter.on(",").trimResults().split(propsString)) {
             List<String> kv = Splitter.on("=").trimResults().limit(2).splitToList(property);
-            builder.append('.').append(scrub(kv.get(1)));
+            properties.put(kv.get(0), kv.get(1));
         }
 
-        builder.append('.').append(scrub(jmxSample.getMetricName()));
-
-        return builder.toString();
+        return (relabeler != null) ? relabeler.apply(properties) : properties;
     }
 
     /** scrub problematic characters */
@@ -200,6 +332,11 @@ public class CarbonVisitor implements SampleVisitor, AutoCloseable {
         return name.replace(' ', '-');
     }
 
+    /** scrub characters that are problematic in Graphite tags (separators, and the negation operator) */
+    private static String scrubTag(String tag) {
+        return scrub(tag).replace(';', '_').replace('=', '_').replace('~', '_');
+    }
+
     private static void validateObjectName(ObjectName oName, String expectedDomain, boolean typeRequired) {
         checkNotNull(oName, "oName argument");
         checkNotNull(expectedDomain, "expectedDomain argument");
@@ -41,6 +41,8 @@ public class Command {
             System.exit(1);
         }
 
+        JmxSocketFactory.install(new JmxSocketFactory());
+
         try (JmxCollector collector = new JmxCollector(args[0], jmxPort)) {
             if (Boolean.parseBoolean(System.getenv().get("DRY_RUN"))) {
                 collector.getSamples(new TsvVisitor(System.out, args[4]));
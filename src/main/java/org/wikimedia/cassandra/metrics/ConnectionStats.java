@@ -0,0 +1,95 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wire-level accounting for a JMX connection; Bytes sent and received, and request/response round
+ * trips, as observed by sockets created by {@link JmxSocketFactory}.
+ *
+ * @author eevans
+ */
+public class ConnectionStats {
+
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong roundTrips = new AtomicLong();
+    private final AtomicLong roundTripNanos = new AtomicLong();
+    private final AtomicLong maxRoundTripNanos = new AtomicLong();
+
+    void sent(int bytes) {
+        this.bytesSent.addAndGet(bytes);
+    }
+
+    void received(int bytes) {
+        this.bytesReceived.addAndGet(bytes);
+    }
+
+    void roundTrip(long nanos) {
+        this.roundTrips.incrementAndGet();
+        this.roundTripNanos.addAndGet(nanos);
+
+        long max;
+        while ((max = this.maxRoundTripNanos.get()) < nanos) {
+            if (this.maxRoundTripNanos.compareAndSet(max, nanos))
+                break;
+        }
+    }
+
+    public long getBytesSent() {
+        return this.bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return this.bytesReceived.get();
+    }
+
+    public long getRoundTrips() {
+        return this.roundTrips.get();
+    }
+
+    /** Mean round trip latency in milliseconds (0 when no round trips were recorded). */
+    public double getMeanRoundTrip() {
+        long count = this.roundTrips.get();
+        return (count > 0) ? toMillis(this.roundTripNanos.get()) / count : 0.0d;
+    }
+
+    /** Maximum round trip latency in milliseconds. */
+    public double getMaxRoundTrip() {
+        return toMillis(this.maxRoundTripNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionStats [bytesSent="
+                + bytesSent
+                + ", bytesReceived="
+                + bytesReceived
+                + ", roundTrips="
+                + roundTrips
+                + ", meanRoundTrip="
+                + getMeanRoundTrip()
+                + ", maxRoundTrip="
+                + getMaxRoundTrip()
+                + "]";
+    }
+
+    private static double toMillis(long nanos) {
+        return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+}
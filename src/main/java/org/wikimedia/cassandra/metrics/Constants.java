@@ -15,9 +15,15 @@
 package org.wikimedia.cassandra.metrics;
 
 class Constants {
-    static final String DEFAULT_JMX_HOST        = "localhost";
-    static final int    DEFAULT_JMX_PORT        = 7199;
-    static final String DEFAULT_GRAPHITE_HOST   = "localhost";
-    static final int    DEFAULT_GRAPHITE_PORT   = 2003;
-    static final String DEFAULT_GRAPHITE_PREFIX = "cassandra";
+    static final String DEFAULT_JMX_HOST            = "localhost";
+    static final int    DEFAULT_JMX_PORT            = 7199;
+    static final int    DEFAULT_JMX_CONNECT_TIMEOUT = 5000;
+    static final int    DEFAULT_JMX_READ_TIMEOUT    = 30000;
+    static final int    DEFAULT_CQL_PORT            = 9042;
+    static final int    DEFAULT_CQL_TIMEOUT         = 10000;
+    static final String DEFAULT_GRAPHITE_HOST       = "localhost";
+    static final int    DEFAULT_GRAPHITE_PORT       = 2003;
+    static final int    DEFAULT_CARBON_CONNECT_TIMEOUT = 5000;
+    static final int    DEFAULT_CARBON_WRITE_TIMEOUT   = 30000;
+    static final String DEFAULT_GRAPHITE_PREFIX     = "cassandra";
 }
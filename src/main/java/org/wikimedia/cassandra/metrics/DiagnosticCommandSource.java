@@ -0,0 +1,353 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.sun.tools.attach.AttachNotSupportedException;
+import com.sun.tools.attach.VirtualMachine;
+
+import sun.tools.attach.HotSpotVirtualMachine;
+
+/**
+ * Samples parsed from the output of diagnostic commands, run over the attach channel of a local JVM.
+ * <p>
+ * {@code VM.native_memory summary} yields the reserved and committed bytes of each native memory
+ * tracking category (requires {@code -XX:NativeMemoryTracking=summary}), and {@code GC.heap_info}
+ * the sizes reported for each heap region. Command output is parsed line-by-line as it is read.
+ * Commands that the JVM does not support (or that are disabled) are skipped on subsequent runs.
+ * Safepoint statistics are not available as a diagnostic command; See {@link PerfDataSource}.
+ * </p>
+ *
+ * @author eevans
+ */
+public class DiagnosticCommandSource implements SampleSource, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DiagnosticCommandSource.class);
+
+    static final String NATIVE_MEMORY = "VM.native_memory summary";
+    static final String HEAP_INFO = "GC.heap_info";
+
+    private static final ImmutableSet<String> HEAP_INFO_KEYS = ImmutableSet.of("total", "used", "capacity", "committed", "reserved");
+
+    private final String pid;
+    private final VirtualMachine vm;
+    private final long intervalMillis;
+
+    private boolean nativeMemoryEnabled = true;
+    private boolean heapInfoEnabled = true;
+    private long lastRun = 0;
+
+    /**
+     * Attach to a local JVM.
+     *
+     * @param pid
+     *            process ID of the JVM
+     * @param interval
+     *            minimum number of seconds between runs of the diagnostic commands
+     * @throws IOException
+     *             if unable to attach to the JVM
+     */
+    public DiagnosticCommandSource(String pid, int interval) throws IOException {
+        this.pid = checkNotNull(pid, "pid argument");
+        this.intervalMillis = TimeUnit.SECONDS.toMillis(interval);
+
+        try {
+            this.vm = VirtualMachine.attach(pid);
+        }
+        catch (AttachNotSupportedException e) {
+            throw new IOException(String.format("Unable to attach to PID %s: %s", pid, e.getMessage()), e);
+        }
+
+        if (!(this.vm instanceof HotSpotVirtualMachine)) {
+            this.vm.detach();
+            throw new IOException(String.format("PID %s is not a HotSpot VM; Diagnostic commands unsupported", pid));
+        }
+    }
+
+    /**
+     * Runs the diagnostic commands, if at least the configured interval has elapsed since they were
+     * last run.
+     */
+    @Override
+    public void getSamples(SampleVisitor visitor) throws IOException {
+        long now = System.currentTimeMillis();
+        if ((now - this.lastRun) < this.intervalMillis)
+            return;
+        this.lastRun = now;
+
+        int timestamp = (int) (now / 1000);
+
+        if (this.nativeMemoryEnabled) {
+            BufferedReader reader = execute(NATIVE_MEMORY);
+            if (reader == null) {
+                this.nativeMemoryEnabled = false;
+            }
+            else {
+                try {
+                    if (!parseNativeMemory(reader, visitor, timestamp)) {
+                        LOG.warn("Native memory tracking not enabled for PID {}; Skipping {}", this.pid, NATIVE_MEMORY);
+                        this.nativeMemoryEnabled = false;
+                    }
+                }
+                finally {
+                    reader.close();
+                }
+            }
+        }
+
+        if (this.heapInfoEnabled) {
+            BufferedReader reader = execute(HEAP_INFO);
+            if (reader == null) {
+                this.heapInfoEnabled = false;
+            }
+            else {
+                try {
+                    parseHeapInfo(reader, visitor, timestamp);
+                }
+                finally {
+                    reader.close();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.vm.detach();
+    }
+
+    @Override
+    public String toString() {
+        return "DiagnosticCommandSource [pid="
+                + pid
+                + ", nativeMemoryEnabled="
+                + nativeMemoryEnabled
+                + ", heapInfoEnabled="
+                + heapInfoEnabled
+                + "]";
+    }
+
+    /** Executes a command, returning a reader of its output, or null if the command is unsupported. */
+    private BufferedReader execute(String command) throws IOException {
+        InputStream stream;
+        try {
+            stream = ((HotSpotVirtualMachine) this.vm).executeJCmd(command);
+        }
+        catch (IOException e) {
+            // Commands that fail in the target VM are reported as IOExceptions bearing the message of
+            // the remote exception (for example, "java.lang.IllegalArgumentException: Unknown diagnostic
+            // command").
+            if (e.getMessage() != null && e.getMessage().contains("IllegalArgumentException")) {
+                LOG.warn("{} unsupported by PID {}: {}", command, this.pid, e.getMessage());
+                return null;
+            }
+            throw e;
+        }
+        return new BufferedReader(new InputStreamReader(stream, Charsets.UTF_8));
+    }
+
+    /**
+     * Parses {@code VM.native_memory summary} output.
+     *
+     * <pre>
+     * Total: reserved=2920457KB, committed=175013KB
+     * -                 Java Heap (reserved=1538048KB, committed=96256KB)
+     *                             (mmap: reserved=1538048KB, committed=96256KB)
+     * </pre>
+     *
+     * @return false if native memory tracking is not enabled
+     */
+    static boolean parseNativeMemory(BufferedReader reader, SampleVisitor visitor, int timestamp) throws IOException {
+        String line;
+        boolean enabled = false;
+
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            String category, values;
+
+            if (line.startsWith("Native Memory Tracking:")) {
+                enabled = true;
+                continue;
+            }
+            else if (line.startsWith("Total:")) {
+                category = "Total";
+                values = line.substring("Total:".length());
+            }
+            else if (line.startsWith("-") && line.indexOf('(') > 0 && line.endsWith(")")) {
+                category = line.substring(1, line.indexOf('(')).trim();
+                values = line.substring(line.indexOf('(') + 1, line.length() - 1);
+            }
+            else {
+                continue;
+            }
+
+            ObjectName oName = objectName("NativeMemory", category);
+            if (oName == null)
+                continue;
+
+            for (String pair : Splitter.on(',').trimResults().omitEmptyStrings().split(values)) {
+                List<String> kv = Splitter.on('=').trimResults().limit(2).splitToList(pair);
+                if (kv.size() != 2)
+                    continue;
+                Long bytes = bytes(kv.get(1));
+                if (bytes != null)
+                    visitor.visit(new JmxSample(Type.JVM, oName, kv.get(0), bytes, timestamp));
+            }
+        }
+
+        return enabled;
+    }
+
+    /**
+     * Parses {@code GC.heap_info} output.
+     *
+     * <pre>
+     *  PSYoungGen      total 28160K, used 983K [0x00000000e0b80000, 0x00000000e2a80000, 0x0000000100000000)
+     *   eden space 24576K, 4% used [0x00000000e0b80000,0x00000000e0c75da8,0x00000000e2380000)
+     *  garbage-first heap   total 262144K, used 2048K [0x00000000f0000000, 0x0000000100000000)
+     *   region size 1024K, 1 young (1024K), 0 survivors (0K)
+     *  Metaspace       used 2656K, capacity 4486K, committed 4864K, reserved 1056768K
+     * </pre>
+     *
+     * Lines labeled with a size (such as the region size) describe the space of the line before, and
+     * their samples are attributed to it; Their own size is named by the label ({@code region_size}).
+     */
+    static void parseHeapInfo(BufferedReader reader, SampleVisitor visitor, int timestamp) throws IOException {
+        String line;
+        ObjectName previous = null;
+
+        while ((line = reader.readLine()) != null) {
+            // Drop address ranges
+            int bracket = line.indexOf('[');
+            if (bracket >= 0)
+                line = line.substring(0, bracket);
+
+            List<String> segments = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(line);
+            if (segments.isEmpty())
+                continue;
+
+            // The label is made up of the leading words of the first segment that precede a key or size.
+            List<String> first = Splitter.on(' ').omitEmptyStrings().splitToList(segments.get(0));
+            List<String> label = Lists.newArrayList();
+            int i = 0;
+            for (; i < first.size(); i++) {
+                if (HEAP_INFO_KEYS.contains(first.get(i)) || bytes(first.get(i)) != null)
+                    break;
+                label.add(first.get(i));
+            }
+            if (label.isEmpty() || i == first.size())
+                continue;
+
+            boolean qualifier = label.get(label.size() - 1).equals("size") && previous != null;
+            ObjectName oName = qualifier ? previous : objectName("HeapInfo", Joiner.on(' ').join(label));
+            if (oName == null)
+                continue;
+            // A bare size is the capacity of a space, or the value of a size label
+            String size = qualifier ? Joiner.on('_').join(label) : "capacity";
+            if (!qualifier)
+                previous = oName;
+
+            for (int j = 0; j < segments.size(); j++) {
+                List<String> tokens = Splitter.on(' ').omitEmptyStrings().splitToList(segments.get(j));
+                if (j == 0)
+                    tokens = tokens.subList(label.size(), tokens.size());
+
+                // <key> <size>
+                if (tokens.size() == 2 && HEAP_INFO_KEYS.contains(tokens.get(0)) && bytes(tokens.get(1)) != null) {
+                    visitor.visit(new JmxSample(Type.JVM, oName, tokens.get(0), bytes(tokens.get(1)), timestamp));
+                }
+                // <size>
+                else if (tokens.size() == 1 && bytes(tokens.get(0)) != null) {
+                    visitor.visit(new JmxSample(Type.JVM, oName, size, bytes(tokens.get(0)), timestamp));
+                }
+                // <percent>% used
+                else if (tokens.size() == 2 && tokens.get(0).endsWith("%") && tokens.get(1).equals("used")) {
+                    Long percent = parseLong(tokens.get(0).substring(0, tokens.get(0).length() - 1));
+                    if (percent != null)
+                        visitor.visit(new JmxSample(Type.JVM, oName, "used_percent", percent, timestamp));
+                }
+                // <count> <regions> (<size>)
+                else if (tokens.size() == 3 && tokens.get(2).startsWith("(") && tokens.get(2).endsWith(")")) {
+                    Long bytes = bytes(tokens.get(2).substring(1, tokens.get(2).length() - 1));
+                    if (bytes != null)
+                        visitor.visit(new JmxSample(Type.JVM, oName, tokens.get(1), bytes, timestamp));
+                }
+            }
+        }
+    }
+
+    /** Parse a size with optional unit suffix (B, K, KB, M, MB, G, GB) into bytes, or null if not a size. */
+    static Long bytes(String size) {
+        String s = size.endsWith("B") ? size.substring(0, size.length() - 1) : size;
+        long multiplier = 1;
+
+        if (s.endsWith("K")) {
+            multiplier = 1L << 10;
+        }
+        else if (s.endsWith("M")) {
+            multiplier = 1L << 20;
+        }
+        else if (s.endsWith("G")) {
+            multiplier = 1L << 30;
+        }
+        else if (s.equals(size)) {
+            // No unit whatsoever; Not a size.
+            return null;
+        }
+
+        Long value = parseLong((multiplier > 1) ? s.substring(0, s.length() - 1) : s);
+        return (value != null) ? value * multiplier : null;
+    }
+
+    private static Long parseLong(String s) {
+        try {
+            return Long.parseLong(s);
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static ObjectName objectName(String type, String name) {
+        try {
+            return new ObjectName(String.format("java.lang:type=%s,name=%s", type, name));
+        }
+        catch (MalformedObjectNameException e) {
+            LOG.debug("Skipping {} {}: {}", type, name, e.getMessage());
+            return null;
+        }
+    }
+
+}
@@ -20,10 +20,16 @@ public class Discovery {
     public static class Jvm {
         private final String cassandraInstance;
         private final JMXServiceURL jmxUrl;
+        private final String pid;
 
         public Jvm(String cassandraInstance, JMXServiceURL jmxUrl) {
+            this(cassandraInstance, jmxUrl, null);
+        }
+
+        public Jvm(String cassandraInstance, JMXServiceURL jmxUrl, String pid) {
             this.cassandraInstance = cassandraInstance;
             this.jmxUrl = jmxUrl;
+            this.pid = pid;
         }
 
         public String getCassandraInstance() {
@@ -34,9 +40,14 @@ public class Discovery {
             return jmxUrl;
         }
 
+        /** Returns the process ID of the JVM, or null if unknown. */
+        public String getPid() {
+            return pid;
+        }
+
         @Override
         public String toString() {
-            return "Jvm [cassandraInstance=" + cassandraInstance + ", jmxUrl=" + jmxUrl + "]";
+            return "Jvm [cassandraInstance=" + cassandraInstance + ", jmxUrl=" + jmxUrl + ", pid=" + pid + "]";
         }
 
         @Override
@@ -45,6 +56,7 @@ public class Discovery {
             int result = 1;
             result = prime * result + ((cassandraInstance == null) ? 0 : cassandraInstance.hashCode());
             result = prime * result + ((jmxUrl == null) ? 0 : jmxUrl.hashCode());
+            result = prime * result + ((pid == null) ? 0 : pid.hashCode());
             return result;
         }
 
@@ -67,6 +79,11 @@ public class Discovery {
                     return false;
             } else if (!jmxUrl.equals(other.jmxUrl))
                 return false;
+            if (pid == null) {
+                if (other.pid != null)
+                    return false;
+            } else if (!pid.equals(other.pid))
+                return false;
             return true;
         }
 
@@ -104,7 +121,7 @@ public class Discovery {
                             descriptor.id(),
                             INSTANCE_PROPERTY));
                 }
-                jvms.put(id, new Jvm(id, new JMXServiceURL(connectorAddress(vm))));
+                jvms.put(id, new Jvm(id, new JMXServiceURL(connectorAddress(vm)), descriptor.id()));
             }
         }
     }
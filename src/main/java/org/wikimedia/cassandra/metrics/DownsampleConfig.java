@@ -0,0 +1,85 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tiers of coarser resolution series, aggregated in the collector over fixed windows (see
+ * {@link Downsampler}).
+ *
+ * <pre>
+ * tiers:
+ *   - prefix: cassandra-5m         # written as &lt;prefix&gt;.&lt;instance&gt;...
+ *     window: 300                  # seconds
+ *     functions: [avg, max]        # optional; avg, min, max, last, or sum (default: avg)
+ * </pre>
+ */
+public class DownsampleConfig {
+
+    /** A single tier. */
+    public static class Tier {
+        private String prefix;
+        private int window;
+        private List<String> functions;
+
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public void setPrefix(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public int getWindow() {
+            return window;
+        }
+
+        public void setWindow(int window) {
+            this.window = window;
+        }
+
+        public List<String> getFunctions() {
+            return (functions != null) ? functions : Arrays.asList("avg");
+        }
+
+        public void setFunctions(List<String> functions) {
+            this.functions = functions;
+        }
+
+        @Override
+        public String toString() {
+            return "Tier [prefix=" + prefix + ", window=" + window + ", functions=" + functions + "]";
+        }
+    }
+
+    private List<Tier> tiers;
+
+    public List<Tier> getTiers() {
+        return (tiers != null) ? tiers : Collections.<Tier>emptyList();
+    }
+
+    public void setTiers(List<Tier> tiers) {
+        this.tiers = tiers;
+    }
+
+    @Override
+    public String toString() {
+        return "DownsampleConfig [tiers=" + tiers + "]";
+    }
+
+}
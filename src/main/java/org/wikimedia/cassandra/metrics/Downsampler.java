@@ -0,0 +1,345 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Aggregates the samples of successive collections over fixed windows (aligned to multiples of the
+ * window length), to be written as a series of coarser resolution, with a retention of its own,
+ * without the need for a carbon-aggregator.
+ * <p>
+ * Samples are observed by way of {@link #watch(SampleVisitor)}, and aggregated into the window of
+ * their timestamp; A sample of a later window than the open one closes it, (its aggregates are set
+ * aside until emitted). Once a window has closed (see {@link #isDue(int)}),
+ * {@link #emit(SampleVisitor, int)} writes one sample per series and function, timestamped with the
+ * start of the window, and named {@code <metric>.<function>}. Running
+ * aggregates are held in primitive arrays, indexed by a series id assigned when a series is first
+ * seen; Series not seen for an entire window are forgotten, and their ids reused.
+ * </p>
+ *
+ * @author eevans
+ */
+public class Downsampler {
+
+    enum Function {
+        AVG, MIN, MAX, LAST, SUM;
+    }
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int window;
+    private final Function[] functions;
+    private final MetricNameCache names;
+
+    // Series ids, keyed by object name and metric
+    private final Map<ObjectName, Map<String, Integer>> ids = Maps.newHashMap();
+
+    private Type[] types = new Type[INITIAL_CAPACITY];
+    private ObjectName[] oNames = new ObjectName[INITIAL_CAPACITY];
+    private String[] sources = new String[INITIAL_CAPACITY];
+    // Names of the downsampled metrics, one per function
+    private String[][] metrics = new String[INITIAL_CAPACITY][];
+    private boolean[] integral = new boolean[INITIAL_CAPACITY];
+    private int[] counts = new int[INITIAL_CAPACITY];
+    private double[] sums = new double[INITIAL_CAPACITY];
+    private double[] mins = new double[INITIAL_CAPACITY];
+    private double[] maxs = new double[INITIAL_CAPACITY];
+    private double[] lasts = new double[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // Start of the open window, or -1 if nothing has been seen since the last closed
+    private int start = -1;
+
+    // Aggregates of windows closed, but not yet emitted
+    private final List<SampleBatch> closed = Lists.newArrayList();
+
+    /**
+     * Create a downsampler.
+     *
+     * @param tier
+     *            the tier (window length, and functions)
+     * @param names
+     *            metric name cache of the tier (determines the prefix)
+     * @throws IllegalArgumentException
+     *             if the tier is invalid
+     */
+    public Downsampler(DownsampleConfig.Tier tier, MetricNameCache names) {
+        checkNotNull(tier, "tier argument");
+        checkArgument(tier.getPrefix() != null, "downsample tier requires a prefix");
+        checkArgument(tier.getWindow() > 0, "downsample window must be greater than zero");
+        checkArgument(!tier.getFunctions().isEmpty(), "downsample tier requires one or more functions");
+
+        this.window = tier.getWindow();
+        this.names = checkNotNull(names, "names argument");
+
+        List<Function> functions = Lists.newArrayList();
+        for (String function : tier.getFunctions()) {
+            try {
+                functions.add(Function.valueOf(function.toUpperCase()));
+            }
+            catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(String.format("unknown downsample function: %s", function));
+            }
+        }
+        this.functions = functions.toArray(new Function[functions.size()]);
+    }
+
+    /** Returns the metric name cache of the downsampled series. */
+    public MetricNameCache getNames() {
+        return this.names;
+    }
+
+    /**
+     * Returns a visitor that aggregates samples before passing them on to another.
+     *
+     * @param visitor
+     *            visitor to pass samples to
+     * @return an aggregating visitor
+     */
+    public BatchVisitor watch(SampleVisitor visitor) {
+        final BatchVisitor delegate = SampleBatchAdapter.of(checkNotNull(visitor, "visitor argument"));
+        return new BatchVisitor() {
+            @Override
+            public void visit(JmxSample sample) {
+                synchronized (Downsampler.this) {
+                    open(sample.getTimestamp());
+                    int id = id(sample.getType(), sample.getObjectName(), sample.getMetricName());
+                    add(id, sample.isIntegral() ? sample.getLongValue() : sample.getDoubleValue(), sample.isIntegral());
+                }
+                delegate.visit(sample);
+            }
+
+            @Override
+            public void visit(SampleBatch batch) {
+                synchronized (Downsampler.this) {
+                    open(batch.getTimestamp());
+                    for (int i = 0; i < batch.size(); i++) {
+                        int id = id(batch.getType(), batch.getObjectName(), batch.getMetricName(i));
+                        add(id, batch.isIntegral(i) ? batch.getLongValue(i) : batch.getDoubleValue(i), batch.isIntegral(i));
+                    }
+                }
+                delegate.visit(batch);
+            }
+        };
+    }
+
+    /**
+     * Returns true if any window has closed as of a time.
+     *
+     * @param now
+     *            the time, in seconds since the epoch
+     * @return true if there are aggregates to emit
+     */
+    public synchronized boolean isDue(int now) {
+        return !this.closed.isEmpty() || (this.start >= 0 && windowOf(now) > this.start);
+    }
+
+    /**
+     * Writes the aggregates of the windows closed as of a time (oldest first).
+     *
+     * @param visitor
+     *            visitor to pass aggregates to
+     * @param now
+     *            the time, in seconds since the epoch
+     */
+    public synchronized void emit(SampleVisitor visitor, int now) {
+        BatchVisitor delegate = SampleBatchAdapter.of(checkNotNull(visitor, "visitor argument"));
+
+        if (this.start >= 0 && windowOf(now) > this.start)
+            close();
+
+        for (SampleBatch batch : this.closed)
+            delegate.visit(batch);
+        this.closed.clear();
+    }
+
+    /** Opens the window of a timestamp, closing the open one if it is earlier. */
+    private void open(int timestamp) {
+        int window = windowOf(timestamp);
+        if (this.start >= 0 && window > this.start)
+            close();
+        // Samples of an earlier window (than the open one) are counted in the open one
+        if (this.start < 0)
+            this.start = window;
+    }
+
+    /** Sets aside the aggregates of the open window, and starts over. */
+    private void close() {
+        for (int id = 0; id < this.size; id++) {
+            if (this.counts[id] == 0)
+                continue;
+            SampleBatch batch = new SampleBatch().reset(this.types[id], this.oNames[id], this.start);
+            for (int f = 0; f < this.functions.length; f++)
+                addTo(batch, id, f);
+            this.closed.add(batch);
+        }
+
+        compact();
+        this.start = -1;
+    }
+
+    private int windowOf(int timestamp) {
+        return timestamp - (timestamp % this.window);
+    }
+
+    private int id(Type type, ObjectName oName, String metric) {
+        Map<String, Integer> metrics = this.ids.get(oName);
+        if (metrics == null) {
+            metrics = Maps.newHashMap();
+            this.ids.put(oName, metrics);
+        }
+        Integer id = metrics.get(metric);
+        if (id == null) {
+            id = newSeries(type, oName, metric);
+            metrics.put(metric, id);
+        }
+        return id;
+    }
+
+    private int newSeries(Type type, ObjectName oName, String metric) {
+        if (this.size == this.counts.length)
+            grow(this.size * 2);
+
+        int id = this.size++;
+        this.types[id] = type;
+        this.oNames[id] = oName;
+        this.sources[id] = metric;
+        this.metrics[id] = new String[this.functions.length];
+        for (int f = 0; f < this.functions.length; f++)
+            this.metrics[id][f] = metric + "." + this.functions[f].name().toLowerCase();
+        this.integral[id] = true;
+        this.counts[id] = 0;
+        return id;
+    }
+
+    private void add(int id, double value, boolean integral) {
+        if (this.counts[id] == 0) {
+            this.sums[id] = value;
+            this.mins[id] = value;
+            this.maxs[id] = value;
+            this.integral[id] = integral;
+        }
+        else {
+            this.sums[id] += value;
+            this.mins[id] = Math.min(this.mins[id], value);
+            this.maxs[id] = Math.max(this.maxs[id], value);
+            this.integral[id] &= integral;
+        }
+        this.lasts[id] = value;
+        this.counts[id]++;
+    }
+
+    private void addTo(SampleBatch batch, int id, int f) {
+        String metric = this.metrics[id][f];
+        double value;
+        switch (this.functions[f]) {
+            case AVG:
+                batch.add(metric, this.sums[id] / this.counts[id]);
+                return;
+            case MIN:
+                value = this.mins[id];
+                break;
+            case MAX:
+                value = this.maxs[id];
+                break;
+            case LAST:
+                value = this.lasts[id];
+                break;
+            case SUM:
+                value = this.sums[id];
+                break;
+            default:
+                throw new IllegalStateException("unknown downsample function; report this as a bug!");
+        }
+        if (this.integral[id])
+            batch.add(metric, (long) value);
+        else
+            batch.add(metric, value);
+    }
+
+    /** Forgets the series not seen in the window just closed, and resets the remainder. */
+    private void compact() {
+        int next = 0;
+        for (int id = 0; id < this.size; id++) {
+            if (this.counts[id] == 0)
+                continue;
+            if (next != id) {
+                this.types[next] = this.types[id];
+                this.oNames[next] = this.oNames[id];
+                this.sources[next] = this.sources[id];
+                this.metrics[next] = this.metrics[id];
+            }
+            this.counts[next] = 0;
+            next++;
+        }
+        if (next == this.size)
+            return;
+
+        Arrays.fill(this.types, next, this.size, null);
+        Arrays.fill(this.oNames, next, this.size, null);
+        Arrays.fill(this.sources, next, this.size, null);
+        Arrays.fill(this.metrics, next, this.size, null);
+        Arrays.fill(this.counts, next, this.size, 0);
+        this.size = next;
+
+        // Renumber what remains
+        this.ids.clear();
+        for (int id = 0; id < this.size; id++) {
+            Map<String, Integer> metrics = this.ids.get(this.oNames[id]);
+            if (metrics == null) {
+                metrics = Maps.newHashMap();
+                this.ids.put(this.oNames[id], metrics);
+            }
+            metrics.put(this.sources[id], id);
+        }
+    }
+
+    private void grow(int capacity) {
+        this.types = Arrays.copyOf(this.types, capacity);
+        this.oNames = Arrays.copyOf(this.oNames, capacity);
+        this.sources = Arrays.copyOf(this.sources, capacity);
+        this.metrics = Arrays.copyOf(this.metrics, capacity);
+        this.integral = Arrays.copyOf(this.integral, capacity);
+        this.counts = Arrays.copyOf(this.counts, capacity);
+        this.sums = Arrays.copyOf(this.sums, capacity);
+        this.mins = Arrays.copyOf(this.mins, capacity);
+        this.maxs = Arrays.copyOf(this.maxs, capacity);
+        this.lasts = Arrays.copyOf(this.lasts, capacity);
+    }
+
+    /** Returns the number of series. */
+    synchronized int size() {
+        return this.size;
+    }
+
+    @Override
+    public String toString() {
+        return "Downsampler [prefix=" + names.getPrefix() + ", window=" + window + ", functions=" + Arrays.toString(functions) + "]";
+    }
+
+}
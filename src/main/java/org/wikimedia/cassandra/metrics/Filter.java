@@ -16,43 +16,41 @@ package org.wikimedia.cassandra.metrics;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
-import com.google.common.base.Function;
-import com.google.common.collect.Iterables;
+import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
+/**
+ * Accepts or rejects metrics by name, using lists of regular expressions: Names matching the
+ * whitelist are accepted, those matching the blacklist (and not the whitelist) are rejected, and
+ * everything else is accepted.
+ * <p>
+ * Each list is compiled once. Patterns of the common {@code .*suffix$} form (a literal suffix, where
+ * {@code .} may match any character) are merged into a single trie of reversed suffixes, matched in
+ * one pass from the end of the name. The remaining patterns are combined into a single alternation.
+ * Decisions never change for a given name, and callers are expected to retain them (see
+ * {@link MetricNameCache.MetricName#accept(Filter)}).
+ * </p>
+ */
 public class Filter {
 
-    private List<Pattern> blacklist;
-    private List<Pattern> whitelist;
+    private final PatternSet blacklist;
+    private final PatternSet whitelist;
 
     public Filter(FilterConfig config) {
-        blacklist = Lists.newArrayList(
-            Iterables.transform(config.getBlacklist(), new Function<String, Pattern>() {
-                @Override
-                public Pattern apply(String input) {
-                     return Pattern.compile(input);
-                }
-            })
-        );
-
-        whitelist = Lists.newArrayList(
-                Iterables.transform(config.getWhitelist(), new Function<String, Pattern>() {
-                    @Override
-                    public Pattern apply(String input) {
-                         return Pattern.compile(input);
-                    }
-                })
-        );
+        blacklist = new PatternSet(config.getBlacklist());
+        whitelist = new PatternSet(config.getWhitelist());
     }
 
     private boolean blackListed(String id) {
-        return listed(id, this.blacklist);
+        return this.blacklist.matches(id);
     }
 
     private boolean whiteListed(String id) {
-        return listed(id, this.whitelist);
+        return this.whitelist.matches(id);
     }
 
     public boolean accept(String id) {
@@ -64,13 +62,121 @@ public class Filter {
         return "Filter [blacklist=" + blacklist + ", whitelist=" + whitelist + "]";
     }
 
-    private static boolean listed(String id, Collection<Pattern> list) {
-        for (Pattern p : list) {
-            if (p.matcher(id).matches()) {
+    /** A list of patterns, compiled into a suffix trie and a single regular expression. */
+    static class PatternSet {
+        private final List<String> patterns;
+        private final SuffixNode suffixes = new SuffixNode();
+        private final Pattern others;
+        private boolean hasSuffixes = false;
+
+        PatternSet(Collection<String> patterns) {
+            this.patterns = Lists.newArrayList(patterns);
+
+            List<String> others = Lists.newArrayList();
+            for (String pattern : patterns) {
+                // Validate (and fail) as Pattern would
+                Pattern.compile(pattern);
+                char[] suffix = suffix(pattern);
+                if (suffix != null) {
+                    this.suffixes.add(suffix);
+                    this.hasSuffixes = true;
+                }
+                else {
+                    others.add(String.format("(?:%s)", pattern));
+                }
+            }
+
+            this.others = others.isEmpty() ? null : Pattern.compile(Joiner.on('|').join(others));
+        }
+
+        boolean matches(String id) {
+            if (this.hasSuffixes && this.suffixes.matches(id, id.length() - 1))
                 return true;
+            return this.others != null && this.others.matcher(id).matches();
+        }
+
+        @Override
+        public String toString() {
+            return this.patterns.toString();
+        }
+
+        /**
+         * Returns the suffix of a pattern of the form {@code .*suffix$} (where the suffix consists of
+         * literal characters, escaped dots, and {@code .} wildcards, encoded as {@link SuffixNode#ANY}),
+         * or null if the pattern is of any other form.
+         */
+        static char[] suffix(String pattern) {
+            if (!pattern.startsWith(".*"))
+                return null;
+
+            int end = pattern.endsWith("$") ? pattern.length() - 1 : pattern.length();
+            StringBuilder suffix = new StringBuilder();
+
+            for (int i = 2; i < end; i++) {
+                char c = pattern.charAt(i);
+                if (c == '\\') {
+                    if (i + 1 >= end || pattern.charAt(i + 1) != '.')
+                        return null;
+                    suffix.append('.');
+                    i++;
+                }
+                else if (c == '.') {
+                    suffix.append(SuffixNode.ANY);
+                }
+                else if (Character.isLetterOrDigit(c) || c == '_' || c == '-') {
+                    suffix.append(c);
+                }
+                else {
+                    return null;
+                }
             }
+
+            // A bare ".*" is better left to the regular expression
+            return (suffix.length() > 0) ? suffix.toString().toCharArray() : null;
+        }
+    }
+
+    /** A trie of reversed suffixes. */
+    static class SuffixNode {
+        /** Stands for a {@code .} (any character) in a suffix. */
+        static final char ANY = '\uffff';
+
+        private final Map<Character, SuffixNode> children = Maps.newHashMap();
+        private SuffixNode any;
+        private boolean terminal = false;
+
+        void add(char[] suffix) {
+            SuffixNode node = this;
+            for (int i = suffix.length - 1; i >= 0; i--) {
+                SuffixNode next;
+                if (suffix[i] == ANY) {
+                    if (node.any == null)
+                        node.any = new SuffixNode();
+                    next = node.any;
+                }
+                else {
+                    next = node.children.get(suffix[i]);
+                    if (next == null) {
+                        next = new SuffixNode();
+                        node.children.put(suffix[i], next);
+                    }
+                }
+                node = next;
+            }
+            node.terminal = true;
+        }
+
+        /** Returns true if a suffix ends at, and includes, index i of id. */
+        boolean matches(String id, int i) {
+            if (this.terminal)
+                return true;
+            if (i < 0)
+                return false;
+            SuffixNode next = this.children.get(id.charAt(i));
+            if (next != null && next.matches(id, i - 1))
+                return true;
+            return this.any != null && this.any.matches(id, i - 1);
         }
-        return false;
     }
 
 }
@@ -0,0 +1,489 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.sun.tools.attach.AttachNotSupportedException;
+import com.sun.tools.attach.VirtualMachine;
+
+/**
+ * Pause distributions parsed from the GC log of a local JVM.
+ * <p>
+ * The log is tailed from a retained file offset, so each collection reads only what was appended
+ * since the last. Rotated logs ({@code -XX:+UseGCLogFileRotation}) are followed to the current
+ * file, after first reading what remains of the previous one, and a log truncated by a restart is
+ * read again from the beginning. The first collection starts from the end of the log, unless an
+ * offset was persisted: The offset of the last complete line read is optionally written to a file
+ * after each collection, and once restarted, reading resumes from there (draining the file first,
+ * if it has since been rotated).
+ * </p>
+ * <p>
+ * Two distributions are emitted for each interval: application stopped times (requires
+ * {@code -XX:+PrintGCApplicationStoppedTime}), and GC pause times. Each reports the count, total,
+ * max, and 50th, 95th and 99th percentiles, in milliseconds.
+ * </p>
+ *
+ * @author eevans
+ */
+public class GcLogSource implements SampleSource, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GcLogSource.class);
+
+    private static final String STOPPED_MARKER = "Total time for which application threads were stopped: ";
+    private static final String LOGGC_ARGUMENT = "-Xloggc:";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Pause times (in milliseconds) accumulated over a single interval. */
+    static class Pauses {
+        private final ObjectName objectName;
+        private double[] values = new double[64];
+        private int count = 0;
+
+        Pauses(String name) {
+            this.objectName = newObjectName(String.format("java.lang:type=GcLog,name=%s", name));
+        }
+
+        void add(double millis) {
+            if (this.count == this.values.length)
+                this.values = Arrays.copyOf(this.values, this.count * 2);
+            this.values[this.count++] = millis;
+        }
+
+        int count() {
+            return this.count;
+        }
+
+        /** Emit the distribution of this interval, and reset. */
+        void emit(SampleVisitor visitor, int timestamp) {
+            visitor.visit(new JmxSample(Type.JVM, this.objectName, "count", this.count, timestamp));
+
+            if (this.count > 0) {
+                Arrays.sort(this.values, 0, this.count);
+                double total = 0;
+                for (int i = 0; i < this.count; i++)
+                    total += this.values[i];
+
+                visitor.visit(new JmxSample(Type.JVM, this.objectName, "total", total, timestamp));
+                visitor.visit(new JmxSample(Type.JVM, this.objectName, "max", this.values[this.count - 1], timestamp));
+                visitor.visit(new JmxSample(Type.JVM, this.objectName, "p50", percentile(0.50), timestamp));
+                visitor.visit(new JmxSample(Type.JVM, this.objectName, "p95", percentile(0.95), timestamp));
+                visitor.visit(new JmxSample(Type.JVM, this.objectName, "p99", percentile(0.99), timestamp));
+            }
+
+            this.count = 0;
+        }
+
+        /** Nearest-rank percentile of the (sorted) values. */
+        private double percentile(double p) {
+            int rank = (int) Math.ceil(p * this.count);
+            return this.values[Math.max(rank, 1) - 1];
+        }
+    }
+
+    private final Path directory;
+    private final Pattern fileName;
+    private final Path offsets;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final StringBuilder partial = new StringBuilder();
+
+    private final Pauses stopped = new Pauses("stopped");
+    private final Pauses gcPauses = new Pauses("gc_pause");
+    private boolean gcPending = false;
+
+    private Path path;
+    private Object fileKey;
+    private FileChannel channel;
+    private long position;
+    /** Offset of the first byte of the line in progress. */
+    private long lineStart;
+    private boolean started = false;
+    private String saved;
+
+    /**
+     * Create a source for the GC log at the given path.
+     *
+     * @param gcLog
+     *            path of the GC log, as passed to -Xloggc (%p and %t are expanded)
+     * @param pid
+     *            process ID of the JVM
+     */
+    public GcLogSource(String gcLog, String pid) {
+        this(gcLog, pid, null);
+    }
+
+    /**
+     * Create a source for the GC log at the given path, that persists its offset.
+     *
+     * @param gcLog
+     *            path of the GC log, as passed to -Xloggc (%p and %t are expanded)
+     * @param pid
+     *            process ID of the JVM
+     * @param offsets
+     *            file the offset is persisted to (may be null, to not persist it)
+     */
+    public GcLogSource(String gcLog, String pid, Path offsets) {
+        checkNotNull(gcLog, "gcLog argument");
+        checkNotNull(pid, "pid argument");
+        this.offsets = offsets;
+
+        Path log = Paths.get(gcLog).toAbsolutePath();
+        this.directory = log.getParent();
+
+        // gc.log, or gc.log.<n>.current when rotating
+        StringBuilder regex = new StringBuilder();
+        for (String segment : Splitter.on("%t").split(log.getFileName().toString().replace("%p", pid))) {
+            if (regex.length() > 0)
+                regex.append(".*");
+            regex.append(Pattern.quote(segment));
+        }
+        this.fileName = Pattern.compile(regex.append("(\\.\\d+\\.current)?").toString());
+    }
+
+    @Override
+    public void getSamples(SampleVisitor visitor) throws IOException {
+        read();
+
+        int timestamp = (int) (System.currentTimeMillis() / 1000);
+        this.stopped.emit(visitor, timestamp);
+        this.gcPauses.emit(visitor, timestamp);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.channel != null) {
+            this.channel.close();
+            this.channel = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "GcLogSource [path=" + path + ", position=" + position + ", offsets=" + offsets + "]";
+    }
+
+    /** Read whatever has been appended to the log since the last read. */
+    void read() throws IOException {
+        if (!this.started)
+            resume();
+
+        Path current = current();
+
+        if (this.channel != null) {
+            if (current == null || !current.equals(this.path) || !Objects.equals(fileKey(current), this.fileKey)) {
+                LOG.debug("GC log {} rotated (now {})", this.path, current);
+                // Whatever was written to the old file before rotation
+                drain();
+                close();
+                if (current != null)
+                    open(current);
+            }
+            else if (this.channel.size() < this.position) {
+                LOG.debug("GC log {} truncated; Reading from the beginning", this.path);
+                this.position = 0;
+                this.lineStart = 0;
+                this.partial.setLength(0);
+            }
+        }
+        else if (current != null) {
+            open(current);
+        }
+
+        this.started = true;
+
+        if (this.channel != null) {
+            drain();
+            save();
+        }
+    }
+
+    private void open(Path current) throws IOException {
+        this.channel = FileChannel.open(current, StandardOpenOption.READ);
+        this.path = current;
+        this.fileKey = fileKey(current);
+        // Don't report history as having occurred in the first interval
+        this.position = this.started ? 0 : this.channel.size();
+        this.lineStart = this.position;
+        this.partial.setLength(0);
+    }
+
+    /** Reopen the file read before a restart (if it remains), at the persisted offset. */
+    private void resume() throws IOException {
+        if (this.offsets == null || !Files.exists(this.offsets))
+            return;
+
+        String state = new String(Files.readAllBytes(this.offsets), Charsets.UTF_8).trim();
+        List<String> fields = Splitter.on('\t').splitToList(state);
+        long offset;
+        try {
+            offset = (fields.size() == 3) ? Long.parseLong(fields.get(2)) : -1;
+        }
+        catch (NumberFormatException e) {
+            offset = -1;
+        }
+        if (offset < 0) {
+            LOG.warn("Ignoring malformed GC log offset in {}: {}", this.offsets, state);
+            return;
+        }
+
+        Path file = find(Paths.get(fields.get(0)), fields.get(1));
+        if (file == null) {
+            LOG.debug("GC log {} no longer exists; Not resuming", fields.get(0));
+            return;
+        }
+
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.path = file;
+        this.fileKey = fileKey(file);
+        // Truncated since
+        this.position = (offset <= this.channel.size()) ? offset : 0;
+        this.lineStart = this.position;
+        this.partial.setLength(0);
+        this.started = true;
+        this.saved = state;
+        LOG.debug("Resuming GC log {} from offset {}", file, this.position);
+    }
+
+    /** Persist the offset of the line in progress (if it has changed). */
+    private void save() {
+        if (this.offsets == null)
+            return;
+
+        String state = String.format("%s\t%s\t%d", this.path, this.fileKey, this.lineStart);
+        if (state.equals(this.saved))
+            return;
+
+        Path temp = this.offsets.resolveSibling(this.offsets.getFileName() + ".tmp");
+        try {
+            Files.write(temp, (state + "\n").getBytes(Charsets.UTF_8));
+            Files.move(temp, this.offsets, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.saved = state;
+        }
+        catch (IOException e) {
+            LOG.warn("Unable to persist GC log offset to {}: {}", this.offsets, e.getMessage());
+        }
+    }
+
+    private void drain() throws IOException {
+        int read;
+        while ((read = this.channel.read(this.buffer, this.position)) > 0) {
+            long base = this.position;
+            this.position += read;
+            this.buffer.flip();
+            while (this.buffer.hasRemaining()) {
+                char c = (char) (this.buffer.get() & 0xff);
+                if (c == '\n') {
+                    line(this.partial.toString());
+                    this.partial.setLength(0);
+                    this.lineStart = base + this.buffer.position();
+                }
+                else if (c != '\r') {
+                    this.partial.append(c);
+                }
+            }
+            this.buffer.clear();
+        }
+    }
+
+    /** The current log file, or null if there is none. */
+    private Path current() throws IOException {
+        // The open file remains current until renamed or replaced by rotation (it may have been
+        // renamed before it was resumed)
+        if (this.path != null && this.fileName.matcher(this.path.getFileName().toString()).matches() && Files.exists(this.path)
+                && Objects.equals(fileKey(this.path), this.fileKey))
+            return this.path;
+        return locate();
+    }
+
+    /** A log file by path, or if it has since been renamed (rotated), by file key; Or null. */
+    private Path find(Path file, String key) throws IOException {
+        if (Files.exists(file) && String.valueOf(fileKey(file)).equals(key))
+            return file;
+        if (key.equals("null") || this.directory == null || !Files.isDirectory(this.directory))
+            return null;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory)) {
+            for (Path candidate : files) {
+                if (this.fileName.matcher(candidate.getFileName().toString().replaceFirst("\\.\\d+$", "")).matches()
+                        && String.valueOf(fileKey(candidate)).equals(key))
+                    return candidate;
+            }
+        }
+        return null;
+    }
+
+    /** Scan the directory for the most recently modified log file, or null if there is none. */
+    private Path locate() throws IOException {
+        if (this.directory == null || !Files.isDirectory(this.directory))
+            return null;
+
+        Path latest = null;
+        long latestModified = Long.MIN_VALUE;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory)) {
+            for (Path file : files) {
+                if (!this.fileName.matcher(file.getFileName().toString()).matches())
+                    continue;
+                long modified = Files.getLastModifiedTime(file).toMillis();
+                if (modified > latestModified) {
+                    latest = file;
+                    latestModified = modified;
+                }
+            }
+        }
+
+        return latest;
+    }
+
+    /** Parse a line of GC log output. */
+    void line(String line) {
+        int i = line.indexOf(STOPPED_MARKER);
+        if (i >= 0) {
+            int start = i + STOPPED_MARKER.length();
+            int end = line.indexOf(' ', start);
+            Double seconds = parseDouble(line.substring(start, (end > 0) ? end : line.length()));
+            if (seconds != null)
+                this.stopped.add(seconds * 1000);
+            return;
+        }
+
+        if (line.contains("concurrent")) {
+            return;
+        }
+
+        // Events can span lines (-XX:+PrintTenuringDistribution, for example); The pause time is on the last.
+        boolean gcStart = line.contains("[GC") || line.contains("[Full GC");
+        if (gcStart || this.gcPending) {
+            Double seconds = pauseSeconds(line);
+            if (seconds != null) {
+                this.gcPauses.add(seconds * 1000);
+                this.gcPending = false;
+            }
+            else {
+                this.gcPending = true;
+            }
+        }
+    }
+
+    Pauses getStopped() {
+        return this.stopped;
+    }
+
+    Pauses getGcPauses() {
+        return this.gcPauses;
+    }
+
+    /**
+     * Returns the GC log path of a local JVM (resolved against its working directory), or null if
+     * it was not started with -Xloggc.
+     *
+     * @param pid
+     *            process ID of the JVM
+     * @throws IOException
+     *             if unable to attach to the JVM
+     */
+    public static String gcLogPath(String pid) throws IOException {
+        VirtualMachine vm;
+        try {
+            vm = VirtualMachine.attach(pid);
+        }
+        catch (AttachNotSupportedException e) {
+            throw new IOException(String.format("Unable to attach to PID %s: %s", pid, e.getMessage()), e);
+        }
+
+        try {
+            String args = vm.getAgentProperties().getProperty("sun.jvm.args", "");
+            for (String arg : Splitter.on(' ').omitEmptyStrings().split(args)) {
+                if (arg.startsWith(LOGGC_ARGUMENT)) {
+                    Properties properties = vm.getSystemProperties();
+                    return Paths.get(properties.getProperty("user.dir", "")).resolve(arg.substring(LOGGC_ARGUMENT.length())).toString();
+                }
+            }
+            return null;
+        }
+        finally {
+            vm.detach();
+        }
+    }
+
+    /** The duration of a pause event ("..., 0.0123456 secs]"), or null if there is none. */
+    private static Double pauseSeconds(String line) {
+        int times = line.indexOf("[Times:");
+        String event = (times >= 0) ? line.substring(0, times) : line;
+
+        int end = event.lastIndexOf(" secs]");
+        if (end < 0)
+            return null;
+        int start = event.lastIndexOf(", ", end);
+        if (start < 0)
+            return null;
+
+        return parseDouble(event.substring(start + 2, end));
+    }
+
+    private static Double parseDouble(String s) {
+        try {
+            // Some locales use a decimal comma
+            return Double.parseDouble(s.replace(',', '.'));
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Object fileKey(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static ObjectName newObjectName(String name) {
+        try {
+            return new ObjectName(name);
+        }
+        catch (MalformedObjectNameException e) {
+            throw new RuntimeException("a bug!", e);
+        }
+    }
+
+}
@@ -0,0 +1,316 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * The Cassandra metrics of an instance, and for each, the attributes to fetch. Plans are made the
+ * first time a bean is seen, and retained: Attributes whose metric names the filter rejects (or that
+ * relabel rules drop) are left out, and beans with no remaining attributes (or that are not of interest) are skipped without being
+ * fetched at all. Plans are immutable, and those that are equal (the same attributes of beans of a
+ * type, across tables, and across the inventories of co-located instances) are shared.
+ *
+ * @author eevans
+ */
+public class Inventory {
+
+    /** Kinds of metric bean, and how they are collected. */
+    enum Kind {
+        /** Not collected. */
+        SKIP,
+        /** Attributes are fetched, and emitted as-is. */
+        ATTRIBUTES,
+        /** A gauge whose value is an estimated histogram ({@code long[]}), decoded into percentiles. */
+        ESTIMATED_HISTOGRAM;
+    }
+
+    /** Attributes (keyed by metric name) of Cassandra's metric bean types, keyed by class name. */
+    private static final Map<String, Map<String, String>> ATTRIBUTES;
+
+    /** Metrics decoded from an estimated histogram, in the order they are decoded. */
+    static final List<String> ESTIMATED_HISTOGRAM_METRICS = Lists.newArrayList(
+            "50percentile", "75percentile", "95percentile", "98percentile", "99percentile", "min", "max");
+
+    /** Gauges that are estimated histograms (of type {@code long[]}). */
+    private static final Set<String> ESTIMATED_HISTOGRAMS = ImmutableSet.of(
+            "EstimatedPartitionSizeHistogram",
+            "EstimatedRowSizeHistogram",
+            "EstimatedColumnCountHistogram");
+
+    private static final String GAUGE = "org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxGauge";
+
+    static {
+        Map<String, String> percentiles = ImmutableMap.<String, String>builder()
+                .put("50percentile", "50thPercentile")
+                .put("75percentile", "75thPercentile")
+                .put("95percentile", "95thPercentile")
+                .put("98percentile", "98thPercentile")
+                .put("99percentile", "99thPercentile")
+                .put("999percentile", "999thPercentile")
+                .build();
+        Map<String, String> rates = ImmutableMap.<String, String>builder()
+                .put("1MinuteRate", "OneMinuteRate")
+                .put("5MinuteRate", "FiveMinuteRate")
+                .put("15MinuteRate", "FifteenMinuteRate")
+                .put("meanRate", "MeanRate")
+                .build();
+        Map<String, String> stats = ImmutableMap.<String, String>builder()
+                .put("max", "Max")
+                .put("mean", "Mean")
+                .put("min", "Min")
+                .put("stddev", "StdDev")
+                .build();
+
+        ATTRIBUTES = ImmutableMap.<String, Map<String, String>>builder()
+                .put("org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxTimer", ImmutableMap.<String, String>builder()
+                        .putAll(percentiles).putAll(rates).put("count", "Count").putAll(stats).build())
+                .put("org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxMeter", ImmutableMap.<String, String>builder()
+                        .putAll(rates).put("count", "Count").build())
+                .put("org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxHistogram", ImmutableMap.<String, String>builder()
+                        .putAll(percentiles).putAll(stats).build())
+                .put("org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxCounter", ImmutableMap.of("count", "Count"))
+                .put(GAUGE, ImmutableMap.of("value", "Value"))
+                .build();
+    }
+
+    /** The collection plan of a bean. */
+    static class BeanPlan {
+        private static final BeanPlan SKIP = new BeanPlan(Kind.SKIP, new String[0], new String[0], new int[0]);
+
+        final Kind kind;
+        /** Attributes to fetch. */
+        final String[] attributes;
+        /** Metric names to emit (those of the attributes, or of the decoded histogram). */
+        final String[] metrics;
+        /** Indices of the decoded histogram values (estimated histograms only). */
+        final int[] indices;
+
+        private BeanPlan(Kind kind, String[] attributes, String[] metrics, int[] indices) {
+            this.kind = kind;
+            this.attributes = attributes;
+            this.metrics = metrics;
+            this.indices = indices;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((this.kind.hashCode() * 31 + Arrays.hashCode(this.attributes)) * 31 + Arrays.hashCode(this.metrics)) * 31 + Arrays.hashCode(this.indices);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof BeanPlan))
+                return false;
+            BeanPlan other = (BeanPlan) obj;
+            return this.kind == other.kind && Arrays.equals(this.attributes, other.attributes) && Arrays.equals(this.metrics, other.metrics)
+                    && Arrays.equals(this.indices, other.indices);
+        }
+    }
+
+    /** Plans in use by any inventory. */
+    private static final Interner<BeanPlan> SHARED = Interners.newWeakInterner();
+
+    private final MetricNameCache names;
+    private final Optional<Filter> filter;
+    private final Map<ObjectName, BeanPlan> plans = Maps.newHashMap();
+    /** Metrics collected by other means (from virtual tables), and so not fetched over JMX. */
+    private final SetMultimap<ObjectName, String> excluded = HashMultimap.create();
+
+    /** Create an inventory that collects every attribute of every bean of interest. */
+    public Inventory() {
+        this.names = null;
+        this.filter = Optional.absent();
+    }
+
+    /**
+     * Create an inventory that collects only the attributes whose metric names are accepted by a
+     * filter, and not dropped by relabel rules.
+     *
+     * @param filter
+     *            an {@link Optional} metric filter
+     * @param names
+     *            cache of the metric names (relabeled, and filtered)
+     */
+    public Inventory(Optional<Filter> filter, MetricNameCache names) {
+        this.filter = checkNotNull(filter, "filter argument");
+        this.names = checkNotNull(names, "names argument");
+    }
+
+    /** Returns the plan of a bean, making it if the bean is new. */
+    synchronized BeanPlan plan(ObjectInstance instance) {
+        BeanPlan plan = this.plans.get(instance.getObjectName());
+        if (plan == null) {
+            plan = SHARED.intern(newPlan(instance));
+            this.plans.put(instance.getObjectName(), plan);
+        }
+        return plan;
+    }
+
+    /** Forgets the plan of a bean (one that has been unregistered, for example). */
+    synchronized void forget(ObjectName oName) {
+        this.plans.remove(oName);
+    }
+
+    /**
+     * Excludes a metric collected by other means, making a new plan for its bean (if one exists).
+     *
+     * @param oName
+     *            object name of the bean
+     * @param metric
+     *            name of the metric
+     */
+    synchronized void exclude(ObjectName oName, String metric) {
+        if (this.excluded.put(oName, metric))
+            this.plans.remove(oName);
+    }
+
+    /** Includes every excluded metric again (when the source of them fails, for example). */
+    public synchronized void includeAll() {
+        for (ObjectName oName : this.excluded.keySet())
+            this.plans.remove(oName);
+        this.excluded.clear();
+    }
+
+    /**
+     * Returns a visitor that excludes the Cassandra metrics it is passed (those of a
+     * {@link VirtualTableSource}, for example) from collection over JMX, before passing them on to
+     * another.
+     *
+     * @param visitor
+     *            visitor to pass samples to
+     * @return an excluding visitor
+     */
+    public SampleVisitor exclude(final SampleVisitor visitor) {
+        checkNotNull(visitor, "visitor argument");
+        return new SampleVisitor() {
+            @Override
+            public void visit(JmxSample sample) {
+                if (sample.getType().equals(Type.CASSANDRA))
+                    exclude(sample.getObjectName(), sample.getMetricName());
+                visitor.visit(sample);
+            }
+        };
+    }
+
+    /**
+     * Forgets the plans (and exclusions) of beans matching a query, that were not among its results.
+     *
+     * @param query
+     *            the object name (pattern) queried
+     * @param seen
+     *            object names of the query results
+     */
+    synchronized void retain(ObjectName query, Set<ObjectName> seen) {
+        for (Iterator<ObjectName> iter = this.plans.keySet().iterator(); iter.hasNext();) {
+            ObjectName oName = iter.next();
+            if (query.apply(oName) && !seen.contains(oName))
+                iter.remove();
+        }
+        for (Iterator<ObjectName> iter = this.excluded.keySet().iterator(); iter.hasNext();) {
+            ObjectName oName = iter.next();
+            if (query.apply(oName) && !seen.contains(oName))
+                iter.remove();
+        }
+    }
+
+    /** Returns the number of planned beans. */
+    public synchronized int size() {
+        return this.plans.size();
+    }
+
+    private BeanPlan newPlan(ObjectInstance instance) {
+        ObjectName oName = instance.getObjectName();
+        if (!JmxCollector.interesting(oName))
+            return BeanPlan.SKIP;
+
+        if (instance.getClassName().equals(GAUGE) && ESTIMATED_HISTOGRAMS.contains(oName.getKeyProperty("name"))) {
+            List<String> metrics = Lists.newArrayList();
+            List<Integer> indices = Lists.newArrayList();
+            for (int i = 0; i < ESTIMATED_HISTOGRAM_METRICS.size(); i++) {
+                if (accept(oName, ESTIMATED_HISTOGRAM_METRICS.get(i))) {
+                    metrics.add(ESTIMATED_HISTOGRAM_METRICS.get(i));
+                    indices.add(i);
+                }
+            }
+            if (metrics.isEmpty())
+                return BeanPlan.SKIP;
+            int[] idx = new int[indices.size()];
+            for (int i = 0; i < idx.length; i++)
+                idx[i] = indices.get(i);
+            return new BeanPlan(Kind.ESTIMATED_HISTOGRAM, new String[] { "Value" }, metrics.toArray(new String[0]), idx);
+        }
+
+        Map<String, String> attributes = ATTRIBUTES.get(instance.getClassName());
+        if (attributes == null)
+            return BeanPlan.SKIP;
+
+        List<String> metrics = Lists.newArrayList();
+        List<String> fetch = Lists.newArrayList();
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            if (accept(oName, entry.getKey())) {
+                metrics.add(entry.getKey());
+                fetch.add(entry.getValue());
+            }
+        }
+        if (metrics.isEmpty())
+            return BeanPlan.SKIP;
+
+        return new BeanPlan(Kind.ATTRIBUTES, fetch.toArray(new String[0]), metrics.toArray(new String[0]), new int[0]);
+    }
+
+    private boolean accept(ObjectName oName, String metric) {
+        if (this.excluded.containsEntry(oName, metric))
+            return false;
+        if (this.names == null)
+            return true;
+        MetricNameCache.MetricName name = this.names.get(Type.CASSANDRA, oName, metric, this.filter);
+        // Metrics over the series limit are still fetched, in case room is made for them later
+        if (name.isLimited())
+            return true;
+        if (name.isDropped())
+            return false;
+        return !this.filter.isPresent() || name.accept(this.filter.get());
+    }
+
+    @Override
+    public String toString() {
+        return "Inventory [filter=" + filter + ", size=" + size() + "]";
+    }
+
+}
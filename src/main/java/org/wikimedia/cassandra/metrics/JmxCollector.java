@@ -30,42 +30,46 @@ import java.lang.management.MemoryMXBean;
 import java.lang.management.MemoryPoolMXBean;
 import java.lang.management.RuntimeMXBean;
 import java.net.MalformedURLException;
+import java.rmi.server.RMISocketFactory;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-
-import javax.management.JMX;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanException;
 import javax.management.MBeanServerConnection;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectInstance;
 import javax.management.ObjectName;
+import javax.management.ReflectionException;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 
-import org.apache.cassandra.metrics.CassandraMetricsRegistry;
 import org.wikimedia.cassandra.metrics.JmxSample.Type;
 
 import com.google.common.collect.Sets;
 
 
-public class JmxCollector implements AutoCloseable {
+public class JmxCollector implements SampleSource, AutoCloseable {
 
     private static final String FORMAT_URL = "service:jmx:rmi:///jndi/rmi://%s:%d/jmxrmi";
 
-    private static final Map<String, Class<?>> mbeanClasses;
+    private static final String TIMER_CLASS = "org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxTimer";
+    private static final String HISTOGRAM_CLASS = "org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxHistogram";
+
     private static final Set<ObjectName> blacklist;
 
     static {
-        mbeanClasses = new HashMap<String, Class<?>>();
-        mbeanClasses.put("org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxGauge", CassandraMetricsRegistry.JmxGaugeMBean.class);
-        mbeanClasses.put("org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxTimer", CassandraMetricsRegistry.JmxTimerMBean.class);
-        mbeanClasses.put("org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxCounter", CassandraMetricsRegistry.JmxCounterMBean.class);
-        mbeanClasses.put("org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxMeter", CassandraMetricsRegistry.JmxMeterMBean.class);
-        mbeanClasses.put("org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxHistogram", CassandraMetricsRegistry.JmxHistogramMBean.class);
-
         blacklist = new HashSet<ObjectName>();
         blacklist.add(newObjectName("org.apache.cassandra.metrics:type=Table,name=SnapshotsSize"));
         blacklist.add(newObjectName("org.apache.cassandra.metrics:type=Table,keyspace=system,scope=compactions_in_progress,name=SnapshotsSize"));
@@ -76,6 +80,8 @@ public class JmxCollector implements AutoCloseable {
     private final int port;
     private final ObjectName metricsObjectName = newObjectName("org.apache.cassandra.metrics:*");
 
+    private final ConnectionStats connectionStats = new ConnectionStats();
+
     private JMXConnector jmxc;
     private MBeanServerConnection mbeanServerConn;
 
@@ -112,146 +118,334 @@ public class JmxCollector implements AutoCloseable {
     private void connect(JMXServiceURL jmxUrl) throws IOException {
         /* FIXME: add authentication support */
         Map<String, Object> env = new HashMap<String, Object>();
-        this.jmxc = JMXConnectorFactory.connect(jmxUrl, env);
-        this.mbeanServerConn = jmxc.getMBeanServerConnection();
+
+        // Use the installed socket factory (if any) for the registry lookup as well.
+        RMISocketFactory factory = RMISocketFactory.getSocketFactory();
+        if (factory != null)
+            env.put(JmxSocketFactory.JNDI_FACTORY_PROPERTY, factory);
+
+        ConnectionStats previous = JmxSocketFactory.meter(this.connectionStats);
+        try {
+            this.jmxc = JMXConnectorFactory.connect(jmxUrl, env);
+            this.mbeanServerConn = jmxc.getMBeanServerConnection();
+        }
+        finally {
+            JmxSocketFactory.meter(previous);
+        }
+    }
+
+    /**
+     * Returns the wire-level accounting for this collector's connection. Counts are only
+     * maintained when a {@link JmxSocketFactory} has been installed.
+     *
+     * @return connection stats
+     */
+    public ConnectionStats getConnectionStats() {
+        return this.connectionStats;
     }
 
+    /** {@inheritDoc} */
+    @Override
     public void getSamples(SampleVisitor visitor) throws IOException {
         getJvmSamples(visitor);
         getCassandraSamples(visitor);
     }
 
     public void getJvmSamples(SampleVisitor visitor) throws IOException {
+        ConnectionStats previous = JmxSocketFactory.meter(this.connectionStats);
+        try {
+            collectJvmSamples(SampleBatchAdapter.of(visitor));
+        }
+        finally {
+            JmxSocketFactory.meter(previous);
+        }
+    }
+
+    public void getCassandraSamples(SampleVisitor visitor) throws IOException {
+        getCassandraSamples(this.metricsObjectName, visitor);
+    }
+
+    /**
+     * Collect Cassandra metrics, fetching only the attributes an inventory plans for.
+     *
+     * @param inventory
+     *            the inventory (retained between collections)
+     * @param visitor
+     *            visitor to pass samples to
+     * @throws IOException
+     *             on communication errors
+     */
+    public void getCassandraSamples(Inventory inventory, SampleVisitor visitor) throws IOException {
+        getCassandraSamples(this.metricsObjectName, inventory, visitor);
+    }
+
+    /**
+     * Collect Cassandra metrics matching an object name pattern.
+     *
+     * @param query
+     *            object name (pattern) of the metrics to collect
+     * @param visitor
+     *            visitor to pass samples to
+     * @throws IOException
+     *             on communication errors
+     */
+    public void getCassandraSamples(ObjectName query, SampleVisitor visitor) throws IOException {
+        getCassandraSamples(query, new Inventory(), visitor);
+    }
+
+    /**
+     * Collect Cassandra metrics matching an object name pattern, fetching only the attributes an
+     * inventory plans for.
+     *
+     * @param query
+     *            object name (pattern) of the metrics to collect
+     * @param inventory
+     *            the inventory (retained between collections)
+     * @param visitor
+     *            visitor to pass samples to
+     * @throws IOException
+     *             on communication errors
+     */
+    public void getCassandraSamples(ObjectName query, Inventory inventory, SampleVisitor visitor) throws IOException {
+        checkNotNull(inventory, "inventory argument");
+        ConnectionStats previous = JmxSocketFactory.meter(this.connectionStats);
+        try {
+            collectCassandraSamples(query, inventory, SampleBatchAdapter.of(visitor));
+        }
+        finally {
+            JmxSocketFactory.meter(previous);
+        }
+    }
+
+    /**
+     * Collect JVM and Cassandra metrics without blocking the calling thread; The collection runs on
+     * an executor, and samples are passed to the visitor from its thread.
+     *
+     * @param visitor
+     *            visitor to pass samples to
+     * @param executor
+     *            executor to collect on
+     * @return a stage completed when the collection is (or exceptionally, on error)
+     */
+    public CompletionStage<Void> getSamplesAsync(final SampleVisitor visitor, Executor executor) {
+        checkNotNull(visitor, "visitor argument");
+        final CompletableFuture<Void> result = new CompletableFuture<Void>();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        getSamples(visitor);
+                        result.complete(null);
+                    }
+                    catch (Throwable e) {
+                        result.completeExceptionally(e);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a publisher of the Cassandra metrics matching an object name pattern, that fetches
+     * beans only as its subscriber requests them.
+     *
+     * @param query
+     *            object name (pattern) of the metrics to collect
+     * @param inventory
+     *            the inventory (retained between collections)
+     * @param executor
+     *            executor to collect on
+     * @return a sample publisher (for a single collection)
+     */
+    public SamplePublisher publish(ObjectName query, Inventory inventory, Executor executor) {
+        return new SamplePublisher(this, query, inventory, executor);
+    }
+
+    /**
+     * Collect latency sketches of the timers and histograms matching an object name pattern, from the
+     * bucket counts recorded since they were last read ({@code RecentValues}; Cassandra 3.0 and later).
+     * Timer values are converted from nanoseconds to microseconds (the unit of their percentiles).
+     *
+     * @param query
+     *            object name (pattern) of the timers and histograms
+     * @param sketches
+     *            sketches to update, keyed by object name (reused between collections; those of beans no
+     *            longer matched are removed)
+     * @throws IOException
+     *             on communication errors
+     */
+    public void getLatencySketches(ObjectName query, Map<ObjectName, LatencySketch> sketches) throws IOException {
+        ConnectionStats previous = JmxSocketFactory.meter(this.connectionStats);
+        try {
+            Set<ObjectName> seen = new HashSet<ObjectName>();
+
+            for (ObjectInstance instance : getConnection().queryMBeans(query, null)) {
+                boolean timer = instance.getClassName().equals(TIMER_CLASS);
+                if (!timer && !instance.getClassName().equals(HISTOGRAM_CLASS))
+                    continue;
+
+                Object values;
+                try {
+                    values = getConnection().getAttribute(instance.getObjectName(), "RecentValues");
+                }
+                catch (AttributeNotFoundException | InstanceNotFoundException | MBeanException | ReflectionException e) {
+                    continue;
+                }
+                if (!(values instanceof long[]))
+                    continue;
+
+                LatencySketch sketch = sketches.get(instance.getObjectName());
+                if (sketch == null) {
+                    sketch = new LatencySketch();
+                    sketches.put(instance.getObjectName(), sketch);
+                }
+                sketch.clear();
+                sketch.add((long[]) values, timer ? 0.001 : 1.0);
+                seen.add(instance.getObjectName());
+            }
+
+            sketches.keySet().retainAll(seen);
+        }
+        finally {
+            JmxSocketFactory.meter(previous);
+        }
+    }
+
+    /**
+     * Collect per-thread-pool CPU usage.
+     *
+     * @param threadPoolCpu
+     *            thread pool CPU state (retained between collections)
+     * @param visitor
+     *            visitor to pass samples to
+     * @throws IOException
+     *             on communication errors
+     */
+    public void getThreadPoolCpuSamples(ThreadPoolCpu threadPoolCpu, SampleVisitor visitor) throws IOException {
+        ConnectionStats previous = JmxSocketFactory.meter(this.connectionStats);
+        try {
+            threadPoolCpu.collect(getConnection(), visitor);
+        }
+        finally {
+            JmxSocketFactory.meter(previous);
+        }
+    }
+
+    private void collectJvmSamples(BatchVisitor visitor) throws IOException {
+        SampleBatch batch = new SampleBatch();
         int timestamp = (int) (System.currentTimeMillis() / 1000);
 
         // Runtime
         RuntimeMXBean runtime = ManagementFactory.newPlatformMXBeanProxy(getConnection(), RUNTIME_MXBEAN_NAME, RuntimeMXBean.class);
-        visitor.visit(new JmxSample(Type.JVM, newObjectName(RUNTIME_MXBEAN_NAME), "uptime", runtime.getUptime(), timestamp));
+        batch.reset(Type.JVM, newObjectName(RUNTIME_MXBEAN_NAME), timestamp);
+        batch.add("uptime", runtime.getUptime());
+        visitor.visit(batch);
 
         // Memory
         MemoryMXBean memory = ManagementFactory.newPlatformMXBeanProxy(getConnection(), MEMORY_MXBEAN_NAME, MemoryMXBean.class);
         ObjectName oName = newObjectName(MEMORY_MXBEAN_NAME);
         double nonHeapUsed = ((double)memory.getNonHeapMemoryUsage().getUsed() / (double)memory.getNonHeapMemoryUsage().getCommitted());
         double heapUsed = ((double)memory.getHeapMemoryUsage().getUsed() / (double)memory.getHeapMemoryUsage().getCommitted());
-        visitor.visit(new JmxSample(Type.JVM, oName, "non_heap_usage", nonHeapUsed, timestamp));
-        visitor.visit(new JmxSample(Type.JVM, oName, "non_heap_usage_bytes", (double)memory.getNonHeapMemoryUsage().getUsed(), timestamp));
-        visitor.visit(new JmxSample(Type.JVM, oName, "heap_usage", heapUsed, timestamp));
+        batch.reset(Type.JVM, oName, timestamp);
+        batch.add("non_heap_usage", nonHeapUsed);
+        batch.add("non_heap_usage_bytes", (double)memory.getNonHeapMemoryUsage().getUsed());
+        batch.add("heap_usage", heapUsed);
+        visitor.visit(batch);
 
         // Garbage collection
         for (ObjectInstance instance : getConnection().queryMBeans(newObjectName("java.lang:type=GarbageCollector,name=*"), null)) {
             String name = instance.getObjectName().getKeyProperty("name");
             GarbageCollectorMXBean gc = newPlatformMXBeanProxy(GARBAGE_COLLECTOR_MXBEAN_DOMAIN_TYPE, "name", name, GarbageCollectorMXBean.class);
-            visitor.visit(new JmxSample(Type.JVM, instance.getObjectName(), "runs", gc.getCollectionCount(), timestamp));
-            visitor.visit(new JmxSample(Type.JVM, instance.getObjectName(), "time", gc.getCollectionTime(), timestamp));
+            batch.reset(Type.JVM, instance.getObjectName(), timestamp);
+            batch.add("runs", gc.getCollectionCount());
+            batch.add("time", gc.getCollectionTime());
+            visitor.visit(batch);
         }
 
         // Memory pool usages
         for (ObjectInstance instance : getConnection().queryMBeans(newObjectName("java.lang:type=MemoryPool,name=*"), null)) {
             String name = instance.getObjectName().getKeyProperty("name");
             MemoryPoolMXBean memPool = newPlatformMXBeanProxy(MEMORY_POOL_MXBEAN_DOMAIN_TYPE, "name", name, MemoryPoolMXBean.class);
-            visitor.visit(new JmxSample(Type.JVM, instance.getObjectName(), memPool.getName(), memPool.getUsage().getUsed(), timestamp));
+            batch.reset(Type.JVM, instance.getObjectName(), timestamp);
+            batch.add(memPool.getName(), memPool.getUsage().getUsed());
+            visitor.visit(batch);
         }
 
     }
 
+    private void collectCassandraSamples(ObjectName query, Inventory inventory, BatchVisitor visitor) throws IOException {
+        // One batch per MBean, reused; Visitors do not retain them.
+        SampleBatch batch = new SampleBatch();
+        Set<ObjectName> seen = new HashSet<ObjectName>();
 
-    public void getCassandraSamples(SampleVisitor visitor) throws IOException {
+        for (ObjectInstance instance : queryCassandraBeans(query)) {
+            seen.add(instance.getObjectName());
+            if (collectBean(instance, inventory, batch))
+                visitor.visit(batch);
+        }
 
-        for (ObjectInstance instance : getConnection().queryMBeans(this.metricsObjectName, null)) {
-            if (!interesting(instance.getObjectName()))
-                continue;
-
-            Object proxy = getMBeanProxy(instance);
-            ObjectName oName = instance.getObjectName();
-
-            int timestamp = (int) (System.currentTimeMillis() / 1000);
-
-            // Order matters here (for example: TimerMBean extends MeterMBean)
-
-            if (proxy instanceof CassandraMetricsRegistry.JmxTimerMBean) {
-                CassandraMetricsRegistry.JmxTimerMBean timer = (CassandraMetricsRegistry.JmxTimerMBean)proxy;
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "50percentile", timer.get50thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "75percentile", timer.get75thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "95percentile", timer.get95thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "98percentile", timer.get98thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "99percentile", timer.get99thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "999percentile", timer.get999thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "1MinuteRate", timer.getOneMinuteRate(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "5MinuteRate", timer.getFiveMinuteRate(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "15MinuteRate", timer.getFifteenMinuteRate(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "count", timer.getCount(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "max", timer.getMax(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "mean", timer.getMean(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "meanRate", timer.getMeanRate(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "min", timer.getMin(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "stddev", timer.getStdDev(), timestamp));
-                continue;
-            }
+        inventory.retain(query, seen);
+    }
 
-            if (proxy instanceof CassandraMetricsRegistry.JmxMeterMBean) {
-                CassandraMetricsRegistry.JmxMeterMBean meter = (CassandraMetricsRegistry.JmxMeterMBean)proxy;
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "15MinuteRate", meter.getFifteenMinuteRate(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "1MinuteRate", meter.getOneMinuteRate(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "5MinuteRate", meter.getFiveMinuteRate(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "count", meter.getCount(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "meanRate", meter.getMeanRate(), timestamp));
-                continue;
-            }
+    Set<ObjectInstance> queryCassandraBeans(ObjectName query) throws IOException {
+        return getConnection().queryMBeans(query, null);
+    }
 
-            if (proxy instanceof CassandraMetricsRegistry.JmxHistogramMBean) {
-                CassandraMetricsRegistry.JmxHistogramMBean histogram = (CassandraMetricsRegistry.JmxHistogramMBean)proxy;
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "50percentile", histogram.get50thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "75percentile", histogram.get75thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "95percentile", histogram.get95thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "98percentile", histogram.get98thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "99percentile", histogram.get99thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "999percentile", histogram.get999thPercentile(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "max", histogram.getMax(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "mean", histogram.getMean(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "min", histogram.getMin(), timestamp));
-                visitor.visit(new JmxSample(Type.CASSANDRA, oName, "stddev", histogram.getStdDev(), timestamp));
-                continue;
-            }
+    /**
+     * Fetches the attributes an inventory plans for a bean into a batch, returning true if there
+     * are samples to visit.
+     */
+    boolean collectBean(ObjectInstance instance, Inventory inventory, SampleBatch batch) throws IOException {
+        ObjectName oName = instance.getObjectName();
 
-            if (proxy instanceof CassandraMetricsRegistry.JmxGaugeMBean) {
-                // EstimatedRowSizeHistogram and EstimatedColumnCountHistogram are allegedly Gauge, but with a value
-                // of type of long[], we're left with little choice but to special-case them.  This borrows code from
-                // Cassandra to decode the array into a histogram (50p, 75p, 95p, 98p, 99p, min, and max).
-                String name = oName.getKeyProperty("name");
-                if (name.equals("EstimatedPartitionSizeHistogram") || name.equals("EstimatedRowSizeHistogram")
-                        || name.equals("EstimatedColumnCountHistogram")) {
-                    Object value = ((CassandraMetricsRegistry.JmxGaugeMBean) proxy).getValue();
-                    double[] percentiles = metricPercentilesAsArray((long[])value);
-                    visitor.visit(new JmxSample(Type.CASSANDRA, oName, "50percentile", percentiles[0], timestamp));
-                    visitor.visit(new JmxSample(Type.CASSANDRA, oName, "75percentile", percentiles[1], timestamp));
-                    visitor.visit(new JmxSample(Type.CASSANDRA, oName, "95percentile", percentiles[2], timestamp));
-                    visitor.visit(new JmxSample(Type.CASSANDRA, oName, "98percentile", percentiles[3], timestamp));
-                    visitor.visit(new JmxSample(Type.CASSANDRA, oName, "99percentile", percentiles[4], timestamp));
-                    visitor.visit(new JmxSample(Type.CASSANDRA, oName, "min", percentiles[5], timestamp));
-                    visitor.visit(new JmxSample(Type.CASSANDRA, oName, "max", percentiles[6], timestamp));
-                }
-                else {
-                    visitor.visit(new JmxSample(
-                            Type.CASSANDRA,
-                            oName,
-                            "value",
-                            ((CassandraMetricsRegistry.JmxGaugeMBean) proxy).getValue(),
-                            timestamp));
-                }
-                continue;
-            }
+        Inventory.BeanPlan plan = inventory.plan(instance);
+        if (plan.kind == Inventory.Kind.SKIP)
+            return false;
+
+        // Only the attributes planned are fetched, all at once.
+        AttributeList attributes;
+        try {
+            attributes = getConnection().getAttributes(oName, plan.attributes);
+        }
+        catch (InstanceNotFoundException | ReflectionException e) {
+            // Unregistered since the query (or otherwise unreadable); Plan it over if seen again.
+            inventory.forget(oName);
+            return false;
+        }
 
-            if (proxy instanceof CassandraMetricsRegistry.JmxCounterMBean) {
-                visitor.visit(new JmxSample(
-                        Type.CASSANDRA,
-                        oName,
-                        "count",
-                        ((CassandraMetricsRegistry.JmxCounterMBean) proxy).getCount(),
-                        timestamp));
-                continue;
+        int timestamp = (int) (System.currentTimeMillis() / 1000);
+        batch.reset(Type.CASSANDRA, oName, timestamp);
+
+        if (plan.kind == Inventory.Kind.ESTIMATED_HISTOGRAM) {
+            // EstimatedRowSizeHistogram and EstimatedColumnCountHistogram are allegedly Gauge, but with a value
+            // of type of long[], we're left with little choice but to special-case them.  This borrows code from
+            // Cassandra to decode the array into a histogram (50p, 75p, 95p, 98p, 99p, min, and max).
+            for (Attribute attribute : attributes.asList()) {
+                if (!(attribute.getValue() instanceof long[]))
+                    continue;
+                double[] percentiles = metricPercentilesAsArray((long[]) attribute.getValue());
+                for (int i = 0; i < plan.indices.length; i++)
+                    batch.add(plan.metrics[i], percentiles[plan.indices[i]]);
+            }
+        }
+        else {
+            // Gauges can be of any type; Those that aren't numeric are skipped.
+            for (Attribute attribute : attributes.asList()) {
+                for (int i = 0; i < plan.attributes.length; i++) {
+                    if (plan.attributes[i].equals(attribute.getName())) {
+                        batch.tryAdd(plan.metrics[i], attribute.getValue());
+                        break;
+                    }
+                }
             }
         }
 
+        return batch.size() > 0;
     }
 
     @Override
@@ -269,6 +463,8 @@ public class JmxCollector implements AutoCloseable {
                 + jmxc
                 + ", mbeanServerConn="
                 + mbeanServerConn
+                + ", connectionStats="
+                + connectionStats
                 + ", metricsObjectName="
                 + metricsObjectName
                 + "]";
@@ -278,10 +474,6 @@ public class JmxCollector implements AutoCloseable {
         return this.mbeanServerConn;
     }
 
-    Object getMBeanProxy(ObjectInstance instance) {
-        return JMX.newMBeanProxy(getConnection(), instance.getObjectName(), mbeanClasses.get(instance.getClassName()));
-    }
-
     /* TODO: Ideally, the "interesting" criteria should be configurable. */
     private static Set<String> interestingTypes = Sets.newHashSet(
             "Cache",
@@ -301,7 +493,7 @@ public class JmxCollector implements AutoCloseable {
             "Table");
 
     /* XXX: This is a hot mess. */
-    private boolean interesting(ObjectName objName) {
+    static boolean interesting(ObjectName objName) {
         if (objName.getKeyProperty("name").equals("ColUpdateTimeDeltaHistogram")) {
             return false;
         }
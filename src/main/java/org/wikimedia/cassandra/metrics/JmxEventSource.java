@@ -0,0 +1,380 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.rmi.server.RMISocketFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Repair, streaming, and compaction events, emitted to a visitor as they occur.
+ * <p>
+ * A dedicated JMX connection is kept open to receive {@code StorageService} repair progress, and
+ * {@code StreamManager} stream notifications. Compactions are not announced by notification, so
+ * the list of running compactions is polled over the same connection (every second, by default),
+ * and compared with the previous. Each event is emitted as a sample when it occurs: a
+ * {@code started} count when it starts, and its {@code duration} (in milliseconds), outcome, and
+ * byte counts (where available) when it finishes. Repairs and stream plans are timed from their
+ * notifications, compactions to within the poll interval.
+ * </p>
+ * <p>
+ * The visitor is invoked from JMX notification and polling threads, and must be thread-safe.
+ * Notifications are handled by {@link #handleNotification(Notification, Object)}.
+ * {@link #connect()} is meant to be called periodically; It re-establishes the connection if it has
+ * failed.
+ * </p>
+ *
+ * @author eevans
+ */
+public class JmxEventSource implements NotificationListener, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JmxEventSource.class);
+
+    /** Remote notification fetch timeout property (must be less than the socket read timeout). */
+    static final String FETCH_TIMEOUT_PROPERTY = "jmx.remote.x.notification.fetch.timeout";
+
+    private static final ObjectName STORAGE_SERVICE = newObjectName("org.apache.cassandra.db:type=StorageService");
+    private static final ObjectName STREAM_MANAGER = newObjectName("org.apache.cassandra.net:type=StreamManager");
+    private static final ObjectName COMPACTION_MANAGER = newObjectName("org.apache.cassandra.db:type=CompactionManager");
+
+    private static final ObjectName REPAIR = newObjectName("org.apache.cassandra.metrics:type=Events,name=Repair");
+    private static final ObjectName STREAMING = newObjectName("org.apache.cassandra.metrics:type=Events,name=Streaming");
+
+    private static final String PROGRESS = "progress";
+    private static final String STREAM_EVENT = "org.apache.cassandra.streaming.StreamEvent.";
+
+    // ProgressEventType ordinals
+    private static final int PROGRESS_START = 0;
+    private static final int PROGRESS_ERROR = 2;
+    private static final int PROGRESS_ABORT = 3;
+    private static final int PROGRESS_SUCCESS = 4;
+    private static final int PROGRESS_COMPLETE = 5;
+
+    /** A running compaction; Start is null for those already running when first seen. */
+    private static class Compaction {
+        private final Long start;
+        private final Map<String, String> info;
+
+        private Compaction(Long start, Map<String, String> info) {
+            this.start = start;
+            this.info = info;
+        }
+    }
+
+    private final JMXServiceURL jmxUrl;
+    private final SampleVisitor visitor;
+    private final int pollInterval;
+
+    private final Map<Object, Long> repairs = Maps.newConcurrentMap();
+    private final Map<Object, Long> streams = Maps.newConcurrentMap();
+    private final Map<String, Compaction> compactions = Maps.newHashMap();
+    private boolean compactionsPrimed = false;
+
+    private JMXConnector jmxc;
+    private volatile MBeanServerConnection connection;
+    private volatile boolean connected = false;
+    private ScheduledExecutorService poller;
+
+    private final NotificationListener connectionListener = new NotificationListener() {
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            String type = notification.getType();
+            if (type.equals(JMXConnectionNotification.FAILED) || type.equals(JMXConnectionNotification.CLOSED)) {
+                LOG.warn("Event connection to {} {}", jmxUrl, type);
+                connected = false;
+            }
+            else if (type.equals(JMXConnectionNotification.NOTIFS_LOST)) {
+                LOG.warn("Events lost from {}: {}", jmxUrl, notification.getMessage());
+            }
+        }
+    };
+
+    /**
+     * Create an event source. No connection is made until {@link #connect()} is called.
+     *
+     * @param jmxUrl
+     *            JMX service URL of the Cassandra instance
+     * @param visitor
+     *            visitor to pass event samples to (must be thread-safe)
+     * @param pollInterval
+     *            interval (in milliseconds) to poll running compactions
+     */
+    public JmxEventSource(JMXServiceURL jmxUrl, SampleVisitor visitor, int pollInterval) {
+        this.jmxUrl = checkNotNull(jmxUrl, "jmxUrl argument");
+        this.visitor = checkNotNull(visitor, "visitor argument");
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * Connects and subscribes to notifications, unless already connected.
+     *
+     * @throws IOException
+     *             if unable to connect
+     */
+    public synchronized void connect() throws IOException {
+        if (this.connected)
+            return;
+
+        disconnect();
+
+        Map<String, Object> env = Maps.newHashMap();
+        RMISocketFactory factory = RMISocketFactory.getSocketFactory();
+        if (factory != null)
+            env.put(JmxSocketFactory.JNDI_FACTORY_PROPERTY, factory);
+        // Fetches block server-side for up to the fetch timeout; Keep well inside the read timeout.
+        if (factory instanceof JmxSocketFactory && ((JmxSocketFactory) factory).getReadTimeout() > 0)
+            env.put(FETCH_TIMEOUT_PROPERTY, (long) ((JmxSocketFactory) factory).getReadTimeout() / 2);
+
+        this.jmxc = JMXConnectorFactory.connect(this.jmxUrl, env);
+        this.jmxc.addConnectionNotificationListener(this.connectionListener, null, null);
+        this.connection = this.jmxc.getMBeanServerConnection();
+
+        try {
+            this.connection.addNotificationListener(STORAGE_SERVICE, this, null, null);
+            this.connection.addNotificationListener(STREAM_MANAGER, this, null, null);
+        }
+        catch (JMException e) {
+            disconnect();
+            throw new IOException(String.format("Unable to subscribe to notifications of %s: %s", this.jmxUrl, e.getMessage()), e);
+        }
+
+        this.connected = true;
+        LOG.debug("Subscribed to events of {}", this.jmxUrl);
+
+        if (this.poller == null) {
+            this.poller = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("compaction-poller-%d").build());
+            this.poller.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        pollCompactions();
+                    }
+                    catch (Exception e) {
+                        LOG.debug("Error polling compactions of {}: {}", jmxUrl, e.getMessage());
+                    }
+                }
+            }, 0, this.pollInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Handles a repair progress or stream event notification (others are ignored). */
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        try {
+            if (notification.getType().equals(PROGRESS)) {
+                repair(notification);
+            }
+            else if (notification.getType().startsWith(STREAM_EVENT)) {
+                stream(notification);
+            }
+        }
+        catch (RuntimeException e) {
+            LOG.warn("Error handling {} notification", notification.getType(), e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (this.poller != null) {
+            this.poller.shutdownNow();
+            this.poller = null;
+        }
+        disconnect();
+    }
+
+    @Override
+    public String toString() {
+        return "JmxEventSource [jmxUrl=" + jmxUrl + ", connected=" + connected + ", pollInterval=" + pollInterval + "]";
+    }
+
+    private void disconnect() {
+        this.connected = false;
+        this.connection = null;
+        if (this.jmxc != null) {
+            try {
+                this.jmxc.close();
+            }
+            catch (IOException e) {
+                LOG.debug("Error closing event connection to {}: {}", this.jmxUrl, e.getMessage());
+            }
+            this.jmxc = null;
+        }
+    }
+
+    /** Repair progress ("repair:N" sources). */
+    private void repair(Notification notification) {
+        if (!(notification.getUserData() instanceof Map))
+            return;
+        Object type = ((Map<?, ?>) notification.getUserData()).get("type");
+        if (!(type instanceof Integer))
+            return;
+
+        Object command = notification.getSource();
+        long time = notification.getTimeStamp();
+
+        switch ((Integer) type) {
+            case PROGRESS_START:
+                this.repairs.put(command, time);
+                emit(REPAIR, "started", 1, time);
+                break;
+            case PROGRESS_ERROR:
+                emit(REPAIR, "error", 1, time);
+                break;
+            case PROGRESS_ABORT:
+                emit(REPAIR, "abort", 1, time);
+                break;
+            case PROGRESS_SUCCESS:
+                emit(REPAIR, "success", 1, time);
+                break;
+            case PROGRESS_COMPLETE:
+                Long start = this.repairs.remove(command);
+                if (start != null)
+                    emit(REPAIR, "duration", time - start, time);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /** Stream plan events; Plans are timed from the first prepared session to success or failure. */
+    private void stream(Notification notification) {
+        if (!(notification.getUserData() instanceof CompositeData))
+            return;
+        CompositeData data = (CompositeData) notification.getUserData();
+        if (!data.containsKey("planId"))
+            return;
+
+        Object planId = data.get("planId");
+        long time = notification.getTimeStamp();
+        String event = notification.getType().substring(STREAM_EVENT.length());
+
+        if (event.equals("SessionPreparedEvent")) {
+            if (this.streams.putIfAbsent(planId, time) == null)
+                emit(STREAMING, "started", 1, time);
+        }
+        else if (event.equals("success") || event.equals("failure")) {
+            Long start = this.streams.remove(planId);
+            if (start != null)
+                emit(STREAMING, "duration", time - start, time);
+            emit(STREAMING, event, 1, time);
+            if (data.containsKey("currentRxBytes") && data.get("currentRxBytes") instanceof Number)
+                emit(STREAMING, "bytes_received", ((Number) data.get("currentRxBytes")).longValue(), time);
+            if (data.containsKey("currentTxBytes") && data.get("currentTxBytes") instanceof Number)
+                emit(STREAMING, "bytes_sent", ((Number) data.get("currentTxBytes")).longValue(), time);
+        }
+    }
+
+    /** Compare running compactions with those of the previous poll. */
+    @SuppressWarnings("unchecked")
+    private void pollCompactions() throws IOException, JMException {
+        MBeanServerConnection connection = this.connection;
+        if (connection == null)
+            return;
+
+        List<Map<String, String>> running = (List<Map<String, String>>) connection.getAttribute(COMPACTION_MANAGER, "Compactions");
+        long now = System.currentTimeMillis();
+        Map<String, Compaction> current = Maps.newHashMap();
+
+        for (Map<String, String> info : running) {
+            String id = info.get("compactionId");
+            if (id == null)
+                continue;
+            Compaction compaction = this.compactions.get(id);
+            if (compaction == null) {
+                compaction = new Compaction(this.compactionsPrimed ? now : null, info);
+                if (compaction.start != null)
+                    emit(compactionName(info), "started", 1, now);
+            }
+            // Retain the latest progress
+            current.put(id, new Compaction(compaction.start, info));
+        }
+
+        for (Map.Entry<String, Compaction> entry : this.compactions.entrySet()) {
+            if (current.containsKey(entry.getKey()))
+                continue;
+            Compaction finished = entry.getValue();
+            ObjectName oName = compactionName(finished.info);
+            if (finished.start != null)
+                emit(oName, "duration", now - finished.start, now);
+            emit(oName, "finished", 1, now);
+            if ("bytes".equals(finished.info.get("unit")) && finished.info.get("total") != null)
+                emit(oName, "bytes", Long.parseLong(finished.info.get("total")), now);
+        }
+
+        this.compactions.clear();
+        this.compactions.putAll(current);
+        this.compactionsPrimed = true;
+    }
+
+    private void emit(ObjectName oName, String metric, long value, long timeMillis) {
+        if (oName == null)
+            return;
+        this.visitor.visit(new JmxSample(Type.CASSANDRA, oName, metric, value, (int) (timeMillis / 1000)));
+    }
+
+    private static ObjectName compactionName(Map<String, String> info) {
+        try {
+            return new ObjectName(String.format(
+                    "org.apache.cassandra.metrics:type=Events,name=Compaction,keyspace=%s,scope=%s,task=%s",
+                    nameOrAll(info.get("keyspace")),
+                    nameOrAll(info.get("columnfamily")),
+                    nameOrAll(info.get("taskType"))));
+        }
+        catch (MalformedObjectNameException e) {
+            LOG.debug("Skipping compaction event {}: {}", info, e.getMessage());
+            return null;
+        }
+    }
+
+    private static String nameOrAll(String name) {
+        return (name == null || name.isEmpty()) ? "all" : name;
+    }
+
+    private static ObjectName newObjectName(String name) {
+        try {
+            return new ObjectName(name);
+        }
+        catch (MalformedObjectNameException e) {
+            throw new RuntimeException("a bug!", e);
+        }
+    }
+
+}
@@ -17,27 +17,126 @@ package org.wikimedia.cassandra.metrics;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.management.ObjectName;
 
 
+/**
+ * A metric sample. Values are held in primitive slots, either integral ({@code long}), or
+ * floating-point ({@code double}), with a timestamp in seconds since the epoch.
+ * <p>
+ * Samples are mutable so that a single instance can be reused for the samples of a collection
+ * (see the {@code set} methods); Visitors must not retain a sample beyond the call to
+ * {@link SampleVisitor#visit(JmxSample)}.
+ * </p>
+ */
 public class JmxSample {
 
     public static enum Type {
         JVM, CASSANDRA;
     }
 
-    private final Type type;
-    private final ObjectName objectName;
-    private final String name;
-    private final Object value;
-    private final Number timestamp;
+    private Type type;
+    private ObjectName objectName;
+    private String name;
+    private boolean integral;
+    private long longValue;
+    private double doubleValue;
+    private int timestamp;
+
+    /** Create an empty sample, to be populated with one of the {@code set} methods. */
+    public JmxSample() {
+    }
+
+    public JmxSample(Type type, ObjectName oName, String metricName, long value, int timestamp) {
+        set(type, oName, metricName, value, timestamp);
+    }
+
+    public JmxSample(Type type, ObjectName oName, String metricName, double value, int timestamp) {
+        set(type, oName, metricName, value, timestamp);
+    }
+
+    /**
+     * Sets this sample to an integral value.
+     *
+     * @return this sample
+     */
+    public JmxSample set(Type type, ObjectName oName, String metricName, long value, int timestamp) {
+        setKey(type, oName, metricName, timestamp);
+        this.integral = true;
+        this.longValue = value;
+        this.doubleValue = value;
+        return this;
+    }
+
+    /**
+     * Sets this sample to a floating-point value.
+     *
+     * @return this sample
+     */
+    public JmxSample set(Type type, ObjectName oName, String metricName, double value, int timestamp) {
+        setKey(type, oName, metricName, timestamp);
+        this.integral = false;
+        this.longValue = (long) value;
+        this.doubleValue = value;
+        return this;
+    }
+
+    /**
+     * Sets this sample to a value of unknown type (a gauge, for example). Integral types are stored
+     * as {@code long}, and {@link Float}, {@link Double}, and {@link BigDecimal} as {@code double}.
+     * Anything else (non-numeric values, and NaN or infinite floating-point values) is rejected, and
+     * the sample is left unchanged.
+     *
+     * @return true if the value was numeric, false otherwise
+     */
+    public boolean trySet(Type type, ObjectName oName, String metricName, Object value, int timestamp) {
+        if (isIntegral(value)) {
+            set(type, oName, metricName, ((Number) value).longValue(), timestamp);
+            return true;
+        }
+        if (isFloatingPoint(value)) {
+            set(type, oName, metricName, doubleValue(value), timestamp);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Decodes a floating-point value (see {@link #isFloatingPoint(Object)}) as a double. Floats are
+     * widened to the double nearest their decimal representation (0.1f to 0.1, rather than
+     * 0.10000000149011612), so that they are written as {@link Float#toString(float)} renders them.
+     */
+    static double doubleValue(Object value) {
+        if (value instanceof Float)
+            return Double.parseDouble(value.toString());
+        return ((Number) value).doubleValue();
+    }
+
+    /** Returns true if value is of an integral type (to be decoded as a long). */
+    static boolean isIntegral(Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+                || value instanceof AtomicLong || value instanceof AtomicInteger || value instanceof BigInteger;
+    }
 
-    public JmxSample(Type type, ObjectName oName, String metricName, Object value, Number timestamp) {
+    /** Returns true if value is a finite, floating-point value (to be decoded as a double). */
+    static boolean isFloatingPoint(Object value) {
+        if (value instanceof Double || value instanceof Float || value instanceof BigDecimal) {
+            double d = ((Number) value).doubleValue();
+            return !(Double.isNaN(d) || Double.isInfinite(d));
+        }
+        return false;
+    }
+
+    private void setKey(Type type, ObjectName oName, String metricName, int timestamp) {
         this.type = checkNotNull(type, "type argument");
         this.objectName = checkNotNull(oName, "objectName argument");
         this.name = checkNotNull(metricName, "name argument");
-        this.value = checkNotNull(value, "value argument");
-        this.timestamp = checkNotNull(timestamp, "timestamp argument");
+        this.timestamp = timestamp;
     }
 
     public Type getType() {
@@ -52,14 +151,33 @@ public class JmxSample {
         return this.name;
     }
 
-    public Object getValue() {
-        return this.value;
+    /** Returns true if the value is integral (see {@link #getLongValue()}). */
+    public boolean isIntegral() {
+        return this.integral;
+    }
+
+    public long getLongValue() {
+        return this.longValue;
+    }
+
+    public double getDoubleValue() {
+        return this.doubleValue;
     }
 
-    public Number getTimestamp() {
+    /** Returns the value, boxed (a {@link Long} if integral, a {@link Double} otherwise). */
+    public Number getValue() {
+        return this.integral ? (Number) this.longValue : (Number) this.doubleValue;
+    }
+
+    public int getTimestamp() {
         return this.timestamp;
     }
 
+    /** Appends the value to a builder, in the form written to Carbon. */
+    public StringBuilder appendValue(StringBuilder builder) {
+        return this.integral ? builder.append(this.longValue) : builder.append(this.doubleValue);
+    }
+
     @Override
     public String toString() {
         return "JmxSample [type="
@@ -69,10 +187,10 @@ public class JmxSample {
                 + ", name="
                 + name
                 + ", value="
-                + value
+                + getValue()
                 + ", timestamp="
                 + timestamp
                 + "]";
     }
 
-}
\ No newline at end of file
+}
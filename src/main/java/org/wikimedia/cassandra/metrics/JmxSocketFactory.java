@@ -0,0 +1,226 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.wikimedia.cassandra.metrics.Constants.DEFAULT_JMX_CONNECT_TIMEOUT;
+import static org.wikimedia.cassandra.metrics.Constants.DEFAULT_JMX_READ_TIMEOUT;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMISocketFactory;
+
+/**
+ * RMI socket factory for JMX connections that applies connect and read timeouts, TCP_NODELAY, and
+ * buffer sizes to each client socket, and accounts for the bytes and round trips of each.
+ * <p>
+ * RMI stubs exported without a custom client socket factory (as is the case for both Cassandra's
+ * JMX port, and the local management agent) obtain their sockets from the JVM-wide
+ * {@link RMISocketFactory}, so to be effective an instance must be {@link #install(JmxSocketFactory)
+ * installed}. Accounting is attributed to the {@link ConnectionStats} {@link #meter(ConnectionStats)
+ * metering} the thread performing the I/O.
+ * </p>
+ *
+ * @author eevans
+ */
+public class JmxSocketFactory extends RMISocketFactory implements RMIClientSocketFactory {
+
+    /** JNDI environment property naming the socket factory used to reach the RMI registry. */
+    public static final String JNDI_FACTORY_PROPERTY = "com.sun.jndi.rmi.factory.socket";
+
+    private static final ThreadLocal<ConnectionStats> METER = new ThreadLocal<>();
+
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final boolean tcpNoDelay;
+    private final int bufferSize;
+
+    /** Create a new {@link JmxSocketFactory} with default timeouts. */
+    public JmxSocketFactory() {
+        this(DEFAULT_JMX_CONNECT_TIMEOUT, DEFAULT_JMX_READ_TIMEOUT, true, 0);
+    }
+
+    /**
+     * Create a new {@link JmxSocketFactory}.
+     *
+     * @param connectTimeout
+     *            connect timeout in milliseconds (0 to wait indefinitely)
+     * @param readTimeout
+     *            socket read timeout (SO_TIMEOUT) in milliseconds (0 to wait indefinitely)
+     * @param tcpNoDelay
+     *            true to disable Nagle's algorithm
+     * @param bufferSize
+     *            send and receive buffer sizes in bytes, (0 to use the system default)
+     */
+    public JmxSocketFactory(int connectTimeout, int readTimeout, boolean tcpNoDelay, int bufferSize) {
+        checkArgument(connectTimeout >= 0, "connectTimeout argument");
+        checkArgument(readTimeout >= 0, "readTimeout argument");
+        checkArgument(bufferSize >= 0, "bufferSize argument");
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.tcpNoDelay = tcpNoDelay;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket socket = new MeteredSocket();
+        try {
+            socket.setTcpNoDelay(this.tcpNoDelay);
+            socket.setSoTimeout(this.readTimeout);
+            if (this.bufferSize > 0) {
+                socket.setSendBufferSize(this.bufferSize);
+                socket.setReceiveBufferSize(this.bufferSize);
+            }
+            socket.connect(new InetSocketAddress(host, port), this.connectTimeout);
+        }
+        catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port) throws IOException {
+        return RMISocketFactory.getDefaultSocketFactory().createServerSocket(port);
+    }
+
+    /** Returns the socket read timeout in milliseconds (0 if none). */
+    public int getReadTimeout() {
+        return this.readTimeout;
+    }
+
+    @Override
+    public String toString() {
+        return "JmxSocketFactory [connectTimeout="
+                + connectTimeout
+                + ", readTimeout="
+                + readTimeout
+                + ", tcpNoDelay="
+                + tcpNoDelay
+                + ", bufferSize="
+                + bufferSize
+                + "]";
+    }
+
+    /**
+     * Installs a factory as the JVM-wide RMI socket factory. This can be done at most once per JVM.
+     *
+     * @param factory
+     *            the factory to install
+     * @throws IOException
+     *             if a socket factory has already been installed
+     */
+    public static void install(JmxSocketFactory factory) throws IOException {
+        RMISocketFactory.setSocketFactory(factory);
+    }
+
+    /**
+     * Attributes socket I/O performed by the current thread to a {@link ConnectionStats} instance.
+     *
+     * @param stats
+     *            the stats to account to, or null to stop accounting
+     * @return the previously metered stats (or null)
+     */
+    static ConnectionStats meter(ConnectionStats stats) {
+        ConnectionStats previous = METER.get();
+        if (stats != null)
+            METER.set(stats);
+        else
+            METER.remove();
+        return previous;
+    }
+
+    /**
+     * A socket that counts the bytes written and read, and treats the interval between the first
+     * write of a request, and the first read that follows, as a round trip.
+     */
+    private static class MeteredSocket extends Socket {
+        private InputStream in;
+        private OutputStream out;
+        private volatile long requestStart = 0;
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (this.in == null) {
+                this.in = new FilterInputStream(super.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b >= 0)
+                            received(1);
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int count = super.read(b, off, len);
+                        if (count > 0)
+                            received(count);
+                        return count;
+                    }
+                };
+            }
+            return this.in;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (this.out == null) {
+                this.out = new FilterOutputStream(super.getOutputStream()) {
+                    @Override
+                    public void write(int b) throws IOException {
+                        this.out.write(b);
+                        sent(1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        this.out.write(b, off, len);
+                        sent(len);
+                    }
+                };
+            }
+            return this.out;
+        }
+
+        private void sent(int bytes) {
+            if (this.requestStart == 0)
+                this.requestStart = System.nanoTime();
+            ConnectionStats stats = METER.get();
+            if (stats != null)
+                stats.sent(bytes);
+        }
+
+        private void received(int bytes) {
+            ConnectionStats stats = METER.get();
+            if (stats != null) {
+                stats.received(bytes);
+                if (this.requestStart != 0)
+                    stats.roundTrip(System.nanoTime() - this.requestStart);
+            }
+            this.requestStart = 0;
+        }
+    }
+
+}
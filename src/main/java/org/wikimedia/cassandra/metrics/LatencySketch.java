@@ -0,0 +1,134 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable, fixed-size quantile sketch of latencies. Values are counted in logarithmic buckets
+ * (the {@link EstimatedHistogram} series, each bucket 1.2 times the last), so that any quantile is
+ * estimated to within 20% of the true value (somewhat more, for counts converted to another unit),
+ * regardless of how many values were added, and merging two sketches is the element-wise sum of their
+ * counts. Values larger than the last bucket are counted in it.
+ * <p>
+ * Sketches are fed from the raw bucket counts Cassandra's timers and histograms expose
+ * ({@code RecentValues}), which use the same series.
+ * </p>
+ *
+ * @author eevans
+ */
+public class LatencySketch {
+
+    /** Number of buckets (values up to ~9 x 10^12); Cassandra's default reservoir size. */
+    static final int BUCKETS = 165;
+
+    private static final long[] OFFSETS = new EstimatedHistogram(BUCKETS).getBucketOffsets();
+
+    private final long[] counts = new long[BUCKETS];
+
+    /**
+     * Adds Cassandra bucket counts, the value of each bucket multiplied by a scale (to convert units;
+     * Nanoseconds to microseconds, for example).
+     *
+     * @param values
+     *            bucket counts, in the {@link EstimatedHistogram} series
+     * @param scale
+     *            the factor to convert the bucket values by
+     */
+    public void add(long[] values, double scale) {
+        checkNotNull(values, "values argument");
+        checkArgument(scale > 0, "scale must be greater than zero");
+
+        if (scale == 1.0) {
+            for (int i = 0; i < values.length; i++)
+                this.counts[Math.min(i, BUCKETS - 1)] += values[i];
+            return;
+        }
+
+        // Each bucket is re-counted in the bucket its midpoint falls in, once scaled
+        long[] offsets = (values.length <= BUCKETS) ? OFFSETS : new EstimatedHistogram(values.length).getBucketOffsets();
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == 0)
+                continue;
+            long lower = (i > 0) ? offsets[Math.min(i, offsets.length) - 1] : 0;
+            long upper = offsets[Math.min(i, offsets.length - 1)];
+            this.counts[bucket((long) Math.ceil((lower + upper) / 2.0 * scale))] += values[i];
+        }
+    }
+
+    /**
+     * Adds the counts of another sketch to this one.
+     *
+     * @param other
+     *            the sketch to merge
+     */
+    public void merge(LatencySketch other) {
+        for (int i = 0; i < BUCKETS; i++)
+            this.counts[i] += other.counts[i];
+    }
+
+    /** Empties the sketch. */
+    public void clear() {
+        Arrays.fill(this.counts, 0);
+    }
+
+    /** Returns the number of values counted. */
+    public long count() {
+        long sum = 0;
+        for (long count : this.counts)
+            sum += count;
+        return sum;
+    }
+
+    /**
+     * Returns the estimated value at a quantile (the upper bound of the bucket it falls in), or zero if
+     * the sketch is empty.
+     *
+     * @param quantile
+     *            the quantile (between 0 and 1)
+     * @return the estimated value
+     */
+    public long quantile(double quantile) {
+        checkArgument(quantile >= 0 && quantile <= 1.0, "quantile must be between 0 and 1");
+
+        long target = (long) Math.ceil(count() * quantile);
+        if (target == 0)
+            return 0;
+
+        long elements = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            elements += this.counts[i];
+            if (elements >= target)
+                return OFFSETS[i];
+        }
+        return OFFSETS[BUCKETS - 1];
+    }
+
+    private static int bucket(long value) {
+        int index = Arrays.binarySearch(OFFSETS, value);
+        if (index < 0)
+            index = -index - 1;
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    @Override
+    public String toString() {
+        return "LatencySketch [count=" + count() + "]";
+    }
+
+}
@@ -0,0 +1,374 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Graphite names of metrics, computed once per object name and metric, and retained between
+ * collections (the mapping never changes). Names are held pre-encoded as UTF-8, as the prefix of
+ * this cache and the remainder, which comes from (and is shared by way of) {@link NamingPlans}.
+ * Relabel rules (if any) are applied when the name of an object name is first computed; Metrics of
+ * object names the rules drop have a name that is never accepted. Cassandra metrics can optionally
+ * be named as Graphite tagged series ({@code path.metric;key=value}).
+ * <p>
+ * Entries of object names that have not been seen for {@link #EXPIRY} successful collections (beans
+ * that have since been unregistered, dropped tables for example) are evicted by {@link #sweep()}.
+ * Caches that share {@link NamingPlans} must be closed once no longer used, to release their plans.
+ * </p>
+ * <p>
+ * The number of distinct metric names (series) can be capped, to protect Graphite from a sudden
+ * explosion of new series (hundreds of new tables, for example). Once the limit is reached, metrics
+ * with names not already counted are dropped (they have a name that is never accepted); The number
+ * dropped, and the keyspaces they belong to, are logged by {@link #sweep()}. Only names accepted by
+ * the filter (see {@link #get(Type, ObjectName, String, Optional)}) count as series.
+ * </p>
+ *
+ * @author eevans
+ */
+public class MetricNameCache implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricNameCache.class);
+
+    /** Number of collections an object name can go unseen before it is evicted. */
+    static final int EXPIRY = 5;
+
+    /** A Graphite metric name. */
+    public static class MetricName {
+        private static final MetricName DROPPED = new MetricName(null, null, null);
+        private static final MetricName LIMITED = new MetricName(null, null, null);
+
+        private final String prefix;
+        private final byte[] prefixBytes;
+        private final NamingPlans.Series series;
+
+        // Decision of the filter last applied (written before, and published by, filteredBy)
+        private boolean accepted;
+        private volatile Filter filteredBy;
+
+        // True once counted as a series (guarded by the cache)
+        private boolean counted;
+
+        private MetricName(String prefix, byte[] prefixBytes, NamingPlans.Series series) {
+            this.prefix = prefix;
+            this.prefixBytes = prefixBytes;
+            this.series = series;
+        }
+
+        /** Returns true if relabel rules (or the series limit) drop this metric (it has no name). */
+        public boolean isDropped() {
+            return this.series == null;
+        }
+
+        /** Returns true if this metric is dropped because the series limit has been reached. */
+        public boolean isLimited() {
+            return this == LIMITED;
+        }
+
+        /** Returns the name (computed on each call). */
+        public String getName() {
+            return isDropped() ? null : this.prefix + this.series.name;
+        }
+
+        /** Returns the encoded name (computed on each call; See {@link #getPrefixBytes()}). */
+        public byte[] getBytes() {
+            if (isDropped())
+                return null;
+            byte[] bytes = Arrays.copyOf(this.prefixBytes, this.prefixBytes.length + this.series.bytes.length);
+            System.arraycopy(this.series.bytes, 0, bytes, this.prefixBytes.length, this.series.bytes.length);
+            return bytes;
+        }
+
+        /** Returns the encoded prefix of the name (that of the cache). */
+        public byte[] getPrefixBytes() {
+            return this.prefixBytes;
+        }
+
+        /** Returns the encoded remainder of the name (shared with other caches). */
+        public byte[] getSuffixBytes() {
+            return (this.series != null) ? this.series.bytes : null;
+        }
+
+        /**
+         * Returns true if the filter accepts this name (dropped names never are); The decision is
+         * retained, so that the filter is only consulted the first time.
+         *
+         * @param filter
+         *            a metric filter
+         * @return true if the name is accepted, false otherwise
+         */
+        public boolean accept(Filter filter) {
+            if (isDropped())
+                return false;
+            if (this.filteredBy != filter) {
+                this.accepted = filter.accept(getName());
+                this.filteredBy = filter;
+            }
+            return this.accepted;
+        }
+
+        @Override
+        public String toString() {
+            return getName();
+        }
+    }
+
+    private static class Bean {
+        private final NamingPlans.Plan plan;
+        private final Map<String, MetricName> metrics = Maps.newHashMap();
+        private int counted;
+        private int lastSeen;
+
+        private Bean(NamingPlans.Plan plan) {
+            this.plan = plan;
+        }
+    }
+
+    private final String prefix;
+    private final byte[] prefixBytes;
+    private final NamingPlans plans;
+    private final int limit;
+    private final Map<ObjectName, Bean> beans = Maps.newHashMap();
+    private int generation = 0;
+    private int series = 0;
+    private boolean isClosed = false;
+
+    // Metrics dropped by the series limit since the last sweep (and their keyspaces)
+    private int limited = 0;
+    private final Set<String> limitedKeyspaces = Sets.newTreeSet();
+    private int lastLimited = 0;
+
+    /**
+     * Create a metric name cache.
+     *
+     * @param prefix
+     *            string to prefix to each metric name
+     */
+    public MetricNameCache(String prefix) {
+        this(prefix, Optional.<Relabeler>absent());
+    }
+
+    /**
+     * Create a metric name cache.
+     *
+     * @param prefix
+     *            string to prefix to each metric name
+     * @param relabeler
+     *            an {@link Optional} set of relabel rules applied to Cassandra metric names
+     */
+    public MetricNameCache(String prefix, Optional<Relabeler> relabeler) {
+        this(prefix, relabeler, false);
+    }
+
+    /**
+     * Create a metric name cache.
+     *
+     * @param prefix
+     *            string to prefix to each metric name
+     * @param relabeler
+     *            an {@link Optional} set of relabel rules applied to Cassandra metric names
+     * @param tagged
+     *            true to name Cassandra metrics as Graphite tagged series, with the object name
+     *            properties other than type and name as tags
+     */
+    public MetricNameCache(String prefix, Optional<Relabeler> relabeler, boolean tagged) {
+        this(prefix, relabeler, tagged, 0);
+    }
+
+    /**
+     * Create a metric name cache.
+     *
+     * @param prefix
+     *            string to prefix to each metric name
+     * @param relabeler
+     *            an {@link Optional} set of relabel rules applied to Cassandra metric names
+     * @param tagged
+     *            true to name Cassandra metrics as Graphite tagged series, with the object name
+     *            properties other than type and name as tags
+     * @param limit
+     *            maximum number of distinct metric names (zero or less for no limit)
+     */
+    public MetricNameCache(String prefix, Optional<Relabeler> relabeler, boolean tagged, int limit) {
+        this(prefix, new NamingPlans(relabeler, tagged), limit);
+    }
+
+    /**
+     * Create a metric name cache that shares the names of metrics with other caches.
+     *
+     * @param prefix
+     *            string to prefix to each metric name
+     * @param plans
+     *            the names of metrics less the prefix (relabeled, and tagged, as configured)
+     * @param limit
+     *            maximum number of distinct metric names (zero or less for no limit)
+     */
+    public MetricNameCache(String prefix, NamingPlans plans, int limit) {
+        this.prefix = checkNotNull(prefix, "prefix argument");
+        this.prefixBytes = prefix.getBytes(Charsets.UTF_8);
+        this.plans = checkNotNull(plans, "plans argument");
+        this.limit = limit;
+    }
+
+    public String getPrefix() {
+        return this.prefix;
+    }
+
+    /**
+     * Returns the name of a metric, computing it if it is not already cached.
+     *
+     * @param type
+     *            sample type
+     * @param oName
+     *            object name of the metric
+     * @param metricName
+     *            name of the metric attribute
+     * @return the Graphite metric name (dropped, if relabel rules drop the object name, or if it is
+     *         new and the series limit has been reached)
+     */
+    public MetricName get(Type type, ObjectName oName, String metricName) {
+        return get(type, oName, metricName, Optional.<Filter>absent());
+    }
+
+    /**
+     * Returns the name of a metric, computing it if it is not already cached. Names the filter
+     * rejects are never written, and so do not count toward the series limit.
+     *
+     * @param type
+     *            sample type
+     * @param oName
+     *            object name of the metric
+     * @param metricName
+     *            name of the metric attribute
+     * @param filter
+     *            an {@link Optional} metric filter
+     * @return the Graphite metric name (dropped, if relabel rules drop the object name, or if it is
+     *         accepted, not yet counted, and the series limit has been reached)
+     */
+    public synchronized MetricName get(Type type, ObjectName oName, String metricName, Optional<Filter> filter) {
+        checkState(!this.isClosed, "cannot use closed name cache");
+
+        Bean bean = this.beans.get(oName);
+        if (bean == null) {
+            bean = new Bean(this.plans.acquire(type, oName));
+            this.beans.put(oName, bean);
+        }
+        bean.lastSeen = this.generation;
+
+        if (bean.plan.isDropped())
+            return MetricName.DROPPED;
+
+        MetricName name = bean.metrics.get(metricName);
+        if (name == null) {
+            name = new MetricName(this.prefix, this.prefixBytes, this.plans.series(bean.plan, metricName));
+            bean.metrics.put(metricName, name);
+        }
+        if (!name.counted && (!filter.isPresent() || name.accept(filter.get()))) {
+            if (isFull())
+                return limited(oName);
+            name.counted = true;
+            bean.counted++;
+            this.series++;
+        }
+        return name;
+    }
+
+    private boolean isFull() {
+        return this.limit > 0 && this.series >= this.limit;
+    }
+
+    private MetricName limited(ObjectName oName) {
+        this.limited++;
+        String keyspace = oName.getKeyProperty("keyspace");
+        if (keyspace != null)
+            this.limitedKeyspaces.add(keyspace);
+        return MetricName.LIMITED;
+    }
+
+    /**
+     * Marks the end of a successful collection, evicting the entries of object names gone unseen
+     * (and logging the metrics dropped by the series limit, if any).
+     */
+    public synchronized void sweep() {
+        if (this.isClosed)
+            return;
+
+        this.generation++;
+        for (Iterator<Map.Entry<ObjectName, Bean>> iter = this.beans.entrySet().iterator(); iter.hasNext();) {
+            Map.Entry<ObjectName, Bean> entry = iter.next();
+            if (this.generation - entry.getValue().lastSeen > EXPIRY) {
+                this.series -= entry.getValue().counted;
+                this.plans.release(entry.getKey());
+                iter.remove();
+            }
+        }
+
+        if (this.limited > 0) {
+            LOG.warn("Series limit of {} reached for {}; Dropped {} new metrics (keyspaces: {})", this.limit, this.prefix, this.limited, this.limitedKeyspaces);
+        }
+        this.lastLimited = this.limited;
+        this.limited = 0;
+        this.limitedKeyspaces.clear();
+    }
+
+    /** Evicts every entry (releasing their naming plans); Once closed, the cache can no longer be used. */
+    @Override
+    public synchronized void close() {
+        if (this.isClosed)
+            return;
+        for (ObjectName oName : this.beans.keySet())
+            this.plans.release(oName);
+        this.beans.clear();
+        this.series = 0;
+        this.isClosed = true;
+    }
+
+    /** Returns the number of distinct metric names (series). */
+    public synchronized int getSeries() {
+        return this.series;
+    }
+
+    /** Returns the number of metrics dropped by the series limit in the last collection swept. */
+    public synchronized int getLimited() {
+        return this.lastLimited;
+    }
+
+    /** Returns the number of cached object names. */
+    public synchronized int size() {
+        return this.beans.size();
+    }
+
+    @Override
+    public String toString() {
+        return "MetricNameCache [prefix=" + prefix + ", plans=" + plans + ", limit=" + limit + ", size=" + size() + "]";
+    }
+
+}
@@ -0,0 +1,137 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.Maps;
+
+/**
+ * Graphite names of metrics, less the prefix of an instance (everything from the dot that follows
+ * it), shared by the {@link MetricNameCache}s of all instances, so that co-located instances of the
+ * same cluster (with the same tables) hold a single copy of each name, and compute it once. Relabel
+ * rules (if any) are applied when the name of an object name is first computed.
+ * <p>
+ * Names are reference counted by object name: Each cache acquires the names of an object name when
+ * it first sees it, and releases them once it has evicted it; Names no cache holds are discarded.
+ * </p>
+ *
+ * @author eevans
+ */
+public class NamingPlans {
+
+    /** The name of a metric, less the prefix. */
+    static class Series {
+        final String name;
+        final byte[] bytes;
+
+        private Series(String name) {
+            this.name = name;
+            this.bytes = name.getBytes(Charsets.UTF_8);
+        }
+    }
+
+    /** The names of the metrics of an object name. */
+    static class Plan {
+        /** Name common to all metrics, or null if relabel rules drop the object name. */
+        final String baseName;
+        final String tags;
+        private final Map<String, Series> metrics = Maps.newHashMap();
+        private int references = 0;
+
+        private Plan(String baseName, String tags) {
+            this.baseName = baseName;
+            this.tags = tags;
+        }
+
+        boolean isDropped() {
+            return this.baseName == null;
+        }
+    }
+
+    private final Optional<Relabeler> relabeler;
+    private final boolean tagged;
+    private final Map<ObjectName, Plan> plans = Maps.newHashMap();
+
+    /**
+     * Create naming plans.
+     *
+     * @param relabeler
+     *            an {@link Optional} set of relabel rules applied to Cassandra metric names
+     * @param tagged
+     *            true to name Cassandra metrics as Graphite tagged series, with the object name
+     *            properties other than type and name as tags
+     */
+    public NamingPlans(Optional<Relabeler> relabeler, boolean tagged) {
+        this.relabeler = checkNotNull(relabeler, "relabeler argument");
+        this.tagged = tagged;
+    }
+
+    /** Returns the plan of an object name, computing it if need be, and adds a reference to it. */
+    synchronized Plan acquire(Type type, ObjectName oName) {
+        Plan plan = this.plans.get(oName);
+        if (plan == null) {
+            plan = newPlan(type, oName);
+            this.plans.put(oName, plan);
+        }
+        plan.references++;
+        return plan;
+    }
+
+    /** Removes a reference to the plan of an object name, discarding it if none remain. */
+    synchronized void release(ObjectName oName) {
+        Plan plan = this.plans.get(oName);
+        if (plan != null && --plan.references <= 0)
+            this.plans.remove(oName);
+    }
+
+    /** Returns the name of a metric of a (non-dropped) plan, computing it if need be. */
+    synchronized Series series(Plan plan, String metricName) {
+        Series series = plan.metrics.get(metricName);
+        if (series == null) {
+            series = new Series(CarbonVisitor.metricName(plan.baseName, metricName) + plan.tags);
+            plan.metrics.put(metricName, series);
+        }
+        return series;
+    }
+
+    private Plan newPlan(Type type, ObjectName oName) {
+        // Computed with an empty prefix; Names begin with the dot that follows it.
+        if (this.tagged && type.equals(Type.CASSANDRA)) {
+            String[] tagged = CarbonVisitor.taggedBaseNameCassandra(oName, "", this.relabeler.orNull());
+            return (tagged != null) ? new Plan(tagged[0], tagged[1]) : new Plan(null, null);
+        }
+        return new Plan(CarbonVisitor.baseName(type, oName, "", this.relabeler.orNull()), "");
+    }
+
+    /** Returns the number of object names planned. */
+    public synchronized int size() {
+        return this.plans.size();
+    }
+
+    @Override
+    public String toString() {
+        return "NamingPlans [relabeler=" + relabeler + ", tagged=" + tagged + ", size=" + size() + "]";
+    }
+
+}
@@ -0,0 +1,396 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A minimal, synchronous client of the CQL native protocol (v4), sufficient to run simple queries
+ * and decode rows of scalar columns. Compression, paging, prepared statements and events are not
+ * supported. Values of columns of collection, UDT, and other unsupported types decode to null.
+ *
+ * @author eevans
+ */
+class NativeProtocolConnection implements AutoCloseable {
+
+    static final int VERSION = 0x04;
+    static final int RESPONSE = 0x80;
+
+    static final int ERROR = 0x00;
+    static final int STARTUP = 0x01;
+    static final int READY = 0x02;
+    static final int AUTHENTICATE = 0x03;
+    static final int QUERY = 0x07;
+    static final int RESULT = 0x08;
+    static final int AUTH_CHALLENGE = 0x0E;
+    static final int AUTH_RESPONSE = 0x0F;
+    static final int AUTH_SUCCESS = 0x10;
+
+    static final int FLAG_TRACING = 0x02;
+    static final int FLAG_CUSTOM_PAYLOAD = 0x04;
+    static final int FLAG_WARNING = 0x08;
+
+    static final int RESULT_ROWS = 0x0002;
+    static final int ROWS_GLOBAL_TABLES_SPEC = 0x0001;
+    static final int ROWS_HAS_MORE_PAGES = 0x0002;
+    static final int ROWS_NO_METADATA = 0x0004;
+
+    static final int ERROR_INVALID = 0x2200;
+
+    static final short CONSISTENCY_ONE = 0x0001;
+
+    private static final int HEADER_LENGTH = 9;
+    private static final int MAX_FRAME_LENGTH = 256 * 1024 * 1024;
+
+    /** Error response from the server. */
+    static class ErrorException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int code;
+
+        ErrorException(int code, String message) {
+            super(String.format("Error 0x%04x: %s", code, message));
+            this.code = code;
+        }
+
+        int getCode() {
+            return this.code;
+        }
+    }
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    /** Body of the last response read. */
+    private ByteBuffer body;
+
+    /**
+     * Connect and perform the startup handshake.
+     *
+     * @param host
+     *            hostname or address
+     * @param port
+     *            native transport port
+     * @param username
+     *            username for PasswordAuthenticator (may be null)
+     * @param password
+     *            password for PasswordAuthenticator (may be null)
+     * @param timeout
+     *            connect and read timeout (in milliseconds)
+     * @throws IOException
+     *             on communication errors, or if the server rejects the handshake
+     */
+    NativeProtocolConnection(String host, int port, String username, String password, int timeout) throws IOException {
+        checkNotNull(host, "host argument");
+
+        this.socket = new Socket();
+        try {
+            this.socket.setTcpNoDelay(true);
+            this.socket.setSoTimeout(timeout);
+            this.socket.connect(new InetSocketAddress(host, port), timeout);
+            this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+
+            startup(username, password);
+        }
+        catch (IOException e) {
+            this.socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Execute a query (at consistency ONE), returning its rows. Each row maps column names to
+     * decoded values, in column order.
+     *
+     * @param query
+     *            the CQL query string
+     * @return list of rows (empty if the result is not a rows result)
+     * @throws IOException
+     *             on communication errors, or errors returned by the server (see
+     *             {@link ErrorException})
+     */
+    List<Map<String, Object>> query(String query) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bytes);
+        writeLongString(body, query);
+        body.writeShort(CONSISTENCY_ONE);
+        body.writeByte(0); // No query parameter flags
+
+        ByteBuffer response = request(QUERY, bytes.toByteArray(), RESULT);
+
+        if (response.getInt() != RESULT_ROWS)
+            return Lists.newArrayList();
+
+        return readRows(response);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.socket.close();
+    }
+
+    private void startup(String username, String password) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeStringMap(new DataOutputStream(bytes), ImmutableMap.of("CQL_VERSION", "3.0.0"));
+
+        write(STARTUP, bytes.toByteArray());
+        int opcode = read();
+
+        if (opcode == READY)
+            return;
+        if (opcode != AUTHENTICATE)
+            throw new IOException(String.format("Unexpected response to STARTUP (opcode 0x%02x)", opcode));
+        if (username == null || password == null)
+            throw new IOException(String.format("Server requires authentication (%s), but no credentials were configured", readString(this.body)));
+
+        // SASL PLAIN: \0<username>\0<password>
+        byte[] user = username.getBytes(Charsets.UTF_8), pass = password.getBytes(Charsets.UTF_8);
+        ByteBuffer token = ByteBuffer.allocate(2 + user.length + pass.length);
+        token.put((byte) 0).put(user).put((byte) 0).put(pass);
+
+        bytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bytes);
+        body.writeInt(token.capacity());
+        body.write(token.array());
+
+        request(AUTH_RESPONSE, bytes.toByteArray(), AUTH_SUCCESS);
+    }
+
+    /** Send a request, and read a response of the expected type, returning its body. */
+    private ByteBuffer request(int opcode, byte[] body, int expected) throws IOException {
+        write(opcode, body);
+        int response = read();
+        if (response != expected)
+            throw new IOException(String.format("Unexpected response (opcode 0x%02x) to request (opcode 0x%02x)", response, opcode));
+        return this.body;
+    }
+
+    private void write(int opcode, byte[] body) throws IOException {
+        this.out.writeByte(VERSION);
+        this.out.writeByte(0); // flags
+        this.out.writeShort(0); // stream
+        this.out.writeByte(opcode);
+        this.out.writeInt(body.length);
+        this.out.write(body);
+        this.out.flush();
+    }
+
+    /** Read a response frame into {@link #body} (positioned after any prefix), returning the opcode. */
+    private int read() throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        this.in.readFully(header);
+        ByteBuffer h = ByteBuffer.wrap(header);
+
+        int version = h.get() & 0xff;
+        int flags = h.get() & 0xff;
+        h.getShort(); // stream
+        int opcode = h.get() & 0xff;
+        int length = h.getInt();
+
+        if (version != (RESPONSE | VERSION))
+            throw new IOException(String.format("Unsupported protocol version in response (0x%02x)", version));
+        if (length < 0 || length > MAX_FRAME_LENGTH)
+            throw new IOException(String.format("Invalid frame length (%d)", length));
+
+        byte[] bytes = new byte[length];
+        this.in.readFully(bytes);
+        this.body = ByteBuffer.wrap(bytes);
+
+        if ((flags & FLAG_TRACING) != 0)
+            this.body.position(this.body.position() + 16);
+        if ((flags & FLAG_WARNING) != 0) {
+            for (int i = this.body.getShort(); i > 0; i--)
+                readString(this.body);
+        }
+        if ((flags & FLAG_CUSTOM_PAYLOAD) != 0) {
+            for (int i = this.body.getShort(); i > 0; i--) {
+                readString(this.body);
+                readBytes(this.body);
+            }
+        }
+
+        if (opcode == ERROR) {
+            int code = this.body.getInt();
+            throw new ErrorException(code, readString(this.body));
+        }
+
+        return opcode;
+    }
+
+    private static List<Map<String, Object>> readRows(ByteBuffer body) throws IOException {
+        int flags = body.getInt();
+        int columnCount = body.getInt();
+
+        if ((flags & ROWS_HAS_MORE_PAGES) != 0)
+            readBytes(body);
+        if ((flags & ROWS_NO_METADATA) != 0)
+            throw new IOException("Rows result without metadata");
+        if ((flags & ROWS_GLOBAL_TABLES_SPEC) != 0) {
+            readString(body);
+            readString(body);
+        }
+
+        String[] names = new String[columnCount];
+        int[] types = new int[columnCount];
+
+        for (int i = 0; i < columnCount; i++) {
+            if ((flags & ROWS_GLOBAL_TABLES_SPEC) == 0) {
+                readString(body);
+                readString(body);
+            }
+            names[i] = readString(body);
+            types[i] = readOption(body);
+        }
+
+        int rowCount = body.getInt();
+        List<Map<String, Object>> rows = Lists.newArrayListWithCapacity(rowCount);
+
+        for (int r = 0; r < rowCount; r++) {
+            Map<String, Object> row = Maps.newLinkedHashMap();
+            for (int i = 0; i < columnCount; i++)
+                row.put(names[i], decode(types[i], readBytes(body)));
+            rows.add(row);
+        }
+
+        return rows;
+    }
+
+    /** Read a type [option], returning its ID (nested options of collections, UDTs, and tuples are skipped). */
+    private static int readOption(ByteBuffer body) {
+        int id = body.getShort() & 0xffff;
+
+        switch (id) {
+            case 0x0000: // custom
+                readString(body);
+                break;
+            case 0x0020: // list
+            case 0x0022: // set
+                readOption(body);
+                break;
+            case 0x0021: // map
+                readOption(body);
+                readOption(body);
+                break;
+            case 0x0030: // UDT
+                readString(body);
+                readString(body);
+                for (int i = body.getShort(); i > 0; i--) {
+                    readString(body);
+                    readOption(body);
+                }
+                break;
+            case 0x0031: // tuple
+                for (int i = body.getShort(); i > 0; i--)
+                    readOption(body);
+                break;
+            default:
+                break;
+        }
+
+        return id;
+    }
+
+    /** Decode a value of a scalar type, or return null. */
+    static Object decode(int type, ByteBuffer value) {
+        if (value == null)
+            return null;
+
+        switch (type) {
+            case 0x0001: // ascii
+            case 0x000D: // varchar
+                return Charsets.UTF_8.decode(value).toString();
+            case 0x0002: // bigint
+            case 0x0005: // counter
+            case 0x000B: // timestamp
+                return value.getLong();
+            case 0x0004: // boolean
+                return value.get() != 0;
+            case 0x0007: // double
+                return value.getDouble();
+            case 0x0008: // float
+                return value.getFloat();
+            case 0x0009: // int
+                return value.getInt();
+            case 0x000E: // varint
+                byte[] bytes = new byte[value.remaining()];
+                value.get(bytes);
+                return new BigInteger(bytes).longValue();
+            case 0x0013: // smallint
+                return value.getShort();
+            case 0x0014: // tinyint
+                return value.get();
+            default:
+                return null;
+        }
+    }
+
+    private static String readString(ByteBuffer body) {
+        int length = body.getShort() & 0xffff;
+        byte[] bytes = new byte[length];
+        body.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    /** Read [bytes], returning null for a negative length. */
+    private static ByteBuffer readBytes(ByteBuffer body) {
+        int length = body.getInt();
+        if (length < 0)
+            return null;
+        ByteBuffer value = body.slice();
+        value.limit(length);
+        body.position(body.position() + length);
+        return value;
+    }
+
+    private static void writeLongString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeStringMap(DataOutputStream out, Map<String, String> map) throws IOException {
+        out.writeShort(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(Charsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+}
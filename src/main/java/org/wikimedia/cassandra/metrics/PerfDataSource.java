@@ -0,0 +1,329 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+import sun.jvmstat.monitor.LongMonitor;
+import sun.jvmstat.monitor.Monitor;
+import sun.jvmstat.monitor.MonitorException;
+import sun.jvmstat.monitor.MonitoredHost;
+import sun.jvmstat.monitor.MonitoredVm;
+import sun.jvmstat.monitor.StringMonitor;
+import sun.jvmstat.monitor.VmIdentifier;
+
+/**
+ * JVM metrics read from the memory-mapped performance counters (hsperfdata) of a local JVM.
+ * <p>
+ * Samples are named as {@link JmxCollector#getJvmSamples(SampleVisitor)} would name them; Collector
+ * and memory pool names are mapped to their JMX equivalents for the stock collectors. Counters are
+ * resolved once, so each collection is a handful of reads from shared memory, and works regardless
+ * of the state of the JVM's JMX agent. There is no counter for the code cache, so non-heap usage
+ * reflects metaspace and compressed class space only.
+ * </p>
+ * <p>
+ * Some series are collected only from perf counters, and not over JMX: {@code thread_count},
+ * {@code daemon_thread_count}, {@code safepoints}, {@code safepoint_time}, and
+ * {@code safepoint_sync_time} (of the Runtime), and {@code heap_usage_bytes} and
+ * {@code heap_committed_bytes} (of Memory).
+ * </p>
+ *
+ * @author eevans
+ */
+public class PerfDataSource implements SampleSource, AutoCloseable {
+
+    /** JMX names of the stock collectors, keyed by perf counter name. */
+    private static final Map<String, String> COLLECTORS = ImmutableMap.<String, String>builder()
+            .put("G1 incremental collections", "G1 Young Generation")
+            .put("G1 stop-the-world full collections", "G1 Old Generation")
+            .put("PSScavenge", "PS Scavenge")
+            .put("PSParallelCompact", "PS MarkSweep")
+            .put("PCopy", "ParNew")
+            .put("CMS", "ConcurrentMarkSweep")
+            .put("Copy", "Copy")
+            .put("MSC", "MarkSweepCompact")
+            .build();
+
+    /** JMX names of the eden, survivor, and old memory pools, keyed by young collector perf counter name. */
+    private static final Map<String, String[]> POOLS = ImmutableMap.<String, String[]>builder()
+            .put("G1 incremental collections", new String[] { "G1 Eden Space", "G1 Survivor Space", "G1 Old Gen" })
+            .put("PSScavenge", new String[] { "PS Eden Space", "PS Survivor Space", "PS Old Gen" })
+            .put("PCopy", new String[] { "Par Eden Space", "Par Survivor Space", "CMS Old Gen" })
+            .put("Copy", new String[] { "Eden Space", "Survivor Space", "Tenured Gen" })
+            .build();
+
+    private static final String[] DEFAULT_POOLS = new String[] { "eden", "survivor", "old" };
+
+    private static final ObjectName RUNTIME = newObjectName("java.lang:type=Runtime");
+    private static final ObjectName MEMORY = newObjectName("java.lang:type=Memory");
+
+    private static class Collector {
+        private final ObjectName objectName;
+        private final LongMonitor invocations;
+        private final LongMonitor time;
+
+        private Collector(ObjectName objectName, LongMonitor invocations, LongMonitor time) {
+            this.objectName = objectName;
+            this.invocations = invocations;
+            this.time = time;
+        }
+    }
+
+    private static class Pool {
+        private final ObjectName objectName;
+        private final String name;
+        private final List<LongMonitor> used = Lists.newArrayList();
+
+        private Pool(String name) {
+            this.objectName = newObjectName(String.format("java.lang:type=MemoryPool,name=%s", name));
+            this.name = name;
+        }
+
+        private long used() {
+            long total = 0;
+            for (LongMonitor m : this.used)
+                total += m.longValue();
+            return total;
+        }
+    }
+
+    private final String pid;
+    private final MonitoredHost host;
+    private final MonitoredVm vm;
+
+    private final LongMonitor hrtFrequency;
+    private final LongMonitor vmBeginTime;
+    private final LongMonitor threadsLive;
+    private final LongMonitor threadsDaemon;
+    private final LongMonitor safepoints;
+    private final LongMonitor safepointTime;
+    private final LongMonitor safepointSyncTime;
+    private final List<Collector> collectors = Lists.newArrayList();
+    private final List<Pool> heapPools = Lists.newArrayList();
+    private final List<Pool> nonHeapPools = Lists.newArrayList();
+    private final List<LongMonitor> heapCapacity = Lists.newArrayList();
+    private final List<LongMonitor> nonHeapCapacity = Lists.newArrayList();
+
+    /**
+     * Attach to the performance counters of a local JVM.
+     *
+     * @param pid
+     *            process ID of the JVM
+     * @throws IOException
+     *             if the counters cannot be attached (for example, if the JVM was started with
+     *             -XX:-UsePerfData)
+     */
+    public PerfDataSource(String pid) throws IOException {
+        this.pid = checkNotNull(pid, "pid argument");
+
+        try {
+            this.host = MonitoredHost.getMonitoredHost("localhost");
+            this.vm = this.host.getMonitoredVm(new VmIdentifier(String.format("local://%s@localhost", pid)));
+        }
+        catch (MonitorException | URISyntaxException e) {
+            throw new IOException(String.format("Unable to attach perf data of PID %s: %s", pid, e.getMessage()), e);
+        }
+
+        try {
+            this.hrtFrequency = longMonitor("sun.os.hrt.frequency");
+            if (this.hrtFrequency == null)
+                throw new MonitorException("sun.os.hrt.frequency not found");
+            this.vmBeginTime = longMonitor("sun.rt.createVmBeginTime");
+            this.threadsLive = longMonitor("java.threads.live");
+            this.threadsDaemon = longMonitor("java.threads.daemon");
+            this.safepoints = longMonitor("sun.rt.safepoints");
+            this.safepointTime = longMonitor("sun.rt.safepointTime");
+            this.safepointSyncTime = longMonitor("sun.rt.safepointSyncTime");
+
+            String youngCollector = null;
+
+            for (int i = 0; ; i++) {
+                StringMonitor name = stringMonitor(String.format("sun.gc.collector.%d.name", i));
+                if (name == null)
+                    break;
+                if (i == 0)
+                    youngCollector = name.stringValue();
+                this.collectors.add(new Collector(
+                        newObjectName(String.format("java.lang:type=GarbageCollector,name=%s", collectorName(name.stringValue()))),
+                        longMonitor(String.format("sun.gc.collector.%d.invocations", i)),
+                        longMonitor(String.format("sun.gc.collector.%d.time", i))));
+            }
+
+            String[] poolNames = poolNames(youngCollector);
+            Pool eden = new Pool(poolNames[0]), survivor = new Pool(poolNames[1]), old = new Pool(poolNames[2]);
+
+            for (int gen = 0; ; gen++) {
+                LongMonitor capacity = longMonitor(String.format("sun.gc.generation.%d.capacity", gen));
+                if (capacity == null)
+                    break;
+                this.heapCapacity.add(capacity);
+
+                for (int space = 0; ; space++) {
+                    LongMonitor used = longMonitor(String.format("sun.gc.generation.%d.space.%d.used", gen, space));
+                    if (used == null)
+                        break;
+                    if (gen > 0)
+                        old.used.add(used);
+                    else if (space == 0)
+                        eden.used.add(used);
+                    else
+                        survivor.used.add(used);
+                }
+            }
+
+            for (Pool pool : new Pool[] { eden, survivor, old }) {
+                if (!pool.used.isEmpty())
+                    this.heapPools.add(pool);
+            }
+
+            addNonHeapPool("Metaspace", "sun.gc.metaspace");
+            addNonHeapPool("Compressed Class Space", "sun.gc.compressedclassspace");
+        }
+        catch (MonitorException e) {
+            this.vm.detach();
+            throw new IOException(String.format("Unable to read perf data of PID %s: %s", pid, e.getMessage()), e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void getSamples(SampleVisitor visitor) throws IOException {
+        int timestamp = (int) (System.currentTimeMillis() / 1000);
+
+        // Runtime
+        if (this.vmBeginTime != null)
+            visitor.visit(new JmxSample(Type.JVM, RUNTIME, "uptime", System.currentTimeMillis() - this.vmBeginTime.longValue(), timestamp));
+        if (this.threadsLive != null)
+            visitor.visit(new JmxSample(Type.JVM, RUNTIME, "thread_count", this.threadsLive.longValue(), timestamp));
+        if (this.threadsDaemon != null)
+            visitor.visit(new JmxSample(Type.JVM, RUNTIME, "daemon_thread_count", this.threadsDaemon.longValue(), timestamp));
+        if (this.safepoints != null) {
+            visitor.visit(new JmxSample(Type.JVM, RUNTIME, "safepoints", this.safepoints.longValue(), timestamp));
+            visitor.visit(new JmxSample(Type.JVM, RUNTIME, "safepoint_time", ticksToMillis(this.safepointTime), timestamp));
+            visitor.visit(new JmxSample(Type.JVM, RUNTIME, "safepoint_sync_time", ticksToMillis(this.safepointSyncTime), timestamp));
+        }
+
+        // Memory
+        long heapUsed = used(this.heapPools);
+        long heapCommitted = sum(this.heapCapacity);
+        long nonHeapUsed = used(this.nonHeapPools);
+        long nonHeapCommitted = sum(this.nonHeapCapacity);
+
+        visitor.visit(new JmxSample(Type.JVM, MEMORY, "non_heap_usage", ratio(nonHeapUsed, nonHeapCommitted), timestamp));
+        visitor.visit(new JmxSample(Type.JVM, MEMORY, "non_heap_usage_bytes", (double) nonHeapUsed, timestamp));
+        visitor.visit(new JmxSample(Type.JVM, MEMORY, "heap_usage", ratio(heapUsed, heapCommitted), timestamp));
+        visitor.visit(new JmxSample(Type.JVM, MEMORY, "heap_usage_bytes", heapUsed, timestamp));
+        visitor.visit(new JmxSample(Type.JVM, MEMORY, "heap_committed_bytes", heapCommitted, timestamp));
+
+        // Garbage collection
+        for (Collector collector : this.collectors) {
+            visitor.visit(new JmxSample(Type.JVM, collector.objectName, "runs", collector.invocations.longValue(), timestamp));
+            visitor.visit(new JmxSample(Type.JVM, collector.objectName, "time", ticksToMillis(collector.time), timestamp));
+        }
+
+        // Memory pool usages
+        for (Pool pool : Iterables.concat(this.heapPools, this.nonHeapPools)) {
+            visitor.visit(new JmxSample(Type.JVM, pool.objectName, pool.name, pool.used(), timestamp));
+        }
+    }
+
+    /** Detaches from the JVM's performance counters. */
+    @Override
+    public void close() {
+        this.vm.detach();
+    }
+
+    @Override
+    public String toString() {
+        return "PerfDataSource [pid=" + pid + ", collectors=" + collectors.size() + ", pools=" + (heapPools.size() + nonHeapPools.size()) + "]";
+    }
+
+    private void addNonHeapPool(String name, String counterPrefix) throws MonitorException {
+        LongMonitor used = longMonitor(counterPrefix + ".used");
+        LongMonitor capacity = longMonitor(counterPrefix + ".capacity");
+        if (used == null || capacity == null)
+            return;
+        Pool pool = new Pool(name);
+        pool.used.add(used);
+        this.nonHeapPools.add(pool);
+        this.nonHeapCapacity.add(capacity);
+    }
+
+    /** Returns the JMX name of a collector, from its perf counter name. */
+    static String collectorName(String counterName) {
+        return COLLECTORS.containsKey(counterName) ? COLLECTORS.get(counterName) : counterName;
+    }
+
+    /** Returns the JMX names of the eden, survivor, and old pools, from the perf counter name of the young collector. */
+    static String[] poolNames(String youngCollector) {
+        return (youngCollector != null && POOLS.containsKey(youngCollector)) ? POOLS.get(youngCollector) : DEFAULT_POOLS;
+    }
+
+    private long ticksToMillis(LongMonitor ticks) {
+        return (long) (ticks.longValue() * 1000.0d / this.hrtFrequency.longValue());
+    }
+
+    private LongMonitor longMonitor(String name) throws MonitorException {
+        Monitor monitor = this.vm.findByName(name);
+        return (monitor instanceof LongMonitor) ? (LongMonitor) monitor : null;
+    }
+
+    private StringMonitor stringMonitor(String name) throws MonitorException {
+        Monitor monitor = this.vm.findByName(name);
+        return (monitor instanceof StringMonitor) ? (StringMonitor) monitor : null;
+    }
+
+    private static long used(List<Pool> pools) {
+        long total = 0;
+        for (Pool pool : pools)
+            total += pool.used();
+        return total;
+    }
+
+    private static long sum(List<LongMonitor> monitors) {
+        long total = 0;
+        for (LongMonitor m : monitors)
+            total += m.longValue();
+        return total;
+    }
+
+    private static double ratio(long used, long committed) {
+        return (committed > 0) ? (double) used / (double) committed : Double.NaN;
+    }
+
+    private static ObjectName newObjectName(String name) {
+        try {
+            return new ObjectName(name);
+        }
+        catch (MalformedObjectNameException e) {
+            throw new RuntimeException("a bug!", e);
+        }
+    }
+
+}
@@ -0,0 +1,331 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes lines of the Carbon plaintext protocol ({@code <metric> <value> <timestamp>\n}) directly
+ * into a {@link ByteBuffer}, from pre-encoded metric names, without intermediate objects.
+ * <p>
+ * Doubles are rendered as the shortest decimal that rounds trip to the same value, in the format
+ * of {@link Double#toString(double)} (plain between 10<sup>-3</sup> and 10<sup>7</sup>,
+ * computerized scientific notation otherwise). Conversion uses Raffaello Giulietti's Schubfach
+ * algorithm (as does {@code Double.toString} in Java 19 and later), with a fast path for integral
+ * values. Callers must ensure the buffer has {@link #maxLength(byte[], byte[])} bytes remaining.
+ * </p>
+ *
+ * @author eevans
+ */
+final class PlaintextEncoder {
+
+    /** Longest rendering of a double (e.g. {@code -1.2345678901234567E-300}). */
+    static final int MAX_DOUBLE_LENGTH = 24;
+
+    /** Longest rendering of a value, separators, timestamp, and newline. */
+    static final int MAX_LINE_OVERHEAD = 1 + MAX_DOUBLE_LENGTH + 1 + 11 + 1;
+
+    private static final byte[] NAN = { 'N', 'a', 'N' };
+    private static final byte[] INFINITY = { 'I', 'n', 'f', 'i', 'n', 'i', 't', 'y' };
+
+    private static final long[] POW10 = new long[19];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++)
+            POW10[i] = POW10[i - 1] * 10;
+    }
+
+    // Binary64 parameters
+    private static final int P = 53;
+    private static final int Q_MIN = -1074;
+    private static final long C_MIN = 1L << (P - 1);
+    private static final long C_TINY = 3;
+    private static final int BQ_MASK = 0x7ff;
+    private static final long T_MASK = C_MIN - 1;
+    private static final long MASK_63 = Long.MAX_VALUE;
+
+    // Range of decimal exponents of the table of powers of ten
+    private static final int K_MIN = -324;
+    private static final int K_MAX = 292;
+
+    /**
+     * For each k, 10<sup>-k</sup> = beta 2<sup>r</sup>, where r = flog2pow10(-k) - 125 and
+     * 2<sup>125</sup> &lt;= beta &lt; 2<sup>126</sup>; g = floor(beta) + 1, split as g1 2<sup>63</sup> + g0.
+     */
+    private static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+
+    static {
+        BigInteger mask = BigInteger.ONE.shiftLeft(63).subtract(BigInteger.ONE);
+        for (int k = K_MIN; k <= K_MAX; k++) {
+            int shift = 125 - flog2pow10(-k);
+            BigInteger g;
+            if (k <= 0) {
+                BigInteger pow = BigInteger.TEN.pow(-k);
+                g = (shift >= 0) ? pow.shiftLeft(shift) : pow.shiftRight(-shift);
+            }
+            else {
+                g = BigInteger.ONE.shiftLeft(shift).divide(BigInteger.TEN.pow(k));
+            }
+            g = g.add(BigInteger.ONE);
+            G[2 * (k - K_MIN)] = g.shiftRight(63).longValue();
+            G[2 * (k - K_MIN) + 1] = g.and(mask).longValue();
+        }
+    }
+
+    private PlaintextEncoder() {
+    }
+
+    /**
+     * Returns the most bytes a line of the given name can encode to.
+     *
+     * @param prefix
+     *            encoded name prefix
+     * @param metric
+     *            encoded remainder of the name
+     * @return the maximum encoded length
+     */
+    static int maxLength(byte[] prefix, byte[] metric) {
+        return prefix.length + metric.length + MAX_LINE_OVERHEAD;
+    }
+
+    /** Encodes a line with an integer value. */
+    static void encode(ByteBuffer buffer, byte[] prefix, byte[] metric, long value, int timestamp) {
+        buffer.put(prefix).put(metric).put((byte) ' ');
+        putLong(buffer, value);
+        buffer.put((byte) ' ');
+        putLong(buffer, timestamp);
+        buffer.put((byte) '\n');
+    }
+
+    /** Encodes a line with a floating point value. */
+    static void encode(ByteBuffer buffer, byte[] prefix, byte[] metric, double value, int timestamp) {
+        buffer.put(prefix).put(metric).put((byte) ' ');
+        putDouble(buffer, value);
+        buffer.put((byte) ' ');
+        putLong(buffer, timestamp);
+        buffer.put((byte) '\n');
+    }
+
+    /** Writes the decimal digits of a long. */
+    static void putLong(ByteBuffer buffer, long value) {
+        if (value < 0) {
+            buffer.put((byte) '-');
+            if (value == Long.MIN_VALUE) {
+                // Not representable as a positive long
+                putDigits(buffer, -(value / 10), 18);
+                buffer.put((byte) ('0' - (value % 10)));
+                return;
+            }
+            value = -value;
+        }
+        putDigits(buffer, value, digits(value));
+    }
+
+    /** Writes the shortest decimal that rounds to a double, formatted as by {@link Double#toString(double)}. */
+    static void putDouble(ByteBuffer buffer, double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        long t = bits & T_MASK;
+        int bq = (int) (bits >>> (P - 1)) & BQ_MASK;
+
+        if (bq == BQ_MASK) {
+            if (t != 0) {
+                buffer.put(NAN);
+                return;
+            }
+            if (bits < 0)
+                buffer.put((byte) '-');
+            buffer.put(INFINITY);
+            return;
+        }
+
+        if (bits < 0)
+            buffer.put((byte) '-');
+
+        if (bq != 0) {
+            // Normal
+            int mq = -Q_MIN + 1 - bq;
+            long c = C_MIN | t;
+            // Integral values (less than 2^53)
+            if (0 < mq && mq < P) {
+                long f = c >> mq;
+                if (f << mq == c) {
+                    putDecimal(buffer, f, 0);
+                    return;
+                }
+            }
+            toDecimal(buffer, -mq, c, 0);
+            return;
+        }
+
+        if (t != 0) {
+            // Subnormal
+            if (t < C_TINY)
+                toDecimal(buffer, Q_MIN, 10 * t, -1);
+            else
+                toDecimal(buffer, Q_MIN, t, 0);
+            return;
+        }
+
+        // Zero
+        buffer.put((byte) '0').put((byte) '.').put((byte) '0');
+    }
+
+    /** Computes the shortest decimal in the rounding interval of c 2^q, and writes it. */
+    private static void toDecimal(ByteBuffer buffer, int q, long c, int dk) {
+        int out = (int) c & 0x1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        // The rounding interval is asymmetric at powers of two
+        if (c != C_MIN || q == Q_MIN) {
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        }
+        else {
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 2;
+
+        long g1 = G[2 * (k - K_MIN)];
+        long g0 = G[2 * (k - K_MIN) + 1];
+
+        long vb = rop(g1, g0, cb << h);
+        long vbl = rop(g1, g0, cbl << h);
+        long vbr = rop(g1, g0, cbr << h);
+
+        long s = vb >> 2;
+        if (s >= 100) {
+            // Try one digit fewer
+            long sp10 = 10 * multiplyHigh(s, 115_292_150_460_684_698L << 4);
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + out <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + out <= vbr;
+            if (upin != wpin) {
+                putDecimal(buffer, upin ? sp10 : tp10, k);
+                return;
+            }
+        }
+        long u = s + 1;
+        boolean uin = vbl + out <= s << 2;
+        boolean win = (u << 2) + out <= vbr;
+        if (uin != win) {
+            putDecimal(buffer, uin ? s : u, k + dk);
+            return;
+        }
+        // Both in the interval; The closest (or even, on a tie)
+        long cmp = vb - ((s + u) << 1);
+        putDecimal(buffer, (cmp < 0 || cmp == 0 && (s & 0x1) == 0) ? s : u, k + dk);
+    }
+
+    /** Writes f 10^e (f &gt; 0) in the format of {@link Double#toString(double)}. */
+    private static void putDecimal(ByteBuffer buffer, long f, int e) {
+        while (f % 10 == 0) {
+            f /= 10;
+            e++;
+        }
+        int n = digits(f);
+        // The value is 0.d1d2...dn 10^point
+        int point = n + e;
+
+        if (point > 0 && point <= 7) {
+            if (point >= n) {
+                putDigits(buffer, f, n);
+                for (int i = n; i < point; i++)
+                    buffer.put((byte) '0');
+                buffer.put((byte) '.').put((byte) '0');
+            }
+            else {
+                putDigits(buffer, f / POW10[n - point], point);
+                buffer.put((byte) '.');
+                putDigits(buffer, f % POW10[n - point], n - point);
+            }
+        }
+        else if (point <= 0 && point > -3) {
+            buffer.put((byte) '0').put((byte) '.');
+            for (int i = point; i < 0; i++)
+                buffer.put((byte) '0');
+            putDigits(buffer, f, n);
+        }
+        else {
+            putDigits(buffer, f / POW10[n - 1], 1);
+            buffer.put((byte) '.');
+            if (n > 1)
+                putDigits(buffer, f % POW10[n - 1], n - 1);
+            else
+                buffer.put((byte) '0');
+            buffer.put((byte) 'E');
+            putLong(buffer, point - 1);
+        }
+    }
+
+    /** Writes exactly count digits of a non-negative value (zero padded). */
+    private static void putDigits(ByteBuffer buffer, long value, int count) {
+        int end = buffer.position() + count;
+        for (int i = end - 1; i >= end - count; i--) {
+            buffer.put(i, (byte) ('0' + (value % 10)));
+            value /= 10;
+        }
+        buffer.position(end);
+    }
+
+    /** Number of decimal digits of a non-negative value. */
+    private static int digits(long value) {
+        int n = 1;
+        while (n < POW10.length && value >= POW10[n])
+            n++;
+        return n;
+    }
+
+    private static long rop(long g1, long g0, long cp) {
+        long x1 = multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | (z & MASK_63) + MASK_63 >>> 63;
+    }
+
+    /** High 64 bits of the 128 bit product (Math.multiplyHigh, which is Java 9 and later). */
+    private static long multiplyHigh(long x, long y) {
+        long x1 = x >> 32, x2 = x & 0xFFFFFFFFL;
+        long y1 = y >> 32, y2 = y & 0xFFFFFFFFL;
+        long z2 = x2 * y2;
+        long t = x1 * y2 + (z2 >>> 32);
+        long z1 = t & 0xFFFFFFFFL;
+        long z0 = t >> 32;
+        z1 += x2 * y1;
+        return x1 * y1 + z0 + (z1 >> 32);
+    }
+
+    /** floor(log10(2^e)) */
+    private static int flog10pow2(int e) {
+        return (int) (e * 661_971_961_083L >> 41);
+    }
+
+    /** floor(log10(3/4 2^e)) */
+    private static int flog10threeQuartersPow2(int e) {
+        return (int) (e * 661_971_961_083L + -274_743_187_321L >> 41);
+    }
+
+    /** floor(log2(10^e)) */
+    private static int flog2pow10(int e) {
+        return (int) (e * 913_124_641_741L >> 38);
+    }
+
+}
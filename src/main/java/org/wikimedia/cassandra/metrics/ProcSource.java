@@ -0,0 +1,335 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Process statistics of a local JVM, read from {@code /proc/<pid>} (Linux only).
+ * <p>
+ * From {@code stat}, {@code status}, and {@code io}: RSS, user and system CPU time, page faults,
+ * thread count, and storage read and write bytes. Context switches and run-queue delay are only
+ * accounted per-thread, so these are summed over {@code task/<tid>/status} and
+ * {@code task/<tid>/schedstat}, and kept as running totals (threads that exit don't take their
+ * counts with them). Files of the process are opened once and re-read in place; Those of threads
+ * are opened for each read, rather than holding descriptors for every thread. Files are parsed
+ * without regular expressions, so a collection costs a few reads per thread. Reading {@code io} requires running
+ * as the same user as the JVM; If it is unreadable, storage bytes are skipped.
+ * </p>
+ *
+ * @author eevans
+ */
+public class ProcSource implements SampleSource, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProcSource.class);
+
+    /** Clock ticks per second of times reported in stat (USER_HZ, 100 on all mainstream architectures). */
+    static final int CLOCK_TICKS = 100;
+
+    private static final ObjectName PROCESS = newObjectName("java.lang:type=Process");
+
+    private static final byte[] VM_RSS = "VmRSS:".getBytes(Charsets.US_ASCII);
+    private static final byte[] THREADS = "Threads:".getBytes(Charsets.US_ASCII);
+    private static final byte[] VOLUNTARY = "voluntary_ctxt_switches:".getBytes(Charsets.US_ASCII);
+    private static final byte[] NONVOLUNTARY = "nonvoluntary_ctxt_switches:".getBytes(Charsets.US_ASCII);
+    private static final byte[] READ_BYTES = "read_bytes:".getBytes(Charsets.US_ASCII);
+    private static final byte[] WRITE_BYTES = "write_bytes:".getBytes(Charsets.US_ASCII);
+
+    // Fields of stat, counted from the one following the command name (field 3, state).
+    private static final int STAT_MINFLT = 7;
+    private static final int STAT_MAJFLT = 9;
+    private static final int STAT_UTIME = 11;
+    private static final int STAT_STIME = 12;
+
+    /** Files and last-read values of a single thread. */
+    private static class Task {
+        private final Path status;
+        private final Path schedstat;
+        private long voluntary = 0;
+        private long nonvoluntary = 0;
+        private long runDelay = 0;
+        private long timeslices = 0;
+
+        private Task(Path dir) {
+            this.status = dir.resolve("status");
+            Path schedstat = dir.resolve("schedstat");
+            this.schedstat = Files.isReadable(schedstat) ? schedstat : null;
+        }
+    }
+
+    private final String pid;
+    private final Path taskDir;
+    private final FileChannel stat;
+    private final FileChannel status;
+    private FileChannel io;
+    private final Map<String, Task> tasks = Maps.newHashMap();
+    private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+    // Running totals over all threads, past and present
+    private long voluntary = 0;
+    private long nonvoluntary = 0;
+    private long runDelay = 0;
+    private long timeslices = 0;
+
+    /**
+     * Open the /proc statistics of a local process.
+     *
+     * @param pid
+     *            process ID of the JVM
+     * @throws IOException
+     *             if the process statistics are unavailable
+     */
+    public ProcSource(String pid) throws IOException {
+        this.pid = checkNotNull(pid, "pid argument");
+
+        Path dir = Paths.get("/proc", pid);
+        this.taskDir = dir.resolve("task");
+        this.stat = FileChannel.open(dir.resolve("stat"), StandardOpenOption.READ);
+        this.status = FileChannel.open(dir.resolve("status"), StandardOpenOption.READ);
+        this.io = open(dir.resolve("io"));
+
+        if (this.io == null)
+            LOG.warn("{} is unreadable; Storage read and write bytes will not be collected", dir.resolve("io"));
+    }
+
+    @Override
+    public void getSamples(SampleVisitor visitor) throws IOException {
+        int timestamp = (int) (System.currentTimeMillis() / 1000);
+        byte[] b = this.buffer.array();
+        int len;
+
+        len = read(this.stat);
+        int fields = statFields(b, len);
+        if (fields >= 0) {
+            visit(visitor, "minor_faults", token(b, fields, len, STAT_MINFLT), timestamp);
+            visit(visitor, "major_faults", token(b, fields, len, STAT_MAJFLT), timestamp);
+            visit(visitor, "cpu_user", token(b, fields, len, STAT_UTIME) * 1000 / CLOCK_TICKS, timestamp);
+            visit(visitor, "cpu_system", token(b, fields, len, STAT_STIME) * 1000 / CLOCK_TICKS, timestamp);
+        }
+
+        len = read(this.status);
+        visit(visitor, "rss_bytes", keyed(b, len, VM_RSS) * 1024, timestamp);
+        visit(visitor, "threads", keyed(b, len, THREADS), timestamp);
+
+        if (this.io != null) {
+            try {
+                len = read(this.io);
+                visit(visitor, "read_bytes", keyed(b, len, READ_BYTES), timestamp);
+                visit(visitor, "write_bytes", keyed(b, len, WRITE_BYTES), timestamp);
+            }
+            catch (IOException e) {
+                // Access is checked on read
+                LOG.warn("/proc/{}/io is unreadable ({}); Storage read and write bytes will not be collected", this.pid, e.getMessage());
+                this.io.close();
+                this.io = null;
+            }
+        }
+
+        readTasks();
+
+        visit(visitor, "voluntary_context_switches", this.voluntary, timestamp);
+        visit(visitor, "involuntary_context_switches", this.nonvoluntary, timestamp);
+        visit(visitor, "run_queue_delay", this.runDelay / 1000000, timestamp);
+        visit(visitor, "timeslices", this.timeslices, timestamp);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.stat.close();
+        this.status.close();
+        if (this.io != null)
+            this.io.close();
+        this.tasks.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "ProcSource [pid=" + pid + ", tasks=" + tasks.size() + "]";
+    }
+
+    /** Accumulate context switches and scheduler statistics of all threads. */
+    private void readTasks() throws IOException {
+        byte[] b = this.buffer.array();
+        Set<String> live = Sets.newHashSetWithExpectedSize(this.tasks.size());
+
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(this.taskDir)) {
+            for (Path dir : dirs) {
+                String tid = dir.getFileName().toString();
+                Task task = this.tasks.get(tid);
+
+                try {
+                    if (task == null) {
+                        task = new Task(dir);
+                        this.tasks.put(tid, task);
+                    }
+
+                    int len = read(task.status);
+                    long voluntary = keyed(b, len, VOLUNTARY);
+                    long nonvoluntary = keyed(b, len, NONVOLUNTARY);
+                    this.voluntary += Math.max(voluntary - task.voluntary, 0);
+                    this.nonvoluntary += Math.max(nonvoluntary - task.nonvoluntary, 0);
+                    task.voluntary = voluntary;
+                    task.nonvoluntary = nonvoluntary;
+
+                    if (task.schedstat != null) {
+                        // <time on cpu (ns)> <time waiting on a runqueue (ns)> <# of timeslices>
+                        len = read(task.schedstat);
+                        long runDelay = token(b, 0, len, 1);
+                        long timeslices = token(b, 0, len, 2);
+                        this.runDelay += Math.max(runDelay - task.runDelay, 0);
+                        this.timeslices += Math.max(timeslices - task.timeslices, 0);
+                        task.runDelay = runDelay;
+                        task.timeslices = timeslices;
+                    }
+
+                    live.add(tid);
+                }
+                catch (IOException e) {
+                    // Exited in the meantime
+                    LOG.trace("Unable to read task {} of {}: {}", tid, this.pid, e.getMessage());
+                }
+            }
+        }
+
+        this.tasks.keySet().retainAll(live);
+    }
+
+    /** Read a file into the buffer, returning the number of bytes read. */
+    private int read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(channel);
+        }
+    }
+
+    /** Re-read a file from the beginning into the buffer, returning the number of bytes read. */
+    private int read(FileChannel channel) throws IOException {
+        this.buffer.clear();
+        while (this.buffer.hasRemaining()) {
+            if (channel.read(this.buffer, this.buffer.position()) <= 0)
+                break;
+        }
+        return this.buffer.position();
+    }
+
+    /**
+     * Returns the offset of the first field following the command name in stat output, or -1. The
+     * command name is parenthesized, and can itself contain spaces and parentheses.
+     */
+    static int statFields(byte[] b, int len) {
+        for (int i = len - 1; i >= 0; i--) {
+            if (b[i] == ')')
+                return (i + 2 <= len) ? i + 2 : -1;
+        }
+        return -1;
+    }
+
+    /** Parse the nth (zero-based) space-separated numeric token starting at offset, or -1. */
+    static long token(byte[] b, int offset, int len, int n) {
+        int i = offset;
+        for (int t = 0; ; t++) {
+            while (i < len && b[i] == ' ')
+                i++;
+            if (i >= len)
+                return -1;
+            if (t == n)
+                return number(b, i, len);
+            while (i < len && b[i] != ' ' && b[i] != '\n')
+                i++;
+        }
+    }
+
+    /** Parse the value of a "Key:   value" line, or -1 if there is no such key. */
+    static long keyed(byte[] b, int len, byte[] key) {
+        int line = 0;
+        while (line < len) {
+            if (startsWith(b, line, len, key)) {
+                int i = line + key.length;
+                while (i < len && (b[i] == ' ' || b[i] == '\t'))
+                    i++;
+                return number(b, i, len);
+            }
+            while (line < len && b[line] != '\n')
+                line++;
+            line++;
+        }
+        return -1;
+    }
+
+    private static long number(byte[] b, int offset, int len) {
+        long value = 0;
+        int i = offset;
+        for (; i < len && b[i] >= '0' && b[i] <= '9'; i++)
+            value = value * 10 + (b[i] - '0');
+        return (i > offset) ? value : -1;
+    }
+
+    private static boolean startsWith(byte[] b, int offset, int len, byte[] prefix) {
+        if (offset + prefix.length > len)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (b[offset + i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    /** Visit a sample, unless the value could not be parsed. */
+    private static void visit(SampleVisitor visitor, String name, long value, int timestamp) {
+        if (value >= 0)
+            visitor.visit(new JmxSample(Type.JVM, PROCESS, name, value, timestamp));
+    }
+
+    /** Open a file for reading, or return null if it is absent or unreadable. */
+    private static FileChannel open(Path path) {
+        try {
+            return FileChannel.open(path, StandardOpenOption.READ);
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static ObjectName newObjectName(String name) {
+        try {
+            return new ObjectName(name);
+        }
+        catch (MalformedObjectNameException e) {
+            throw new RuntimeException("a bug!", e);
+        }
+    }
+
+}
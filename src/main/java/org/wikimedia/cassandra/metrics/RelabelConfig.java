@@ -0,0 +1,127 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rules that reshape the Graphite names of Cassandra metrics (see {@link Relabeler}). Rules match
+ * on the key properties of an object name (all regular expressions must match a property's entire
+ * value; an absent property matches as empty), and are applied in order.
+ *
+ * <pre>
+ * rules:
+ *   # Drop the metrics of a bean entirely
+ *   - match: {type: Table, name: "Snapshots.*"}
+ *     action: drop
+ *   # Set (or add) a property; ${property} is replaced with the value of another
+ *   - match: {type: ThreadPools}
+ *     action: replace
+ *     target: scope
+ *     replacement: "${path}-${scope}"
+ *   # Remove a property (name segment)
+ *   - match: {type: ThreadPools}
+ *     action: remove
+ *     target: path
+ *   # Merge properties into one segment, in place of the first
+ *   - match: {type: ClientRequest}
+ *     action: merge
+ *     sources: [scope, name]
+ *     separator: "_"          # optional; defaults to "_"
+ * </pre>
+ */
+public class RelabelConfig {
+
+    /** A single rule. */
+    public static class Rule {
+        private Map<String, String> match;
+        private String action;
+        private String target;
+        private String replacement;
+        private List<String> sources;
+        private String separator;
+
+        public Map<String, String> getMatch() {
+            return (match != null) ? match : Collections.<String, String>emptyMap();
+        }
+
+        public void setMatch(Map<String, String> match) {
+            this.match = match;
+        }
+
+        public String getAction() {
+            return action;
+        }
+
+        public void setAction(String action) {
+            this.action = action;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public void setTarget(String target) {
+            this.target = target;
+        }
+
+        public String getReplacement() {
+            return replacement;
+        }
+
+        public void setReplacement(String replacement) {
+            this.replacement = replacement;
+        }
+
+        public List<String> getSources() {
+            return (sources != null) ? sources : Collections.<String>emptyList();
+        }
+
+        public void setSources(List<String> sources) {
+            this.sources = sources;
+        }
+
+        public String getSeparator() {
+            return (separator != null) ? separator : "_";
+        }
+
+        public void setSeparator(String separator) {
+            this.separator = separator;
+        }
+
+        @Override
+        public String toString() {
+            return "Rule [match=" + match + ", action=" + action + ", target=" + target + ", replacement=" + replacement + ", sources=" + sources + "]";
+        }
+    }
+
+    private List<Rule> rules;
+
+    public List<Rule> getRules() {
+        return (rules != null) ? rules : Collections.<Rule>emptyList();
+    }
+
+    public void setRules(List<Rule> rules) {
+        this.rules = rules;
+    }
+
+    @Override
+    public String toString() {
+        return "RelabelConfig [rules=" + rules + "]";
+    }
+
+}
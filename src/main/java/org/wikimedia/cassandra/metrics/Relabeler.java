@@ -0,0 +1,187 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Compiled {@link RelabelConfig} rules. Rules are applied to the ordered key properties of a Cassandra
+ * metric's object name (after the built-in mapping, {@code keyspace=all} for example), before they
+ * are joined into a Graphite name. Names are computed once per object name and cached (see
+ * {@link MetricNameCache}), so rules add nothing to the cost of writing a sample.
+ *
+ * @author eevans
+ */
+public class Relabeler {
+
+    private static final Pattern REFERENCE = Pattern.compile("\\$\\{([^}]+)\\}");
+
+    enum Action {
+        REPLACE, REMOVE, MERGE, DROP;
+    }
+
+    private static class Rule {
+        private final Map<String, Pattern> match = Maps.newLinkedHashMap();
+        private final Action action;
+        private final String target;
+        private final String replacement;
+        private final List<String> sources;
+        private final String separator;
+
+        private Rule(RelabelConfig.Rule config) {
+            for (Map.Entry<String, String> entry : config.getMatch().entrySet())
+                this.match.put(entry.getKey(), Pattern.compile(entry.getValue()));
+
+            String action = (config.getAction() != null) ? config.getAction() : "replace";
+            try {
+                this.action = Action.valueOf(action.toUpperCase());
+            }
+            catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(String.format("unknown relabel action: %s", action));
+            }
+
+            this.target = config.getTarget();
+            this.replacement = config.getReplacement();
+            this.sources = Lists.newArrayList(config.getSources());
+            this.separator = config.getSeparator();
+
+            switch (this.action) {
+                case REPLACE:
+                    checkArgument(this.target != null && this.replacement != null, "replace requires a target and replacement");
+                    break;
+                case REMOVE:
+                    checkArgument(this.target != null, "remove requires a target");
+                    break;
+                case MERGE:
+                    checkArgument(this.sources.size() > 1, "merge requires two or more sources");
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private boolean matches(Map<String, String> properties) {
+            for (Map.Entry<String, Pattern> entry : this.match.entrySet()) {
+                String value = properties.get(entry.getKey());
+                if (!entry.getValue().matcher((value != null) ? value : "").matches())
+                    return false;
+            }
+            return true;
+        }
+
+        /** Applies the rule, returning the properties (possibly a new map), or null to drop. */
+        private Map<String, String> apply(Map<String, String> properties) {
+            switch (this.action) {
+                case DROP:
+                    return null;
+                case REMOVE:
+                    properties.remove(this.target);
+                    return properties;
+                case REPLACE:
+                    properties.put(this.target, expand(this.replacement, properties));
+                    return properties;
+                case MERGE:
+                    List<String> values = Lists.newArrayList();
+                    for (String source : this.sources) {
+                        if (properties.containsKey(source))
+                            values.add(properties.get(source));
+                    }
+                    if (values.isEmpty())
+                        return properties;
+                    // The merged value takes the place of the first source present
+                    Map<String, String> result = Maps.newLinkedHashMap();
+                    boolean merged = false;
+                    for (Map.Entry<String, String> entry : properties.entrySet()) {
+                        if (!this.sources.contains(entry.getKey())) {
+                            result.put(entry.getKey(), entry.getValue());
+                        }
+                        else if (!merged) {
+                            result.put(entry.getKey(), Joiner.on(this.separator).join(values));
+                            merged = true;
+                        }
+                    }
+                    return result;
+                default:
+                    throw new IllegalStateException("unknown relabel action; report this as a bug!");
+            }
+        }
+
+        private static String expand(String template, Map<String, String> properties) {
+            Matcher matcher = REFERENCE.matcher(template);
+            StringBuffer buffer = new StringBuffer();
+            while (matcher.find()) {
+                String value = properties.get(matcher.group(1));
+                matcher.appendReplacement(buffer, Matcher.quoteReplacement((value != null) ? value : ""));
+            }
+            matcher.appendTail(buffer);
+            return buffer.toString();
+        }
+
+        @Override
+        public String toString() {
+            return "Rule [match=" + match + ", action=" + action + ", target=" + target + "]";
+        }
+    }
+
+    private final List<Rule> rules = Lists.newArrayList();
+
+    /**
+     * Create a relabeler.
+     *
+     * @param config
+     *            the relabel rules
+     * @throws IllegalArgumentException
+     *             if a rule is invalid
+     */
+    public Relabeler(RelabelConfig config) {
+        checkNotNull(config, "config argument");
+        for (RelabelConfig.Rule rule : config.getRules())
+            this.rules.add(new Rule(rule));
+    }
+
+    /**
+     * Applies the rules to the ordered key properties of an object name.
+     *
+     * @param properties
+     *            key properties, in order (may be modified)
+     * @return the relabeled properties, or null if the metrics are to be dropped
+     */
+    Map<String, String> apply(Map<String, String> properties) {
+        for (Rule rule : this.rules) {
+            if (!rule.matches(properties))
+                continue;
+            properties = rule.apply(properties);
+            if (properties == null)
+                return null;
+        }
+        return properties;
+    }
+
+    @Override
+    public String toString() {
+        return "Relabeler [rules=" + rules + "]";
+    }
+
+}
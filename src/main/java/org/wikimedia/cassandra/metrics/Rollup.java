@@ -0,0 +1,348 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Aggregates per-table Cassandra metrics ({@code type=Table} beans with a keyspace and table) into
+ * keyspace and node level series, so that dashboards need not sum hundreds of tables when rendering.
+ * <p>
+ * Samples are observed by way of {@link #watch(SampleVisitor)}, and the aggregates written with
+ * {@link #emit(SampleVisitor)} once all of a collection's samples have been seen. Aggregates are
+ * named after the object names {@code type=TableRollup,keyspace=<keyspace>,name=<name>} (keyspace
+ * level), and {@code type=TableRollup,keyspace=all,name=<name>} (node level), with metrics named
+ * {@code <metric>.<function>}. Originals matched by a rule with {@code drop} set are not passed on.
+ * </p>
+ *
+ * @author eevans
+ */
+public class Rollup {
+
+    static final String DOMAIN = "org.apache.cassandra.metrics";
+    static final String TYPE = "TableRollup";
+    static final String NODE = "all";
+
+    enum Function {
+        SUM, MAX, MEAN;
+    }
+
+    private static class Rule {
+        private final Pattern name;
+        // Names of aggregates, keyed by metric
+        private final Map<String, String> metrics = Maps.newLinkedHashMap();
+        private final Function function;
+        private final String weight;
+        private final boolean keyspace;
+        private final boolean node;
+        private final boolean drop;
+
+        private Rule(RollupConfig.Rule config) {
+            checkArgument(config.getName() != null, "rollup rule requires a name");
+            checkArgument(!config.getMetrics().isEmpty(), "rollup rule requires one or more metrics");
+            checkArgument(config.getFunction() != null, "rollup rule requires a function");
+
+            this.name = Pattern.compile(config.getName());
+            try {
+                this.function = Function.valueOf(config.getFunction().toUpperCase());
+            }
+            catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(String.format("unknown rollup function: %s", config.getFunction()));
+            }
+            for (String metric : config.getMetrics())
+                this.metrics.put(metric, metric + "." + this.function.name().toLowerCase());
+            this.weight = config.getWeight();
+            this.keyspace = config.getLevels().contains("keyspace");
+            this.node = config.getLevels().contains("node");
+            this.drop = config.isDrop();
+
+            checkArgument(this.weight == null || this.function == Function.MEAN, "only a mean can be weighted");
+        }
+
+        @Override
+        public String toString() {
+            return "Rule [name=" + name + ", metrics=" + metrics.keySet() + ", function=" + function + "]";
+        }
+    }
+
+    /** An aggregate of a metric, over a single collection. */
+    private static class Aggregate {
+        private final Function function;
+        private boolean integral = true;
+        private double value = 0;
+        private double weight = 0;
+        private int timestamp = 0;
+
+        private Aggregate(Function function) {
+            this.function = function;
+        }
+
+        private void add(double value, boolean integral, double weight, int timestamp) {
+            switch (this.function) {
+                case SUM:
+                    this.value += value;
+                    break;
+                case MAX:
+                    this.value = (this.weight == 0) ? value : Math.max(this.value, value);
+                    break;
+                case MEAN:
+                    this.value += value * weight;
+                    break;
+                default:
+                    throw new IllegalStateException("unknown rollup function; report this as a bug!");
+            }
+            this.weight += weight;
+            this.integral &= integral && this.function != Function.MEAN;
+            this.timestamp = Math.max(this.timestamp, timestamp);
+        }
+
+        private void addTo(SampleBatch batch, String metric) {
+            if (this.integral)
+                batch.add(metric, (long) this.value);
+            else
+                batch.add(metric, (this.function == Function.MEAN) ? this.value / this.weight : this.value);
+        }
+    }
+
+    private final List<Rule> rules = Lists.newArrayList();
+    private final Map<ObjectName, Map<String, Aggregate>> aggregates = Maps.newLinkedHashMap();
+    // Keyspace and node level object names, keyed by table object name (for the current collection)
+    private final Map<ObjectName, ObjectName[]> targets = Maps.newHashMap();
+
+    /**
+     * Create a rollup.
+     *
+     * @param config
+     *            the rollup rules
+     * @throws IllegalArgumentException
+     *             if a rule is invalid
+     */
+    public Rollup(RollupConfig config) {
+        checkNotNull(config, "config argument");
+        for (RollupConfig.Rule rule : config.getRules())
+            this.rules.add(new Rule(rule));
+    }
+
+    /**
+     * Returns a visitor that aggregates samples before passing them on to another, beginning a new
+     * collection.
+     *
+     * @param visitor
+     *            visitor to pass samples to
+     * @return an aggregating visitor
+     */
+    public BatchVisitor watch(SampleVisitor visitor) {
+        final BatchVisitor delegate = SampleBatchAdapter.of(checkNotNull(visitor, "visitor argument"));
+
+        // Aggregates of a collection that failed before they were written are discarded
+        synchronized (this) {
+            this.aggregates.clear();
+        }
+
+        return new BatchVisitor() {
+            private final SampleBatch single = new SampleBatch();
+            private final SampleBatch kept = new SampleBatch();
+
+            @Override
+            public void visit(JmxSample sample) {
+                List<Rule> matched = matching(sample.getType(), sample.getObjectName());
+                if (matched.isEmpty()) {
+                    delegate.visit(sample);
+                    return;
+                }
+                this.single.reset(sample.getType(), sample.getObjectName(), sample.getTimestamp());
+                if (sample.isIntegral())
+                    this.single.add(sample.getMetricName(), sample.getLongValue());
+                else
+                    this.single.add(sample.getMetricName(), sample.getDoubleValue());
+                visit(this.single, matched);
+            }
+
+            @Override
+            public void visit(SampleBatch batch) {
+                List<Rule> matched = matching(batch.getType(), batch.getObjectName());
+                if (matched.isEmpty())
+                    delegate.visit(batch);
+                else
+                    visit(batch, matched);
+            }
+
+            private void visit(SampleBatch batch, List<Rule> matched) {
+                observe(batch, matched);
+
+                // Pass on what is not dropped
+                boolean dropping = false;
+                for (Rule rule : matched)
+                    dropping |= rule.drop;
+                if (!dropping) {
+                    delegate.visit(batch);
+                    return;
+                }
+
+                SampleBatch out = this.kept;
+                out.reset(batch.getType(), batch.getObjectName(), batch.getTimestamp());
+                for (int i = 0; i < batch.size(); i++) {
+                    if (dropped(matched, batch.getMetricName(i)))
+                        continue;
+                    if (batch.isIntegral(i))
+                        out.add(batch.getMetricName(i), batch.getLongValue(i));
+                    else
+                        out.add(batch.getMetricName(i), batch.getDoubleValue(i));
+                }
+                if (out.size() > 0)
+                    delegate.visit(out);
+            }
+        };
+    }
+
+    /**
+     * Writes the aggregates of the samples seen since the last call, and starts over.
+     *
+     * @param visitor
+     *            visitor to pass aggregates to
+     */
+    public void emit(SampleVisitor visitor) {
+        BatchVisitor delegate = SampleBatchAdapter.of(checkNotNull(visitor, "visitor argument"));
+        SampleBatch batch = new SampleBatch();
+
+        Map<ObjectName, Map<String, Aggregate>> aggregates;
+        synchronized (this) {
+            aggregates = Maps.newLinkedHashMap(this.aggregates);
+            this.aggregates.clear();
+            this.targets.clear();
+        }
+
+        for (Map.Entry<ObjectName, Map<String, Aggregate>> entry : aggregates.entrySet()) {
+            int timestamp = 0;
+            for (Aggregate aggregate : entry.getValue().values())
+                timestamp = Math.max(timestamp, aggregate.timestamp);
+
+            batch.reset(Type.CASSANDRA, entry.getKey(), timestamp);
+            for (Map.Entry<String, Aggregate> aggregate : entry.getValue().entrySet()) {
+                // Weights of zero (or less) are never aggregated
+                if (aggregate.getValue().weight > 0)
+                    aggregate.getValue().addTo(batch, aggregate.getKey());
+            }
+            if (batch.size() > 0)
+                delegate.visit(batch);
+        }
+    }
+
+    private List<Rule> matching(Type type, ObjectName oName) {
+        List<Rule> matched = Lists.newArrayListWithCapacity(0);
+        if (!type.equals(Type.CASSANDRA) || !"Table".equals(oName.getKeyProperty("type")))
+            return matched;
+        if (oName.getKeyProperty("keyspace") == null || oName.getKeyProperty("scope") == null)
+            return matched;
+        for (Rule rule : this.rules) {
+            if (rule.name.matcher(oName.getKeyProperty("name")).matches())
+                matched.add(rule);
+        }
+        return matched;
+    }
+
+    private static boolean dropped(List<Rule> matched, String metric) {
+        for (Rule rule : matched) {
+            if (rule.drop && rule.metrics.containsKey(metric))
+                return true;
+        }
+        return false;
+    }
+
+    synchronized void observe(SampleBatch batch, List<Rule> matched) {
+        ObjectName oName = batch.getObjectName();
+        ObjectName[] target = this.targets.get(oName);
+        if (target == null) {
+            String name = oName.getKeyProperty("name");
+            target = new ObjectName[] { rollupName(oName.getKeyProperty("keyspace"), name), rollupName(NODE, name) };
+            this.targets.put(oName, target);
+        }
+
+        for (Rule rule : matched) {
+            double weight = 1;
+            if (rule.weight != null) {
+                int w = indexOf(batch, rule.weight);
+                if (w < 0)
+                    continue;
+                weight = batch.isIntegral(w) ? batch.getLongValue(w) : batch.getDoubleValue(w);
+                if (weight <= 0)
+                    continue;
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                String metric = rule.metrics.get(batch.getMetricName(i));
+                if (metric == null)
+                    continue;
+                boolean integral = batch.isIntegral(i);
+                double value = integral ? batch.getLongValue(i) : batch.getDoubleValue(i);
+
+                if (rule.keyspace)
+                    aggregate(target[0], metric, rule.function).add(value, integral, weight, batch.getTimestamp());
+                if (rule.node)
+                    aggregate(target[1], metric, rule.function).add(value, integral, weight, batch.getTimestamp());
+            }
+        }
+    }
+
+    private Aggregate aggregate(ObjectName oName, String metric, Function function) {
+        Map<String, Aggregate> metrics = this.aggregates.get(oName);
+        if (metrics == null) {
+            metrics = Maps.newLinkedHashMap();
+            this.aggregates.put(oName, metrics);
+        }
+        Aggregate aggregate = metrics.get(metric);
+        if (aggregate == null) {
+            aggregate = new Aggregate(function);
+            metrics.put(metric, aggregate);
+        }
+        return aggregate;
+    }
+
+    private static int indexOf(SampleBatch batch, String metric) {
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.getMetricName(i).equals(metric))
+                return i;
+        }
+        return -1;
+    }
+
+    static ObjectName rollupName(String keyspace, String name) {
+        try {
+            return new ObjectName(String.format("%s:type=%s,keyspace=%s,name=%s", DOMAIN, TYPE, keyspace, name));
+        }
+        catch (MalformedObjectNameException e) {
+            throw new RuntimeException("a bug!", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Rollup [rules=" + rules + "]";
+    }
+
+}
@@ -0,0 +1,117 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Rules that aggregate per-table metrics into keyspace and node level series (see {@link Rollup}).
+ *
+ * <pre>
+ * rules:
+ *   - name: "(Read|Write)Latency"    # regular expression, matched against the name property
+ *     metrics: [count]
+ *     function: sum                  # sum, max, or mean
+ *   - name: "(Read|Write)Latency"
+ *     metrics: [99percentile]
+ *     function: mean
+ *     weight: count                  # optional; metric of the same table to weight the mean by
+ *     levels: [keyspace]             # optional; defaults to keyspace and node
+ *     drop: true                     # optional; do not write the per-table originals
+ * </pre>
+ */
+public class RollupConfig {
+
+    /** A single rule. */
+    public static class Rule {
+        private String name;
+        private List<String> metrics;
+        private String function;
+        private String weight;
+        private List<String> levels;
+        private boolean drop = false;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public List<String> getMetrics() {
+            return (metrics != null) ? metrics : Collections.<String>emptyList();
+        }
+
+        public void setMetrics(List<String> metrics) {
+            this.metrics = metrics;
+        }
+
+        public String getFunction() {
+            return function;
+        }
+
+        public void setFunction(String function) {
+            this.function = function;
+        }
+
+        public String getWeight() {
+            return weight;
+        }
+
+        public void setWeight(String weight) {
+            this.weight = weight;
+        }
+
+        public List<String> getLevels() {
+            return (levels != null) ? levels : Arrays.asList("keyspace", "node");
+        }
+
+        public void setLevels(List<String> levels) {
+            this.levels = levels;
+        }
+
+        public boolean isDrop() {
+            return drop;
+        }
+
+        public void setDrop(boolean drop) {
+            this.drop = drop;
+        }
+
+        @Override
+        public String toString() {
+            return "Rule [name=" + name + ", metrics=" + metrics + ", function=" + function + ", weight=" + weight + ", levels=" + levels + ", drop=" + drop + "]";
+        }
+    }
+
+    private List<Rule> rules;
+
+    public List<Rule> getRules() {
+        return (rules != null) ? rules : Collections.<Rule>emptyList();
+    }
+
+    public void setRules(List<Rule> rules) {
+        this.rules = rules;
+    }
+
+    @Override
+    public String toString() {
+        return "RollupConfig [rules=" + rules + "]";
+    }
+
+}
@@ -0,0 +1,172 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+
+import javax.management.ObjectName;
+
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+/**
+ * A reusable, columnar batch of samples sharing a type, object name, and timestamp (the samples of
+ * a single MBean). Each entry is a metric name and a value, held in parallel arrays; Capacity grows
+ * as needed, and is retained by {@link #reset(Type, ObjectName, int)}.
+ *
+ * @author eevans
+ */
+public class SampleBatch {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Type type;
+    private ObjectName objectName;
+    private int timestamp;
+    private int size = 0;
+
+    private String[] metricNames = new String[INITIAL_CAPACITY];
+    private boolean[] integral = new boolean[INITIAL_CAPACITY];
+    private long[] longValues = new long[INITIAL_CAPACITY];
+    private double[] doubleValues = new double[INITIAL_CAPACITY];
+
+    /**
+     * Empties the batch, and sets the properties common to its samples.
+     *
+     * @return this batch
+     */
+    public SampleBatch reset(Type type, ObjectName oName, int timestamp) {
+        this.type = checkNotNull(type, "type argument");
+        this.objectName = checkNotNull(oName, "objectName argument");
+        this.timestamp = timestamp;
+        this.size = 0;
+        return this;
+    }
+
+    /** Adds an integral value. */
+    public SampleBatch add(String metricName, long value) {
+        int i = next(metricName);
+        this.integral[i] = true;
+        this.longValues[i] = value;
+        this.doubleValues[i] = value;
+        return this;
+    }
+
+    /** Adds a floating-point value. */
+    public SampleBatch add(String metricName, double value) {
+        int i = next(metricName);
+        this.integral[i] = false;
+        this.longValues[i] = (long) value;
+        this.doubleValues[i] = value;
+        return this;
+    }
+
+    /**
+     * Adds a value of unknown type (a gauge, for example), decoded as described by
+     * {@link JmxSample#trySet(Type, ObjectName, String, Object, int)}.
+     *
+     * @return true if the value was numeric (and added), false otherwise
+     */
+    public boolean tryAdd(String metricName, Object value) {
+        if (JmxSample.isIntegral(value)) {
+            add(metricName, ((Number) value).longValue());
+            return true;
+        }
+        if (JmxSample.isFloatingPoint(value)) {
+            add(metricName, JmxSample.doubleValue(value));
+            return true;
+        }
+        return false;
+    }
+
+    private int next(String metricName) {
+        if (this.size == this.metricNames.length) {
+            int capacity = this.size * 2;
+            this.metricNames = Arrays.copyOf(this.metricNames, capacity);
+            this.integral = Arrays.copyOf(this.integral, capacity);
+            this.longValues = Arrays.copyOf(this.longValues, capacity);
+            this.doubleValues = Arrays.copyOf(this.doubleValues, capacity);
+        }
+        this.metricNames[this.size] = checkNotNull(metricName, "metricName argument");
+        return this.size++;
+    }
+
+    public Type getType() {
+        return this.type;
+    }
+
+    public ObjectName getObjectName() {
+        return this.objectName;
+    }
+
+    public int getTimestamp() {
+        return this.timestamp;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public String getMetricName(int i) {
+        return this.metricNames[i];
+    }
+
+    public boolean isIntegral(int i) {
+        return this.integral[i];
+    }
+
+    public long getLongValue(int i) {
+        return this.longValues[i];
+    }
+
+    public double getDoubleValue(int i) {
+        return this.doubleValues[i];
+    }
+
+    /**
+     * Copies an entry of the batch to a sample.
+     *
+     * @param i
+     *            index of the entry
+     * @param sample
+     *            sample to set (reused)
+     * @return the sample
+     */
+    public JmxSample get(int i, JmxSample sample) {
+        if (this.integral[i])
+            return sample.set(this.type, this.objectName, this.metricNames[i], this.longValues[i], this.timestamp);
+        return sample.set(this.type, this.objectName, this.metricNames[i], this.doubleValues[i], this.timestamp);
+    }
+
+    /**
+     * Passes each entry of the batch to a visitor as a (reused) sample.
+     *
+     * @param visitor
+     *            visitor to pass samples to
+     * @param sample
+     *            sample to reuse for each entry
+     */
+    public void visitEach(SampleVisitor visitor, JmxSample sample) {
+        for (int i = 0; i < this.size; i++)
+            visitor.visit(get(i, sample));
+    }
+
+    @Override
+    public String toString() {
+        return "SampleBatch [type=" + type + ", objectName=" + objectName + ", timestamp=" + timestamp + ", size=" + size + "]";
+    }
+
+}
@@ -0,0 +1,60 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Adapts a single-sample {@link SampleVisitor} (such as {@link TsvVisitor}) to batches, passing
+ * each entry of a batch on as a sample.
+ *
+ * @author eevans
+ */
+public class SampleBatchAdapter implements BatchVisitor {
+
+    private final SampleVisitor visitor;
+    private final JmxSample sample = new JmxSample();
+
+    public SampleBatchAdapter(SampleVisitor visitor) {
+        this.visitor = checkNotNull(visitor, "visitor argument");
+    }
+
+    /**
+     * Returns the visitor as a {@link BatchVisitor}, adapting it only if necessary.
+     *
+     * @param visitor
+     *            a sample visitor
+     * @return a batch visitor
+     */
+    public static BatchVisitor of(SampleVisitor visitor) {
+        return (visitor instanceof BatchVisitor) ? (BatchVisitor) visitor : new SampleBatchAdapter(visitor);
+    }
+
+    @Override
+    public void visit(JmxSample sample) {
+        this.visitor.visit(sample);
+    }
+
+    @Override
+    public void visit(SampleBatch batch) {
+        batch.visitEach(this.visitor, this.sample);
+    }
+
+    @Override
+    public String toString() {
+        return "SampleBatchAdapter [visitor=" + visitor + "]";
+    }
+
+}
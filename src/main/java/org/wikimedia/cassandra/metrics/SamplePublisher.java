@@ -0,0 +1,224 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+
+import com.google.common.collect.Sets;
+
+/**
+ * Publishes the Cassandra metrics of a single collection as sample batches (one per bean), fetching
+ * beans from JMX only as they are requested, so that a slow consumer is never handed more than it
+ * asked for, and no thread is held waiting on it. JMX requests are made on an executor; Many
+ * instances can be collected from a small, shared pool.
+ * <p>
+ * {@link Subscriber} and {@link Subscription} follow the signatures and rules of Reactive Streams
+ * (one subscriber, signals serialized, {@code onComplete} or {@code onError} at most once, a demand
+ * of {@code Long.MAX_VALUE} is unbounded), so that they are readily adapted to
+ * {@code org.reactivestreams} or {@code java.util.concurrent.Flow}. Like those passed to a
+ * {@link SampleVisitor}, batches are reused; They are only valid for the duration of
+ * {@link Subscriber#onNext(SampleBatch)}.
+ * </p>
+ *
+ * @author eevans
+ */
+public class SamplePublisher {
+
+    /** Receives the batches of a collection. */
+    public interface Subscriber {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(SampleBatch batch);
+
+        void onError(Throwable error);
+
+        void onComplete();
+    }
+
+    /** Demand for the batches of a collection. */
+    public interface Subscription {
+        void request(long n);
+
+        void cancel();
+    }
+
+    private final JmxCollector collector;
+    private final ObjectName query;
+    private final Inventory inventory;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+    SamplePublisher(JmxCollector collector, ObjectName query, Inventory inventory, Executor executor) {
+        this.collector = checkNotNull(collector, "collector argument");
+        this.query = checkNotNull(query, "query argument");
+        this.inventory = checkNotNull(inventory, "inventory argument");
+        this.executor = checkNotNull(executor, "executor argument");
+    }
+
+    /**
+     * Subscribe to the collection; A publisher can be subscribed to only once.
+     *
+     * @param subscriber
+     *            the subscriber
+     */
+    public void subscribe(Subscriber subscriber) {
+        checkNotNull(subscriber, "subscriber argument");
+        if (!this.subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("publisher already subscribed to"));
+            return;
+        }
+        subscriber.onSubscribe(new Cycle(subscriber));
+    }
+
+    /** A collection in progress, advanced by at most one task at a time. */
+    private class Cycle implements Subscription, Runnable {
+        private final Subscriber subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final SampleBatch batch = new SampleBatch();
+        private final Set<ObjectName> seen = Sets.newHashSet();
+        private Iterator<ObjectInstance> instances;
+        private volatile boolean cancelled = false;
+        private volatile boolean done = false;
+        private volatile Throwable invalid;
+
+        private Cycle(Subscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            // Signalled from the collecting task, to keep signals serialized
+            if (n <= 0) {
+                this.invalid = new IllegalArgumentException("request must be greater than zero");
+                schedule();
+                return;
+            }
+            long current, next;
+            do {
+                current = this.demand.get();
+                next = (current + n < 0) ? Long.MAX_VALUE : current + n;
+            } while (!this.demand.compareAndSet(current, next));
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            this.cancelled = true;
+        }
+
+        private void schedule() {
+            if (this.pending.getAndIncrement() != 0)
+                return;
+            try {
+                executor.execute(this);
+            }
+            catch (RejectedExecutionException e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void run() {
+            ConnectionStats previous = JmxSocketFactory.meter(collector.getConnectionStats());
+            try {
+                int missed = 1;
+                do {
+                    if (this.invalid != null) {
+                        fail(this.invalid);
+                        return;
+                    }
+                    while (!this.cancelled && !this.done && this.demand.get() > 0) {
+                        if (!next()) {
+                            this.done = true;
+                            inventory.retain(query, this.seen);
+                            this.subscriber.onComplete();
+                        }
+                    }
+                    missed = this.pending.addAndGet(-missed);
+                } while (missed != 0);
+            }
+            catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+            finally {
+                JmxSocketFactory.meter(previous);
+            }
+        }
+
+        /** Publishes the next bean with samples, returning false once there are no more. */
+        private boolean next() throws IOException {
+            if (this.instances == null)
+                this.instances = collector.queryCassandraBeans(query).iterator();
+
+            while (this.instances.hasNext()) {
+                ObjectInstance instance = this.instances.next();
+                this.seen.add(instance.getObjectName());
+                if (collector.collectBean(instance, inventory, this.batch)) {
+                    produced();
+                    this.subscriber.onNext(this.batch);
+                    return true;
+                }
+                if (this.cancelled)
+                    return true;
+            }
+            return false;
+        }
+
+        /** Decrements demand, unless unbounded ({@code Long.MAX_VALUE}). */
+        private void produced() {
+            long current;
+            do {
+                current = this.demand.get();
+                if (current == Long.MAX_VALUE)
+                    return;
+            } while (!this.demand.compareAndSet(current, current - 1));
+        }
+
+        private void fail(Throwable error) {
+            if (this.done)
+                return;
+            this.done = true;
+            this.subscriber.onError(error);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SamplePublisher [query=" + query + ", subscribed=" + subscribed + "]";
+    }
+
+}
@@ -0,0 +1,36 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import java.io.IOException;
+
+/**
+ * A source of {@link JmxSample}s.
+ *
+ * @author eevans
+ */
+public interface SampleSource {
+
+    /**
+     * Collect samples, passing each to the supplied visitor.
+     *
+     * @param visitor
+     *            visitor to pass collected samples to
+     * @throws IOException
+     *             if an I/O error occurs during collection
+     */
+    public void getSamples(SampleVisitor visitor) throws IOException;
+
+}
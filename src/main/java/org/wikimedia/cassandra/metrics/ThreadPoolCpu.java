@@ -0,0 +1,179 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static java.lang.management.ManagementFactory.THREAD_MXBEAN_NAME;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.Map;
+
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.collect.Maps;
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Attributes CPU time to Cassandra thread pools.
+ * <p>
+ * Threads are grouped by name, less any numeric suffix (MutationStage-12 and CompactionExecutor:4
+ * belong to MutationStage and CompactionExecutor respectively), and the CPU time each accumulated
+ * since the previous collection is reported per pool as CPU-seconds per second. The thread-to-pool
+ * mapping is retained between collections, so once warm, a collection costs two bulk calls (thread
+ * IDs, and their CPU times). An instance is meant to be reused for the lifetime of a JVM.
+ * </p>
+ * <p>
+ * Note that stages executed by Cassandra's shared worker pool are attributed to SharedPool-Worker.
+ * </p>
+ *
+ * @author eevans
+ */
+public class ThreadPoolCpu {
+
+    static final String OTHER = "other";
+
+    private final Map<Long, String> pools = Maps.newHashMap();
+    private final Map<String, ObjectName> objectNames = Maps.newHashMap();
+    private Map<Long, Long> lastCpuTimes = null;
+    private long lastNanos;
+
+    /**
+     * Collect per-pool CPU usage from the JVM on the other end of a connection.
+     *
+     * @param connection
+     *            the MBean server connection
+     * @param visitor
+     *            visitor to pass samples to
+     * @throws IOException
+     *             on communication errors
+     */
+    void collect(MBeanServerConnection connection, SampleVisitor visitor) throws IOException {
+        ThreadMXBean threads = ManagementFactory.newPlatformMXBeanProxy(connection, THREAD_MXBEAN_NAME, ThreadMXBean.class);
+
+        long[] ids = threads.getAllThreadIds();
+        long nanos = System.nanoTime();
+        long[] cpuTimes = threads.getThreadCpuTime(ids);
+
+        // Resolve pool names of any threads not seen before.
+        int unknown = 0;
+        for (long id : ids) {
+            if (!this.pools.containsKey(id))
+                unknown++;
+        }
+        if (unknown > 0) {
+            long[] unknownIds = new long[unknown];
+            int i = 0;
+            for (long id : ids) {
+                if (!this.pools.containsKey(id))
+                    unknownIds[i++] = id;
+            }
+            for (ThreadInfo info : threads.getThreadInfo(unknownIds)) {
+                // Threads that terminated in the meantime are returned as null
+                if (info != null)
+                    this.pools.put(info.getThreadId(), poolName(info.getThreadName()));
+            }
+        }
+
+        Map<Long, Long> current = Maps.newHashMapWithExpectedSize(ids.length);
+        Map<String, Long> poolNanos = Maps.newHashMap();
+
+        for (int i = 0; i < ids.length; i++) {
+            String pool = this.pools.get(ids[i]);
+            // Unsupported, disabled, or terminated
+            if (cpuTimes[i] < 0 || pool == null)
+                continue;
+            current.put(ids[i], cpuTimes[i]);
+
+            if (this.lastCpuTimes != null) {
+                // Threads started since the last collection accrued all of their CPU time in the interval
+                Long last = this.lastCpuTimes.get(ids[i]);
+                long delta = cpuTimes[i] - ((last != null) ? last : 0);
+                Long total = poolNanos.get(pool);
+                poolNanos.put(pool, ((total != null) ? total : 0) + Math.max(delta, 0));
+            }
+        }
+
+        // Forget threads that have terminated
+        this.pools.keySet().retainAll(current.keySet());
+
+        if (this.lastCpuTimes != null) {
+            double elapsed = (double) (nanos - this.lastNanos);
+            int timestamp = (int) (System.currentTimeMillis() / 1000);
+
+            for (Map.Entry<String, Long> entry : poolNanos.entrySet()) {
+                ObjectName oName = objectName(entry.getKey());
+                if (oName != null)
+                    visitor.visit(new JmxSample(Type.CASSANDRA, oName, "value", entry.getValue() / elapsed, timestamp));
+            }
+        }
+
+        this.lastCpuTimes = current;
+        this.lastNanos = nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "ThreadPoolCpu [threads=" + pools.size() + "]";
+    }
+
+    private ObjectName objectName(String pool) {
+        ObjectName oName = this.objectNames.get(pool);
+        if (oName == null) {
+            try {
+                oName = new ObjectName(String.format("org.apache.cassandra.metrics:type=ThreadPools,path=cpu,scope=%s,name=CpuUsage", pool));
+                this.objectNames.put(pool, oName);
+            }
+            catch (MalformedObjectNameException e) {
+                return null;
+            }
+        }
+        return oName;
+    }
+
+    /**
+     * Derive a pool name from a thread name by removing a numeric suffix separated by '-' or ':'.
+     * Names that contain digits elsewhere (RMI connection threads, for example) are lumped into
+     * {@link #OTHER} to keep the number of pools bounded.
+     */
+    static String poolName(String threadName) {
+        int end = threadName.length();
+        while (end > 0 && Character.isDigit(threadName.charAt(end - 1)))
+            end--;
+
+        if (end < threadName.length() && end > 1) {
+            char separator = threadName.charAt(end - 1);
+            if (separator == '-' || separator == ':')
+                end--;
+            else
+                return OTHER;
+        }
+
+        String name = threadName.substring(0, end);
+
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isDigit(c) || c == ',' || c == '=' || c == ':' || c == '"' || c == '*' || c == '?' || c == '\n')
+                return OTHER;
+        }
+
+        return name.isEmpty() ? OTHER : name.replace(' ', '-');
+    }
+
+}
@@ -42,11 +42,9 @@ public class TsvVisitor implements SampleVisitor {
     /** {@inheritDoc} */
     @Override
     public void visit(JmxSample jmxSample) {
-        this.stream.printf(
-                "%s %s %s%n",
-                CarbonVisitor.metricName(jmxSample, this.prefix),
-                jmxSample.getValue(),
-                jmxSample.getTimestamp());
+        StringBuilder line = new StringBuilder(CarbonVisitor.metricName(jmxSample, this.prefix)).append(' ');
+        jmxSample.appendValue(line).append(' ').append(jmxSample.getTimestamp());
+        this.stream.println(line);
     }
 
 }
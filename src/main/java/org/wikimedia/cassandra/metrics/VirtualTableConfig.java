@@ -0,0 +1,80 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.wikimedia.cassandra.metrics.Constants.DEFAULT_CQL_TIMEOUT;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Configuration of instances whose Cassandra metrics are read from virtual tables (see
+ * {@link VirtualTableSource}), rather than JMX.
+ *
+ * <pre>
+ * username: cassandra     # optional
+ * password: cassandra     # optional
+ * timeout: 10000          # optional; connect and read timeout, in milliseconds
+ * instances:
+ *   cassandra-a: 10.64.0.1:9042
+ *   cassandra-b: 10.64.0.2     # port defaults to 9042
+ * </pre>
+ */
+public class VirtualTableConfig {
+    private String username;
+    private String password;
+    private int timeout = DEFAULT_CQL_TIMEOUT;
+    private Map<String, String> instances;
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    /** Returns the connect and read timeout, in milliseconds. */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /** Returns native transport addresses (host[:port]), keyed by instance name. */
+    public Map<String, String> getInstances() {
+        return (instances != null) ? instances : Collections.<String, String>emptyMap();
+    }
+
+    public void setInstances(Map<String, String> instances) {
+        this.instances = instances;
+    }
+
+    @Override
+    public String toString() {
+        return "VirtualTableConfig [username=" + username + ", timeout=" + timeout + ", instances=" + instances + "]";
+    }
+
+}
@@ -0,0 +1,266 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.wikimedia.cassandra.metrics.Constants.DEFAULT_CQL_PORT;
+import static org.wikimedia.cassandra.metrics.Constants.DEFAULT_CQL_TIMEOUT;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.net.HostAndPort;
+
+/**
+ * Cassandra metrics read from the {@code system_views} virtual tables (Cassandra 4.0 and later)
+ * over the native protocol, rather than from JMX.
+ * <p>
+ * Rows are mapped onto the object names of the equivalent JMX metrics, so that samples are named
+ * the same by {@link CarbonVisitor}: thread pools ({@code thread_pools}), caches ({@code caches}),
+ * native clients ({@code clients}), and per-table local and coordinator latencies (the
+ * {@code *_latency} tables; converted to microseconds). The virtual tables cover only a subset of
+ * what is available over JMX; The remainder must still be collected over JMX (see
+ * {@link Inventory#exclude(SampleVisitor)}). Tables that do not exist are skipped on subsequent
+ * collections. The connection is kept open between collections, and re-established after an error.
+ * </p>
+ *
+ * @author eevans
+ */
+public class VirtualTableSource implements SampleSource, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VirtualTableSource.class);
+
+    static final String THREAD_POOLS = "thread_pools";
+    static final String CACHES = "caches";
+    static final String CLIENTS = "clients";
+
+    /** JMX names of latency metrics, keyed by virtual table name. */
+    static final Map<String, String> LATENCIES = ImmutableMap.<String, String>builder()
+            .put("local_read_latency", "ReadLatency")
+            .put("local_scan_latency", "RangeLatency")
+            .put("local_write_latency", "WriteLatency")
+            .put("coordinator_read_latency", "CoordinatorReadLatency")
+            .put("coordinator_scan_latency", "CoordinatorScanLatency")
+            .put("coordinator_write_latency", "CoordinatorWriteLatency")
+            .build();
+
+    /** JMX cache scopes, keyed by virtual table cache name. */
+    private static final Map<String, String> CACHE_SCOPES = ImmutableMap.of(
+            "keys", "KeyCache",
+            "rows", "RowCache",
+            "counters", "CounterCache",
+            "chunks", "ChunkCache");
+
+    /** Thread pools with a JMX path of "request" (the remainder are "internal"). */
+    private static final Set<String> REQUEST_STAGES = ImmutableSet.of(
+            "MutationStage",
+            "ReadStage",
+            "RequestResponseStage",
+            "ReadRepairStage",
+            "CounterMutationStage",
+            "ViewMutationStage");
+
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final int timeout;
+    private final Set<String> unsupported = Sets.newHashSet();
+
+    private NativeProtocolConnection connection;
+
+    /**
+     * Create a virtual table source.
+     *
+     * @param address
+     *            native transport address, as host[:port]
+     * @param username
+     *            username (may be null, if authentication is not required)
+     * @param password
+     *            password (may be null, if authentication is not required)
+     */
+    public VirtualTableSource(String address, String username, String password) {
+        this(address, username, password, DEFAULT_CQL_TIMEOUT);
+    }
+
+    /**
+     * Create a virtual table source.
+     *
+     * @param address
+     *            native transport address, as host[:port]
+     * @param username
+     *            username (may be null, if authentication is not required)
+     * @param password
+     *            password (may be null, if authentication is not required)
+     * @param timeout
+     *            connect and read timeout, in milliseconds
+     */
+    public VirtualTableSource(String address, String username, String password, int timeout) {
+        checkArgument(timeout > 0, "timeout must be positive");
+        HostAndPort hostAndPort = HostAndPort.fromString(checkNotNull(address, "address argument"));
+        this.host = hostAndPort.getHostText();
+        this.port = hostAndPort.getPortOrDefault(DEFAULT_CQL_PORT);
+        this.username = username;
+        this.password = password;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void getSamples(SampleVisitor visitor) throws IOException {
+        if (this.connection == null)
+            this.connection = new NativeProtocolConnection(this.host, this.port, this.username, this.password, this.timeout);
+
+        try {
+            int timestamp = (int) (System.currentTimeMillis() / 1000);
+
+            List<Map<String, Object>> rows;
+
+            if ((rows = select(THREAD_POOLS)) != null)
+                threadPools(rows, visitor, timestamp);
+            if ((rows = select(CACHES)) != null)
+                caches(rows, visitor, timestamp);
+            if ((rows = select(CLIENTS)) != null)
+                clients(rows, visitor, timestamp);
+
+            for (Map.Entry<String, String> latency : LATENCIES.entrySet()) {
+                if ((rows = select(latency.getKey())) != null)
+                    latencies(latency.getValue(), rows, visitor, timestamp);
+            }
+        }
+        catch (IOException e) {
+            // Start over with a new connection next time
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.connection != null) {
+            try {
+                this.connection.close();
+            }
+            finally {
+                this.connection = null;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "VirtualTableSource [host=" + host + ", port=" + port + ", timeout=" + timeout + ", unsupported=" + unsupported + "]";
+    }
+
+    /** Select all rows of a virtual table, or return null if it does not exist. */
+    private List<Map<String, Object>> select(String table) throws IOException {
+        if (this.unsupported.contains(table))
+            return null;
+
+        try {
+            return this.connection.query(String.format("SELECT * FROM system_views.%s", table));
+        }
+        catch (NativeProtocolConnection.ErrorException e) {
+            if (e.getCode() != NativeProtocolConnection.ERROR_INVALID)
+                throw e;
+            LOG.warn("Skipping system_views.{} on {}:{}: {}", table, this.host, this.port, e.getMessage());
+            this.unsupported.add(table);
+            return null;
+        }
+    }
+
+    private static void threadPools(List<Map<String, Object>> rows, SampleVisitor visitor, int timestamp) {
+        for (Map<String, Object> row : rows) {
+            String name = (String) row.get("name");
+            if (name == null)
+                continue;
+            String path = REQUEST_STAGES.contains(name) ? "request" : (name.equals("Native-Transport-Requests") ? "transport" : "internal");
+            String base = String.format("org.apache.cassandra.metrics:type=ThreadPools,path=%s,scope=%s,name=", path, name);
+
+            visit(visitor, base + "ActiveTasks", "value", row.get("active_tasks"), timestamp);
+            visit(visitor, base + "PendingTasks", "value", row.get("pending_tasks"), timestamp);
+            visit(visitor, base + "CompletedTasks", "value", row.get("completed_tasks"), timestamp);
+            visit(visitor, base + "MaxPoolSize", "value", row.get("active_tasks_limit"), timestamp);
+            visit(visitor, base + "CurrentlyBlockedTasks", "count", row.get("blocked_tasks"), timestamp);
+            visit(visitor, base + "TotalBlockedTasks", "count", row.get("blocked_tasks_all_time"), timestamp);
+        }
+    }
+
+    private static void caches(List<Map<String, Object>> rows, SampleVisitor visitor, int timestamp) {
+        for (Map<String, Object> row : rows) {
+            String scope = CACHE_SCOPES.get(row.get("name"));
+            if (scope == null)
+                continue;
+            String base = String.format("org.apache.cassandra.metrics:type=Cache,scope=%s,name=", scope);
+
+            visit(visitor, base + "Capacity", "value", row.get("capacity_bytes"), timestamp);
+            visit(visitor, base + "Size", "value", row.get("size_bytes"), timestamp);
+            visit(visitor, base + "Entries", "value", row.get("entry_count"), timestamp);
+            visit(visitor, base + "HitRate", "value", row.get("hit_ratio"), timestamp);
+            visit(visitor, base + "Hits", "count", row.get("hit_count"), timestamp);
+            visit(visitor, base + "Requests", "count", row.get("request_count"), timestamp);
+        }
+    }
+
+    private static void clients(List<Map<String, Object>> rows, SampleVisitor visitor, int timestamp) {
+        // One row per connection
+        visit(visitor, "org.apache.cassandra.metrics:type=Client,name=connectedNativeClients", "value", rows.size(), timestamp);
+    }
+
+    private static void latencies(String name, List<Map<String, Object>> rows, SampleVisitor visitor, int timestamp) {
+        for (Map<String, Object> row : rows) {
+            String keyspace = (String) row.get("keyspace_name"), table = (String) row.get("table_name");
+            if (keyspace == null || table == null)
+                continue;
+            String oName = String.format("org.apache.cassandra.metrics:type=Table,keyspace=%s,scope=%s,name=%s", keyspace, table, name);
+
+            visit(visitor, oName, "count", row.get("count"), timestamp);
+            visit(visitor, oName, "50percentile", micros(row.get("median_ms")), timestamp);
+            visit(visitor, oName, "99percentile", micros(row.get("p99th_ms")), timestamp);
+            visit(visitor, oName, "max", micros(row.get("max_ms")), timestamp);
+        }
+    }
+
+    /** Milliseconds to microseconds (the unit of JMX latencies). */
+    private static Object micros(Object millis) {
+        return (millis instanceof Number) ? ((Number) millis).doubleValue() * 1000 : null;
+    }
+
+    private static void visit(SampleVisitor visitor, String objectName, String metric, Object value, int timestamp) {
+        if (!(value instanceof Number))
+            return;
+        try {
+            JmxSample sample = new JmxSample();
+            if (sample.trySet(Type.CASSANDRA, new ObjectName(objectName), metric, value, timestamp))
+                visitor.visit(sample);
+        }
+        catch (MalformedObjectNameException e) {
+            LOG.debug("Skipping {}: {}", objectName, e.getMessage());
+        }
+    }
+
+}
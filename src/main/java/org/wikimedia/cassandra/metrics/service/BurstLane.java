@@ -0,0 +1,259 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikimedia.cassandra.metrics.CarbonException;
+import org.wikimedia.cassandra.metrics.CarbonVisitor;
+import org.wikimedia.cassandra.metrics.Discovery;
+import org.wikimedia.cassandra.metrics.Filter;
+import org.wikimedia.cassandra.metrics.Inventory;
+import org.wikimedia.cassandra.metrics.JmxCollector;
+import org.wikimedia.cassandra.metrics.MetricNameCache;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A high-resolution collection lane, opened when a {@link org.wikimedia.cassandra.metrics.BurstTrigger}
+ * fires. For the duration of a window, JVM metrics and a small set of critical Cassandra metrics
+ * (coordinator latencies, dropped messages, and thread pools) are collected every few seconds, and
+ * written under a prefix of their own. Triggering an open lane extends the window. The JMX and
+ * Carbon connections are held open for the window, and closed when it ends.
+ * <p>
+ * The connections are only ever used (and closed) by the lane's own thread, so that the lock guarding
+ * the window is never held across network I/O; Neither triggering (from a {@link Collector}), nor
+ * closing the lane waits on a collection in progress.
+ * </p>
+ */
+class BurstLane implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(BurstLane.class);
+
+    private static final List<ObjectName> CRITICAL = ImmutableList.of(
+            newObjectName("org.apache.cassandra.metrics:type=ClientRequest,*"),
+            newObjectName("org.apache.cassandra.metrics:type=DroppedMessage,*"),
+            newObjectName("org.apache.cassandra.metrics:type=ThreadPools,*"));
+
+    private final Discovery.Jvm jvm;
+    private final String carbonHost;
+    private final int carbonPort;
+    private final String prefix;
+    private final Optional<Filter> filter;
+    private final int window;
+    private final int interval;
+    private final MetricNameCache names;
+    private final Inventory inventory;
+
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> task;
+    private long until;
+    private boolean closed = false;
+
+    // Confined to the executor thread
+    private JmxCollector jmx;
+    private CarbonVisitor carbon;
+
+    /**
+     * Create a burst lane.
+     *
+     * @param jvm
+     *            the Cassandra instance
+     * @param carbonHost
+     *            Carbon hostname
+     * @param carbonPort
+     *            Carbon port number
+     * @param filter
+     *            metric filter
+     * @param names
+     *            metric name cache of the lane (determines the prefix)
+     * @param window
+     *            length of the window (in seconds)
+     * @param interval
+     *            collection interval within the window (in seconds)
+     */
+    BurstLane(Discovery.Jvm jvm, String carbonHost, int carbonPort, Optional<Filter> filter, MetricNameCache names, int window, int interval) {
+        this.jvm = jvm;
+        this.carbonHost = carbonHost;
+        this.carbonPort = carbonPort;
+        this.prefix = names.getPrefix();
+        this.filter = filter;
+        this.window = window;
+        this.interval = interval;
+        this.names = names;
+        this.inventory = new Inventory(filter, this.names);
+
+        checkArgument(this.interval > 0, "burst interval must be greater than zero");
+    }
+
+    /**
+     * Opens the lane (or extends the window of an open one). Does nothing once the lane is closed.
+     *
+     * @param reason
+     *            description of what triggered it (for logging)
+     */
+    synchronized void trigger(String reason) {
+        if (this.closed)
+            return;
+
+        this.until = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(this.window);
+
+        if (this.task != null) {
+            LOG.info("Extending burst collection of {} for {} seconds: {}", this.jvm.getCassandraInstance(), this.window, reason);
+            return;
+        }
+
+        LOG.warn("Starting burst collection of {} for {} seconds: {}", this.jvm.getCassandraInstance(), this.window, reason);
+
+        if (this.executor == null) {
+            this.executor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("burst-" + this.jvm.getCassandraInstance() + "-%d").build());
+        }
+        this.task = this.executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                collect();
+            }
+        }, 0, this.interval, TimeUnit.SECONDS);
+    }
+
+    private void collect() {
+        boolean open;
+        synchronized (this) {
+            if (this.task != null && System.currentTimeMillis() >= this.until) {
+                LOG.info("Burst collection of {} complete", this.jvm.getCassandraInstance());
+                cancel();
+            }
+            // Cancelled by expiry (above), or by close()
+            open = this.task != null;
+        }
+        if (!open) {
+            disconnect();
+            return;
+        }
+
+        try {
+            if (this.jmx == null)
+                this.jmx = connectJmx();
+            if (this.carbon == null)
+                this.carbon = connectCarbon();
+
+            this.jmx.getJvmSamples(this.carbon);
+            for (ObjectName query : CRITICAL)
+                this.jmx.getCassandraSamples(query, this.inventory, this.carbon);
+            this.carbon.flush();
+            this.names.sweep();
+        }
+        // Connections are re-established on the next run
+        catch (IOException | CarbonException e) {
+            LOG.warn("Burst collection of {} failed: {}", this.jvm.getCassandraInstance(), e.getMessage());
+            disconnect();
+        }
+        // Anything else escaping would silently cancel the task (leaving the lane open forever)
+        catch (RuntimeException e) {
+            LOG.error("Burst collection of {} failed", this.jvm.getCassandraInstance(), e);
+            disconnect();
+        }
+    }
+
+    /** Returns a JMX connection to the instance (overridden in tests). */
+    JmxCollector connectJmx() throws IOException {
+        return new JmxCollector(this.jvm.getJmxUrl());
+    }
+
+    /** Returns a visitor writing to Carbon (overridden in tests). */
+    CarbonVisitor connectCarbon() throws CarbonException {
+        return new CarbonVisitor(this.carbonHost, this.carbonPort, this.filter, this.names);
+    }
+
+    private synchronized void cancel() {
+        if (this.task != null) {
+            this.task.cancel(false);
+            this.task = null;
+        }
+    }
+
+    private void disconnect() {
+        if (this.jmx != null) {
+            try {
+                this.jmx.close();
+            }
+            catch (IOException e) {
+                LOG.debug("Error closing burst JMX connection: {}", e.getMessage());
+            }
+            this.jmx = null;
+        }
+        if (this.carbon != null) {
+            try {
+                this.carbon.close();
+            }
+            catch (IOException | CarbonException e) {
+                LOG.debug("Error closing burst connection to carbon: {}", e.getMessage());
+            }
+            this.carbon = null;
+        }
+    }
+
+    /**
+     * Closes the lane. A collection in progress is left to complete (or time out), after which the
+     * lane's thread closes the connections and name cache, and exits.
+     */
+    @Override
+    public synchronized void close() {
+        this.closed = true;
+        cancel();
+        if (this.executor == null) {
+            this.names.close();
+            return;
+        }
+        this.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                disconnect();
+                BurstLane.this.names.close();
+            }
+        });
+        this.executor.shutdown();
+        this.executor = null;
+    }
+
+    @Override
+    public String toString() {
+        return "BurstLane [prefix=" + prefix + ", window=" + window + ", interval=" + interval + ", open=" + (task != null) + "]";
+    }
+
+    private static ObjectName newObjectName(String name) {
+        try {
+            return new ObjectName(name);
+        }
+        catch (MalformedObjectNameException e) {
+            throw new RuntimeException("a bug!", e);
+        }
+    }
+
+}
@@ -21,6 +21,7 @@ import org.quartz.Scheduler;
 import org.quartz.SchedulerException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.wikimedia.cassandra.metrics.MetricNameCache;
 
 public class CollectionListener implements JobListener {
     private static final Logger LOG = LoggerFactory.getLogger(CollectionListener.class);
@@ -49,6 +50,13 @@ public class CollectionListener implements JobListener {
     @Override
     public void jobWasExecuted(JobExecutionContext ctx, JobExecutionException arg1) {
         Collector col = (Collector) ctx.getJobInstance();
+        if (col.getConnectionStats() != null) {
+            this.stats.connection(col.getInstanceName(), col.getConnectionStats());
+        }
+        MetricNameCache names = (col.getState() != null) ? col.getState().getNames() : null;
+        if (names != null) {
+            this.stats.series(col.getInstanceName(), names.getSeries(), names.getLimited());
+        }
         switch (col.getStatus()) {
         case SUCCESS:
             this.stats.success(col.getInstanceName());
@@ -62,6 +70,9 @@ public class CollectionListener implements JobListener {
             try {
                 LOG.error("Collector for {} experienced unrecoverable error, descheduling...", col.getInstanceName());
                 this.scheduler.deleteJob(ctx.getJobDetail().getKey());
+                if (col.getState() != null) {
+                    col.getState().close();
+                }
             }
             catch (SchedulerException e) {
                 LOG.error("Unexpected exception descheduling job", e);
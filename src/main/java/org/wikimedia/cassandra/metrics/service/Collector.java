@@ -19,6 +19,7 @@ import static org.wikimedia.cassandra.metrics.service.Collector.Status.FAILURE;
 import static org.wikimedia.cassandra.metrics.service.Collector.Status.SUCCESS;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.Callable;
 
 import org.quartz.Job;
@@ -26,11 +27,25 @@ import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.wikimedia.cassandra.metrics.BurstTrigger;
 import org.wikimedia.cassandra.metrics.CarbonException;
 import org.wikimedia.cassandra.metrics.CarbonVisitor;
+import org.wikimedia.cassandra.metrics.ConnectionStats;
+import org.wikimedia.cassandra.metrics.DiagnosticCommandSource;
 import org.wikimedia.cassandra.metrics.Discovery;
+import org.wikimedia.cassandra.metrics.Downsampler;
 import org.wikimedia.cassandra.metrics.Filter;
+import org.wikimedia.cassandra.metrics.GcLogSource;
+import org.wikimedia.cassandra.metrics.Inventory;
 import org.wikimedia.cassandra.metrics.JmxCollector;
+import org.wikimedia.cassandra.metrics.JmxEventSource;
+import org.wikimedia.cassandra.metrics.MetricNameCache;
+import org.wikimedia.cassandra.metrics.PerfDataSource;
+import org.wikimedia.cassandra.metrics.ProcSource;
+import org.wikimedia.cassandra.metrics.Rollup;
+import org.wikimedia.cassandra.metrics.SampleVisitor;
+import org.wikimedia.cassandra.metrics.ThreadPoolCpu;
+import org.wikimedia.cassandra.metrics.VirtualTableSource;
 
 import com.google.common.base.Optional;
 
@@ -47,54 +62,196 @@ public class Collector implements Job {
     private String instanceName;
     private Optional<Filter> filter;
     private int interval;
+    private InstanceState state;
     private Status status = FAILURE;
+    private ConnectionStats connectionStats;
 
     @Override
     public void execute(JobExecutionContext context) throws JobExecutionException {
         LOG.debug("Connection to {}", this.jvm.getJmxUrl());
 
+        final BurstTrigger burstTrigger = (this.state != null) ? this.state.getBurstTrigger() : null;
+        final MetricNameCache names = (this.state != null) ? this.state.getNames() : null;
+        final Rollup rollup = (this.state != null) ? this.state.getRollup() : null;
+        final HostAggregator aggregator = (this.state != null) ? this.state.getHostAggregator() : null;
+        final List<Downsampler> downsamplers = (this.state != null) ? this.state.getDownsamplers() : null;
+
         try (final JmxCollector j = new JmxCollector(this.jvm.getJmxUrl())) {
             LOG.debug("Connected to {}", this.jvm.getJmxUrl());
+            this.connectionStats = j.getConnectionStats();
+
+            // (Re)subscribe to events, if enabled; collection proceeds regardless.
+            JmxEventSource events = (this.state != null) ? this.state.getEvents() : null;
+            if (events != null) {
+                try {
+                    events.connect();
+                }
+                catch (IOException e) {
+                    LOG.warn("Unable to subscribe to events of {}: {}", this.instanceName, e.getMessage());
+                }
+            }
+
             LOG.debug("Connecting to {}:{}", this.carbonHost, this.carbonPort);
 
-            try (final CarbonVisitor v = new CarbonVisitor(this.carbonHost, this.carbonPort, prefix(this.instanceName), filter)) {
+            try (final CarbonVisitor carbon = (names != null)
+                    ? new CarbonVisitor(this.carbonHost, this.carbonPort, filter, names)
+                    : new CarbonVisitor(this.carbonHost, this.carbonPort, prefix(this.instanceName), filter)) {
+                SampleVisitor watched = carbon;
+                if (downsamplers != null) {
+                    for (Downsampler downsampler : downsamplers)
+                        watched = downsampler.watch(watched);
+                }
+                watched = (burstTrigger != null) ? burstTrigger.watch(watched) : watched;
+                watched = (aggregator != null) ? aggregator.watch(this.instanceName, watched) : watched;
+                final SampleVisitor v = (rollup != null) ? rollup.watch(watched) : watched;
                 LOG.debug("Collecting...");
                 new TimedTask<Void>(Math.min(interval, 60)).submit(new Callable<Void>() {
                     @Override
                     public Void call() throws Exception {
-                        j.getSamples(v);
+                        PerfDataSource perfData = (state != null) ? state.getPerfData() : null;
+                        if (perfData != null) {
+                            perfData.getSamples(v);
+                        }
+                        else {
+                            j.getJvmSamples(v);
+                        }
+
+                        DiagnosticCommandSource diagnostics = (state != null) ? state.getDiagnostics() : null;
+                        if (diagnostics != null) {
+                            diagnostics.getSamples(v);
+                        }
+
+                        GcLogSource gcLog = (state != null) ? state.getGcLog() : null;
+                        if (gcLog != null) {
+                            gcLog.getSamples(v);
+                        }
+
+                        ProcSource proc = (state != null) ? state.getProc() : null;
+                        if (proc != null) {
+                            proc.getSamples(v);
+                        }
+
+                        getCassandraSamples(j, state, v);
+
+                        // Latency sketches to merge into host-wide percentiles
+                        if (aggregator != null) {
+                            aggregator.collectSketches(instanceName, j);
+                        }
+
+                        // Keyspace and node level aggregates of the tables collected
+                        if (rollup != null) {
+                            rollup.emit(v);
+                        }
+
+                        ThreadPoolCpu threadPoolCpu = (state != null) ? state.getThreadPoolCpu() : null;
+                        if (threadPoolCpu != null) {
+                            j.getThreadPoolCpuSamples(threadPoolCpu, v);
+                        }
                         return null;
                     }
                 });
             }
-            // CarbonException can be thrown by the CarbonVisitor ctor, any other exception (including
-            // CarbonExceptions thrown during writes) will be encapsulated in a TimedTaskException.
+            // CarbonException can be thrown by the CarbonVisitor ctor, or when writing what remains
+            // buffered on close; Any other exception (including CarbonExceptions thrown during writes)
+            // will be encapsulated in a TimedTaskException.
             catch (CarbonException e) {
-                LOG.error("Error connecting to carbon", e);
+                LOG.error("Error connecting or writing to carbon", e);
                 this.status = FAILURE;
+                complete(aggregator, false);
                 return;
             }
             catch (TimedTaskException e) {
                 LOG.error("Error executing timed task", e);
                 this.status = FAILURE;
+                complete(aggregator, false);
                 return;
             }
         }
         catch (IOException e) {
             LOG.error("JMX collection error", e);
             this.status = ERROR;
+            complete(aggregator, false);
             return;
         }
 
+        // Evict the names of metrics that have gone away
+        if (names != null) {
+            names.sweep();
+        }
+
+        // Write the downsampled series of windows that have closed
+        if (downsamplers != null) {
+            int now = (int) (System.currentTimeMillis() / 1000);
+            for (Downsampler downsampler : downsamplers) {
+                if (downsampler.isDue(now)) {
+                    emit(downsampler, now);
+                }
+            }
+        }
+
+        // Open a high-resolution lane if a watched metric crossed its threshold
+        String reason = (burstTrigger != null) ? burstTrigger.poll() : null;
+        if (reason != null) {
+            this.state.getBurstLane().trigger(reason);
+        }
+
+        // Host-wide totals are written once every instance has completed the cycle
+        complete(aggregator, true);
+
         LOG.info("Collection of {} complete; Samples written to {}:{}", this.instanceName, this.carbonHost, this.carbonPort);
         this.status = SUCCESS;
         return;
     }
 
+    /**
+     * Collects Cassandra metrics. Those read from virtual tables (where enabled) are not fetched
+     * again over JMX; If reading the virtual tables fails, everything is collected over JMX.
+     */
+    static void getCassandraSamples(JmxCollector j, InstanceState state, SampleVisitor visitor) throws IOException {
+        Inventory inventory = (state != null) ? state.getInventory() : null;
+        if (inventory == null) {
+            j.getCassandraSamples(visitor);
+            return;
+        }
+
+        VirtualTableSource virtualTables = state.getVirtualTables();
+        if (virtualTables != null) {
+            try {
+                virtualTables.getSamples(inventory.exclude(visitor));
+            }
+            catch (IOException e) {
+                LOG.warn("Error reading {}; Collecting over JMX instead: {}", virtualTables, e.getMessage());
+                inventory.includeAll();
+            }
+        }
+        j.getCassandraSamples(inventory, visitor);
+    }
+
+    private void emit(Downsampler downsampler, int now) {
+        try (CarbonVisitor carbon = new CarbonVisitor(this.carbonHost, this.carbonPort, this.filter, downsampler.getNames())) {
+            downsampler.emit(carbon, now);
+        }
+        catch (CarbonException | IOException e) {
+            LOG.warn("Error writing downsampled metrics of {}: {}", this.instanceName, e.getMessage());
+        }
+        downsampler.getNames().sweep();
+    }
+
+    private void complete(HostAggregator aggregator, boolean success) {
+        if (aggregator != null) {
+            aggregator.complete(this.instanceName, success);
+        }
+    }
+
     public Status getStatus() {
         return this.status;
     }
 
+    /** Returns wire-level stats for the JMX connection of this collection (or null if none was made). */
+    public ConnectionStats getConnectionStats() {
+        return this.connectionStats;
+    }
+
     public String getInstanceName() {
         return this.instanceName;
     }
@@ -127,13 +284,21 @@ public class Collector implements Job {
         this.interval = interval;
     }
 
+    InstanceState getState() {
+        return this.state;
+    }
+
+    public void setState(InstanceState state) {
+        this.state = state;
+    }
+
     @Override
     public String toString() {
         return "Collector [jvm=" + jvm + ", carbonHost=" + carbonHost + ", carbonPort=" + carbonPort + ", instanceName="
-                + instanceName + ", filter=" + filter + ", interval=" + interval + ", status=" + status + "]";
+                + instanceName + ", filter=" + filter + ", interval=" + interval + ", state=" + state + ", status=" + status + "]";
     }
 
-    private static String prefix(String id) {
+    static String prefix(String id) {
         return String.format("%s.%s", Service.PREFIX_PREFIX, id);
     }
 
@@ -17,8 +17,12 @@ package org.wikimedia.cassandra.metrics.service;
 import static org.quartz.SimpleScheduleBuilder.simpleSchedule;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.quartz.Job;
 import org.quartz.JobBuilder;
@@ -34,22 +38,61 @@ import org.quartz.TriggerBuilder;
 import org.quartz.impl.matchers.GroupMatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.wikimedia.cassandra.metrics.BurstTrigger;
+import org.wikimedia.cassandra.metrics.DiagnosticCommandSource;
 import org.wikimedia.cassandra.metrics.Discovery;
+import org.wikimedia.cassandra.metrics.DownsampleConfig;
+import org.wikimedia.cassandra.metrics.Downsampler;
+import org.wikimedia.cassandra.metrics.Filter;
+import org.wikimedia.cassandra.metrics.GcLogSource;
+import org.wikimedia.cassandra.metrics.Inventory;
 import org.wikimedia.cassandra.metrics.JmxCollector;
+import org.wikimedia.cassandra.metrics.JmxEventSource;
+import org.wikimedia.cassandra.metrics.MetricNameCache;
+import org.wikimedia.cassandra.metrics.NamingPlans;
+import org.wikimedia.cassandra.metrics.PerfDataSource;
+import org.wikimedia.cassandra.metrics.ProcSource;
+import org.wikimedia.cassandra.metrics.Rollup;
+import org.wikimedia.cassandra.metrics.RollupConfig;
+import org.wikimedia.cassandra.metrics.ThreadPoolCpu;
+import org.wikimedia.cassandra.metrics.VirtualTableConfig;
+import org.wikimedia.cassandra.metrics.VirtualTableSource;
 
 import com.google.common.base.Function;
+import com.google.common.base.Optional;
 import com.google.common.collect.Collections2;
+import com.google.common.collect.Lists;
 
 public class Discover implements Job {
 
     private static final Logger LOG = LoggerFactory.getLogger(Discover.class);
 
+    /** Interval (in milliseconds) to poll running compactions for events. */
+    private static final int COMPACTION_POLL_INTERVAL = 1000;
+
     private InstanceCache instances;
     private Scheduler scheduler;
     private int interval;
     private String carbonHost;
     private int carbonPort;
     private Object filter;
+    private NamingPlans namingPlans;
+    private int seriesLimit;
+    private RollupConfig rollups;
+    private DownsampleConfig downsamples;
+    private HostAggregator hostAggregator;
+    private boolean perfData;
+    private int diagnosticsInterval;
+    private boolean threadPoolCpu;
+    private boolean gcLog;
+    private String gcLogOffsets;
+    private boolean procStats;
+    private VirtualTableConfig virtualTables;
+    private boolean events;
+    private int burstWindow;
+    private int burstInterval;
+    private int burstLatency;
+    private int burstDropped;
 
     @Override
     public void execute(JobExecutionContext context) throws JobExecutionException {
@@ -75,6 +118,8 @@ public class Discover implements Job {
                     dataMap.put("instanceName", jvm.getCassandraInstance());
                     dataMap.put("filter", filter);
                     dataMap.put("interval", interval);
+                    InstanceState state = newInstanceState(jvm);
+                    dataMap.put("state", state);
 
                     JobDetail job = JobBuilder.newJob(Collector.class)
                             .withIdentity(jvm.getCassandraInstance(), "collectionGroup")
@@ -83,7 +128,14 @@ public class Discover implements Job {
 
                     LOG.debug("Scheduling recurring metrics collection for {}", jvm.getCassandraInstance());
 
-                    this.scheduler.scheduleJob(job, newTrigger(jvm.getCassandraInstance(), this.interval));
+                    try {
+                        this.scheduler.scheduleJob(job, newTrigger(jvm.getCassandraInstance(), this.interval));
+                    }
+                    catch (SchedulerException | RuntimeException e) {
+                        // No job will ever close it
+                        state.close();
+                        throw e;
+                    }
                     this.instances.add(jvm.getCassandraInstance(), jvm);
                 }
                 catch (IOException e) {
@@ -133,10 +185,187 @@ public class Discover implements Job {
         this.filter = filter;
     }
 
+    public void setNamingPlans(NamingPlans namingPlans) {
+        this.namingPlans = namingPlans;
+    }
+
+    public void setSeriesLimit(int seriesLimit) {
+        this.seriesLimit = seriesLimit;
+    }
+
+    public void setRollups(RollupConfig rollups) {
+        this.rollups = rollups;
+    }
+
+    public void setDownsamples(DownsampleConfig downsamples) {
+        this.downsamples = downsamples;
+    }
+
+    public void setHostAggregator(HostAggregator hostAggregator) {
+        this.hostAggregator = hostAggregator;
+    }
+
+    public void setPerfData(boolean perfData) {
+        this.perfData = perfData;
+    }
+
+    public void setDiagnosticsInterval(int diagnosticsInterval) {
+        this.diagnosticsInterval = diagnosticsInterval;
+    }
+
+    public void setThreadPoolCpu(boolean threadPoolCpu) {
+        this.threadPoolCpu = threadPoolCpu;
+    }
+
+    public void setGcLog(boolean gcLog) {
+        this.gcLog = gcLog;
+    }
+
+    public void setGcLogOffsets(String gcLogOffsets) {
+        this.gcLogOffsets = gcLogOffsets;
+    }
+
+    public void setProcStats(boolean procStats) {
+        this.procStats = procStats;
+    }
+
+    public void setVirtualTables(VirtualTableConfig virtualTables) {
+        this.virtualTables = virtualTables;
+    }
+
+    public void setEvents(boolean events) {
+        this.events = events;
+    }
+
+    public void setBurstWindow(int burstWindow) {
+        this.burstWindow = burstWindow;
+    }
+
+    public void setBurstInterval(int burstInterval) {
+        this.burstInterval = burstInterval;
+    }
+
+    public void setBurstLatency(int burstLatency) {
+        this.burstLatency = burstLatency;
+    }
+
+    public void setBurstDropped(int burstDropped) {
+        this.burstDropped = burstDropped;
+    }
+
     @Override
     public String toString() {
         return "Discover [instances=" + instances + ", scheduler=" + scheduler + ", interval=" + interval + ", carbonHost="
-                + carbonHost + ", carbonPort=" + carbonPort + ", filter=" + filter + "]";
+                + carbonHost + ", carbonPort=" + carbonPort + ", filter=" + filter + ", namingPlans=" + namingPlans + ", seriesLimit=" + seriesLimit + ", rollups=" + rollups + ", downsamples=" + downsamples + ", hostAggregator=" + hostAggregator + ", perfData=" + perfData + ", diagnosticsInterval=" + diagnosticsInterval
+                + ", threadPoolCpu=" + threadPoolCpu + ", gcLog=" + gcLog + ", gcLogOffsets=" + gcLogOffsets + ", procStats=" + procStats + ", virtualTables=" + virtualTables + ", events=" + events + ", burstWindow=" + burstWindow
+                + ", burstInterval=" + burstInterval + ", burstLatency=" + burstLatency + ", burstDropped=" + burstDropped + "]";
+    }
+
+    private InstanceState newInstanceState(Discovery.Jvm jvm) {
+        InstanceState state = new InstanceState();
+        state.setNames(new MetricNameCache(Collector.prefix(jvm.getCassandraInstance()), this.namingPlans, this.seriesLimit));
+
+        if (this.perfData) {
+            if (jvm.getPid() == null) {
+                LOG.warn("PID of {} unknown; Collecting JVM metrics over JMX", jvm.getCassandraInstance());
+            }
+            else {
+                try {
+                    state.setPerfData(new PerfDataSource(jvm.getPid()));
+                }
+                catch (IOException e) {
+                    LOG.warn("Collecting JVM metrics of {} over JMX: {}", jvm.getCassandraInstance(), e.getMessage());
+                }
+            }
+        }
+
+        if (this.diagnosticsInterval > 0 && jvm.getPid() != null) {
+            try {
+                state.setDiagnostics(new DiagnosticCommandSource(jvm.getPid(), this.diagnosticsInterval));
+            }
+            catch (IOException e) {
+                LOG.warn("Diagnostic commands unavailable for {}: {}", jvm.getCassandraInstance(), e.getMessage());
+            }
+        }
+
+        if (this.threadPoolCpu) {
+            state.setThreadPoolCpu(new ThreadPoolCpu());
+        }
+
+        if (this.gcLog && jvm.getPid() != null) {
+            try {
+                String path = GcLogSource.gcLogPath(jvm.getPid());
+                if (path == null) {
+                    LOG.warn("{} not started with -Xloggc; Not tailing GC log", jvm.getCassandraInstance());
+                }
+                else {
+                    LOG.debug("Tailing GC log {} of {}", path, jvm.getCassandraInstance());
+                    Path offsets = (this.gcLogOffsets != null) ? Paths.get(this.gcLogOffsets, jvm.getCassandraInstance() + ".gc-log-offset") : null;
+                    state.setGcLog(new GcLogSource(path, jvm.getPid(), offsets));
+                }
+            }
+            catch (IOException e) {
+                LOG.warn("Unable to locate GC log of {}: {}", jvm.getCassandraInstance(), e.getMessage());
+            }
+        }
+
+        if (this.procStats && jvm.getPid() != null) {
+            try {
+                state.setProc(new ProcSource(jvm.getPid()));
+            }
+            catch (IOException e) {
+                LOG.warn("Process statistics unavailable for {}: {}", jvm.getCassandraInstance(), e.getMessage());
+            }
+        }
+
+        if (this.virtualTables != null) {
+            String address = this.virtualTables.getInstances().get(jvm.getCassandraInstance());
+            if (address != null) {
+                LOG.debug("Collecting Cassandra metrics of {} from virtual tables at {}", jvm.getCassandraInstance(), address);
+                state.setVirtualTables(new VirtualTableSource(
+                        address,
+                        this.virtualTables.getUsername(),
+                        this.virtualTables.getPassword(),
+                        this.virtualTables.getTimeout()));
+            }
+        }
+
+        Optional<Filter> filter = (this.filter != null) ? Optional.of((Filter) this.filter) : Optional.<Filter>absent();
+
+        // Attributes the filter rejects are never fetched
+        state.setInventory(new Inventory(filter, state.getNames()));
+
+        if (this.rollups != null) {
+            state.setRollup(new Rollup(this.rollups));
+        }
+
+        if (this.downsamples != null) {
+            List<Downsampler> downsamplers = Lists.newArrayList();
+            for (DownsampleConfig.Tier tier : this.downsamples.getTiers()) {
+                String prefix = String.format("%s.%s", tier.getPrefix(), jvm.getCassandraInstance());
+                downsamplers.add(new Downsampler(tier, new MetricNameCache(prefix, this.namingPlans, this.seriesLimit)));
+            }
+            state.setDownsamplers(downsamplers);
+        }
+
+        if (this.hostAggregator != null) {
+            this.hostAggregator.register(jvm.getCassandraInstance());
+            state.setHostAggregator(this.hostAggregator, jvm.getCassandraInstance());
+        }
+
+        if (this.events) {
+            EventSink sink = new EventSink(this.carbonHost, this.carbonPort, Collector.prefix(jvm.getCassandraInstance()), filter);
+            state.setEvents(new JmxEventSource(jvm.getJmxUrl(), sink, COMPACTION_POLL_INTERVAL), sink);
+        }
+
+        if (this.burstWindow > 0 && (this.burstLatency > 0 || this.burstDropped > 0)) {
+            String prefix = String.format("%s.%s", Service.BURST_PREFIX_PREFIX, jvm.getCassandraInstance());
+            state.setBurst(
+                    new BurstTrigger(TimeUnit.MILLISECONDS.toMicros(this.burstLatency), this.burstDropped),
+                    new BurstLane(jvm, this.carbonHost, this.carbonPort, filter, new MetricNameCache(prefix, this.namingPlans, this.seriesLimit), this.burstWindow, this.burstInterval));
+        }
+
+        return state;
     }
 
     private static Trigger newTrigger(String instance, int interval) {
@@ -0,0 +1,88 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics.service;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikimedia.cassandra.metrics.CarbonException;
+import org.wikimedia.cassandra.metrics.CarbonVisitor;
+import org.wikimedia.cassandra.metrics.Filter;
+import org.wikimedia.cassandra.metrics.JmxSample;
+import org.wikimedia.cassandra.metrics.SampleVisitor;
+
+import com.google.common.base.Optional;
+
+/**
+ * Writes event samples to Carbon as they arrive, over a connection that outlives a single
+ * collection. The connection is made on first use, and re-established on the next event after a
+ * write error (events in between are dropped).
+ */
+class EventSink implements SampleVisitor, AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(EventSink.class);
+
+    private final String carbonHost;
+    private final int carbonPort;
+    private final String prefix;
+    private final Optional<Filter> filter;
+
+    private CarbonVisitor visitor;
+
+    EventSink(String carbonHost, int carbonPort, String prefix, Optional<Filter> filter) {
+        this.carbonHost = carbonHost;
+        this.carbonPort = carbonPort;
+        this.prefix = prefix;
+        this.filter = filter;
+    }
+
+    @Override
+    public synchronized void visit(JmxSample sample) {
+        try {
+            if (this.visitor == null)
+                this.visitor = connect();
+            this.visitor.visit(sample);
+            this.visitor.flush();
+        }
+        catch (CarbonException e) {
+            LOG.warn("Dropping event {}: {}", sample, e.getMessage());
+            close();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (this.visitor != null) {
+            try {
+                this.visitor.close();
+            }
+            catch (IOException | CarbonException e) {
+                LOG.debug("Error closing event connection to carbon: {}", e.getMessage());
+            }
+            this.visitor = null;
+        }
+    }
+
+    /** Returns a visitor writing to Carbon (overridden in tests). */
+    CarbonVisitor connect() throws CarbonException {
+        return new CarbonVisitor(this.carbonHost, this.carbonPort, this.prefix, this.filter);
+    }
+
+    @Override
+    public String toString() {
+        return "EventSink [carbonHost=" + carbonHost + ", carbonPort=" + carbonPort + ", prefix=" + prefix + "]";
+    }
+
+}
@@ -0,0 +1,457 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics.service;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikimedia.cassandra.metrics.BatchVisitor;
+import org.wikimedia.cassandra.metrics.CarbonException;
+import org.wikimedia.cassandra.metrics.CarbonVisitor;
+import org.wikimedia.cassandra.metrics.Filter;
+import org.wikimedia.cassandra.metrics.JmxCollector;
+import org.wikimedia.cassandra.metrics.JmxSample;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+import org.wikimedia.cassandra.metrics.LatencySketch;
+import org.wikimedia.cassandra.metrics.MetricNameCache;
+import org.wikimedia.cassandra.metrics.SampleBatch;
+import org.wikimedia.cassandra.metrics.SampleBatchAdapter;
+import org.wikimedia.cassandra.metrics.SampleVisitor;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Aggregates Cassandra counters ({@code count}) and gauges ({@code value}) across the instances of a
+ * host, and writes them as though they were those of an instance of their own, shared by all
+ * {@link Collector} jobs.
+ * <p>
+ * Counters, and gauges of additive quantities (sizes, task counts, and so on), are summed. Gauges
+ * that are not, by the {@code name} property of their beans, are instead averaged (ratios, rates,
+ * percentages, and means, such as {@code HitRate} or {@code CompressionRatio}), maxed (maxima, such
+ * as {@code MaxPartitionSize} or {@code MaxPoolSize}), or skipped (minima).
+ * </p>
+ * <p>
+ * Collections are grouped into cycles: A cycle is written once every registered instance has
+ * completed a collection in it. A failed collection, or an instance completing a second collection
+ * before the others have completed their first (a lapped cycle), discards the cycle, so that totals
+ * never undercount. Each instance's values are double-buffered, so that a collection in progress does
+ * not disturb those of a completed one.
+ * </p>
+ * <p>
+ * Percentiles cannot be summed (nor averaged), so the percentiles of selected timers and histograms
+ * (coordinator latencies, by default) are instead computed from the merge of each instance's
+ * {@link LatencySketch}.
+ * </p>
+ */
+class HostAggregator {
+    private static final Logger LOG = LoggerFactory.getLogger(HostAggregator.class);
+
+    /** Functions aggregating a metric across instances. */
+    enum Function {
+        SUM, MAX, MEAN;
+    }
+
+    /** Gauges (by name property) averaged across instances. */
+    private static final Pattern MEAN_GAUGES = Pattern.compile(".*(Ratio|Rate)|Percent.*|Mean.*");
+    /** Gauges (by name property) maxed across instances. */
+    private static final Pattern MAX_GAUGES = Pattern.compile("Max.*");
+    /** Gauges (by name property) not aggregated at all. */
+    private static final Pattern SKIPPED_GAUGES = Pattern.compile("Min.*");
+
+    /** A value of a metric, reused between collections (or an aggregate of those of instances). */
+    private static class Cell {
+        private boolean integral;
+        private long longValue;
+        private double doubleValue;
+        private int generation;
+        private int instances;
+    }
+
+    /** The values of an instance's collection. */
+    private static class Contribution {
+        private final Map<ObjectName, Map<String, Cell>> cells = Maps.newHashMap();
+        private final Map<ObjectName, LatencySketch> sketches = Maps.newHashMap();
+        private int generation = 0;
+        private int timestamp = 0;
+
+        private void reset() {
+            this.generation++;
+            this.timestamp = 0;
+        }
+
+        private synchronized void add(ObjectName oName, String metric, boolean integral, long longValue, double doubleValue, int timestamp) {
+            Map<String, Cell> metrics = this.cells.get(oName);
+            if (metrics == null) {
+                metrics = Maps.newHashMap();
+                this.cells.put(oName, metrics);
+            }
+            Cell cell = metrics.get(metric);
+            if (cell == null) {
+                cell = new Cell();
+                metrics.put(metric, cell);
+            }
+            cell.integral = integral;
+            cell.longValue = longValue;
+            cell.doubleValue = doubleValue;
+            cell.generation = this.generation;
+            this.timestamp = Math.max(this.timestamp, timestamp);
+        }
+
+        /** Evicts the values of metrics absent from the current collection. */
+        private synchronized void sweep() {
+            for (Iterator<Map<String, Cell>> beans = this.cells.values().iterator(); beans.hasNext();) {
+                Map<String, Cell> metrics = beans.next();
+                for (Iterator<Cell> cells = metrics.values().iterator(); cells.hasNext();) {
+                    if (cells.next().generation != this.generation)
+                        cells.remove();
+                }
+                if (metrics.isEmpty())
+                    beans.remove();
+            }
+        }
+    }
+
+    /** Collection in progress, and most recently completed collection, of an instance. */
+    private static class Instance {
+        private Contribution working = new Contribution();
+        private Contribution completed = new Contribution();
+    }
+
+    private final String carbonHost;
+    private final int carbonPort;
+    private final Optional<Filter> filter;
+    private final MetricNameCache names;
+    private final Optional<ObjectName> sketches;
+
+    private static final double[] QUANTILES = { 0.5, 0.75, 0.95, 0.98, 0.99, 0.999 };
+    private static final String[] PERCENTILES = { "50percentile", "75percentile", "95percentile", "98percentile", "99percentile", "999percentile" };
+
+    private final Map<String, Instance> instances = Maps.newHashMap();
+    private final Set<String> reported = Sets.newHashSet();
+    private int cycles = 0;
+    private int discarded = 0;
+
+    /**
+     * Create a host aggregator.
+     *
+     * @param carbonHost
+     *            Carbon hostname
+     * @param carbonPort
+     *            Carbon port number
+     * @param filter
+     *            metric filter
+     * @param names
+     *            metric name cache of the aggregate (determines the prefix)
+     * @param sketches
+     *            object name (pattern) of the timers and histograms whose percentiles are merged
+     */
+    HostAggregator(String carbonHost, int carbonPort, Optional<Filter> filter, MetricNameCache names, Optional<ObjectName> sketches) {
+        this.carbonHost = checkNotNull(carbonHost, "carbonHost argument");
+        this.carbonPort = carbonPort;
+        this.filter = checkNotNull(filter, "filter argument");
+        this.names = checkNotNull(names, "names argument");
+        this.sketches = checkNotNull(sketches, "sketches argument");
+    }
+
+    /** Adds an instance; Cycles are incomplete until it has completed a collection. */
+    synchronized void register(String instance) {
+        if (!this.instances.containsKey(instance))
+            this.instances.put(instance, new Instance());
+    }
+
+    /** Removes an instance (one that has been descheduled). */
+    synchronized void unregister(String instance) {
+        this.instances.remove(instance);
+        this.reported.remove(instance);
+    }
+
+    /**
+     * Returns a visitor that records an instance's counters and gauges before passing samples on to
+     * another, beginning a new collection of the instance.
+     *
+     * @param instance
+     *            the instance name
+     * @param visitor
+     *            visitor to pass samples to
+     * @return a recording visitor
+     */
+    BatchVisitor watch(String instance, SampleVisitor visitor) {
+        final BatchVisitor delegate = SampleBatchAdapter.of(checkNotNull(visitor, "visitor argument"));
+        final Contribution contribution;
+        synchronized (this) {
+            Instance state = this.instances.get(instance);
+            if (state == null)
+                return delegate;
+            contribution = state.working;
+            contribution.reset();
+        }
+
+        return new BatchVisitor() {
+            @Override
+            public void visit(JmxSample sample) {
+                if (wanted(sample.getType(), sample.getMetricName())) {
+                    contribution.add(
+                            sample.getObjectName(),
+                            sample.getMetricName(),
+                            sample.isIntegral(),
+                            sample.getLongValue(),
+                            sample.getDoubleValue(),
+                            sample.getTimestamp());
+                }
+                delegate.visit(sample);
+            }
+
+            @Override
+            public void visit(SampleBatch batch) {
+                for (int i = 0; i < batch.size(); i++) {
+                    if (wanted(batch.getType(), batch.getMetricName(i))) {
+                        contribution.add(
+                                batch.getObjectName(),
+                                batch.getMetricName(i),
+                                batch.isIntegral(i),
+                                batch.getLongValue(i),
+                                batch.getDoubleValue(i),
+                                batch.getTimestamp());
+                    }
+                }
+                delegate.visit(batch);
+            }
+        };
+    }
+
+    /**
+     * Collects the latency sketches of an instance's collection (if enabled).
+     *
+     * @param instance
+     *            the instance name
+     * @param jmx
+     *            the instance's JMX collector
+     * @throws IOException
+     *             on communication errors
+     */
+    void collectSketches(String instance, JmxCollector jmx) throws IOException {
+        if (!this.sketches.isPresent())
+            return;
+        Contribution contribution;
+        synchronized (this) {
+            Instance state = this.instances.get(instance);
+            if (state == null)
+                return;
+            contribution = state.working;
+        }
+        synchronized (contribution) {
+            jmx.getLatencySketches(this.sketches.get(), contribution.sketches);
+        }
+    }
+
+    /**
+     * Marks the end of an instance's collection, writing the cycle's totals if it was the last
+     * outstanding.
+     *
+     * @param instance
+     *            the instance name
+     * @param success
+     *            true if the collection completed successfully
+     */
+    void complete(String instance, boolean success) {
+        Map<ObjectName, SampleBatch> totals;
+
+        synchronized (this) {
+            Instance state = this.instances.get(instance);
+            if (state == null)
+                return;
+
+            if (!success) {
+                discard("failed collection of " + instance);
+                return;
+            }
+
+            if (this.reported.contains(instance))
+                discard("lapped by " + instance);
+
+            // Swap buffers; The completed collection is retained until the next completes.
+            Contribution completed = state.working;
+            completed.sweep();
+            state.working = state.completed;
+            state.completed = completed;
+            this.reported.add(instance);
+
+            if (!this.reported.containsAll(this.instances.keySet()))
+                return;
+
+            totals = totals();
+            this.reported.clear();
+            this.cycles++;
+        }
+
+        write(totals);
+    }
+
+    private void discard(String reason) {
+        if (!this.reported.isEmpty()) {
+            LOG.debug("Discarding incomplete host aggregate cycle ({})", reason);
+            this.discarded++;
+        }
+        this.reported.clear();
+    }
+
+    /** Sums the completed collections of all instances. */
+    private Map<ObjectName, SampleBatch> totals() {
+        Map<ObjectName, Map<String, Cell>> sums = Maps.newHashMap();
+        int timestamp = 0;
+
+        for (Instance state : this.instances.values()) {
+            Contribution contribution = state.completed;
+            synchronized (contribution) {
+                timestamp = Math.max(timestamp, contribution.timestamp);
+                for (Map.Entry<ObjectName, Map<String, Cell>> bean : contribution.cells.entrySet()) {
+                    Map<String, Cell> metrics = sums.get(bean.getKey());
+                    if (metrics == null) {
+                        metrics = Maps.newHashMap();
+                        sums.put(bean.getKey(), metrics);
+                    }
+                    for (Map.Entry<String, Cell> entry : bean.getValue().entrySet()) {
+                        Function function = function(bean.getKey(), entry.getKey());
+                        if (function == null)
+                            continue;
+                        Cell sum = metrics.get(entry.getKey());
+                        if (sum == null) {
+                            sum = new Cell();
+                            sum.integral = function != Function.MEAN;
+                            metrics.put(entry.getKey(), sum);
+                        }
+                        Cell cell = entry.getValue();
+                        double value = cell.integral ? cell.longValue : cell.doubleValue;
+                        if (function == Function.MAX) {
+                            if (sum.instances == 0 || value > sum.doubleValue) {
+                                sum.integral = cell.integral;
+                                sum.longValue = cell.longValue;
+                                sum.doubleValue = value;
+                            }
+                        }
+                        else {
+                            sum.integral &= cell.integral;
+                            sum.longValue += cell.longValue;
+                            sum.doubleValue += value;
+                        }
+                        sum.instances++;
+                    }
+                }
+            }
+        }
+
+        Map<ObjectName, SampleBatch> totals = Maps.newHashMap();
+        for (Map.Entry<ObjectName, Map<String, Cell>> bean : sums.entrySet()) {
+            SampleBatch batch = new SampleBatch().reset(Type.CASSANDRA, bean.getKey(), timestamp);
+            for (Map.Entry<String, Cell> entry : bean.getValue().entrySet()) {
+                Cell cell = entry.getValue();
+                if (cell.integral)
+                    batch.add(entry.getKey(), cell.longValue);
+                else if (function(bean.getKey(), entry.getKey()) == Function.MEAN)
+                    batch.add(entry.getKey(), cell.doubleValue / cell.instances);
+                else
+                    batch.add(entry.getKey(), cell.doubleValue);
+            }
+            totals.put(bean.getKey(), batch);
+        }
+
+        // Percentiles of the merged sketches
+        for (Map.Entry<ObjectName, LatencySketch> entry : mergeSketches().entrySet()) {
+            LatencySketch sketch = entry.getValue();
+            if (sketch.count() == 0)
+                continue;
+            SampleBatch batch = totals.get(entry.getKey());
+            if (batch == null) {
+                batch = new SampleBatch().reset(Type.CASSANDRA, entry.getKey(), timestamp);
+                totals.put(entry.getKey(), batch);
+            }
+            for (int i = 0; i < QUANTILES.length; i++)
+                batch.add(PERCENTILES[i], (double) sketch.quantile(QUANTILES[i]));
+        }
+
+        return totals;
+    }
+
+    private Map<ObjectName, LatencySketch> mergeSketches() {
+        Map<ObjectName, LatencySketch> merged = Maps.newHashMap();
+        for (Instance state : this.instances.values()) {
+            synchronized (state.completed) {
+                for (Map.Entry<ObjectName, LatencySketch> entry : state.completed.sketches.entrySet()) {
+                    LatencySketch sketch = merged.get(entry.getKey());
+                    if (sketch == null) {
+                        sketch = new LatencySketch();
+                        merged.put(entry.getKey(), sketch);
+                    }
+                    sketch.merge(entry.getValue());
+                }
+            }
+        }
+        return merged;
+    }
+
+    private void write(Map<ObjectName, SampleBatch> totals) {
+        try (CarbonVisitor carbon = connect()) {
+            for (SampleBatch batch : totals.values())
+                carbon.visit(batch);
+        }
+        catch (CarbonException | IOException e) {
+            LOG.warn("Error writing host aggregates to {}:{}: {}", this.carbonHost, this.carbonPort, e.getMessage());
+            return;
+        }
+        this.names.sweep();
+    }
+
+    /** Returns a visitor writing to Carbon (overridden in tests). */
+    CarbonVisitor connect() throws CarbonException {
+        return new CarbonVisitor(this.carbonHost, this.carbonPort, this.filter, this.names);
+    }
+
+    /** Returns the function aggregating a metric across instances, or null if it is not aggregated. */
+    static Function function(ObjectName oName, String metric) {
+        if (metric.equals("count"))
+            return Function.SUM;
+        String name = oName.getKeyProperty("name");
+        if (name == null)
+            return Function.SUM;
+        if (SKIPPED_GAUGES.matcher(name).matches())
+            return null;
+        if (MEAN_GAUGES.matcher(name).matches())
+            return Function.MEAN;
+        if (MAX_GAUGES.matcher(name).matches())
+            return Function.MAX;
+        return Function.SUM;
+    }
+
+    private static boolean wanted(Type type, String metric) {
+        return type.equals(Type.CASSANDRA) && (metric.equals("count") || metric.equals("value"));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "HostAggregator [prefix=" + names.getPrefix() + ", instances=" + instances.keySet() + ", sketches=" + sketches + ", cycles=" + cycles + ", discarded=" + discarded + "]";
+    }
+
+}
@@ -0,0 +1,257 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikimedia.cassandra.metrics.BurstTrigger;
+import java.util.List;
+
+import org.wikimedia.cassandra.metrics.DiagnosticCommandSource;
+import org.wikimedia.cassandra.metrics.Downsampler;
+import org.wikimedia.cassandra.metrics.GcLogSource;
+import org.wikimedia.cassandra.metrics.Inventory;
+import org.wikimedia.cassandra.metrics.JmxEventSource;
+import org.wikimedia.cassandra.metrics.MetricNameCache;
+import org.wikimedia.cassandra.metrics.PerfDataSource;
+import org.wikimedia.cassandra.metrics.ProcSource;
+import org.wikimedia.cassandra.metrics.Rollup;
+import org.wikimedia.cassandra.metrics.ThreadPoolCpu;
+import org.wikimedia.cassandra.metrics.VirtualTableSource;
+
+/**
+ * Per-instance state that outlives a single collection. A {@link Collector} job instance is created
+ * for each execution, so anything that should be kept between collections lives here (and is passed
+ * to the job via its data map).
+ */
+class InstanceState implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(InstanceState.class);
+
+    private PerfDataSource perfData;
+    private DiagnosticCommandSource diagnostics;
+    private ThreadPoolCpu threadPoolCpu;
+    private GcLogSource gcLog;
+    private ProcSource proc;
+    private VirtualTableSource virtualTables;
+    private JmxEventSource events;
+    private EventSink eventSink;
+    private BurstTrigger burstTrigger;
+    private BurstLane burstLane;
+    private MetricNameCache names;
+    private Inventory inventory;
+    private Rollup rollup;
+    private List<Downsampler> downsamplers;
+    private HostAggregator hostAggregator;
+    private String hostInstance;
+
+    /** Returns the perf data source for JVM metrics, or null if JVM metrics should be collected over JMX. */
+    PerfDataSource getPerfData() {
+        return this.perfData;
+    }
+
+    void setPerfData(PerfDataSource perfData) {
+        this.perfData = perfData;
+    }
+
+    /** Returns the diagnostic command source, or null if diagnostic commands are not to be run. */
+    DiagnosticCommandSource getDiagnostics() {
+        return this.diagnostics;
+    }
+
+    void setDiagnostics(DiagnosticCommandSource diagnostics) {
+        this.diagnostics = diagnostics;
+    }
+
+    /** Returns thread pool CPU state, or null if thread pool CPU usage is not to be collected. */
+    ThreadPoolCpu getThreadPoolCpu() {
+        return this.threadPoolCpu;
+    }
+
+    void setThreadPoolCpu(ThreadPoolCpu threadPoolCpu) {
+        this.threadPoolCpu = threadPoolCpu;
+    }
+
+    /** Returns the GC log source, or null if the GC log is not to be tailed. */
+    GcLogSource getGcLog() {
+        return this.gcLog;
+    }
+
+    void setGcLog(GcLogSource gcLog) {
+        this.gcLog = gcLog;
+    }
+
+    /** Returns the /proc statistics source, or null if process statistics are not to be collected. */
+    ProcSource getProc() {
+        return this.proc;
+    }
+
+    void setProc(ProcSource proc) {
+        this.proc = proc;
+    }
+
+    /** Returns the virtual table source, or null if Cassandra metrics should be collected over JMX. */
+    VirtualTableSource getVirtualTables() {
+        return this.virtualTables;
+    }
+
+    void setVirtualTables(VirtualTableSource virtualTables) {
+        this.virtualTables = virtualTables;
+    }
+
+    /** Returns the event source, or null if events are not to be collected. */
+    JmxEventSource getEvents() {
+        return this.events;
+    }
+
+    void setEvents(JmxEventSource events, EventSink eventSink) {
+        this.events = events;
+        this.eventSink = eventSink;
+    }
+
+    /** Returns the burst trigger, or null if burst collection is disabled. */
+    BurstTrigger getBurstTrigger() {
+        return this.burstTrigger;
+    }
+
+    /** Returns the burst lane, or null if burst collection is disabled. */
+    BurstLane getBurstLane() {
+        return this.burstLane;
+    }
+
+    void setBurst(BurstTrigger burstTrigger, BurstLane burstLane) {
+        this.burstTrigger = burstTrigger;
+        this.burstLane = burstLane;
+    }
+
+    /** Returns the metric names of this instance, retained between collections. */
+    MetricNameCache getNames() {
+        return this.names;
+    }
+
+    void setNames(MetricNameCache names) {
+        this.names = names;
+    }
+
+    /** Returns the inventory of Cassandra metrics (and attributes to fetch) of this instance. */
+    Inventory getInventory() {
+        return this.inventory;
+    }
+
+    void setInventory(Inventory inventory) {
+        this.inventory = inventory;
+    }
+
+    /** Returns the table rollups of this instance, or null if none are configured. */
+    Rollup getRollup() {
+        return this.rollup;
+    }
+
+    void setRollup(Rollup rollup) {
+        this.rollup = rollup;
+    }
+
+    /** Returns the downsampling tiers of this instance, or null if none are configured. */
+    List<Downsampler> getDownsamplers() {
+        return this.downsamplers;
+    }
+
+    void setDownsamplers(List<Downsampler> downsamplers) {
+        this.downsamplers = downsamplers;
+    }
+
+    /** Returns the host aggregator (shared by all instances), or null if host aggregates are not written. */
+    HostAggregator getHostAggregator() {
+        return this.hostAggregator;
+    }
+
+    void setHostAggregator(HostAggregator hostAggregator, String instance) {
+        this.hostAggregator = hostAggregator;
+        this.hostInstance = instance;
+    }
+
+    @Override
+    public void close() {
+        if (this.perfData != null) {
+            this.perfData.close();
+            this.perfData = null;
+        }
+        if (this.diagnostics != null) {
+            try {
+                this.diagnostics.close();
+            }
+            catch (Exception e) {
+                LOG.warn("Error detaching diagnostic command source", e);
+            }
+            this.diagnostics = null;
+        }
+        if (this.gcLog != null) {
+            try {
+                this.gcLog.close();
+            }
+            catch (Exception e) {
+                LOG.warn("Error closing GC log", e);
+            }
+            this.gcLog = null;
+        }
+        if (this.proc != null) {
+            try {
+                this.proc.close();
+            }
+            catch (Exception e) {
+                LOG.warn("Error closing /proc statistics", e);
+            }
+            this.proc = null;
+        }
+        if (this.virtualTables != null) {
+            try {
+                this.virtualTables.close();
+            }
+            catch (Exception e) {
+                LOG.warn("Error closing virtual table connection", e);
+            }
+            this.virtualTables = null;
+        }
+        if (this.events != null) {
+            this.events.close();
+            this.events = null;
+        }
+        if (this.eventSink != null) {
+            this.eventSink.close();
+            this.eventSink = null;
+        }
+        if (this.burstLane != null) {
+            this.burstLane.close();
+            this.burstLane = null;
+        }
+        if (this.hostAggregator != null) {
+            this.hostAggregator.unregister(this.hostInstance);
+            this.hostAggregator = null;
+        }
+        // Release the naming plans (shared by all instances) of this instance's caches
+        if (this.downsamplers != null) {
+            for (Downsampler downsampler : this.downsamplers)
+                downsampler.getNames().close();
+        }
+        if (this.names != null) {
+            this.names.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "InstanceState [perfData=" + perfData + ", diagnostics=" + diagnostics + ", threadPoolCpu=" + threadPoolCpu + ", gcLog=" + gcLog + ", proc=" + proc + ", virtualTables=" + virtualTables + ", events=" + events + ", burstLane=" + burstLane + ", names=" + names + ", inventory=" + inventory + ", rollup=" + rollup + ", downsamplers=" + downsamplers + ", hostAggregator=" + hostAggregator + "]";
+    }
+
+}
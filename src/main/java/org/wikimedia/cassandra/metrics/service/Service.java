@@ -26,6 +26,8 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import javax.inject.Inject;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 
 import org.quartz.JobDataMap;
 import org.quartz.JobDetail;
@@ -35,9 +37,20 @@ import org.quartz.Trigger;
 import org.quartz.impl.StdSchedulerFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.wikimedia.cassandra.metrics.CarbonConnector;
+import org.wikimedia.cassandra.metrics.DownsampleConfig;
+import org.wikimedia.cassandra.metrics.Downsampler;
 import org.wikimedia.cassandra.metrics.Filter;
 import org.wikimedia.cassandra.metrics.FilterConfig;
+import org.wikimedia.cassandra.metrics.JmxSocketFactory;
+import org.wikimedia.cassandra.metrics.MetricNameCache;
+import org.wikimedia.cassandra.metrics.NamingPlans;
+import org.wikimedia.cassandra.metrics.RelabelConfig;
+import org.wikimedia.cassandra.metrics.Relabeler;
+import org.wikimedia.cassandra.metrics.Rollup;
+import org.wikimedia.cassandra.metrics.RollupConfig;
 import org.wikimedia.cassandra.metrics.Utils;
+import org.wikimedia.cassandra.metrics.VirtualTableConfig;
 import org.wikimedia.cassandra.metrics.service.WatchFile.EventType;
 import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.constructor.Constructor;
@@ -47,11 +60,13 @@ import com.github.rvesse.airline.HelpOption;
 import com.github.rvesse.airline.Option;
 import com.github.rvesse.airline.SingleCommand;
 import com.github.rvesse.airline.parser.ParseException;
+import com.google.common.base.Optional;
 
 @Command(name = "cmcd", description = "cassandra-metrics-collector daemon")
 public class Service {
 
     public static final String PREFIX_PREFIX = "cassandra";
+    public static final String BURST_PREFIX_PREFIX = "cassandra-burst";
 
     private static final Logger LOG = LoggerFactory.getLogger(Service.class);
     private static final File STOPFILE;
@@ -69,6 +84,12 @@ public class Service {
     @Option(name = { "-p", "--carbon-port", "--graphite-port" }, description = "Carbon port number (default: 2003)", title = "PORT")
     private int carbonPort = 2003;
 
+    @Option(name = { "--carbon-connect-timeout" }, description = "Carbon connect timeout in milliseconds (default: 5000 ms)", title = "MILLIS")
+    private int carbonConnectTimeout = 5000;
+
+    @Option(name = { "--carbon-write-timeout" }, description = "Carbon write timeout in milliseconds (default: 30000 ms)", title = "MILLIS")
+    private int carbonWriteTimeout = 30000;
+
     @Option(name = { "-i", "--interval" }, description = "Collection interval in seconds (default: 60 seconds)", title = "INTERVAL")
     private int interval = 60;
 
@@ -78,6 +99,75 @@ public class Service {
     @Option(name = {"-f", "--filter-config"}, description = "Metric filter configuration", title = "YAML")
     private String filterConfig = null;
 
+    @Option(name = { "--graphite-tags" }, description = "Write Cassandra metrics as Graphite tagged series")
+    private boolean graphiteTags = false;
+
+    @Option(name = { "--series-limit" }, description = "Maximum number of distinct series written per instance (default: no limit)", title = "COUNT")
+    private int seriesLimit = 0;
+
+    @Option(name = { "--relabel-config" }, description = "Metric name relabel rules", title = "YAML")
+    private String relabelConfig = null;
+
+    @Option(name = { "--rollup-config" }, description = "Keyspace and node level rollups of table metrics", title = "YAML")
+    private String rollupConfig = null;
+
+    @Option(name = { "--downsample-config" }, description = "Tiers of coarser resolution series, aggregated over fixed windows", title = "YAML")
+    private String downsampleConfig = null;
+
+    @Option(name = { "--host-aggregate" }, description = "Write host-wide aggregates of Cassandra counters and gauges, as those of an instance of this name (default: disabled)", title = "NAME")
+    private String hostAggregate = null;
+
+    @Option(name = { "--host-sketches" }, description = "Object name pattern of the timers and histograms whose percentiles are merged into host aggregates (default: org.apache.cassandra.metrics:type=ClientRequest,*)", title = "OBJECTNAME")
+    private String hostSketches = "org.apache.cassandra.metrics:type=ClientRequest,*";
+
+    @Option(name = { "--jmx-connect-timeout" }, description = "JMX connect timeout in milliseconds (default: 5000 ms)", title = "MILLIS")
+    private int jmxConnectTimeout = 5000;
+
+    @Option(name = { "--jmx-read-timeout" }, description = "JMX socket read timeout in milliseconds (default: 30000 ms)", title = "MILLIS")
+    private int jmxReadTimeout = 30000;
+
+    @Option(name = { "--jmx-tcp-nodelay" }, arity = 1, description = "Enable TCP_NODELAY on JMX connections (default: true)", title = "BOOLEAN")
+    private boolean jmxTcpNoDelay = true;
+
+    @Option(name = { "--jmx-buffer-size" }, description = "JMX socket send/receive buffer size in bytes (default: system default)", title = "BYTES")
+    private int jmxBufferSize = 0;
+
+    @Option(name = { "--jvm-perfdata" }, description = "Read JVM metrics from hsperfdata counters rather than JMX")
+    private boolean jvmPerfData = false;
+
+    @Option(name = { "--jvm-diagnostics" }, description = "Interval (in seconds) to collect native memory and heap info using diagnostic commands (default: disabled)", title = "INTERVAL")
+    private int jvmDiagnosticsInterval = 0;
+
+    @Option(name = { "--thread-pool-cpu" }, description = "Collect CPU usage per Cassandra thread pool")
+    private boolean threadPoolCpu = false;
+
+    @Option(name = { "--gc-log" }, description = "Tail GC logs (-Xloggc) for pause distributions")
+    private boolean gcLog = false;
+
+    @Option(name = { "--gc-log-offsets" }, description = "Directory to persist GC log offsets to, so that tailing resumes where it left off after a restart (default: not persisted)", title = "DIRECTORY")
+    private String gcLogOffsets = null;
+
+    @Option(name = { "--proc-stats" }, description = "Collect process statistics from /proc (Linux only)")
+    private boolean procStats = false;
+
+    @Option(name = { "--virtual-tables" }, description = "Collect Cassandra metrics of the configured instances from virtual tables (CQL)", title = "YAML")
+    private String virtualTablesConfig = null;
+
+    @Option(name = { "--events" }, description = "Emit compaction, repair, and streaming events as they occur")
+    private boolean events = false;
+
+    @Option(name = { "--burst-window" }, description = "Length (in seconds) of high-resolution collection when a burst threshold is crossed (default: disabled)", title = "SECONDS")
+    private int burstWindow = 0;
+
+    @Option(name = { "--burst-interval" }, description = "Collection interval (in seconds) during a burst (default: 5 seconds)", title = "SECONDS")
+    private int burstInterval = 5;
+
+    @Option(name = { "--burst-latency" }, description = "Coordinator read/write 99th percentile latency (in milliseconds) that triggers a burst (default: disabled)", title = "MILLIS")
+    private int burstLatency = 0;
+
+    @Option(name = { "--burst-dropped" }, description = "Dropped messages per collection that trigger a burst (default: disabled)", title = "COUNT")
+    private int burstDropped = 0;
+
     private InstanceCache state = new InstanceCache();
 
     Filter getFilter() throws FileNotFoundException, IOException {
@@ -91,6 +181,64 @@ public class Service {
         return null;
     }
 
+    Relabeler getRelabeler() throws FileNotFoundException, IOException {
+        if (this.relabelConfig != null) {
+            try (InputStream f = new FileInputStream(new File(this.relabelConfig))) {
+                Yaml yaml = new Yaml(new Constructor(RelabelConfig.class));
+                return new Relabeler((RelabelConfig)yaml.load(f));
+            }
+        }
+        return null;
+    }
+
+    RollupConfig getRollupConfig() throws FileNotFoundException, IOException {
+        if (this.rollupConfig != null) {
+            try (InputStream f = new FileInputStream(new File(this.rollupConfig))) {
+                Yaml yaml = new Yaml(new Constructor(RollupConfig.class));
+                RollupConfig config = (RollupConfig)yaml.load(f);
+                // Fail fast on invalid rules
+                new Rollup(config);
+                return config;
+            }
+        }
+        return null;
+    }
+
+    DownsampleConfig getDownsampleConfig() throws FileNotFoundException, IOException {
+        if (this.downsampleConfig != null) {
+            try (InputStream f = new FileInputStream(new File(this.downsampleConfig))) {
+                Yaml yaml = new Yaml(new Constructor(DownsampleConfig.class));
+                DownsampleConfig config = (DownsampleConfig)yaml.load(f);
+                // Fail fast on invalid tiers
+                for (DownsampleConfig.Tier tier : config.getTiers())
+                    new Downsampler(tier, new MetricNameCache(""));
+                return config;
+            }
+        }
+        return null;
+    }
+
+    Optional<ObjectName> getHostSketches() {
+        if (this.hostSketches == null || this.hostSketches.isEmpty())
+            return Optional.absent();
+        try {
+            return Optional.of(new ObjectName(this.hostSketches));
+        }
+        catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException(String.format("invalid --host-sketches: %s", e.getMessage()));
+        }
+    }
+
+    VirtualTableConfig getVirtualTableConfig() throws FileNotFoundException, IOException {
+        if (this.virtualTablesConfig != null) {
+            try (InputStream f = new FileInputStream(new File(this.virtualTablesConfig))) {
+                Yaml yaml = new Yaml(new Constructor(VirtualTableConfig.class));
+                return (VirtualTableConfig)yaml.load(f);
+            }
+        }
+        return null;
+    }
+
     void execute() throws SchedulerException, IOException {
 
         // Print a synopsis to STDOUT (if requested), and exit.
@@ -100,6 +248,14 @@ public class Service {
 
         LOG.info("Starting up...");
 
+        // Timeouts and accounting for all JMX (RMI) connections.
+        JmxSocketFactory socketFactory = new JmxSocketFactory(jmxConnectTimeout, jmxReadTimeout, jmxTcpNoDelay, jmxBufferSize);
+        JmxSocketFactory.install(socketFactory);
+        LOG.debug("Installed {}", socketFactory);
+
+        // Timeouts of all Carbon connections.
+        CarbonConnector.setDefaultTimeouts(carbonConnectTimeout, carbonWriteTimeout);
+
         Scheduler scheduler = StdSchedulerFactory.getDefaultScheduler();
 
         // Triggers periodic (re)discovery
@@ -126,7 +282,29 @@ public class Service {
         discoverMap.put("interval", interval);
         discoverMap.put("carbonHost", carbonHost);
         discoverMap.put("carbonPort", carbonPort);
-        discoverMap.put("filter", getFilter());
+        Filter filter = getFilter();
+        // Names less the instance prefix are shared by all instances
+        NamingPlans namingPlans = new NamingPlans(Optional.fromNullable(getRelabeler()), graphiteTags);
+        discoverMap.put("filter", filter);
+        discoverMap.put("namingPlans", namingPlans);
+        discoverMap.put("seriesLimit", seriesLimit);
+        discoverMap.put("rollups", getRollupConfig());
+        discoverMap.put("downsamples", getDownsampleConfig());
+        discoverMap.put("hostAggregator", (hostAggregate != null)
+                ? new HostAggregator(carbonHost, carbonPort, Optional.fromNullable(filter), new MetricNameCache(Collector.prefix(hostAggregate), namingPlans, 0), getHostSketches())
+                : null);
+        discoverMap.put("perfData", jvmPerfData);
+        discoverMap.put("diagnosticsInterval", jvmDiagnosticsInterval);
+        discoverMap.put("threadPoolCpu", threadPoolCpu);
+        discoverMap.put("gcLog", gcLog);
+        discoverMap.put("gcLogOffsets", gcLogOffsets);
+        discoverMap.put("procStats", procStats);
+        discoverMap.put("virtualTables", getVirtualTableConfig());
+        discoverMap.put("events", events);
+        discoverMap.put("burstWindow", burstWindow);
+        discoverMap.put("burstInterval", burstInterval);
+        discoverMap.put("burstLatency", burstLatency);
+        discoverMap.put("burstDropped", burstDropped);
 
         JobDetail discoverJob = newJob(Discover.class)
                 .withIdentity("discoveryJob", "discoveryGroup")
@@ -18,6 +18,8 @@ import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
 
+import org.wikimedia.cassandra.metrics.ConnectionStats;
+
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
@@ -25,6 +27,8 @@ class Stats {
 
     private final Map<String, Integer> successes = Maps.newHashMap();
     private final Map<String, Integer> failures = Maps.newHashMap();
+    private final Map<String, ConnectionStats> connections = Maps.newHashMap();
+    private final Map<String, int[]> series = Maps.newHashMap();
 
     Collection<String> getNames() {
         Set<String> names = Sets.newHashSet(this.successes.keySet());
@@ -40,6 +44,24 @@ class Stats {
         return get(name, this.failures);
     }
 
+    /** Returns the connection stats of the most recent collection (or null if none). */
+    synchronized ConnectionStats getConnectionStats(String name) {
+        return this.connections.get(name);
+    }
+
+    synchronized void connection(String name, ConnectionStats stats) {
+        this.connections.put(name, stats);
+    }
+
+    /** Returns the distinct series, and those dropped by the series limit, as of the most recent collection (or null if unknown). */
+    synchronized int[] getSeries(String name) {
+        return this.series.get(name);
+    }
+
+    synchronized void series(String name, int series, int limited) {
+        this.series.put(name, new int[] { series, limited });
+    }
+
     synchronized void success(String name) {
         increment(name, this.successes);
     }
@@ -22,11 +22,14 @@ import org.quartz.JobExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wikimedia.cassandra.metrics.CarbonConnector;
+import org.wikimedia.cassandra.metrics.ConnectionStats;
 
 public class StatsReporter implements Job {
 
     private static final String SUCCESS = "cmcd.instances.%s.success";
     private static final String FAILURE = "cmcd.instances.%s.failure";
+    private static final String JMX = "cmcd.instances.%s.jmx.%s";
+    private static final String SERIES = "cmcd.instances.%s.series.%s";
 
     private static final Logger LOG = LoggerFactory.getLogger(StatsReporter.class);
 
@@ -48,6 +51,21 @@ public class StatsReporter implements Job {
                     for (String instance : stats.getNames()) {
                         carbon.write(String.format(FAILURE, instance), stats.getFailures(instance));
                         carbon.write(String.format(SUCCESS, instance), stats.getSuccesses(instance));
+
+                        ConnectionStats conn = stats.getConnectionStats(instance);
+                        if (conn != null) {
+                            carbon.write(String.format(JMX, instance, "bytes_sent"), conn.getBytesSent());
+                            carbon.write(String.format(JMX, instance, "bytes_received"), conn.getBytesReceived());
+                            carbon.write(String.format(JMX, instance, "round_trips"), conn.getRoundTrips());
+                            carbon.write(String.format(JMX, instance, "round_trip_mean"), conn.getMeanRoundTrip());
+                            carbon.write(String.format(JMX, instance, "round_trip_max"), conn.getMaxRoundTrip());
+                        }
+
+                        int[] series = stats.getSeries(instance);
+                        if (series != null) {
+                            carbon.write(String.format(SERIES, instance, "count"), series[0]);
+                            carbon.write(String.format(SERIES, instance, "limited"), series[1]);
+                        }
                     }
                     return null;
                 }
@@ -0,0 +1,74 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+public class BurstTriggerTest {
+
+    private static final SampleVisitor NOOP = new SampleVisitor() {
+        @Override
+        public void visit(JmxSample sample) {
+        }
+    };
+
+    @Test
+    public void testLatency() throws MalformedObjectNameException {
+        BurstTrigger trigger = new BurstTrigger(100000, 0);
+        SampleVisitor v = trigger.watch(NOOP);
+
+        v.visit(sample("type=ClientRequest,scope=Read,name=Latency", "99percentile", 50000.0));
+        v.visit(sample("type=ClientRequest,scope=CASRead,name=Latency", "99percentile", 500000.0));
+        v.visit(sample("type=ClientRequest,scope=Write,name=Latency", "95percentile", 500000.0));
+        assertThat(trigger.poll(), is(nullValue()));
+
+        v.visit(sample("type=ClientRequest,scope=Write,name=Latency", "99percentile", 150000.0));
+        assertThat(trigger.poll(), is(notNullValue()));
+        assertThat(trigger.poll(), is(nullValue()));
+    }
+
+    @Test
+    public void testDropped() throws MalformedObjectNameException {
+        BurstTrigger trigger = new BurstTrigger(0, 10);
+        SampleVisitor v = trigger.watch(NOOP);
+
+        // Baseline
+        v.visit(sample("type=DroppedMessage,scope=MUTATION,name=Dropped", "count", 1000));
+        v.visit(sample("type=DroppedMessage,scope=READ,name=Dropped", "count", 1000));
+        assertThat(trigger.poll(), is(nullValue()));
+
+        v.visit(sample("type=DroppedMessage,scope=MUTATION,name=Dropped", "count", 1005));
+        v.visit(sample("type=DroppedMessage,scope=READ,name=Dropped", "count", 1004));
+        assertThat(trigger.poll(), is(nullValue()));
+
+        v.visit(sample("type=DroppedMessage,scope=MUTATION,name=Dropped", "count", 1010));
+        v.visit(sample("type=DroppedMessage,scope=READ,name=Dropped", "count", 1010));
+        assertThat(trigger.poll(), is("11 dropped messages"));
+    }
+
+    private static JmxSample sample(String keys, String metric, double value) throws MalformedObjectNameException {
+        return new JmxSample(Type.CASSANDRA, new ObjectName("org.apache.cassandra.metrics:" + keys), metric, value, 0);
+    }
+
+}
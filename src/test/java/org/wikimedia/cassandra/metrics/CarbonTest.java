@@ -21,6 +21,7 @@ import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.ServerSocket;
 import java.net.Socket;
 
 import org.junit.Test;
@@ -44,6 +45,11 @@ public class CarbonTest {
 
         carbon.write("metric", "value", 1000000);
 
+        // Buffered until flushed
+        assertThat(byteStream.size(), equalTo(0));
+
+        carbon.flush();
+
         assertThat(byteStream.toByteArray(), equalTo("metric value 1000000\n".getBytes()));
 
         carbon.close();
@@ -70,4 +76,16 @@ public class CarbonTest {
 
     }
 
+    @Test(expected = CarbonException.class)
+    public void testWriteTimeout() throws IOException {
+
+        // Accepts the connection (by way of the backlog), but never reads from it
+        try (ServerSocket server = new ServerSocket(0);
+                CarbonConnector carbon = new CarbonConnector("localhost", server.getLocalPort(), 1000, 100)) {
+            for (int i = 0;; i++)
+                carbon.write("metric".getBytes(), i, i);
+        }
+
+    }
+
 }
@@ -52,10 +52,43 @@ public class CarbonVisitorTest {
 
         visitor.visit(new JmxSample(Type.JVM, new ObjectName("java.lang:type=Runtime"), "uptime", Integer.valueOf(1), 1));
 
+        visitor.flush();
+
         assertThat(byteStream.toByteArray(), equalTo("cassandra.jvm.uptime 1 1\n".getBytes()));
 
         visitor.close();
 
     }
 
+    @Test
+    public void testBatch() throws IOException, MalformedObjectNameException {
+
+        final Socket socket = mock(Socket.class);
+        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+
+        when(socket.getOutputStream()).thenReturn(byteStream);
+
+        final CarbonConnector carbon = new CarbonConnector() {
+            @Override
+            protected Socket createSocket() {
+                return socket;
+            }
+        };
+
+        CarbonVisitor visitor = new CarbonVisitor(carbon, "cassandra", Optional.<Filter>absent());
+        SampleBatch batch = new SampleBatch();
+        ObjectName oName = new ObjectName("org.apache.cassandra.metrics:type=ClientRequest,scope=Read,name=Latency");
+
+        visitor.visit(batch.reset(Type.CASSANDRA, oName, 1).add("count", 2L).add("99percentile", 1.5));
+
+        visitor.flush();
+
+        assertThat(byteStream.toByteArray(), equalTo((
+                "cassandra.org.apache.cassandra.metrics.ClientRequest.Read.Latency.count 2 1\n" +
+                "cassandra.org.apache.cassandra.metrics.ClientRequest.Read.Latency.99percentile 1.5 1\n").getBytes()));
+
+        visitor.close();
+
+    }
+
 }
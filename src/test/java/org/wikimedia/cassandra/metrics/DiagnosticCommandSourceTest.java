@@ -0,0 +1,108 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+public class DiagnosticCommandSourceTest {
+
+    private static final String NATIVE_MEMORY = Joiner.on('\n').join(
+            "1369:",
+            "",
+            "Native Memory Tracking:",
+            "",
+            "Total: reserved=2920457KB, committed=175013KB",
+            "-                 Java Heap (reserved=1538048KB, committed=96256KB)",
+            "                            (mmap: reserved=1538048KB, committed=96256KB) ",
+            " ",
+            "-                    Thread (reserved=11312KB, committed=11312KB)",
+            "                            (thread #12)",
+            "                            (stack: reserved=11264KB, committed=11264KB)");
+
+    private static final String HEAP_INFO = Joiner.on('\n').join(
+            "1369:",
+            " PSYoungGen      total 28160K, used 983K [0x00000000e0b80000, 0x00000000e2a80000, 0x0000000100000000)",
+            "  eden space 24576K, 4% used [0x00000000e0b80000,0x00000000e0c75da8,0x00000000e2380000)",
+            " garbage-first heap   total 262144K, used 2048K [0x00000000f0000000, 0x0000000100000000)",
+            "  region size 1024K, 1 young (1024K), 0 survivors (0K)",
+            " Metaspace       used 2656K, capacity 4486K, committed 4864K, reserved 1056768K");
+
+    private static class Samples implements SampleVisitor {
+        private final List<String> lines = Lists.newArrayList();
+
+        @Override
+        public void visit(JmxSample sample) {
+            this.lines.add(String.format("%s %s", CarbonVisitor.metricName(sample, "c"), sample.getValue()));
+        }
+    }
+
+    @Test
+    public void testNativeMemory() throws IOException {
+        Samples samples = new Samples();
+        boolean enabled = DiagnosticCommandSource.parseNativeMemory(reader(NATIVE_MEMORY), samples, 1);
+
+        assertThat(enabled, is(true));
+        assertThat(samples.lines.size(), is(6));
+        assertThat(samples.lines, hasItems(
+                "c.jvm.native_memory.Total.reserved 2990547968",
+                "c.jvm.native_memory.Java-Heap.committed 98566144",
+                "c.jvm.native_memory.Thread.reserved 11583488"));
+    }
+
+    @Test
+    public void testNativeMemoryDisabled() throws IOException {
+        Samples samples = new Samples();
+        boolean enabled = DiagnosticCommandSource.parseNativeMemory(reader("1369:\nNative memory tracking is not enabled\n"), samples, 1);
+
+        assertThat(enabled, is(false));
+        assertThat(samples.lines.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testHeapInfo() throws IOException {
+        Samples samples = new Samples();
+        DiagnosticCommandSource.parseHeapInfo(reader(HEAP_INFO), samples, 1);
+
+        assertThat(samples.lines, hasItems(
+                "c.jvm.heap_info.PSYoungGen.total 28835840",
+                "c.jvm.heap_info.PSYoungGen.used 1006592",
+                "c.jvm.heap_info.eden-space.capacity 25165824",
+                "c.jvm.heap_info.eden-space.used_percent 4",
+                "c.jvm.heap_info.Metaspace.reserved 1082130432",
+                "c.jvm.heap_info.Metaspace.capacity 4593664",
+                "c.jvm.heap_info.garbage-first-heap.total 268435456",
+                "c.jvm.heap_info.garbage-first-heap.region_size 1048576",
+                "c.jvm.heap_info.garbage-first-heap.young 1048576",
+                "c.jvm.heap_info.garbage-first-heap.survivors 0"));
+        assertThat(samples.lines.size(), is(13));
+    }
+
+    private static BufferedReader reader(String s) {
+        return new BufferedReader(new StringReader(s));
+    }
+
+}
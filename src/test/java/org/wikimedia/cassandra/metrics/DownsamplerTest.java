@@ -0,0 +1,129 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.collect.Lists;
+
+public class DownsamplerTest {
+
+    private static class Samples implements SampleVisitor {
+        private final List<String> lines = Lists.newArrayList();
+
+        @Override
+        public void visit(JmxSample sample) {
+            this.lines.add(String.format("%s %s %d", CarbonVisitor.metricName(sample, "c"), sample.getValue(), sample.getTimestamp()));
+        }
+    }
+
+    @Test
+    public void test() throws MalformedObjectNameException {
+        DownsampleConfig.Tier tier = new DownsampleConfig.Tier();
+        tier.setPrefix("c-5m");
+        tier.setWindow(300);
+        tier.setFunctions(Arrays.asList("avg", "min", "max", "last", "sum"));
+
+        Downsampler downsampler = new Downsampler(tier, new MetricNameCache("c-5m.i"));
+        Samples passed = new Samples();
+        BatchVisitor visitor = downsampler.watch(passed);
+
+        ObjectName a = new ObjectName("org.apache.cassandra.metrics:type=Client,name=connectedNativeClients");
+        ObjectName b = new ObjectName("org.apache.cassandra.metrics:type=Storage,name=Load");
+        SampleBatch batch = new SampleBatch();
+
+        visitor.visit(batch.reset(Type.CASSANDRA, a, 1200).add("value", 10L));
+        visitor.visit(batch.reset(Type.CASSANDRA, b, 1200).add("count", 1L));
+        assertThat(downsampler.isDue(1260), is(false));
+        visitor.visit(batch.reset(Type.CASSANDRA, a, 1260).add("value", 30L));
+        visitor.visit(batch.reset(Type.CASSANDRA, a, 1320).add("value", 5L));
+        assertThat(downsampler.isDue(1500), is(true));
+
+        // Originals are passed on
+        assertThat(passed.lines.size(), is(4));
+
+        Samples samples = new Samples();
+        downsampler.emit(samples, 1500);
+        assertThat(samples.lines, hasItems(
+                "c.org.apache.cassandra.metrics.Client.connectedNativeClients.value.avg 15.0 1200",
+                "c.org.apache.cassandra.metrics.Client.connectedNativeClients.value.min 5 1200",
+                "c.org.apache.cassandra.metrics.Client.connectedNativeClients.value.max 30 1200",
+                "c.org.apache.cassandra.metrics.Client.connectedNativeClients.value.last 5 1200",
+                "c.org.apache.cassandra.metrics.Client.connectedNativeClients.value.sum 45 1200",
+                "c.org.apache.cassandra.metrics.Storage.Load.count.sum 1 1200"));
+        assertThat(downsampler.isDue(1500), is(false));
+
+        // Series unseen for a window are forgotten
+        visitor.visit(batch.reset(Type.CASSANDRA, a, 1500).add("value", 2.5));
+        samples.lines.clear();
+        downsampler.emit(samples, 1800);
+        assertThat(samples.lines.size(), is(5));
+        assertThat(samples.lines, hasItems("c.org.apache.cassandra.metrics.Client.connectedNativeClients.value.max 2.5 1500"));
+        assertThat(downsampler.size(), is(1));
+    }
+
+    @Test
+    public void testWindowBoundary() throws MalformedObjectNameException {
+        DownsampleConfig.Tier tier = new DownsampleConfig.Tier();
+        tier.setPrefix("c-5m");
+        tier.setWindow(300);
+        tier.setFunctions(Arrays.asList("sum"));
+
+        Downsampler downsampler = new Downsampler(tier, new MetricNameCache("c-5m.i"));
+        BatchVisitor visitor = downsampler.watch(new Samples());
+        ObjectName a = new ObjectName("org.apache.cassandra.metrics:type=Client,name=connectedNativeClients");
+        SampleBatch batch = new SampleBatch();
+        Samples samples = new Samples();
+
+        // Collections every 60 seconds, with windows checked a couple of seconds after each.
+        visitor.visit(batch.reset(Type.CASSANDRA, a, 1130).add("value", 1L));
+        visitor.visit(batch.reset(Type.CASSANDRA, a, 1190).add("value", 2L));
+        assertThat(downsampler.isDue(1192), is(false));
+
+        // The first collection of a window closes the previous one, but is not a part of it.
+        visitor.visit(batch.reset(Type.CASSANDRA, a, 1250).add("value", 4L));
+        assertThat(downsampler.isDue(1252), is(true));
+        downsampler.emit(samples, 1252);
+        assertThat(samples.lines, is((List<String>) Lists.newArrayList("c.org.apache.cassandra.metrics.Client.connectedNativeClients.value.sum 3 900")));
+
+        // Collections that fail (not followed by an emit) are not merged across windows either.
+        visitor.visit(batch.reset(Type.CASSANDRA, a, 1310).add("value", 8L));
+        visitor.visit(batch.reset(Type.CASSANDRA, a, 1550).add("value", 16L));
+        visitor.visit(batch.reset(Type.CASSANDRA, a, 1850).add("value", 32L));
+        samples.lines.clear();
+        downsampler.emit(samples, 1852);
+        assertThat(samples.lines, is((List<String>) Lists.newArrayList(
+                "c.org.apache.cassandra.metrics.Client.connectedNativeClients.value.sum 12 1200",
+                "c.org.apache.cassandra.metrics.Client.connectedNativeClients.value.sum 16 1500")));
+
+        // The open window is emitted once it has closed.
+        assertThat(downsampler.isDue(2098), is(false));
+        samples.lines.clear();
+        downsampler.emit(samples, 2102);
+        assertThat(samples.lines, is((List<String>) Lists.newArrayList("c.org.apache.cassandra.metrics.Client.connectedNativeClients.value.sum 32 1800")));
+    }
+
+}
@@ -15,8 +15,12 @@
 package org.wikimedia.cassandra.metrics;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
 
+import java.util.Arrays;
+
 import org.junit.Test;
 import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.constructor.Constructor;
@@ -40,4 +44,27 @@ public class FilterTest {
 
     }
 
+    @Test
+    public void testCompiled() {
+        FilterConfig config = new FilterConfig();
+        config.setWhitelist(Arrays.asList(".*\\.wanted.meanRate$", "^keep\\..*"));
+        config.setBlacklist(Arrays.asList(".*\\.meanRate$", ".*\\.50percentile$", ".*Histogram\\.(min|max)$"));
+        Filter filter = new Filter(config);
+
+        // Suffix forms
+        assertThat(Filter.PatternSet.suffix(".*\\.meanRate$"), is(notNullValue()));
+        assertThat(Filter.PatternSet.suffix(".*\\.wanted.meanRate$"), is(notNullValue()));
+        assertThat(Filter.PatternSet.suffix(".*Histogram\\.(min|max)$"), is(nullValue()));
+
+        assertThat(filter.accept("c.Table.ks.t.ReadLatency.meanRate"), is(false));
+        assertThat(filter.accept("c.Table.ks.t.ReadLatency.xmeanRate"), is(true));
+        assertThat(filter.accept("c.Table.ks.t.wanted.meanRate"), is(true));
+        assertThat(filter.accept("c.Table.ks.t.wanted_meanRate"), is(true));
+        assertThat(filter.accept("c.Table.ks.t.ReadLatency.50percentile"), is(false));
+        assertThat(filter.accept("c.Table.ks.t.SizeHistogram.max"), is(false));
+        assertThat(filter.accept("c.Table.ks.t.SizeHistogram.mean"), is(true));
+        assertThat(filter.accept("keep.ReadLatency.meanRate"), is(true));
+        assertThat(filter.accept("meanRate"), is(true));
+    }
+
 }
@@ -0,0 +1,142 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+public class GcLogSourceTest {
+
+    private static final String PARNEW = "2017-03-01T12:00:00.000+0000: 12.345: [GC (Allocation Failure) 12.345: [ParNew\n"
+            + "Desired survivor size 41943040 bytes, new threshold 1 (max 1)\n"
+            + "- age   1:    1234567 bytes,    1234567 total\n"
+            + ": 655360K->8192K(737280K), 0.0200000 secs] 1000000K->400000K(8000000K), 0.0250000 secs] [Times: user=0.10 sys=0.00, real=0.03 secs] \n";
+    private static final String G1 = "2017-03-01T12:00:01.000+0000: 13.345: [GC pause (G1 Evacuation Pause) (young), 0.0100000 secs]\n"
+            + "   [Parallel Time: 9.5 ms, GC Workers: 8]\n";
+    private static final String CONCURRENT = "2017-03-01T12:00:02.000+0000: 14.345: [CMS-concurrent-mark: 0.500/0.600 secs] [Times: user=1.00 sys=0.00, real=0.60 secs] \n";
+    private static final String STOPPED = "2017-03-01T12:00:03.000+0000: 15.345: Total time for which application threads were stopped: 0.0300000 seconds, Stopping threads took: 0.0000100 seconds\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class Samples implements SampleVisitor {
+        private final List<String> lines = Lists.newArrayList();
+
+        @Override
+        public void visit(JmxSample sample) {
+            this.lines.add(String.format("%s %s", CarbonVisitor.metricName(sample, "c"), sample.getValue()));
+        }
+    }
+
+    @Test
+    public void testParse() {
+        GcLogSource source = new GcLogSource(new File(folder.getRoot(), "gc.log").getPath(), "1");
+        for (String line : (PARNEW + G1 + CONCURRENT + STOPPED + STOPPED).split("\n"))
+            source.line(line);
+
+        Samples samples = new Samples();
+        source.getGcPauses().emit(samples, 1);
+        source.getStopped().emit(samples, 1);
+
+        assertThat(samples.lines, hasItems(
+                "c.jvm.gc_log.gc_pause.count 2",
+                "c.jvm.gc_log.gc_pause.max 25.0",
+                "c.jvm.gc_log.gc_pause.p50 10.0",
+                "c.jvm.gc_log.gc_pause.total 35.0",
+                "c.jvm.gc_log.stopped.count 2",
+                "c.jvm.gc_log.stopped.p99 30.0"));
+        assertThat(source.getGcPauses().count(), is(0));
+    }
+
+    @Test
+    public void testTailAndRotate() throws IOException {
+        Path current = folder.getRoot().toPath().resolve("gc.log.0.current");
+        append(current, STOPPED);
+
+        GcLogSource source = new GcLogSource(new File(folder.getRoot(), "gc.log").getPath(), "1");
+
+        // First read starts from the end
+        source.read();
+        assertThat(source.getStopped().count(), is(0));
+
+        // A partial line is held until complete
+        append(current, STOPPED + STOPPED.substring(0, 20));
+        source.read();
+        assertThat(source.getStopped().count(), is(1));
+        append(current, STOPPED.substring(20));
+        source.read();
+        assertThat(source.getStopped().count(), is(2));
+
+        // Rotation: the remainder of the old file, and all of the new
+        append(current, STOPPED);
+        Files.move(current, folder.getRoot().toPath().resolve("gc.log.0"));
+        Path next = folder.getRoot().toPath().resolve("gc.log.1.current");
+        append(next, STOPPED + STOPPED);
+        source.read();
+        assertThat(source.getStopped().count(), is(5));
+
+        source.close();
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        Path current = folder.getRoot().toPath().resolve("gc.log.0.current");
+        Path offsets = folder.getRoot().toPath().resolve("offsets");
+        append(current, STOPPED);
+
+        GcLogSource source = new GcLogSource(new File(folder.getRoot(), "gc.log").getPath(), "1", offsets);
+        source.read();
+        append(current, STOPPED + STOPPED.substring(0, 20));
+        source.read();
+        assertThat(source.getStopped().count(), is(1));
+        source.close();
+
+        // Written while not running: The rest of the line in progress, and a rotation
+        append(current, STOPPED.substring(20) + STOPPED);
+        Files.move(current, folder.getRoot().toPath().resolve("gc.log.0"));
+        append(folder.getRoot().toPath().resolve("gc.log.1.current"), STOPPED);
+
+        source = new GcLogSource(new File(folder.getRoot(), "gc.log").getPath(), "1", offsets);
+        source.read();
+        assertThat(source.getStopped().count(), is(3));
+        source.close();
+
+        // Nothing new
+        source = new GcLogSource(new File(folder.getRoot(), "gc.log").getPath(), "1", offsets);
+        source.read();
+        assertThat(source.getStopped().count(), is(0));
+        source.close();
+    }
+
+    private static void append(Path file, String content) throws IOException {
+        Files.write(file, content.getBytes(Charsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+}
@@ -0,0 +1,113 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+public class InventoryTest {
+
+    private static final String TIMER = "org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxTimer";
+    private static final String GAUGE = "org.apache.cassandra.metrics.CassandraMetricsRegistry$JmxGauge";
+
+    @Test
+    public void testPlans() throws MalformedObjectNameException {
+        FilterConfig config = new FilterConfig();
+        config.setBlacklist(Arrays.asList(".*Rate$", ".*\\.count$", ".*PendingFlushes\\.value$", ".*Histogram\\.(min|max)$"));
+        Inventory inventory = new Inventory(Optional.of(new Filter(config)), new MetricNameCache("c"));
+
+        // Rejected attributes are not fetched
+        Inventory.BeanPlan plan = inventory.plan(instance("type=Table,keyspace=ks,scope=t,name=ReadLatency", TIMER));
+        assertThat(plan.kind, is(Inventory.Kind.ATTRIBUTES));
+        assertThat(Arrays.asList(plan.attributes), hasItems("99thPercentile", "Max", "StdDev"));
+        assertThat(Arrays.asList(plan.attributes), not(hasItems("Count")));
+        assertThat(Arrays.asList(plan.attributes), not(hasItems("OneMinuteRate")));
+        assertThat(plan.attributes.length, is(plan.metrics.length));
+
+        // Beans with nothing left are skipped
+        plan = inventory.plan(instance("type=Table,keyspace=ks,scope=t,name=PendingFlushes", GAUGE));
+        assertThat(plan.kind, is(Inventory.Kind.SKIP));
+
+        // Only wanted values are decoded from estimated histograms
+        plan = inventory.plan(instance("type=Table,keyspace=ks,scope=t,name=EstimatedPartitionSizeHistogram", GAUGE));
+        assertThat(plan.kind, is(Inventory.Kind.ESTIMATED_HISTOGRAM));
+        assertThat(plan.metrics.length, is(5));
+        assertThat(plan.indices[4], is(4));
+
+        // Uninteresting beans are skipped regardless
+        plan = inventory.plan(instance("type=Table,keyspace=system,scope=local,name=ReadLatency", TIMER));
+        assertThat(plan.kind, is(Inventory.Kind.SKIP));
+
+        assertThat(inventory.size(), is(4));
+        inventory.retain(new ObjectName("org.apache.cassandra.metrics:keyspace=ks,*"), Collections.<ObjectName>emptySet());
+        assertThat(inventory.size(), is(1));
+    }
+
+    @Test
+    public void testExclude() throws MalformedObjectNameException {
+        Inventory inventory = new Inventory();
+        ObjectInstance latency = instance("type=Table,keyspace=ks,scope=t,name=ReadLatency", TIMER);
+        assertThat(Arrays.asList(inventory.plan(latency).metrics), hasItems("count", "99percentile"));
+
+        // Metrics passed through the excluding visitor are re-planned, and no longer fetched
+        final List<JmxSample> visited = Lists.newArrayList();
+        SampleVisitor visitor = inventory.exclude(new SampleVisitor() {
+            @Override
+            public void visit(JmxSample sample) {
+                visited.add(sample);
+            }
+        });
+        visitor.visit(new JmxSample(Type.CASSANDRA, latency.getObjectName(), "99percentile", 1.0d, 1));
+        visitor.visit(new JmxSample(Type.CASSANDRA, latency.getObjectName(), "count", 1L, 1));
+        assertThat(visited.size(), is(2));
+
+        Inventory.BeanPlan plan = inventory.plan(latency);
+        assertThat(plan.kind, is(Inventory.Kind.ATTRIBUTES));
+        assertThat(Arrays.asList(plan.metrics), hasItems("75percentile", "max"));
+        assertThat(Arrays.asList(plan.metrics), not(hasItems("count")));
+        assertThat(Arrays.asList(plan.metrics), not(hasItems("99percentile")));
+
+        // Beans with every metric excluded are skipped
+        ObjectInstance gauge = instance("type=Client,name=connectedNativeClients", GAUGE);
+        visitor.visit(new JmxSample(Type.CASSANDRA, gauge.getObjectName(), "value", 3, 1));
+        assertThat(inventory.plan(gauge).kind, is(Inventory.Kind.SKIP));
+
+        // Until included again
+        inventory.includeAll();
+        assertThat(Arrays.asList(inventory.plan(latency).metrics), hasItems("count", "99percentile"));
+        assertThat(inventory.plan(gauge).kind, is(Inventory.Kind.ATTRIBUTES));
+    }
+
+    private static ObjectInstance instance(String properties, String className) throws MalformedObjectNameException {
+        return new ObjectInstance(new ObjectName("org.apache.cassandra.metrics:" + properties), className);
+    }
+
+}
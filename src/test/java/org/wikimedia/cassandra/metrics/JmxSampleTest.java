@@ -0,0 +1,64 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+public class JmxSampleTest {
+
+    @Test
+    public void testTrySet() throws MalformedObjectNameException {
+        ObjectName oName = new ObjectName("org.apache.cassandra.metrics:type=Storage,name=Load");
+        JmxSample sample = new JmxSample();
+
+        assertThat(sample.trySet(Type.CASSANDRA, oName, "value", Integer.valueOf(42), 1), is(true));
+        assertThat(sample.isIntegral(), is(true));
+        assertThat(sample.getLongValue(), is(42L));
+        assertThat(sample.getTimestamp(), is(1));
+
+        assertThat(sample.trySet(Type.CASSANDRA, oName, "value", new AtomicLong(7), 2), is(true));
+        assertThat(sample.getLongValue(), is(7L));
+
+        assertThat(sample.trySet(Type.CASSANDRA, oName, "value", Float.valueOf(0.5f), 3), is(true));
+        assertThat(sample.isIntegral(), is(false));
+        assertThat(sample.getDoubleValue(), is(0.5d));
+        assertThat(sample.appendValue(new StringBuilder()).toString(), is("0.5"));
+
+        // Floats are written as Float.toString renders them
+        assertThat(sample.trySet(Type.CASSANDRA, oName, "value", Float.valueOf(0.1f), 3), is(true));
+        assertThat(sample.appendValue(new StringBuilder()).toString(), is("0.1"));
+        assertThat(sample.trySet(Type.CASSANDRA, oName, "value", Float.valueOf(1.0E10f), 3), is(true));
+        assertThat(sample.appendValue(new StringBuilder()).toString(), is(Float.toString(1.0E10f)));
+        assertThat(sample.trySet(Type.CASSANDRA, oName, "value", Float.valueOf(0.5f), 3), is(true));
+
+        // Rejected values leave the sample unchanged
+        assertThat(sample.trySet(Type.CASSANDRA, oName, "value", "garbage", 4), is(false));
+        assertThat(sample.trySet(Type.CASSANDRA, oName, "value", Collections.emptyMap(), 4), is(false));
+        assertThat(sample.trySet(Type.CASSANDRA, oName, "value", Double.NaN, 4), is(false));
+        assertThat(sample.getDoubleValue(), is(0.5d));
+        assertThat(sample.getTimestamp(), is(3));
+    }
+
+}
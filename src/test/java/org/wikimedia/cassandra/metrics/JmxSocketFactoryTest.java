@@ -0,0 +1,166 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.rmi.server.RMISocketFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JmxSocketFactoryTest {
+
+    // How long the server takes to respond to a request
+    private static final long DELAY = 50;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private ServerSocket server;
+
+    @Before
+    public void setUp() throws IOException {
+        this.server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.executor.shutdownNow();
+        this.server.close();
+        JmxSocketFactory.meter(null);
+    }
+
+    @Test
+    public void testMetering() throws Exception {
+        // The JVM-wide factory (as used by RMI) is the installed one; It can only be installed once.
+        JmxSocketFactory factory = new JmxSocketFactory();
+        JmxSocketFactory.install(factory);
+        assertThat(RMISocketFactory.getSocketFactory(), sameInstance((RMISocketFactory) factory));
+        try {
+            JmxSocketFactory.install(new JmxSocketFactory());
+            fail("installed a second factory");
+        }
+        catch (IOException e) {
+            assertThat(RMISocketFactory.getSocketFactory(), sameInstance((RMISocketFactory) factory));
+        }
+
+        // Respond to requests of 4, 2, and 1 bytes with 8, 3, and 5 bytes respectively.
+        Future<Void> responses = respond(new int[][] { { 4, 8 }, { 2, 3 }, { 1, 5 } });
+        ConnectionStats stats = new ConnectionStats();
+
+        try (Socket socket = RMISocketFactory.getSocketFactory().createSocket(this.server.getInetAddress().getHostAddress(), this.server.getLocalPort())) {
+            JmxSocketFactory.meter(stats);
+            exchange(socket, 4, 8);
+            assertThat(stats.getBytesSent(), is(4L));
+            assertThat(stats.getBytesReceived(), is(8L));
+            assertThat(stats.getRoundTrips(), is(1L));
+            // Timed from the first write to the first read
+            assertThat(stats.getMaxRoundTrip() >= DELAY, is(true));
+
+            exchange(socket, 2, 3);
+            assertThat(stats.getBytesSent(), is(6L));
+            assertThat(stats.getBytesReceived(), is(11L));
+            assertThat(stats.getRoundTrips(), is(2L));
+
+            // I/O of a thread not being metered is not accounted.
+            JmxSocketFactory.meter(null);
+            exchange(socket, 1, 5);
+            assertThat(stats.getBytesSent(), is(6L));
+            assertThat(stats.getBytesReceived(), is(11L));
+            assertThat(stats.getRoundTrips(), is(2L));
+        }
+        responses.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testMeter() {
+        ConnectionStats outer = new ConnectionStats();
+        ConnectionStats inner = new ConnectionStats();
+
+        // Nested metering saves, and restores the enclosing stats.
+        assertThat(JmxSocketFactory.meter(outer), is(nullValue()));
+        ConnectionStats previous = JmxSocketFactory.meter(inner);
+        assertThat(previous, sameInstance(outer));
+        assertThat(JmxSocketFactory.meter(previous), sameInstance(inner));
+        assertThat(JmxSocketFactory.meter(null), sameInstance(outer));
+        assertThat(JmxSocketFactory.meter(null), is(nullValue()));
+    }
+
+    @Test
+    public void testReadTimeout() throws Exception {
+        // Accept, but never respond.
+        Future<Void> responses = respond(new int[][] { { 1, 0 } });
+        JmxSocketFactory factory = new JmxSocketFactory(1000, (int) DELAY, true, 0);
+
+        try (Socket socket = factory.createSocket(this.server.getInetAddress().getHostAddress(), this.server.getLocalPort())) {
+            assertThat(socket.getSoTimeout(), is((int) DELAY));
+            assertThat(socket.getTcpNoDelay(), is(true));
+            try {
+                exchange(socket, 1, 1);
+                fail("read did not time out");
+            }
+            catch (SocketTimeoutException e) {
+                // Expected
+            }
+        }
+        responses.get(5, TimeUnit.SECONDS);
+    }
+
+    /** Writes a request of the given size, and reads a response of the given size. */
+    private static void exchange(Socket socket, int requestSize, int responseSize) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(new byte[requestSize]);
+        out.flush();
+        new DataInputStream(socket.getInputStream()).readFully(new byte[responseSize]);
+    }
+
+    /** Accepts a connection, and (after {@link #DELAY}) answers requests of the given sizes. */
+    private Future<Void> respond(final int[][] exchanges) {
+        return this.executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try (Socket socket = JmxSocketFactoryTest.this.server.accept()) {
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    for (int[] exchange : exchanges) {
+                        in.readFully(new byte[exchange[0]]);
+                        Thread.sleep(DELAY);
+                        socket.getOutputStream().write(new byte[exchange[1]]);
+                    }
+                    // Wait for the client to hang up.
+                    while (in.read() >= 0)
+                        ;
+                }
+                return null;
+            }
+        });
+    }
+
+}
@@ -0,0 +1,63 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencySketchTest {
+
+    @Test
+    public void testMerge() {
+        // One instance fast, the other slow; The merged 99th percentile is that of the slow one.
+        EstimatedHistogram fast = new EstimatedHistogram(LatencySketch.BUCKETS);
+        EstimatedHistogram slow = new EstimatedHistogram(LatencySketch.BUCKETS);
+        for (int i = 0; i < 9900; i++)
+            fast.add(500);
+        for (int i = 0; i < 100; i++)
+            slow.add(80000);
+
+        LatencySketch a = new LatencySketch(), b = new LatencySketch();
+        a.add(fast.getBuckets(false), 1.0);
+        b.add(slow.getBuckets(false), 1.0);
+        a.merge(b);
+
+        assertThat(a.count(), is(10000L));
+        assertWithin(a.quantile(0.5), 500);
+        assertWithin(a.quantile(0.99), 500);
+        assertWithin(a.quantile(0.999), 80000);
+    }
+
+    @Test
+    public void testScale() {
+        EstimatedHistogram nanos = new EstimatedHistogram(LatencySketch.BUCKETS);
+        for (int i = 0; i < 100; i++)
+            nanos.add(2500000);
+
+        LatencySketch sketch = new LatencySketch();
+        sketch.add(nanos.getBuckets(false), 0.001);
+
+        assertWithin(sketch.quantile(0.99), 2500);
+        assertThat(new LatencySketch().quantile(0.99), is(0L));
+    }
+
+    private static void assertWithin(long estimate, long actual) {
+        assertTrue(String.format("%d not within 20%% of %d", estimate, actual), Math.abs(estimate - actual) <= actual * 0.2);
+    }
+
+}
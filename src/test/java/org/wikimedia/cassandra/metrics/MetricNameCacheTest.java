@@ -0,0 +1,158 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+
+public class MetricNameCacheTest {
+
+    @Test
+    public void test() throws MalformedObjectNameException {
+        MetricNameCache cache = new MetricNameCache("cassandra");
+        ObjectName table = new ObjectName("org.apache.cassandra.metrics:type=Table,keyspace=ks,scope=t,name=LiveSSTableCount");
+        ObjectName gc = new ObjectName("java.lang:type=GarbageCollector,name=ConcurrentMarkSweep");
+
+        MetricNameCache.MetricName name = cache.get(Type.CASSANDRA, table, "value");
+        assertThat(name.getName(), is("cassandra.org.apache.cassandra.metrics.Table.ks.t.LiveSSTableCount.value"));
+        assertThat(new String(name.getBytes(), Charsets.UTF_8), is(name.getName()));
+        assertThat(cache.get(Type.CASSANDRA, table, "value"), is(sameInstance(name)));
+        assertThat(cache.get(Type.JVM, gc, "runs").getName(), is("cassandra.jvm.gc.ConcurrentMarkSweep.runs"));
+        assertThat(cache.size(), is(2));
+
+        // The GC bean continues to be seen, the table does not (dropped).
+        for (int i = 0; i < MetricNameCache.EXPIRY; i++) {
+            cache.sweep();
+            cache.get(Type.JVM, gc, "runs");
+        }
+        assertThat(cache.size(), is(2));
+        cache.sweep();
+        assertThat(cache.size(), is(1));
+
+        assertThat(cache.get(Type.CASSANDRA, table, "value"), is(not(sameInstance(name))));
+    }
+
+    @Test
+    public void testLimit() throws MalformedObjectNameException {
+        MetricNameCache cache = new MetricNameCache("cassandra", Optional.<Relabeler>absent(), false, 2);
+        ObjectName a = new ObjectName("org.apache.cassandra.metrics:type=Table,keyspace=ks1,scope=a,name=LiveSSTableCount");
+        ObjectName b = new ObjectName("org.apache.cassandra.metrics:type=Table,keyspace=ks2,scope=b,name=LiveSSTableCount");
+
+        assertThat(cache.get(Type.CASSANDRA, a, "value").isDropped(), is(false));
+        assertThat(cache.get(Type.CASSANDRA, a, "count").isDropped(), is(false));
+        assertThat(cache.get(Type.CASSANDRA, b, "value").isLimited(), is(true));
+        // Names already cached are unaffected
+        assertThat(cache.get(Type.CASSANDRA, a, "value").isDropped(), is(false));
+        cache.sweep();
+        assertThat(cache.getSeries(), is(2));
+        assertThat(cache.getLimited(), is(1));
+
+        // Room is made once a bean ages out
+        for (int i = 0; i < MetricNameCache.EXPIRY; i++) {
+            cache.sweep();
+        }
+        assertThat(cache.getSeries(), is(0));
+        assertThat(cache.getLimited(), is(0));
+        assertThat(cache.get(Type.CASSANDRA, b, "value").isDropped(), is(false));
+    }
+
+    @Test
+    public void testLimitFiltered() throws MalformedObjectNameException {
+        FilterConfig config = new FilterConfig();
+        config.setBlacklist(Arrays.asList(".*\\.count$"));
+        Optional<Filter> filter = Optional.of(new Filter(config));
+        MetricNameCache cache = new MetricNameCache("cassandra", Optional.<Relabeler>absent(), false, 1);
+        ObjectName a = new ObjectName("org.apache.cassandra.metrics:type=Table,keyspace=ks1,scope=a,name=LiveSSTableCount");
+
+        // Names the filter rejects are not series
+        MetricNameCache.MetricName count = cache.get(Type.CASSANDRA, a, "count", filter);
+        assertThat(count.isLimited(), is(false));
+        assertThat(count.accept(filter.get()), is(false));
+        assertThat(cache.getSeries(), is(0));
+
+        assertThat(cache.get(Type.CASSANDRA, a, "value", filter).isDropped(), is(false));
+        assertThat(cache.getSeries(), is(1));
+        assertThat(cache.get(Type.CASSANDRA, a, "max", filter).isLimited(), is(true));
+    }
+
+    @Test
+    public void testShared() throws MalformedObjectNameException {
+        NamingPlans plans = new NamingPlans(Optional.<Relabeler>absent(), false);
+        MetricNameCache a = new MetricNameCache("cassandra.a", plans, 0);
+        MetricNameCache b = new MetricNameCache("cassandra.b", plans, 0);
+        ObjectName table = new ObjectName("org.apache.cassandra.metrics:type=Table,keyspace=ks,scope=t,name=LiveSSTableCount");
+
+        MetricNameCache.MetricName nameA = a.get(Type.CASSANDRA, table, "value");
+        MetricNameCache.MetricName nameB = b.get(Type.CASSANDRA, table, "value");
+        assertThat(nameA.getName(), is("cassandra.a.org.apache.cassandra.metrics.Table.ks.t.LiveSSTableCount.value"));
+        assertThat(nameB.getName(), is("cassandra.b.org.apache.cassandra.metrics.Table.ks.t.LiveSSTableCount.value"));
+        assertThat(nameA.getSuffixBytes(), is(sameInstance(nameB.getSuffixBytes())));
+        assertThat(plans.size(), is(1));
+
+        // Plans are discarded once every cache has evicted them
+        for (int i = 0; i <= MetricNameCache.EXPIRY; i++)
+            a.sweep();
+        assertThat(plans.size(), is(1));
+        for (int i = 0; i <= MetricNameCache.EXPIRY; i++)
+            b.sweep();
+        assertThat(plans.size(), is(0));
+    }
+
+    @Test
+    public void testClose() throws MalformedObjectNameException {
+        NamingPlans plans = new NamingPlans(Optional.<Relabeler>absent(), false);
+        MetricNameCache a = new MetricNameCache("cassandra.a", plans, 0);
+        MetricNameCache b = new MetricNameCache("cassandra.b", plans, 0);
+        ObjectName table = new ObjectName("org.apache.cassandra.metrics:type=Table,keyspace=ks,scope=t,name=LiveSSTableCount");
+
+        a.get(Type.CASSANDRA, table, "value");
+        b.get(Type.CASSANDRA, table, "value");
+
+        // Closed caches release their plans (without waiting to evict them)
+        a.close();
+        assertThat(plans.size(), is(1));
+        b.close();
+        assertThat(plans.size(), is(0));
+    }
+
+    @Test
+    public void testTagged() throws MalformedObjectNameException {
+        MetricNameCache cache = new MetricNameCache("cassandra", Optional.<Relabeler>absent(), true);
+
+        assertThat(
+                cache.get(Type.CASSANDRA, new ObjectName("org.apache.cassandra.metrics:type=Table,keyspace=ks,scope=t,name=ReadLatency"), "99percentile").getName(),
+                is("cassandra.org.apache.cassandra.metrics.Table.ReadLatency.99percentile;keyspace=ks;scope=t"));
+        assertThat(
+                cache.get(Type.CASSANDRA, new ObjectName("org.apache.cassandra.metrics:type=Table,name=LiveSSTableCount"), "value").getName(),
+                is("cassandra.org.apache.cassandra.metrics.Table.LiveSSTableCount.value;keyspace=all"));
+        assertThat(
+                cache.get(Type.JVM, new ObjectName("java.lang:type=GarbageCollector,name=ConcurrentMarkSweep"), "runs").getName(),
+                is("cassandra.jvm.gc.ConcurrentMarkSweep.runs"));
+    }
+
+}
@@ -0,0 +1,103 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeNoException;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class PerfDataSourceTest {
+
+    @Test
+    public void testMapping() {
+        assertThat(PerfDataSource.collectorName("G1 incremental collections"), is("G1 Young Generation"));
+        assertThat(PerfDataSource.collectorName("G1 stop-the-world full collections"), is("G1 Old Generation"));
+        assertThat(PerfDataSource.collectorName("PSScavenge"), is("PS Scavenge"));
+        assertThat(PerfDataSource.collectorName("PSParallelCompact"), is("PS MarkSweep"));
+        assertThat(PerfDataSource.collectorName("PCopy"), is("ParNew"));
+        assertThat(PerfDataSource.collectorName("CMS"), is("ConcurrentMarkSweep"));
+        assertThat(PerfDataSource.collectorName("Shenandoah"), is("Shenandoah"));
+
+        assertThat(Arrays.asList(PerfDataSource.poolNames("G1 incremental collections")), is(Arrays.asList("G1 Eden Space", "G1 Survivor Space", "G1 Old Gen")));
+        assertThat(Arrays.asList(PerfDataSource.poolNames("PSScavenge")), is(Arrays.asList("PS Eden Space", "PS Survivor Space", "PS Old Gen")));
+        assertThat(Arrays.asList(PerfDataSource.poolNames("PCopy")), is(Arrays.asList("Par Eden Space", "Par Survivor Space", "CMS Old Gen")));
+        assertThat(Arrays.asList(PerfDataSource.poolNames("Shenandoah")), is(Arrays.asList("eden", "survivor", "old")));
+        assertThat(Arrays.asList(PerfDataSource.poolNames(null)), is(Arrays.asList("eden", "survivor", "old")));
+    }
+
+    @Test
+    public void testSelf() throws IOException {
+        String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        PerfDataSource source = null;
+        try {
+            source = new PerfDataSource(pid);
+        }
+        catch (IOException e) {
+            // No perf data (-XX:-UsePerfData, or an unwritable temp directory)
+            assumeNoException(e);
+        }
+
+        final List<JmxSample> samples = Lists.newArrayList();
+        try {
+            source.getSamples(new SampleVisitor() {
+                @Override
+                public void visit(JmxSample sample) {
+                    samples.add(sample);
+                }
+            });
+        }
+        finally {
+            source.close();
+        }
+
+        // Collectors and memory pools are named as they are over JMX
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Set<String> runtime = Sets.newHashSet();
+        int collectors = 0, pools = 0;
+        for (JmxSample sample : samples) {
+            ObjectName oName = sample.getObjectName();
+            String type = oName.getKeyProperty("type");
+            if (type.equals("GarbageCollector") || type.equals("MemoryPool")) {
+                assertThat(oName.toString(), server.isRegistered(oName), is(true));
+                if (type.equals("GarbageCollector"))
+                    collectors++;
+                else
+                    pools++;
+            }
+            else if (type.equals("Runtime")) {
+                runtime.add(sample.getMetricName());
+            }
+        }
+        assertThat(collectors, is(2 * ManagementFactory.getGarbageCollectorMXBeans().size()));
+        assertThat(pools > 0, is(true));
+        assertThat(runtime, hasItems("uptime", "thread_count", "safepoints"));
+    }
+
+}
@@ -0,0 +1,92 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+public class PlaintextEncoderTest {
+
+    @Test
+    public void testLine() {
+        ByteBuffer buffer = ByteBuffer.allocate(128);
+
+        PlaintextEncoder.encode(buffer, "cassandra".getBytes(), ".jvm.uptime".getBytes(), 42L, 1000000);
+        PlaintextEncoder.encode(buffer, "cassandra".getBytes(), ".jvm.load".getBytes(), 0.25, 1000000);
+
+        assertThat(string(buffer), equalTo("cassandra.jvm.uptime 42 1000000\ncassandra.jvm.load 0.25 1000000\n"));
+    }
+
+    @Test
+    public void testLongs() {
+        for (long value : new long[] { 0, 7, -7, 10, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE }) {
+            ByteBuffer buffer = ByteBuffer.allocate(32);
+            PlaintextEncoder.putLong(buffer, value);
+            assertThat(string(buffer), equalTo(Long.toString(value)));
+        }
+    }
+
+    @Test
+    public void testDoubles() {
+        assertThat(toString(0.0), equalTo("0.0"));
+        assertThat(toString(-0.0), equalTo("-0.0"));
+        assertThat(toString(1.5), equalTo("1.5"));
+        assertThat(toString(100.0), equalTo("100.0"));
+        assertThat(toString(0.001), equalTo("0.001"));
+        assertThat(toString(9.99E-4), equalTo("9.99E-4"));
+        assertThat(toString(1.0E7), equalTo("1.0E7"));
+        assertThat(toString(9999999.0), equalTo("9999999.0"));
+        assertThat(toString(1.0 / 3), equalTo("0.3333333333333333"));
+        assertThat(toString(Double.MAX_VALUE), equalTo("1.7976931348623157E308"));
+        assertThat(toString(Double.MIN_VALUE), equalTo("4.9E-324"));
+        assertThat(toString(Double.NaN), equalTo("NaN"));
+        assertThat(toString(Double.NEGATIVE_INFINITY), equalTo("-Infinity"));
+
+        // Shorter than Double.toString (before Java 19)
+        assertThat(toString(1.0E23), equalTo("1.0E23"));
+        assertThat(toString(2.0E-3), equalTo("0.002"));
+    }
+
+    @Test
+    public void testRoundTrip() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            double value = Double.longBitsToDouble(random.nextLong());
+            if (Double.isNaN(value))
+                continue;
+            String encoded = toString(value);
+            assertThat(encoded, Double.parseDouble(encoded), equalTo(value));
+            assertThat(encoded, encoded.length() <= Double.toString(value).length(), equalTo(true));
+        }
+    }
+
+    private static String toString(double value) {
+        ByteBuffer buffer = ByteBuffer.allocate(PlaintextEncoder.MAX_DOUBLE_LENGTH);
+        PlaintextEncoder.putDouble(buffer, value);
+        return string(buffer);
+    }
+
+    private static String string(ByteBuffer buffer) {
+        return new String(buffer.array(), 0, buffer.position(), Charsets.US_ASCII);
+    }
+
+}
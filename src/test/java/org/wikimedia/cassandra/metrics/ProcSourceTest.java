@@ -0,0 +1,87 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+public class ProcSourceTest {
+
+    private static final String STAT = "1369 (java (main) x) S 1 1369 1369 0 -1 4194560 24012 0 3 0 150 27 0 0 20 0 31 0 12345 1 2\n";
+    private static final String STATUS = "Name:\tjava\nThreads:\t31\nVmRSS:\t   123456 kB\nvoluntary_ctxt_switches:\t4\nnonvoluntary_ctxt_switches:\t7\n";
+
+    @Test
+    public void testStat() {
+        byte[] b = STAT.getBytes(Charsets.US_ASCII);
+        int fields = ProcSource.statFields(b, b.length);
+
+        assertThat((char) b[fields], is('S'));
+        assertThat(ProcSource.token(b, fields, b.length, 7), is(24012L));
+        assertThat(ProcSource.token(b, fields, b.length, 9), is(3L));
+        assertThat(ProcSource.token(b, fields, b.length, 11), is(150L));
+        assertThat(ProcSource.token(b, fields, b.length, 12), is(27L));
+        assertThat(ProcSource.token(b, fields, b.length, 100), is(-1L));
+    }
+
+    @Test
+    public void testKeyed() {
+        byte[] b = STATUS.getBytes(Charsets.US_ASCII);
+
+        assertThat(ProcSource.keyed(b, b.length, "VmRSS:".getBytes(Charsets.US_ASCII)), is(123456L));
+        assertThat(ProcSource.keyed(b, b.length, "voluntary_ctxt_switches:".getBytes(Charsets.US_ASCII)), is(4L));
+        assertThat(ProcSource.keyed(b, b.length, "nonvoluntary_ctxt_switches:".getBytes(Charsets.US_ASCII)), is(7L));
+        assertThat(ProcSource.keyed(b, b.length, "VmSwap:".getBytes(Charsets.US_ASCII)), is(-1L));
+    }
+
+    @Test
+    public void testSelf() throws IOException {
+        assumeTrue(new File("/proc/self/stat").exists());
+
+        String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        final List<String> names = Lists.newArrayList();
+
+        int descriptors = new File("/proc/self/fd").list().length;
+        try (ProcSource source = new ProcSource(pid)) {
+            for (int i = 0; i < 2; i++) {
+                names.clear();
+                source.getSamples(new SampleVisitor() {
+                    @Override
+                    public void visit(JmxSample sample) {
+                        names.add(CarbonVisitor.metricName(sample, "c"));
+                    }
+                });
+            }
+
+            // Only the files of the process are held open, not those of every thread
+            assertThat(new File("/proc/self/fd").list().length <= descriptors + 3, is(true));
+        }
+
+        assertThat(names.contains("c.jvm.process.rss_bytes"), is(true));
+        assertThat(names.contains("c.jvm.process.cpu_user"), is(true));
+        assertThat(names.contains("c.jvm.process.voluntary_context_switches"), is(true));
+    }
+
+}
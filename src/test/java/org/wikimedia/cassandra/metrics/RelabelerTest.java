@@ -0,0 +1,57 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.Constructor;
+
+import com.google.common.base.Optional;
+
+public class RelabelerTest {
+
+    @Test
+    public void test() throws MalformedObjectNameException {
+        Yaml yaml = new Yaml(new Constructor(RelabelConfig.class));
+        RelabelConfig config = (RelabelConfig) yaml.load(getClass().getResourceAsStream("/relabel-test.yaml"));
+        MetricNameCache names = new MetricNameCache("c", Optional.of(new Relabeler(config)));
+
+        assertThat(
+                names.get(Type.CASSANDRA, new ObjectName("org.apache.cassandra.metrics:type=ThreadPools,path=request,scope=ReadStage,name=PendingTasks"), "value").getName(),
+                is("c.org.apache.cassandra.metrics.ThreadPools.request-ReadStage.PendingTasks.value"));
+        assertThat(
+                names.get(Type.CASSANDRA, new ObjectName("org.apache.cassandra.metrics:type=ClientRequest,scope=Read,name=Latency"), "count").getName(),
+                is("c.org.apache.cassandra.metrics.ClientRequest.Read_Latency.count"));
+
+        // Built-in mapping (keyspace=all) applies before the rules
+        assertThat(names.get(Type.CASSANDRA, new ObjectName("org.apache.cassandra.metrics:type=Table,name=SnapshotsSize"), "value").isDropped(), is(true));
+        assertThat(
+                names.get(Type.CASSANDRA, new ObjectName("org.apache.cassandra.metrics:type=Table,name=LiveSSTableCount"), "value").getName(),
+                is("c.org.apache.cassandra.metrics.Table.all.LiveSSTableCount.value"));
+
+        // Unmatched, and JVM names are left alone
+        assertThat(
+                names.get(Type.JVM, new ObjectName("java.lang:type=GarbageCollector,name=G1 Young Generation"), "runs").getName(),
+                is("c.jvm.gc.G1-Young-Generation.runs"));
+    }
+
+}
@@ -0,0 +1,89 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.collect.Lists;
+
+public class RollupTest {
+
+    private static class Samples implements SampleVisitor {
+        private final List<String> lines = Lists.newArrayList();
+
+        @Override
+        public void visit(JmxSample sample) {
+            this.lines.add(String.format("%s %s", CarbonVisitor.metricName(sample, "c"), sample.getValue()));
+        }
+    }
+
+    @Test
+    public void test() throws MalformedObjectNameException {
+        RollupConfig.Rule sum = new RollupConfig.Rule();
+        sum.setName("WriteLatency");
+        sum.setMetrics(Arrays.asList("count"));
+        sum.setFunction("sum");
+        RollupConfig.Rule mean = new RollupConfig.Rule();
+        mean.setName("WriteLatency");
+        mean.setMetrics(Arrays.asList("99percentile"));
+        mean.setFunction("mean");
+        mean.setWeight("count");
+        mean.setDrop(true);
+        RollupConfig config = new RollupConfig();
+        config.setRules(Arrays.asList(sum, mean));
+
+        Rollup rollup = new Rollup(config);
+        Samples samples = new Samples();
+        BatchVisitor visitor = rollup.watch(samples);
+
+        SampleBatch batch = new SampleBatch();
+        visitor.visit(table(batch, "ks1", "a", 10, 100.0));
+        visitor.visit(table(batch, "ks1", "b", 30, 200.0));
+        visitor.visit(table(batch, "ks2", "c", 60, 400.0));
+        rollup.emit(samples);
+
+        assertThat(samples.lines, hasItems(
+                "c.org.apache.cassandra.metrics.Table.ks1.a.WriteLatency.count 10",
+                "c.org.apache.cassandra.metrics.TableRollup.ks1.WriteLatency.count.sum 40",
+                "c.org.apache.cassandra.metrics.TableRollup.ks1.WriteLatency.99percentile.mean 175.0",
+                "c.org.apache.cassandra.metrics.TableRollup.all.WriteLatency.count.sum 100",
+                "c.org.apache.cassandra.metrics.TableRollup.all.WriteLatency.99percentile.mean 310.0"));
+        // Dropped originals
+        assertThat(samples.lines, not(hasItems("c.org.apache.cassandra.metrics.Table.ks1.a.WriteLatency.99percentile 100.0")));
+
+        // Aggregates are written once
+        samples.lines.clear();
+        rollup.emit(samples);
+        assertThat(samples.lines.size(), is(0));
+    }
+
+    private static SampleBatch table(SampleBatch batch, String keyspace, String table, long count, double p99) throws MalformedObjectNameException {
+        ObjectName oName = new ObjectName(String.format("org.apache.cassandra.metrics:type=Table,keyspace=%s,scope=%s,name=WriteLatency", keyspace, table));
+        return batch.reset(Type.CASSANDRA, oName, 1000).add("count", count).add("99percentile", p99);
+    }
+
+}
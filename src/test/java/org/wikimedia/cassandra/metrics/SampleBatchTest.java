@@ -0,0 +1,54 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+public class SampleBatchTest {
+
+    @Test
+    public void testTryAdd() throws MalformedObjectNameException {
+        SampleBatch batch = new SampleBatch().reset(Type.CASSANDRA, new ObjectName("org.apache.cassandra.metrics:type=Cache,scope=KeyCache,name=HitRate"), 1);
+
+        assertThat(batch.tryAdd("a", Integer.valueOf(42)), is(true));
+        assertThat(batch.tryAdd("b", Float.valueOf(0.1f)), is(true));
+        assertThat(batch.tryAdd("c", Double.valueOf(0.1d)), is(true));
+        assertThat(batch.tryAdd("d", new BigDecimal("2.5")), is(true));
+        assertThat(batch.tryAdd("e", "garbage"), is(false));
+        assertThat(batch.tryAdd("f", Collections.emptyMap()), is(false));
+        assertThat(batch.tryAdd("g", Float.NaN), is(false));
+        assertThat(batch.size(), is(4));
+
+        assertThat(batch.isIntegral(0), is(true));
+        assertThat(batch.getLongValue(0), is(42L));
+
+        // Floats are written as Float.toString renders them, not widened exactly (0.10000000149011612)
+        assertThat(batch.isIntegral(1), is(false));
+        assertThat(batch.getDoubleValue(1), is(0.1d));
+        assertThat(batch.getDoubleValue(2), is(0.1d));
+        assertThat(batch.getDoubleValue(3), is(2.5d));
+    }
+
+}
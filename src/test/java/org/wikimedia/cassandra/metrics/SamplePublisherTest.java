@@ -0,0 +1,215 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/** Tests {@link SamplePublisher} (and {@link JmxCollector#getSamplesAsync}) against a stubbed collector. */
+public class SamplePublisherTest {
+
+    /** Runs tasks on the calling thread. */
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static class Recorder implements SamplePublisher.Subscriber {
+        final List<String> batches = Lists.newArrayList();
+        SamplePublisher.Subscription subscription;
+        Throwable error;
+        int completed = 0;
+
+        @Override
+        public void onSubscribe(SamplePublisher.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(SampleBatch batch) {
+            this.batches.add(batch.getObjectName().getKeyProperty("name"));
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+
+        @Override
+        public void onComplete() {
+            this.completed++;
+        }
+    }
+
+    private ObjectName query;
+    private JmxCollector collector;
+
+    @Before
+    public void setUp() throws IOException, MalformedObjectNameException {
+        this.query = new ObjectName("org.apache.cassandra.metrics:type=Storage,*");
+        this.collector = mock(JmxCollector.class);
+
+        // Four beans, the second of which has no samples
+        Set<ObjectInstance> beans = Sets.newLinkedHashSet();
+        for (String name : Arrays.asList("a", "b", "c", "d"))
+            beans.add(new ObjectInstance("org.apache.cassandra.metrics:type=Storage,name=" + name, "Gauge"));
+        when(this.collector.queryCassandraBeans(this.query)).thenReturn(beans);
+        when(this.collector.collectBean(any(ObjectInstance.class), any(Inventory.class), any(SampleBatch.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                ObjectName oName = ((ObjectInstance) invocation.getArguments()[0]).getObjectName();
+                if (oName.getKeyProperty("name").equals("b"))
+                    return false;
+                ((SampleBatch) invocation.getArguments()[2]).reset(Type.CASSANDRA, oName, 1).add("value", 1L);
+                return true;
+            }
+        });
+    }
+
+    @Test
+    public void testDemand() {
+        Recorder recorder = subscribe();
+        assertThat(recorder.batches.isEmpty(), is(true));
+
+        recorder.subscription.request(1);
+        assertThat(recorder.batches, is((List<String>) Arrays.asList("a")));
+
+        recorder.subscription.request(2);
+        assertThat(recorder.batches, is((List<String>) Arrays.asList("a", "c", "d")));
+        assertThat(recorder.completed, is(0));
+
+        // Completion is signalled once more is requested (and found not to exist)
+        recorder.subscription.request(1);
+        assertThat(recorder.completed, is(1));
+        assertThat(recorder.error, is(nullValue()));
+    }
+
+    @Test
+    public void testUnbounded() {
+        Recorder recorder = subscribe();
+
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertThat(recorder.batches, is((List<String>) Arrays.asList("a", "c", "d")));
+        assertThat(recorder.completed, is(1));
+    }
+
+    @Test
+    public void testCancel() {
+        Recorder recorder = new Recorder() {
+            @Override
+            public void onNext(SampleBatch batch) {
+                super.onNext(batch);
+                this.subscription.cancel();
+            }
+        };
+        new SamplePublisher(this.collector, this.query, new Inventory(), DIRECT).subscribe(recorder);
+
+        recorder.subscription.request(10);
+        assertThat(recorder.batches, is((List<String>) Arrays.asList("a")));
+        recorder.subscription.request(10);
+        assertThat(recorder.batches.size(), is(1));
+        assertThat(recorder.completed, is(0));
+        assertThat(recorder.error, is(nullValue()));
+    }
+
+    @Test
+    public void testInvalidRequest() {
+        Recorder recorder = subscribe();
+
+        recorder.subscription.request(0);
+        assertThat(recorder.error, instanceOf(IllegalArgumentException.class));
+
+        // No signals follow an error
+        recorder.subscription.request(10);
+        assertThat(recorder.batches.isEmpty(), is(true));
+        assertThat(recorder.completed, is(0));
+    }
+
+    @Test
+    public void testError() throws IOException {
+        when(this.collector.queryCassandraBeans(this.query)).thenThrow(new IOException("connection reset"));
+        Recorder recorder = subscribe();
+
+        recorder.subscription.request(1);
+        assertThat(recorder.error, instanceOf(IOException.class));
+        assertThat(recorder.completed, is(0));
+    }
+
+    @Test
+    public void testSubscribeTwice() {
+        SamplePublisher publisher = new SamplePublisher(this.collector, this.query, new Inventory(), DIRECT);
+        publisher.subscribe(new Recorder());
+
+        Recorder second = new Recorder();
+        publisher.subscribe(second);
+        assertThat(second.error, instanceOf(IllegalStateException.class));
+    }
+
+    @Test
+    public void testAsync() throws IOException, InterruptedException {
+        doCallRealMethod().when(this.collector).getSamplesAsync(any(SampleVisitor.class), any(Executor.class));
+        SampleVisitor visitor = mock(SampleVisitor.class);
+
+        CompletableFuture<Void> result = this.collector.getSamplesAsync(visitor, DIRECT).toCompletableFuture();
+        assertThat(result.isDone() && !result.isCompletedExceptionally(), is(true));
+
+        doThrow(new IOException("connection reset")).when(this.collector).getSamples(visitor);
+        result = this.collector.getSamplesAsync(visitor, DIRECT).toCompletableFuture();
+        assertThat(result.isCompletedExceptionally(), is(true));
+        try {
+            result.get();
+        }
+        catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(IOException.class));
+        }
+    }
+
+    private Recorder subscribe() {
+        Recorder recorder = new Recorder();
+        new SamplePublisher(this.collector, this.query, new Inventory(), DIRECT).subscribe(recorder);
+        return recorder;
+    }
+
+}
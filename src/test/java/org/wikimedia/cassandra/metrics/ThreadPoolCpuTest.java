@@ -0,0 +1,165 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static java.lang.management.ManagementFactory.THREAD_MXBEAN_NAME;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.sun.management.ThreadMXBean;
+
+public class ThreadPoolCpuTest {
+
+    // Not the ID of any live thread
+    private static final long TERMINATED = Long.MAX_VALUE;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Thread> threads = Lists.newArrayList();
+    private ThreadMXBean bean;
+    private MBeanServerConnection connection;
+
+    private static class Samples implements SampleVisitor {
+        private final Map<String, Double> pools = Maps.newHashMap();
+
+        @Override
+        public void visit(JmxSample sample) {
+            this.pools.put(sample.getObjectName().getKeyProperty("scope"), sample.getDoubleValue());
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException, JMException {
+        // Thread names are resolved by the JVM's own bean (for live threads), CPU times are not.
+        final java.lang.management.ThreadMXBean platform = ManagementFactory.getThreadMXBean();
+        this.bean = mock(ThreadMXBean.class);
+        doAnswer(new Answer<ThreadInfo[]>() {
+            @Override
+            public ThreadInfo[] answer(InvocationOnMock invocation) {
+                return platform.getThreadInfo((long[]) invocation.getArguments()[0]);
+            }
+        }).when(this.bean).getThreadInfo(any(long[].class));
+
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        server.registerMBean(new StandardMBean(this.bean, ThreadMXBean.class, true), new ObjectName(THREAD_MXBEAN_NAME));
+        // The mock's class is not one the server can check the platform interface against.
+        this.connection = mock(MBeanServerConnection.class, delegatesTo(server));
+        doReturn(true).when(this.connection).isInstanceOf(any(ObjectName.class), anyString());
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        this.done.countDown();
+        for (Thread thread : this.threads)
+            thread.join();
+    }
+
+    @Test
+    public void testPoolName() {
+        assertThat(ThreadPoolCpu.poolName("MutationStage-12"), is("MutationStage"));
+        assertThat(ThreadPoolCpu.poolName("CompactionExecutor:4"), is("CompactionExecutor"));
+        assertThat(ThreadPoolCpu.poolName("Native-Transport-Requests-3"), is("Native-Transport-Requests"));
+        assertThat(ThreadPoolCpu.poolName("GossipStage"), is("GossipStage"));
+        assertThat(ThreadPoolCpu.poolName("Signal Dispatcher"), is("Signal-Dispatcher"));
+
+        // Digits elsewhere than a separated suffix
+        assertThat(ThreadPoolCpu.poolName("RMI TCP Connection(12)-127.0.0.1"), is(ThreadPoolCpu.OTHER));
+        assertThat(ThreadPoolCpu.poolName("pool-1-thread-3"), is(ThreadPoolCpu.OTHER));
+        assertThat(ThreadPoolCpu.poolName("Thread7"), is(ThreadPoolCpu.OTHER));
+        assertThat(ThreadPoolCpu.poolName("42"), is(ThreadPoolCpu.OTHER));
+    }
+
+    @Test
+    public void testCollect() throws IOException {
+        long mutation1 = start("MutationStage-1");
+        long mutation2 = start("MutationStage-2");
+        long read = start("ReadStage-1");
+        ThreadPoolCpu cpu = new ThreadPoolCpu();
+
+        // The first collection only establishes a baseline; A thread whose info is gone is ignored.
+        Samples samples = collect(cpu, new long[] { mutation1, read, TERMINATED }, new long[] { 100, 100, 50 });
+        assertThat(samples.pools.isEmpty(), is(true));
+        assertThat(cpu.toString(), is("ThreadPoolCpu [threads=2]"));
+
+        // A new thread accrued all of its CPU time in the interval.
+        samples = collect(cpu, new long[] { mutation1, read, mutation2 }, new long[] { 300, 400, 100 });
+        assertThat(samples.pools.keySet().size(), is(2));
+        assertThat(samples.pools.get("MutationStage") > 0, is(true));
+        assertThat(samples.pools.get("MutationStage"), is(samples.pools.get("ReadStage")));
+        assertThat(cpu.toString(), is("ThreadPoolCpu [threads=3]"));
+
+        // A thread whose CPU time is unavailable (negative) is skipped, and terminated ones forgotten.
+        samples = collect(cpu, new long[] { mutation1, read }, new long[] { -1, 700 });
+        assertThat(samples.pools.keySet().size(), is(1));
+        assertThat(samples.pools.get("ReadStage") > 0, is(true));
+        assertThat(cpu.toString(), is("ThreadPoolCpu [threads=1]"));
+    }
+
+    /** Collects with the given thread IDs, and CPU times. */
+    private Samples collect(ThreadPoolCpu cpu, long[] ids, long[] cpuTimes) throws IOException {
+        when(this.bean.getAllThreadIds()).thenReturn(ids);
+        when(this.bean.getThreadCpuTime(ids)).thenReturn(cpuTimes);
+        Samples samples = new Samples();
+        cpu.collect(this.connection, samples);
+        return samples;
+    }
+
+    /** Starts a named thread, live until the test completes, and returns its ID. */
+    private long start(String name) {
+        Thread thread = new Thread(name) {
+            @Override
+            public void run() {
+                try {
+                    ThreadPoolCpuTest.this.done.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        thread.start();
+        this.threads.add(thread);
+        return thread.getId();
+    }
+
+}
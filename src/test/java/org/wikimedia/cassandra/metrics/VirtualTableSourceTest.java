@@ -0,0 +1,218 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics;
+
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+/** Tests {@link VirtualTableSource} against a stand-in server speaking just enough of the native protocol. */
+public class VirtualTableSourceTest {
+
+    private static final short VARCHAR = 0x000D, INT = 0x0009, BIGINT = 0x0002, DOUBLE = 0x0007;
+
+    private ServerSocket server;
+    private Thread thread;
+    private final List<String> queries = Lists.newArrayList();
+
+    private static class Samples implements SampleVisitor {
+        private final List<String> lines = Lists.newArrayList();
+
+        @Override
+        public void visit(JmxSample sample) {
+            this.lines.add(String.format("%s %s", CarbonVisitor.metricName(sample, "c"), sample.getValue()));
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        this.server = new ServerSocket(0);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (Socket socket = server.accept()) {
+                    serve(socket);
+                }
+                catch (IOException e) {
+                    // Client went away
+                }
+            }
+        });
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.server.close();
+    }
+
+    @Test
+    public void testSamples() throws IOException {
+        Samples samples = new Samples();
+
+        try (VirtualTableSource source = new VirtualTableSource("localhost:" + server.getLocalPort(), null, null)) {
+            source.getSamples(samples);
+            source.getSamples(samples);
+        }
+
+        assertThat(samples.lines, hasItems(
+                "c.org.apache.cassandra.metrics.ThreadPools.request.MutationStage.PendingTasks.value 3",
+                "c.org.apache.cassandra.metrics.ThreadPools.internal.CompactionExecutor.ActiveTasks.value 1",
+                "c.org.apache.cassandra.metrics.ThreadPools.request.MutationStage.TotalBlockedTasks.count 7",
+                "c.org.apache.cassandra.metrics.Client.connectedNativeClients.value 2",
+                "c.org.apache.cassandra.metrics.Table.ks.t.ReadLatency.count 42",
+                "c.org.apache.cassandra.metrics.Table.ks.t.ReadLatency.99percentile 1500.0"));
+
+        // Unsupported tables are only queried once.
+        int caches = 0;
+        synchronized (this.queries) {
+            for (String query : this.queries) {
+                if (query.endsWith(".caches"))
+                    caches++;
+            }
+        }
+        assertThat(caches, is(1));
+    }
+
+    private void serve(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+        while (true) {
+            byte[] header = new byte[9];
+            in.readFully(header);
+            int opcode = header[4];
+            int length = ((header[5] & 0xff) << 24) | ((header[6] & 0xff) << 16) | ((header[7] & 0xff) << 8) | (header[8] & 0xff);
+            byte[] body = new byte[length];
+            in.readFully(body);
+
+            if (opcode == NativeProtocolConnection.STARTUP) {
+                frame(out, NativeProtocolConnection.READY, new byte[0]);
+                continue;
+            }
+
+            String query = queryString(body);
+            synchronized (this.queries) {
+                this.queries.add(query);
+            }
+
+            if (query.endsWith(".thread_pools")) {
+                frame(out, NativeProtocolConnection.RESULT, rows(
+                        new String[] { "name", "active_tasks", "pending_tasks", "blocked_tasks_all_time" },
+                        new short[] { VARCHAR, INT, BIGINT, BIGINT },
+                        new Object[] { "MutationStage", 0, 3L, 7L },
+                        new Object[] { "CompactionExecutor", 1, 0L, 0L }));
+            }
+            else if (query.endsWith(".clients")) {
+                frame(out, NativeProtocolConnection.RESULT, rows(
+                        new String[] { "address" },
+                        new short[] { VARCHAR },
+                        new Object[] { "10.0.0.1" },
+                        new Object[] { "10.0.0.2" }));
+            }
+            else if (query.endsWith(".local_read_latency")) {
+                frame(out, NativeProtocolConnection.RESULT, rows(
+                        new String[] { "keyspace_name", "table_name", "count", "p99th_ms" },
+                        new short[] { VARCHAR, VARCHAR, BIGINT, DOUBLE },
+                        new Object[] { "ks", "t", 42L, 1.5 }));
+            }
+            else {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream error = new DataOutputStream(bytes);
+                error.writeInt(NativeProtocolConnection.ERROR_INVALID);
+                writeString(error, "table does not exist");
+                frame(out, NativeProtocolConnection.ERROR, bytes.toByteArray());
+            }
+        }
+    }
+
+    private static String queryString(byte[] body) {
+        int length = ((body[0] & 0xff) << 24) | ((body[1] & 0xff) << 16) | ((body[2] & 0xff) << 8) | (body[3] & 0xff);
+        return new String(body, 4, length, Charsets.UTF_8);
+    }
+
+    private static byte[] rows(String[] names, short[] types, Object[]... rows) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(NativeProtocolConnection.RESULT_ROWS);
+        out.writeInt(NativeProtocolConnection.ROWS_GLOBAL_TABLES_SPEC);
+        out.writeInt(names.length);
+        writeString(out, "system_views");
+        writeString(out, "table");
+        for (int i = 0; i < names.length; i++) {
+            writeString(out, names[i]);
+            out.writeShort(types[i]);
+        }
+
+        out.writeInt(rows.length);
+        for (Object[] row : rows) {
+            for (Object value : row) {
+                if (value instanceof String) {
+                    byte[] s = ((String) value).getBytes(Charsets.UTF_8);
+                    out.writeInt(s.length);
+                    out.write(s);
+                }
+                else if (value instanceof Integer) {
+                    out.writeInt(4);
+                    out.writeInt((Integer) value);
+                }
+                else if (value instanceof Long) {
+                    out.writeInt(8);
+                    out.writeLong((Long) value);
+                }
+                else if (value instanceof Double) {
+                    out.writeInt(8);
+                    out.writeDouble((Double) value);
+                }
+            }
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static void frame(DataOutputStream out, int opcode, byte[] body) throws IOException {
+        out.writeByte(NativeProtocolConnection.RESPONSE | NativeProtocolConnection.VERSION);
+        out.writeByte(0);
+        out.writeShort(0);
+        out.writeByte(opcode);
+        out.writeInt(body.length);
+        out.write(body);
+        out.flush();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(Charsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+}
@@ -0,0 +1,121 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics.service;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.wikimedia.cassandra.metrics.CarbonVisitor;
+import org.wikimedia.cassandra.metrics.Discovery;
+import org.wikimedia.cassandra.metrics.Filter;
+import org.wikimedia.cassandra.metrics.JmxCollector;
+import org.wikimedia.cassandra.metrics.MetricNameCache;
+import org.wikimedia.cassandra.metrics.SampleVisitor;
+
+import com.google.common.base.Optional;
+
+public class BurstLaneTest {
+
+    private final JmxCollector jmx = mock(JmxCollector.class);
+    private final CarbonVisitor carbon = mock(CarbonVisitor.class);
+    private final AtomicInteger connections = new AtomicInteger();
+
+    @Test
+    public void testWindow() throws IOException, InterruptedException {
+        BurstLane lane = lane(1);
+
+        // Collections are 1 second apart; Extending the window to 1.5 seconds admits a second one.
+        lane.trigger("first");
+        Thread.sleep(500);
+        lane.trigger("second");
+        verify(this.jmx, timeout(3000)).close();
+        verify(this.carbon).close();
+        verify(this.jmx, times(2)).getJvmSamples(this.carbon);
+        assertThat(lane.toString().endsWith("open=false]"), is(true));
+
+        // An expired lane is reopened (and reconnected) by a trigger.
+        lane.trigger("third");
+        verify(this.jmx, timeout(3000).times(2)).close();
+        verify(this.jmx, atLeast(3)).getJvmSamples(this.carbon);
+        assertThat(this.connections.get(), is(2));
+        lane.close();
+    }
+
+    @Test(timeout = 5000)
+    public void testCollectionInProgress() throws IOException, InterruptedException {
+        final CountDownLatch collecting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws InterruptedException {
+                collecting.countDown();
+                release.await();
+                return null;
+            }
+        }).when(this.jmx).getJvmSamples(any(SampleVisitor.class));
+        BurstLane lane = lane(60);
+
+        // Neither triggering nor closing waits on a collection blocked on I/O...
+        lane.trigger("first");
+        assertThat(collecting.await(1, TimeUnit.SECONDS), is(true));
+        lane.trigger("second");
+        lane.close();
+        verify(this.jmx, never()).close();
+
+        // ...which once complete, is followed by closing the connections.
+        release.countDown();
+        verify(this.jmx, timeout(1000)).close();
+        verify(this.carbon).close();
+        verify(this.jmx, times(1)).getJvmSamples(this.carbon);
+
+        // A closed lane stays closed.
+        lane.trigger("third");
+        assertThat(lane.toString().endsWith("open=false]"), is(true));
+    }
+
+    /** A lane with the given window, collecting once a second. */
+    private BurstLane lane(int window) {
+        Discovery.Jvm jvm = new Discovery.Jvm("test", null);
+        return new BurstLane(jvm, "localhost", 2003, Optional.<Filter>absent(), new MetricNameCache("cassandra-burst"), window, 1) {
+            @Override
+            JmxCollector connectJmx() {
+                BurstLaneTest.this.connections.incrementAndGet();
+                return BurstLaneTest.this.jmx;
+            }
+
+            @Override
+            CarbonVisitor connectCarbon() {
+                return BurstLaneTest.this.carbon;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,133 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics.service;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.wikimedia.cassandra.metrics.CarbonConnector;
+import org.wikimedia.cassandra.metrics.CarbonVisitor;
+import org.wikimedia.cassandra.metrics.Filter;
+import org.wikimedia.cassandra.metrics.Inventory;
+import org.wikimedia.cassandra.metrics.JmxCollector;
+import org.wikimedia.cassandra.metrics.JmxSample;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+import org.wikimedia.cassandra.metrics.MetricNameCache;
+import org.wikimedia.cassandra.metrics.SampleVisitor;
+import org.wikimedia.cassandra.metrics.VirtualTableSource;
+
+import com.google.common.base.Optional;
+
+public class CollectorTest {
+
+    private static final String PREFIX = "cassandra.c.org.apache.cassandra.metrics.";
+
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private CarbonVisitor carbon;
+    private JmxCollector jmx;
+    private VirtualTableSource virtualTables;
+    private Inventory inventory;
+    private InstanceState state;
+
+    @Before
+    public void setUp() throws IOException, MalformedObjectNameException {
+        final Socket socket = mock(Socket.class);
+        when(socket.getOutputStream()).thenReturn(this.written);
+        this.carbon = new CarbonVisitor(new CarbonConnector() {
+            @Override
+            protected Socket createSocket() {
+                return socket;
+            }
+        }, Optional.<Filter>absent(), new MetricNameCache("cassandra.c"));
+
+        // Over JMX: the load
+        final JmxSample load = new JmxSample(Type.CASSANDRA, new ObjectName("org.apache.cassandra.metrics:type=Storage,name=Load"), "count", 100L, 1);
+        this.jmx = mock(JmxCollector.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ((SampleVisitor) invocation.getArguments()[1]).visit(load);
+                return null;
+            }
+        }).when(this.jmx).getCassandraSamples(any(Inventory.class), any(SampleVisitor.class));
+
+        this.virtualTables = mock(VirtualTableSource.class);
+        this.inventory = spy(new Inventory());
+        this.state = new InstanceState();
+        this.state.setInventory(this.inventory);
+        this.state.setVirtualTables(this.virtualTables);
+    }
+
+    @Test
+    public void testVirtualTables() throws IOException, MalformedObjectNameException {
+        final JmxSample clients = new JmxSample(Type.CASSANDRA, new ObjectName("org.apache.cassandra.metrics:type=Client,name=connectedNativeClients"), "value", 3L, 1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ((SampleVisitor) invocation.getArguments()[0]).visit(clients);
+                return null;
+            }
+        }).when(this.virtualTables).getSamples(any(SampleVisitor.class));
+
+        Collector.getCassandraSamples(this.jmx, this.state, this.carbon);
+
+        assertThat(lines(), is(Arrays.asList(PREFIX + "Client.connectedNativeClients.value 3 1", PREFIX + "Storage.Load.count 100 1")));
+        verify(this.jmx).getCassandraSamples(same(this.inventory), any(SampleVisitor.class));
+        verify(this.inventory, never()).includeAll();
+    }
+
+    @Test
+    public void testVirtualTablesError() throws IOException {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws IOException {
+                throw new IOException("connection refused");
+            }
+        }).when(this.virtualTables).getSamples(any(SampleVisitor.class));
+
+        // JMX collection proceeds, with nothing excluded
+        Collector.getCassandraSamples(this.jmx, this.state, this.carbon);
+
+        assertThat(lines(), is(Arrays.asList(PREFIX + "Storage.Load.count 100 1")));
+        verify(this.inventory).includeAll();
+    }
+
+    private List<String> lines() {
+        this.carbon.flush();
+        return Arrays.asList(new String(this.written.toByteArray()).split("\n"));
+    }
+
+}
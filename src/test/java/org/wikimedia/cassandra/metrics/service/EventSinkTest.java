@@ -0,0 +1,185 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics.service;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Notification;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.remote.JMXServiceURL;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.wikimedia.cassandra.metrics.CarbonConnector;
+import org.wikimedia.cassandra.metrics.CarbonVisitor;
+import org.wikimedia.cassandra.metrics.Filter;
+import org.wikimedia.cassandra.metrics.JmxEventSource;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public class EventSinkTest {
+
+    private static final String REPAIR = "cassandra.c.org.apache.cassandra.metrics.Events.Repair";
+    private static final String STREAMING = "cassandra.c.org.apache.cassandra.metrics.Events.Streaming";
+    private static final String STREAM_EVENT = "org.apache.cassandra.streaming.StreamEvent.";
+
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private final List<OutputStream> outputs = Lists.newArrayList();
+    private int connects = 0;
+    private EventSink sink;
+    private JmxEventSource source;
+    private long sequence = 0;
+
+    @Before
+    public void setUp() throws IOException {
+        this.sink = new EventSink("localhost", 2003, "cassandra.c", Optional.<Filter>absent()) {
+            @Override
+            CarbonVisitor connect() {
+                connects++;
+                final Socket socket = mock(Socket.class);
+                try {
+                    when(socket.getOutputStream()).thenReturn(outputs.isEmpty() ? written : outputs.remove(0));
+                }
+                catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+                return new CarbonVisitor(new CarbonConnector() {
+                    @Override
+                    protected Socket createSocket() {
+                        return socket;
+                    }
+                }, "cassandra.c", Optional.<Filter>absent());
+            }
+        };
+        this.source = new JmxEventSource(new JMXServiceURL("service:jmx:rmi:///jndi/rmi://localhost:7199/jmxrmi"), this.sink, 1000);
+    }
+
+    @Test
+    public void testRepair() {
+        repair(0, 10000);     // started
+        repair(4, 12000);     // success
+        repair(5, 12500);     // complete
+
+        assertThat(lines(), is(Arrays.asList(
+                REPAIR + ".started 1 10",
+                REPAIR + ".success 1 12",
+                REPAIR + ".duration 2500 12")));
+        assertThat(this.connects, is(1));
+    }
+
+    @Test
+    public void testStreaming() throws OpenDataException {
+        stream("SessionPreparedEvent", "plan-1", 20000, null, null);
+        // A second session of the same plan
+        stream("SessionPreparedEvent", "plan-1", 20500, null, null);
+        stream("success", "plan-1", 24000, 2048L, 1024L);
+        // An unknown plan has no duration
+        stream("failure", "plan-2", 25000, 0L, 0L);
+
+        assertThat(lines(), is(Arrays.asList(
+                STREAMING + ".started 1 20",
+                STREAMING + ".duration 4000 24",
+                STREAMING + ".success 1 24",
+                STREAMING + ".bytes_received 2048 24",
+                STREAMING + ".bytes_sent 1024 24",
+                STREAMING + ".failure 1 25",
+                STREAMING + ".bytes_received 0 25",
+                STREAMING + ".bytes_sent 0 25")));
+    }
+
+    @Test
+    public void testIgnored() {
+        // Unrelated types, and malformed user data
+        notify(new Notification("jmx.attribute.change", "StorageService", this.sequence++, 1000));
+        Notification progress = new Notification("progress", "repair:1", this.sequence++, 1000);
+        progress.setUserData(Collections.singletonMap("type", "started"));
+        notify(progress);
+        notify(new Notification(STREAM_EVENT + "success", "StreamManager", this.sequence++, 1000));
+
+        assertThat(lines().isEmpty(), is(true));
+        assertThat(this.connects, is(0));
+    }
+
+    @Test
+    public void testReconnect() {
+        this.outputs.add(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("broken pipe");
+            }
+        });
+
+        // Dropped, and reconnected on the next event
+        repair(0, 10000);
+        repair(2, 11000);
+
+        assertThat(lines(), is(Arrays.asList(REPAIR + ".error 1 11")));
+        assertThat(this.connects, is(2));
+    }
+
+    private void repair(int type, long time) {
+        Notification notification = new Notification("progress", "repair:1", this.sequence++, time);
+        notification.setUserData(ImmutableMap.of("type", type));
+        notify(notification);
+    }
+
+    private void stream(String event, String planId, long time, Long rx, Long tx) throws OpenDataException {
+        CompositeType type = new CompositeType(
+                "StreamEvent",
+                "StreamEvent",
+                new String[] { "planId", "currentRxBytes", "currentTxBytes" },
+                new String[] { "planId", "currentRxBytes", "currentTxBytes" },
+                new OpenType<?>[] { SimpleType.STRING, SimpleType.LONG, SimpleType.LONG });
+        Map<String, Object> items = Maps.newHashMap();
+        items.put("planId", planId);
+        items.put("currentRxBytes", rx);
+        items.put("currentTxBytes", tx);
+        CompositeData data = new CompositeDataSupport(type, items);
+
+        Notification notification = new Notification(STREAM_EVENT + event, "StreamManager", this.sequence++, time);
+        notification.setUserData(data);
+        notify(notification);
+    }
+
+    private void notify(Notification notification) {
+        this.source.handleNotification(notification, null);
+    }
+
+    private List<String> lines() {
+        String s = new String(this.written.toByteArray());
+        return s.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(s.split("\n"));
+    }
+
+}
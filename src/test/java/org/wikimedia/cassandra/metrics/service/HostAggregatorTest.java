@@ -0,0 +1,233 @@
+/* Copyright 2017 Eric Evans <eevans@wikimedia.org> and Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.cassandra.metrics.service;
+
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.wikimedia.cassandra.metrics.BatchVisitor;
+import org.wikimedia.cassandra.metrics.CarbonConnector;
+import org.wikimedia.cassandra.metrics.CarbonVisitor;
+import org.wikimedia.cassandra.metrics.EstimatedHistogram;
+import org.wikimedia.cassandra.metrics.Filter;
+import org.wikimedia.cassandra.metrics.JmxCollector;
+import org.wikimedia.cassandra.metrics.JmxSample;
+import org.wikimedia.cassandra.metrics.JmxSample.Type;
+import org.wikimedia.cassandra.metrics.LatencySketch;
+import org.wikimedia.cassandra.metrics.MetricNameCache;
+import org.wikimedia.cassandra.metrics.SampleBatch;
+import org.wikimedia.cassandra.metrics.SampleVisitor;
+
+import com.google.common.base.Optional;
+
+public class HostAggregatorTest {
+
+    // Cassandra's default reservoir size
+    private static final int BUCKETS = 165;
+
+    private static final String LOAD = "cassandra.host.org.apache.cassandra.metrics.Storage.Load.count";
+
+    private static final SampleVisitor NONE = new SampleVisitor() {
+        @Override
+        public void visit(JmxSample sample) {
+        }
+    };
+
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private ObjectName load;
+    private ObjectName latency;
+    private HostAggregator aggregator;
+
+    @Before
+    public void setUp() throws IOException, MalformedObjectNameException {
+        this.load = new ObjectName("org.apache.cassandra.metrics:type=Storage,name=Load");
+        this.latency = new ObjectName("org.apache.cassandra.metrics:type=ClientRequest,scope=Read,name=Latency");
+
+        final Socket socket = mock(Socket.class);
+        when(socket.getOutputStream()).thenReturn(this.written);
+        final MetricNameCache names = new MetricNameCache("cassandra.host");
+
+        this.aggregator = new HostAggregator("localhost", 2003, Optional.<Filter>absent(), names, Optional.of(new ObjectName("org.apache.cassandra.metrics:type=ClientRequest,*"))) {
+            @Override
+            CarbonVisitor connect() {
+                return new CarbonVisitor(new CarbonConnector() {
+                    @Override
+                    protected Socket createSocket() {
+                        return socket;
+                    }
+                }, Optional.<Filter>absent(), names);
+            }
+        };
+        this.aggregator.register("a");
+        this.aggregator.register("b");
+    }
+
+    @Test
+    public void testCycles() {
+        // Totals are written once both instances have completed.
+        collect("a", 1, 1);
+        assertThat(lines().isEmpty(), is(true));
+        collect("b", 2, 2);
+        assertThat(lines(), is(Arrays.asList(LOAD + " 3 2")));
+
+        // Lapped; The first cycle is discarded, the second is written with the latest of each.
+        collect("a", 10, 3);
+        collect("a", 20, 4);
+        assertThat(lines().isEmpty(), is(true));
+        collect("b", 5, 5);
+        assertThat(lines(), is(Arrays.asList(LOAD + " 25 5")));
+
+        // A failed collection discards the cycle.
+        collect("a", 100, 6);
+        this.aggregator.watch("b", NONE).visit(new SampleBatch().reset(Type.CASSANDRA, this.load, 6).add("count", 1000L));
+        this.aggregator.complete("b", false);
+        assertThat(lines().isEmpty(), is(true));
+
+        // The collection in progress of one instance doesn't disturb its completed one.
+        collect("a", 7, 7);
+        this.aggregator.watch("a", NONE).visit(new SampleBatch().reset(Type.CASSANDRA, this.load, 8).add("count", 1000L));
+        collect("b", 8, 8);
+        assertThat(lines(), is(Arrays.asList(LOAD + " 15 8")));
+    }
+
+    @Test
+    public void testRegistration() {
+        // An instance registered mid-cycle holds the cycle up until it has completed.
+        collect("a", 1, 1);
+        this.aggregator.register("c");
+        collect("b", 2, 1);
+        assertThat(lines().isEmpty(), is(true));
+        collect("c", 4, 1);
+        assertThat(lines(), is(Arrays.asList(LOAD + " 7 1")));
+
+        // Once unregistered, it no longer does (nor does it count).
+        collect("a", 1, 2);
+        this.aggregator.unregister("c");
+        collect("b", 2, 2);
+        assertThat(lines(), is(Arrays.asList(LOAD + " 3 2")));
+
+        // Unregistered instances are ignored.
+        collect("c", 1000, 3);
+        assertThat(lines().isEmpty(), is(true));
+    }
+
+    @Test
+    public void testFunctions() throws MalformedObjectNameException {
+        String prefix = "cassandra.host.org.apache.cassandra.metrics.";
+        for (String instance : new String[] { "a", "b" }) {
+            boolean a = instance.equals("a");
+            BatchVisitor visitor = this.aggregator.watch(instance, NONE);
+            visitor.visit(gauge("type=Cache,scope=KeyCache,name=HitRate", a ? 0.9 : 0.7));
+            visitor.visit(gauge("type=Table,name=MaxPartitionSize", a ? 10L : 20L));
+            visitor.visit(gauge("type=Table,name=MinPartitionSize", a ? 1L : 2L));
+            visitor.visit(gauge("type=Table,name=LiveDiskSpaceUsed", a ? 100L : 200L));
+            visitor.visit(new SampleBatch().reset(Type.CASSANDRA, this.load, 1).add("count", a ? 1L : 2L));
+            this.aggregator.complete(instance, true);
+        }
+
+        List<String> lines = lines();
+        assertThat(lines, hasItems(
+                prefix + "Cache.KeyCache.HitRate.value " + ((0.9 + 0.7) / 2) + " 1",
+                prefix + "Table.all.MaxPartitionSize.value 20 1",
+                prefix + "Table.all.LiveDiskSpaceUsed.value 300 1",
+                LOAD + " 3 1"));
+        assertThat(lines.size(), is(4));
+    }
+
+    @Test
+    public void testSketches() throws IOException {
+        EstimatedHistogram fast = new EstimatedHistogram(BUCKETS);
+        EstimatedHistogram slow = new EstimatedHistogram(BUCKETS);
+        for (int i = 0; i < 990; i++)
+            fast.add(500);
+        for (int i = 0; i < 10; i++)
+            slow.add(80000);
+
+        this.aggregator.watch("a", NONE);
+        this.aggregator.collectSketches("a", sketching(fast.getBuckets(false)));
+        this.aggregator.complete("a", true);
+        this.aggregator.watch("b", NONE);
+        this.aggregator.collectSketches("b", sketching(slow.getBuckets(false)));
+        this.aggregator.complete("b", true);
+
+        LatencySketch merged = new LatencySketch();
+        merged.add(fast.getBuckets(false), 1.0);
+        merged.add(slow.getBuckets(false), 1.0);
+        String name = "cassandra.host.org.apache.cassandra.metrics.ClientRequest.Read.Latency.";
+        assertThat(lines(), hasItems(
+                name + "50percentile " + (double) merged.quantile(0.5) + " 0",
+                name + "99percentile " + (double) merged.quantile(0.99) + " 0",
+                name + "999percentile " + (double) merged.quantile(0.999) + " 0"));
+    }
+
+    /** A complete collection of an instance. */
+    private void collect(String instance, long count, int timestamp) {
+        BatchVisitor visitor = this.aggregator.watch(instance, NONE);
+        visitor.visit(new SampleBatch().reset(Type.CASSANDRA, this.load, timestamp).add("count", count).add("99percentile", 1.0));
+        this.aggregator.complete(instance, true);
+    }
+
+    /** A batch of one gauge value. */
+    private static SampleBatch gauge(String properties, Number value) throws MalformedObjectNameException {
+        ObjectName oName = new ObjectName("org.apache.cassandra.metrics:" + properties);
+        SampleBatch batch = new SampleBatch().reset(Type.CASSANDRA, oName, 1);
+        return (value instanceof Long) ? batch.add("value", value.longValue()) : batch.add("value", value.doubleValue());
+    }
+
+    /** A JMX collector with one latency sketch. */
+    private JmxCollector sketching(final long[] buckets) throws IOException {
+        JmxCollector jmx = mock(JmxCollector.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Void answer(InvocationOnMock invocation) {
+                LatencySketch sketch = new LatencySketch();
+                sketch.add(buckets, 1.0);
+                ((Map<ObjectName, LatencySketch>) invocation.getArguments()[1]).put(latency, sketch);
+                return null;
+            }
+        }).when(jmx).getLatencySketches(any(ObjectName.class), anyMapOf(ObjectName.class, LatencySketch.class));
+        return jmx;
+    }
+
+    /** Returns the lines written since the last call. */
+    private List<String> lines() {
+        String written = new String(this.written.toByteArray());
+        this.written.reset();
+        return written.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(written.split("\n"));
+    }
+
+}